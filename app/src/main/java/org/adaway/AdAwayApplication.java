@@ -9,6 +9,7 @@ import org.adaway.model.adblocking.AdBlockModel;
 import org.adaway.model.source.SourceModel;
 import org.adaway.model.update.UpdateModel;
 import org.adaway.util.log.ApplicationLog;
+import org.adaway.util.metrics.MetricsServer;
 
 /**
  * This class is a custom {@link Application} for AdAway app.
@@ -40,6 +41,8 @@ public class AdAwayApplication extends Application {
         // Create models
         this.sourceModel = new SourceModel(this);
         this.updateModel = new UpdateModel(this);
+        // Start metrics endpoint
+        MetricsServer.init(this);
     }
 
     /**
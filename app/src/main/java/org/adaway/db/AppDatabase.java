@@ -12,12 +12,18 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
 import org.adaway.R;
 import org.adaway.db.converter.ListTypeConverter;
 import org.adaway.db.converter.ZonedDateTimeConverter;
+import org.adaway.db.dao.DnsForwardingRuleDao;
 import org.adaway.db.dao.HostEntryDao;
 import org.adaway.db.dao.HostListItemDao;
 import org.adaway.db.dao.HostsSourceDao;
+import org.adaway.db.dao.SourceTimingDao;
+import org.adaway.db.dao.TopDomainDao;
+import org.adaway.db.entity.DnsForwardingRule;
 import org.adaway.db.entity.HostListItem;
 import org.adaway.db.entity.HostsSource;
 import org.adaway.db.entity.HostEntry;
+import org.adaway.db.entity.SourceTiming;
+import org.adaway.db.entity.TopDomain;
 import org.adaway.util.AppExecutors;
 
 import static org.adaway.db.Migrations.MIGRATION_1_2;
@@ -26,6 +32,9 @@ import static org.adaway.db.Migrations.MIGRATION_3_4;
 import static org.adaway.db.Migrations.MIGRATION_4_5;
 import static org.adaway.db.Migrations.MIGRATION_5_6;
 import static org.adaway.db.Migrations.MIGRATION_6_7;
+import static org.adaway.db.Migrations.MIGRATION_7_8;
+import static org.adaway.db.Migrations.MIGRATION_8_9;
+import static org.adaway.db.Migrations.MIGRATION_9_10;
 import static org.adaway.db.entity.HostsSource.USER_SOURCE_ID;
 import static org.adaway.db.entity.HostsSource.USER_SOURCE_URL;
 
@@ -34,7 +43,11 @@ import static org.adaway.db.entity.HostsSource.USER_SOURCE_URL;
  *
  * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
  */
-@Database(entities = {HostsSource.class, HostListItem.class, HostEntry.class}, version = 7)
+@Database(
+        entities = {HostsSource.class, HostListItem.class, HostEntry.class, DnsForwardingRule.class,
+                TopDomain.class, SourceTiming.class},
+        version = 10
+)
 @TypeConverters({ListTypeConverter.class, ZonedDateTimeConverter.class})
 public abstract class AppDatabase extends RoomDatabase {
     /**
@@ -69,7 +82,10 @@ public abstract class AppDatabase extends RoomDatabase {
                             MIGRATION_3_4,
                             MIGRATION_4_5,
                             MIGRATION_5_6,
-                            MIGRATION_6_7
+                            MIGRATION_6_7,
+                            MIGRATION_7_8,
+                            MIGRATION_8_9,
+                            MIGRATION_9_10
                     ).build();
                 }
             }
@@ -131,4 +147,25 @@ public abstract class AppDatabase extends RoomDatabase {
      * @return The hosts entry DAO.
      */
     public abstract HostEntryDao hostEntryDao();
+
+    /**
+     * Get the DNS forwarding rule DAO.
+     *
+     * @return The DNS forwarding rule DAO.
+     */
+    public abstract DnsForwardingRuleDao dnsForwardingRuleDao();
+
+    /**
+     * Get the top domain DAO.
+     *
+     * @return The top domain DAO.
+     */
+    public abstract TopDomainDao topDomainDao();
+
+    /**
+     * Get the source timing DAO.
+     *
+     * @return The source timing DAO.
+     */
+    public abstract SourceTimingDao sourceTimingDao();
 }
@@ -120,4 +120,39 @@ final class Migrations {
             database.execSQL("ALTER TABLE `hosts_sources` ADD `entityTag` TEXT DEFAULT NULL");
         }
     };
+
+    /**
+     * The migration script from v7 to v8.
+     */
+    static final Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Create DNS forwarding rules table
+            database.execSQL("CREATE TABLE IF NOT EXISTS `dns_forwarding_rules` (`domain` TEXT NOT NULL, `servers` TEXT NOT NULL, PRIMARY KEY(`domain`))");
+        }
+    };
+
+    /**
+     * The migration script from v8 to v9.
+     */
+    static final Migration MIGRATION_8_9 = new Migration(8, 9) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Create top domains table
+            database.execSQL("CREATE TABLE IF NOT EXISTS `top_domains` (`ranking` INTEGER NOT NULL, `domain` TEXT NOT NULL, `hits` INTEGER NOT NULL, PRIMARY KEY(`ranking`, `domain`))");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_top_domains_ranking_hits` ON `top_domains` (`ranking`, `hits`)");
+        }
+    };
+
+    /**
+     * The migration script from v9 to v10.
+     */
+    static final Migration MIGRATION_9_10 = new Migration(9, 10) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Create source timings table
+            database.execSQL("CREATE TABLE IF NOT EXISTS `source_timings` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `refresh` INTEGER NOT NULL, `stage` INTEGER NOT NULL, `source` TEXT, `duration` INTEGER NOT NULL, `count` INTEGER NOT NULL, `rejected` INTEGER NOT NULL)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_source_timings_refresh` ON `source_timings` (`refresh`)");
+        }
+    };
 }
@@ -0,0 +1,35 @@
+package org.adaway.db.dao;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import org.adaway.db.entity.DnsForwardingRule;
+
+import java.util.List;
+
+import static androidx.room.OnConflictStrategy.REPLACE;
+
+/**
+ * This interface is the DAO for {@link DnsForwardingRule} entities.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@Dao
+public interface DnsForwardingRuleDao {
+    @Insert(onConflict = REPLACE)
+    void insertAll(List<DnsForwardingRule> rules);
+
+    @Query("DELETE FROM dns_forwarding_rules")
+    void deleteAll();
+
+    @Transaction
+    default void replaceAll(List<DnsForwardingRule> rules) {
+        deleteAll();
+        insertAll(rules);
+    }
+
+    @Query("SELECT * FROM dns_forwarding_rules ORDER BY domain ASC")
+    List<DnsForwardingRule> getAll();
+}
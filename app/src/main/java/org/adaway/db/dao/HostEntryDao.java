@@ -66,6 +66,12 @@ public interface HostEntryDao {
     @Query("SELECT * FROM `host_entries` ORDER BY `host`")
     List<HostEntry> getAll();
 
+    @Query("SELECT `host` FROM `host_entries` WHERE `type` = 0 AND `host` > :afterHost ORDER BY `host` LIMIT :limit")
+    List<String> getBlockedHosts(String afterHost, int limit);
+
+    @Query("SELECT COUNT(*) FROM `host_entries`")
+    int count();
+
     @Query("SELECT `type` FROM `host_entries` WHERE `host` == :host LIMIT 1")
     ListType getTypeOfHost(String host);
 
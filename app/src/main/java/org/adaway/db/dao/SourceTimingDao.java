@@ -0,0 +1,44 @@
+package org.adaway.db.dao;
+
+import androidx.lifecycle.LiveData;
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import org.adaway.db.entity.SourceTiming;
+
+import java.util.List;
+
+/**
+ * This interface is the DAO for {@link SourceTiming} entities.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@Dao
+public interface SourceTimingDao {
+    @Insert
+    void insert(SourceTiming timing);
+
+    @Query("DELETE FROM source_timings WHERE refresh NOT IN " +
+            "(SELECT DISTINCT refresh FROM source_timings ORDER BY refresh DESC LIMIT :limit)")
+    void trim(int limit);
+
+    /**
+     * Insert a stage timing, then keep only the timings of the last refreshes.
+     *
+     * @param timing The stage timing to insert.
+     * @param limit  The number of refreshes to keep.
+     */
+    @Transaction
+    default void insert(SourceTiming timing, int limit) {
+        insert(timing);
+        trim(limit);
+    }
+
+    @Query("DELETE FROM source_timings")
+    void clear();
+
+    @Query("SELECT * FROM source_timings ORDER BY refresh DESC, id ASC")
+    LiveData<List<SourceTiming>> getAll();
+}
@@ -0,0 +1,51 @@
+package org.adaway.db.dao;
+
+import androidx.lifecycle.LiveData;
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import org.adaway.db.entity.TopDomain;
+
+import java.util.List;
+
+import static androidx.room.OnConflictStrategy.REPLACE;
+
+/**
+ * This interface is the DAO for {@link TopDomain} entities.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@Dao
+public interface TopDomainDao {
+    @Insert(onConflict = REPLACE)
+    void insert(TopDomain domain);
+
+    @Query("UPDATE top_domains SET hits = hits + :hits WHERE ranking = :ranking AND domain = :domain")
+    int addHits(int ranking, String domain, long hits);
+
+    @Query("DELETE FROM top_domains WHERE ranking = :ranking AND domain NOT IN " +
+            "(SELECT domain FROM top_domains WHERE ranking = :ranking ORDER BY hits DESC LIMIT :limit)")
+    void trim(int ranking, int limit);
+
+    /**
+     * Add hits to the domains of a ranking, then keep only its top domains.
+     *
+     * @param ranking The ranking to merge into.
+     * @param domains The domains to add hits to.
+     * @param limit   The number of top domains to keep.
+     */
+    @Transaction
+    default void merge(int ranking, List<TopDomain> domains, int limit) {
+        for (TopDomain domain : domains) {
+            if (addHits(ranking, domain.getDomain(), domain.getHits()) == 0) {
+                insert(domain);
+            }
+        }
+        trim(ranking, limit);
+    }
+
+    @Query("SELECT * FROM top_domains WHERE ranking = :ranking ORDER BY hits DESC LIMIT :limit")
+    LiveData<List<TopDomain>> getTop(int ranking, int limit);
+}
@@ -0,0 +1,44 @@
+package org.adaway.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * This entity represents a conditional forwarding rule of the VPN: the queries for a domain and its subdomains are
+ * sent to dedicated DNS servers.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@Entity(tableName = "dns_forwarding_rules")
+public class DnsForwardingRule {
+    /**
+     * The domain, lower case and without trailing dot.
+     */
+    @PrimaryKey
+    @NonNull
+    private String domain;
+    /**
+     * The DNS server IP addresses, separated by spaces.
+     */
+    @NonNull
+    private String servers;
+
+    @NonNull
+    public String getDomain() {
+        return domain;
+    }
+
+    public void setDomain(@NonNull String domain) {
+        this.domain = domain;
+    }
+
+    @NonNull
+    public String getServers() {
+        return servers;
+    }
+
+    public void setServers(@NonNull String servers) {
+        this.servers = servers;
+    }
+}
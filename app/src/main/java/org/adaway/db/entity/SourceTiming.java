@@ -0,0 +1,126 @@
+package org.adaway.db.entity;
+
+import androidx.annotation.Nullable;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * This entity represents the timing of a stage of a source refresh.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@Entity(
+        tableName = "source_timings",
+        indices = {@Index(value = "refresh")}
+)
+public class SourceTiming {
+    /**
+     * The stage checking the source last update, counting nothing.
+     */
+    public static final int CHECK = 0;
+    /**
+     * The stage downloading the source, counting the downloaded bytes.
+     */
+    public static final int DOWNLOAD = 1;
+    /**
+     * The stage parsing the source, counting the read lines and the rejected ones.
+     */
+    public static final int PARSE = 2;
+    /**
+     * The stage inserting the source items, counting the inserted rows.
+     */
+    public static final int INSERT = 3;
+    /**
+     * The stage synchronizing the host entries of all sources, counting the host entries.
+     */
+    public static final int SYNC = 4;
+    /**
+     * The stage applying the host entries, counting nothing.
+     */
+    public static final int APPLY = 5;
+    @PrimaryKey(autoGenerate = true)
+    private long id;
+    /**
+     * The refresh start time (in ms since epoch), shared by all the stages of a refresh.
+     */
+    private long refresh;
+    /**
+     * The stage, from {@link #CHECK} to {@link #APPLY}.
+     */
+    private int stage;
+    /**
+     * The source label, {@code null} for the stages of all sources.
+     */
+    @Nullable
+    private String source;
+    /**
+     * The stage duration (in ms).
+     */
+    private long duration;
+    /**
+     * The number of items processed by the stage.
+     */
+    private long count;
+    /**
+     * The number of items rejected by the stage.
+     */
+    private long rejected;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getRefresh() {
+        return refresh;
+    }
+
+    public void setRefresh(long refresh) {
+        this.refresh = refresh;
+    }
+
+    public int getStage() {
+        return stage;
+    }
+
+    public void setStage(int stage) {
+        this.stage = stage;
+    }
+
+    @Nullable
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(@Nullable String source) {
+        this.source = source;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public void setRejected(long rejected) {
+        this.rejected = rejected;
+    }
+}
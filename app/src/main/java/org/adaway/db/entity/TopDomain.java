@@ -0,0 +1,65 @@
+package org.adaway.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+
+/**
+ * This entity represents a domain of the VPN rankings, the most queried or most blocked domains, with its
+ * estimated number of hits.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@Entity(
+        tableName = "top_domains",
+        primaryKeys = {"ranking", "domain"},
+        indices = {@Index(value = {"ranking", "hits"})}
+)
+public class TopDomain {
+    /**
+     * The ranking of the most queried domains.
+     */
+    public static final int QUERIED = 0;
+    /**
+     * The ranking of the most blocked domains.
+     */
+    public static final int BLOCKED = 1;
+    /**
+     * The ranking, {@link #QUERIED} or {@link #BLOCKED}.
+     */
+    private int ranking;
+    /**
+     * The domain, lower case and without trailing dot.
+     */
+    @NonNull
+    private String domain;
+    /**
+     * The number of hits.
+     */
+    private long hits;
+
+    public int getRanking() {
+        return ranking;
+    }
+
+    public void setRanking(int ranking) {
+        this.ranking = ranking;
+    }
+
+    @NonNull
+    public String getDomain() {
+        return domain;
+    }
+
+    public void setDomain(@NonNull String domain) {
+        this.domain = domain;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public void setHits(long hits) {
+        this.hits = hits;
+    }
+}
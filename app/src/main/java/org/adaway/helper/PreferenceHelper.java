@@ -29,6 +29,7 @@ import org.adaway.R;
 import org.adaway.model.adblocking.AdBlockMethod;
 import org.adaway.util.Constants;
 import org.adaway.vpn.VpnStatus;
+import org.adaway.vpn.dns.DnsTransport;
 
 import java.util.Collections;
 import java.util.Set;
@@ -235,6 +236,165 @@ public final class PreferenceHelper {
                                 context.getResources().getBoolean(R.bool.pref_vpn_watchdog_enabled_def));
         }
 
+        public static boolean getVpnUpstreamRacing(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getBoolean(
+                                context.getString(R.string.pref_vpn_upstream_racing_key),
+                                context.getResources().getBoolean(R.bool.pref_vpn_upstream_racing_def));
+        }
+
+        public static boolean getVpnCnameInspection(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getBoolean(
+                                context.getString(R.string.pref_vpn_cname_inspection_key),
+                                context.getResources().getBoolean(R.bool.pref_vpn_cname_inspection_def));
+        }
+
+        public static int getVpnDnsQueryTimeout(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getInt(
+                                context.getString(R.string.pref_vpn_dns_query_timeout_key),
+                                context.getResources().getInteger(R.integer.pref_vpn_dns_query_timeout_def));
+        }
+
+        public static int getVpnDnsMaxStale(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getInt(
+                                context.getString(R.string.pref_vpn_dns_max_stale_key),
+                                context.getResources().getInteger(R.integer.pref_vpn_dns_max_stale_def));
+        }
+
+        public static int getVpnDnsMinTtl(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getInt(
+                                context.getString(R.string.pref_vpn_dns_min_ttl_key),
+                                context.getResources().getInteger(R.integer.pref_vpn_dns_min_ttl_def));
+        }
+
+        public static int getVpnDnsMaxTtl(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getInt(
+                                context.getString(R.string.pref_vpn_dns_max_ttl_key),
+                                context.getResources().getInteger(R.integer.pref_vpn_dns_max_ttl_def));
+        }
+
+        public static String getVpnDnsTtlExceptions(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getString(
+                                context.getString(R.string.pref_vpn_dns_ttl_exceptions_key),
+                                context.getString(R.string.pref_vpn_dns_ttl_exceptions_def));
+        }
+
+        public static int getVpnBlockedTtl(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getInt(
+                                context.getString(R.string.pref_vpn_blocked_ttl_key),
+                                context.getResources().getInteger(R.integer.pref_vpn_blocked_ttl_def));
+        }
+
+        public static int getVpnRedirectedTtl(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getInt(
+                                context.getString(R.string.pref_vpn_redirected_ttl_key),
+                                context.getResources().getInteger(R.integer.pref_vpn_redirected_ttl_def));
+        }
+
+        public static int getVpnSynthesizedMaxTtl(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getInt(
+                                context.getString(R.string.pref_vpn_synthesized_max_ttl_key),
+                                context.getResources().getInteger(R.integer.pref_vpn_synthesized_max_ttl_def));
+        }
+
+        public static DnsTransport getVpnDnsTransport(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return DnsTransport.fromValue(prefs.getString(
+                                context.getString(R.string.pref_vpn_dns_transport_key),
+                                context.getString(R.string.pref_vpn_dns_transport_def)));
+        }
+
+        public static String getVpnDohEndpoints(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getString(
+                                context.getString(R.string.pref_vpn_doh_endpoints_key),
+                                context.getString(R.string.pref_vpn_doh_endpoints_def));
+        }
+
+        public static boolean getVpnLocalDnsServer(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getBoolean(
+                                context.getString(R.string.pref_vpn_local_dns_server_key),
+                                context.getResources().getBoolean(R.bool.pref_vpn_local_dns_server_def));
+        }
+
+        public static int getVpnLocalDnsServerPort(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                String defaultPort = context.getString(R.string.pref_vpn_local_dns_server_port_def);
+                String port = prefs.getString(
+                                context.getString(R.string.pref_vpn_local_dns_server_port_key),
+                                defaultPort);
+                try {
+                        return Integer.parseInt(port.trim());
+                } catch (NumberFormatException e) {
+                        return Integer.parseInt(defaultPort);
+                }
+        }
+
+        public static String getVpnLocalDnsServerInterface(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getString(
+                                context.getString(R.string.pref_vpn_local_dns_server_interface_key),
+                                context.getString(R.string.pref_vpn_local_dns_server_interface_def));
+        }
+
+        public static int getVpnLocalDnsServerRateLimit(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getInt(
+                                context.getString(R.string.pref_vpn_local_dns_server_rate_limit_key),
+                                context.getResources().getInteger(R.integer.pref_vpn_local_dns_server_rate_limit_def));
+        }
+
+        public static String getVpnDotServers(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getString(
+                                context.getString(R.string.pref_vpn_dot_servers_key),
+                                context.getString(R.string.pref_vpn_dot_servers_def));
+        }
+
         public static boolean getDebugEnabled(Context context) {
                 SharedPreferences prefs = context.getSharedPreferences(
                                 Constants.PREFS_NAME,
@@ -244,6 +404,15 @@ public final class PreferenceHelper {
                                 context.getResources().getBoolean(R.bool.pref_enable_debug_def));
         }
 
+        public static boolean getMetricsEndpointEnabled(Context context) {
+                SharedPreferences prefs = context.getSharedPreferences(
+                                Constants.PREFS_NAME,
+                                Context.MODE_PRIVATE);
+                return prefs.getBoolean(
+                                context.getString(R.string.pref_metrics_endpoint_key),
+                                context.getResources().getBoolean(R.bool.pref_metrics_endpoint_def));
+        }
+
         public static boolean getTelemetryEnabled(Context context) {
                 SharedPreferences prefs = context.getSharedPreferences(
                                 Constants.PREFS_NAME,
@@ -1,6 +1,7 @@
 package org.adaway.model.adblocking;
 
 import android.content.Context;
+import android.os.SystemClock;
 
 import androidx.annotation.StringRes;
 import androidx.lifecycle.LiveData;
@@ -8,6 +9,7 @@ import androidx.lifecycle.MutableLiveData;
 
 import org.adaway.model.error.HostErrorException;
 import org.adaway.model.root.RootModel;
+import org.adaway.model.source.SourceRefreshHistory;
 import org.adaway.model.vpn.VpnModel;
 
 import java.util.List;
@@ -91,10 +93,28 @@ public abstract class AdBlockModel {
 
     /**
      * Apply hosts list.
+     * <p>
+     * It ends the ongoing source refresh, recording the time to apply.
      *
      * @throws HostErrorException If the model configuration could not be applied.
      */
-    public abstract void apply() throws HostErrorException;
+    public void apply() throws HostErrorException {
+        SourceRefreshHistory refreshHistory = SourceRefreshHistory.getInstance(this.context);
+        long startTime = SystemClock.elapsedRealtime();
+        try {
+            applyHostsList();
+            refreshHistory.recordApply(SystemClock.elapsedRealtime() - startTime);
+        } finally {
+            refreshHistory.endRefresh();
+        }
+    }
+
+    /**
+     * Apply hosts list using the model ad block method.
+     *
+     * @throws HostErrorException If the model configuration could not be applied.
+     */
+    protected abstract void applyHostsList() throws HostErrorException;
 
     /**
      * Revert the hosts list to the default one.
@@ -28,7 +28,7 @@ public class UndefinedBlockModel extends AdBlockModel {
     }
 
     @Override
-    public void apply() {
+    protected void applyHostsList() {
         // Unsupported operation
     }
 
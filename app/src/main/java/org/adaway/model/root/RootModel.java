@@ -62,6 +62,7 @@ public class RootModel extends AdBlockModel {
     private static final String HEADER_SOURCES = "# This file is generated from the following sources:";
     private final HostsSourceDao hostsSourceDao;
     private final HostEntryDao hostEntryDao;
+    private final TcpdumpLogReader logReader;
 
     /**
      * Constructor.
@@ -74,6 +75,7 @@ public class RootModel extends AdBlockModel {
         AppDatabase database = AppDatabase.getInstance(this.context);
         this.hostsSourceDao = database.hostsSourceDao();
         this.hostEntryDao = database.hostEntryDao();
+        this.logReader = new TcpdumpLogReader(TcpdumpUtils.getLogFile(context));
         // Check if host list is applied
         Executor executor = AppExecutors.getInstance().diskIO();
         executor.execute(this::checkApplied);
@@ -86,7 +88,7 @@ public class RootModel extends AdBlockModel {
     }
 
     @Override
-    public void apply() throws HostErrorException {
+    protected void applyHostsList() throws HostErrorException {
         setState(R.string.status_apply_sources);
         setState(R.string.status_create_new_hosts);
         createNewHostsFile();
@@ -132,12 +134,13 @@ public class RootModel extends AdBlockModel {
 
     @Override
     public List<String> getLogs() {
-        return TcpdumpUtils.getLogs(this.context);
+        return this.logReader.read();
     }
 
     @Override
     public void clearLogs() {
         TcpdumpUtils.clearLogFile(this.context);
+        this.logReader.reset();
     }
 
     private void checkApplied() {
@@ -0,0 +1,202 @@
+package org.adaway.model.root;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import timber.log.Timber;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * This class incrementally reads the queried host names from the tcpdump log.
+ * <p>
+ * It remembers the offset and the identity of the log file, so each read only parses the bytes appended since the
+ * previous one and merges their host names into the already read ones. If the file is replaced or truncated, it is
+ * read again from its start. Once read, a log larger than the size cap is truncated, tcpdump appending to its new
+ * end, so the log does not grow without limit while the host names are kept in memory.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class TcpdumpLogReader {
+    /**
+     * The maximum log size (in bytes) before truncating it.
+     */
+    static final long MAX_LOG_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * The maximum line length (in bytes), longer lines are cut.
+     */
+    private static final int MAX_LINE_LENGTH = 4096;
+    private final File file;
+    private final ByteBuffer buffer;
+    /**
+     * The queried host names, in first query order.
+     */
+    private final Set<String> hosts;
+    /**
+     * The bytes of the line being read, not terminated yet.
+     */
+    private byte[] line;
+    private int lineLength;
+    /**
+     * The identity of the read file, {@code null} if not read yet.
+     */
+    private Object fileKey;
+    /**
+     * The offset of the first unread byte.
+     */
+    private long offset;
+
+    /**
+     * Constructor.
+     *
+     * @param file The tcpdump log file.
+     */
+    TcpdumpLogReader(File file) {
+        this.file = file;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.hosts = new LinkedHashSet<>();
+        this.line = new byte[512];
+        this.lineLength = 0;
+        this.fileKey = null;
+        this.offset = 0;
+    }
+
+    /**
+     * Read the host names appended to the log since the last read.
+     *
+     * @return All the queried host names, in first query order.
+     */
+    synchronized List<String> read() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(this.file.toPath(), BasicFileAttributes.class);
+            Object key = attributes.fileKey();
+            if (!Objects.equals(key, this.fileKey) || attributes.size() < this.offset) {
+                // The log was replaced or truncated
+                reset();
+                this.fileKey = key;
+            }
+            if (attributes.size() > this.offset) {
+                readAppendedBytes();
+            }
+            if (this.offset > MAX_LOG_SIZE) {
+                truncate();
+            }
+        } catch (NoSuchFileException e) {
+            reset();
+        } catch (IOException e) {
+            Timber.w(e, "Failed to read tcpdump log.");
+        }
+        return new ArrayList<>(this.hosts);
+    }
+
+    /**
+     * Forget the read host names, to read the log again from its start.
+     */
+    synchronized void reset() {
+        this.hosts.clear();
+        this.lineLength = 0;
+        this.fileKey = null;
+        this.offset = 0;
+    }
+
+    private void readAppendedBytes() throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            channel.position(this.offset);
+            int read;
+            while ((read = channel.read(this.buffer)) > 0) {
+                byte[] bytes = this.buffer.array();
+                for (int i = 0; i < read; i++) {
+                    byte b = bytes[i];
+                    if (b == '\n') {
+                        parseLine(this.line, this.lineLength);
+                        this.lineLength = 0;
+                    } else {
+                        appendToLine(b);
+                    }
+                }
+                this.offset += read;
+                this.buffer.clear();
+            }
+        }
+    }
+
+    private void appendToLine(byte b) {
+        if (this.lineLength == this.line.length) {
+            if (this.line.length >= MAX_LINE_LENGTH) {
+                return;
+            }
+            this.line = Arrays.copyOf(this.line, this.line.length * 2);
+        }
+        this.line[this.lineLength++] = b;
+    }
+
+    private void truncate() {
+        // Only truncate after a complete line
+        if (this.lineLength != 0) {
+            return;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            // Check nothing was appended since read
+            if (channel.size() == this.offset) {
+                channel.truncate(0);
+                this.offset = 0;
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Failed to truncate tcpdump log.");
+        }
+    }
+
+    private void parseLine(byte[] bytes, int length) {
+        String host = parseHost(bytes, length);
+        if (host != null) {
+            this.hosts.add(host);
+        }
+    }
+
+    /**
+     * Get the queried host name of a tcpdump log line, like
+     * {@code IP 10.0.0.2.41234 > 10.0.0.1.53: 1234+ A? example.com. (29)}.
+     * <p>
+     * It looks for an {@code A?} or {@code AAAA?} query followed by a fully qualified host name, without regex.
+     *
+     * @param bytes  The line bytes.
+     * @param length The line length.
+     * @return The queried host name, without trailing dot, {@code null} if the line is not a A or AAAA query.
+     */
+    static String parseHost(byte[] bytes, int length) {
+        for (int i = 1; i < length - 2; i++) {
+            if (bytes[i] != '?' || bytes[i - 1] != 'A' || !isWhitespace(bytes[i + 1])) {
+                continue;
+            }
+            int start = i + 2;
+            int end = start;
+            while (end < length && !isWhitespace(bytes[end])) {
+                end++;
+            }
+            // Host name must end with a dot and be followed by a whitespace
+            if (end < length && end - start > 1 && bytes[end - 1] == '.') {
+                return new String(bytes, start, end - start - 1, US_ASCII);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+}
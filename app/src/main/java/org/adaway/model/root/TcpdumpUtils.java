@@ -27,16 +27,7 @@ import com.topjohnwu.superuser.Shell;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.List;
-import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-
-import static java.util.Collections.emptyList;
+
 import static org.adaway.model.root.ShellUtils.isBundledExecutableRunning;
 import static org.adaway.model.root.ShellUtils.killBundledExecutable;
 import static org.adaway.model.root.ShellUtils.mergeAllLines;
@@ -47,8 +38,6 @@ import timber.log.Timber;
 class TcpdumpUtils {
     private static final String TCPDUMP_EXECUTABLE = "tcpdump";
     private static final String TCPDUMP_LOG = "dns_log.txt";
-    private static final String TCPDUMP_HOSTNAME_REGEX = "(?:A\\?|AAAA\\?)\\s(\\S+)\\.\\s";
-    private static final Pattern TCPDUMP_HOSTNAME_PATTERN = Pattern.compile(TCPDUMP_HOSTNAME_REGEX);
 
     /**
      * Private constructor.
@@ -135,30 +124,6 @@ class TcpdumpUtils {
         return new File(context.getCacheDir(), TCPDUMP_LOG);
     }
 
-    /**
-     * Get the tcpdump log content.
-     *
-     * @param context The application context.
-     * @return The tcpdump log file content.
-     */
-    static List<String> getLogs(Context context) {
-        Path logPath = getLogFile(context).toPath();
-        // Check if the log file exists
-        if (!Files.exists(logPath)) {
-            return emptyList();
-        }
-        try (Stream<String> lines = Files.lines(logPath)) {
-            return lines
-                    .map(TcpdumpUtils::getTcpdumpHostname)
-                    .filter(Objects::nonNull)
-                    .distinct()
-                    .collect(Collectors.toList());
-        } catch (IOException exception) {
-            Timber.e(exception, "Can not get cache directory.");
-            return emptyList();
-        }
-    }
-
     /**
      * Delete log file of tcpdump.
      *
@@ -183,20 +148,4 @@ class TcpdumpUtils {
         // Return successfully clear the log file
         return true;
     }
-
-    /**
-     * Gets hostname out of tcpdump log line.
-     *
-     * @param input One line from dns log.
-     * @return A hostname or {code null} if no DNS query in the input.
-     */
-    private static String getTcpdumpHostname(String input) {
-        Matcher tcpdumpHostnameMatcher = TCPDUMP_HOSTNAME_PATTERN.matcher(input);
-        if (tcpdumpHostnameMatcher.find()) {
-            return tcpdumpHostnameMatcher.group(1);
-        } else {
-            Timber.d("Does not find: %s.", input);
-            return null;
-        }
-    }
 }
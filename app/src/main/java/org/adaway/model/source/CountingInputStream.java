@@ -0,0 +1,73 @@
+package org.adaway.model.source;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class is an {@link InputStream} counting the read bytes and the time spent waiting for them.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class CountingInputStream extends FilterInputStream {
+    private volatile long count;
+    private volatile long readTime;
+
+    /**
+     * Constructor.
+     *
+     * @param inputStream The stream to count the bytes of.
+     */
+    CountingInputStream(InputStream inputStream) {
+        super(inputStream);
+        this.count = 0;
+        this.readTime = 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long startTime = System.nanoTime();
+        int read = super.read();
+        this.readTime += System.nanoTime() - startTime;
+        if (read != -1) {
+            this.count++;
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        long startTime = System.nanoTime();
+        int read = super.read(buffer, offset, length);
+        this.readTime += System.nanoTime() - startTime;
+        if (read > 0) {
+            this.count += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        this.count += skipped;
+        return skipped;
+    }
+
+    /**
+     * Get the number of read bytes.
+     *
+     * @return The number of read bytes.
+     */
+    long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Get the time spent waiting for bytes.
+     *
+     * @return The time spent in read calls (in ns).
+     */
+    long getReadTime() {
+        return this.readTime;
+    }
+}
@@ -22,6 +22,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -46,22 +47,30 @@ class SourceLoader {
         this.source = hostsSource;
     }
 
-    void parse(BufferedReader reader, HostListItemDao hostListItemDao) {
+    /**
+     * Parse the source and insert its items.
+     *
+     * @param reader          The source reader.
+     * @param hostListItemDao The DAO to insert items to.
+     * @return The parse statistics.
+     */
+    Stats parse(BufferedReader reader, HostListItemDao hostListItemDao) {
         // Clear current hosts
         hostListItemDao.clearSourceHosts(this.source.getId());
         // Create batch
         int parserCount = 3;
+        Stats stats = new Stats();
         LinkedBlockingQueue<String> hostsLineQueue = new LinkedBlockingQueue<>();
         LinkedBlockingQueue<HostListItem> hostsListItemQueue = new LinkedBlockingQueue<>();
-        SourceReader sourceReader = new SourceReader(reader, hostsLineQueue, parserCount);
-        ItemInserter inserter = new ItemInserter(hostsListItemQueue, hostListItemDao, parserCount);
+        SourceReader sourceReader = new SourceReader(reader, hostsLineQueue, parserCount, stats);
+        ItemInserter inserter = new ItemInserter(hostsListItemQueue, hostListItemDao, parserCount, stats);
         ExecutorService executorService = Executors.newFixedThreadPool(
                 parserCount + 2,
                 r -> new Thread(r, TAG)
         );
         executorService.execute(sourceReader);
         for (int i = 0; i < parserCount; i++) {
-            executorService.execute(new HostListItemParser(this.source, hostsLineQueue, hostsListItemQueue));
+            executorService.execute(new HostListItemParser(this.source, hostsLineQueue, hostsListItemQueue, stats));
         }
         Future<Integer> inserterFuture = executorService.submit(inserter);
         try {
@@ -74,23 +83,75 @@ class SourceLoader {
             Thread.currentThread().interrupt();
         }
         executorService.shutdown();
+        return stats;
+    }
+
+    /**
+     * This class is the statistics of a source parse.
+     */
+    static final class Stats {
+        private final AtomicLong lines = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private volatile long inserted;
+        private volatile long insertTime;
+
+        /**
+         * Get the number of read lines.
+         *
+         * @return The number of read lines, including comments.
+         */
+        long getLines() {
+            return this.lines.get();
+        }
+
+        /**
+         * Get the number of rejected lines.
+         *
+         * @return The number of lines that are neither comments nor valid items.
+         */
+        long getRejected() {
+            return this.rejected.get();
+        }
+
+        /**
+         * Get the number of inserted items.
+         *
+         * @return The number of inserted items.
+         */
+        long getInserted() {
+            return this.inserted;
+        }
+
+        /**
+         * Get the time spent inserting items.
+         *
+         * @return The time spent inserting items (in ns).
+         */
+        long getInsertTime() {
+            return this.insertTime;
+        }
     }
 
     private static class SourceReader implements Runnable {
         private final BufferedReader reader;
         private final BlockingQueue<String> queue;
         private final int parserCount;
+        private final Stats stats;
 
-        private SourceReader(BufferedReader reader, BlockingQueue<String> queue, int parserCount) {
+        private SourceReader(BufferedReader reader, BlockingQueue<String> queue, int parserCount, Stats stats) {
             this.reader = reader;
             this.queue = queue;
             this.parserCount = parserCount;
+            this.stats = stats;
         }
 
         @Override
         public void run() {
             try {
-                this.reader.lines().forEach(this.queue::add);
+                this.reader.lines().forEach(line -> {
+                    this.queue.add(line);
+                    this.stats.lines.incrementAndGet();
+                });
             } catch (Throwable t) {
                 Timber.w(t, "Failed to read hosts source.");
             } finally {
@@ -106,11 +167,14 @@ class SourceLoader {
         private final HostsSource source;
         private final BlockingQueue<String> lineQueue;
         private final BlockingQueue<HostListItem> itemQueue;
+        private final Stats stats;
 
-        private HostListItemParser(HostsSource source, BlockingQueue<String> lineQueue, BlockingQueue<HostListItem> itemQueue) {
+        private HostListItemParser(HostsSource source, BlockingQueue<String> lineQueue,
+                                   BlockingQueue<HostListItem> itemQueue, Stats stats) {
             this.source = source;
             this.lineQueue = lineQueue;
             this.itemQueue = itemQueue;
+            this.stats = stats;
         }
 
         @Override
@@ -135,6 +199,8 @@ class SourceLoader {
                         HostListItem item = allowedList ? parseAllowListItem(line) : parseHostListItem(line);
                         if (item != null && isRedirectionValid(item) && isHostValid(item)) {
                             this.itemQueue.add(item);
+                        } else {
+                            this.stats.rejected.incrementAndGet();
                         }
                     }
                 } catch (InterruptedException e) {
@@ -217,16 +283,20 @@ class SourceLoader {
         private final BlockingQueue<HostListItem> hostListItemQueue;
         private final HostListItemDao hostListItemDao;
         private final int parserCount;
+        private final Stats stats;
 
-        private ItemInserter(BlockingQueue<HostListItem> itemQueue, HostListItemDao hostListItemDao, int parserCount) {
+        private ItemInserter(BlockingQueue<HostListItem> itemQueue, HostListItemDao hostListItemDao, int parserCount,
+                             Stats stats) {
             this.hostListItemQueue = itemQueue;
             this.hostListItemDao = hostListItemDao;
             this.parserCount = parserCount;
+            this.stats = stats;
         }
 
         @Override
         public Integer call() {
             int inserted = 0;
+            long insertTime = 0;
             int workerStopped = 0;
             HostListItem[] batch = new HostListItem[INSERT_BATCH_SIZE];
             int cacheSize = 0;
@@ -244,7 +314,9 @@ class SourceLoader {
                     } else {
                         batch[cacheSize++] = item;
                         if (cacheSize >= batch.length) {
+                            long startTime = System.nanoTime();
                             this.hostListItemDao.insert(batch);
+                            insertTime += System.nanoTime() - startTime;
                             inserted += cacheSize;
                             cacheSize = 0;
                         }
@@ -258,8 +330,12 @@ class SourceLoader {
             // Flush current batch
             HostListItem[] remaining = new HostListItem[cacheSize];
             System.arraycopy(batch, 0, remaining, 0, remaining.length);
+            long startTime = System.nanoTime();
             this.hostListItemDao.insert(remaining);
+            insertTime += System.nanoTime() - startTime;
             inserted += cacheSize;
+            this.stats.inserted = inserted;
+            this.stats.insertTime = insertTime;
             // Return number of inserted items
             return inserted;
         }
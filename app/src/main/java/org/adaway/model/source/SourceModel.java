@@ -2,6 +2,11 @@ package org.adaway.model.source;
 
 import static android.content.Context.CONNECTIVITY_SERVICE;
 import static android.provider.DocumentsContract.Document.COLUMN_LAST_MODIFIED;
+import static org.adaway.db.entity.SourceTiming.CHECK;
+import static org.adaway.db.entity.SourceTiming.DOWNLOAD;
+import static org.adaway.db.entity.SourceTiming.INSERT;
+import static org.adaway.db.entity.SourceTiming.PARSE;
+import static org.adaway.db.entity.SourceTiming.SYNC;
 import static org.adaway.model.error.HostError.DOWNLOAD_FAILED;
 import static org.adaway.model.error.HostError.NO_CONNECTION;
 import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
@@ -50,6 +55,8 @@ import okhttp3.Cache;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Okio;
 import timber.log.Timber;
 
 /**
@@ -91,6 +98,10 @@ public class SourceModel {
      * The model state.
      */
     private final MutableLiveData<String> state;
+    /**
+     * The source refresh stage timings.
+     */
+    private final SourceRefreshHistory refreshHistory;
     /**
      * The HTTP client to download hosts sources ({@code null} until initialized by {@link #getHttpClient()}).
      */
@@ -108,11 +119,21 @@ public class SourceModel {
         this.hostListItemDao = database.hostsListItemDao();
         this.hostEntryDao = database.hostEntryDao();
         this.state = new MutableLiveData<>("");
+        this.refreshHistory = SourceRefreshHistory.getInstance(context);
         this.updateAvailable = new MutableLiveData<>();
         this.updateAvailable.setValue(false);
         SourceUpdateService.syncPreferences(context);
     }
 
+    /**
+     * Get the source refresh stage timings.
+     *
+     * @return The source refresh stage timings.
+     */
+    public SourceRefreshHistory getRefreshHistory() {
+        return this.refreshHistory;
+    }
+
     /**
      * Get the model state.
      *
@@ -308,6 +329,7 @@ public class SourceModel {
         }
         // Update state to downloading
         setState(R.string.status_retrieve);
+        this.refreshHistory.startRefresh();
         // Initialize copy counters
         int numberOfCopies = 0;
         int numberOfFailedCopies = 0;
@@ -323,7 +345,10 @@ public class SourceModel {
                 continue;
             }
             // Get hosts source last update
+            long checkStartTime = System.currentTimeMillis();
             ZonedDateTime onlineModificationDate = getHostsSourceLastUpdate(source);
+            long checkDuration = System.currentTimeMillis() - checkStartTime;
+            this.refreshHistory.record(source.getLabel(), CHECK, checkDuration, 0, 0);
             if (onlineModificationDate == null) {
                 onlineModificationDate = now;
             }
@@ -360,6 +385,8 @@ public class SourceModel {
         }
         // Check if all copies failed
         if (numberOfCopies == numberOfFailedCopies && numberOfCopies != 0) {
+            // End the refresh as it will not be applied
+            this.refreshHistory.endRefresh();
             throw new HostErrorException(DOWNLOAD_FAILED);
         }
         // Synchronize hosts entries
@@ -373,7 +400,10 @@ public class SourceModel {
      */
     public void syncHostEntries() {
         setState(R.string.status_sync_database);
+        long startTime = System.currentTimeMillis();
         this.hostEntryDao.sync();
+        long duration = System.currentTimeMillis() - startTime;
+        this.refreshHistory.record(null, SYNC, duration, this.hostEntryDao.count(), 0);
     }
 
     /**
@@ -425,12 +455,20 @@ public class SourceModel {
         // Create request
         Request request = getRequestFor(source).build();
         // Request hosts file and open byte stream
+        long startTime = System.currentTimeMillis();
         try (Response response = getHttpClient().newCall(request).execute();
-             Reader reader = requireNonNull(response.body()).charStream();
+             ResponseBody body = requireNonNull(response.body());
+             CountingInputStream inputStream = new CountingInputStream(body.byteStream());
+             // Wrap the counted bytes as a body to let OkHttp decode them, including byte order mark detection
+             ResponseBody countedBody = ResponseBody.create(Okio.buffer(Okio.source(inputStream)),
+                     body.contentType(), body.contentLength());
+             Reader reader = countedBody.charStream();
              BufferedReader bufferedReader = new BufferedReader(reader)) {
+            long requestDuration = System.currentTimeMillis() - startTime;
             // Skip source parsing if not modified
             if (response.code() == HTTP_NOT_MODIFIED) {
                 Timber.d("Source %s was not updated since last fetch.", source.getUrl());
+                this.refreshHistory.record(source.getLabel(), DOWNLOAD, requestDuration, 0, 0);
                 return;
             }
             // Extract ETag if present
@@ -443,6 +481,9 @@ public class SourceModel {
             }
             // Parse source
             parseSourceInputStream(source, bufferedReader);
+            // The body is streamed to the parser so count the time waiting for it in the download duration
+            long downloadDuration = requestDuration + inputStream.getReadTime() / 1_000_000;
+            this.refreshHistory.record(source.getLabel(), DOWNLOAD, downloadDuration, inputStream.getCount(), 0);
         } catch (IOException e) {
             throw new IOException("Exception while downloading hosts file from " + hostsFileUrl + ".", e);
         }
@@ -479,9 +520,13 @@ public class SourceModel {
     private void parseSourceInputStream(HostsSource hostsSource, BufferedReader reader) {
         setState(R.string.status_parse_source, hostsSource.getLabel());
         long startTime = System.currentTimeMillis();
-        new SourceLoader(hostsSource).parse(reader, this.hostListItemDao);
-        long endTime = System.currentTimeMillis();
-        Timber.i("Parsed " + hostsSource.getUrl() + " in " + (endTime - startTime) / 1000 + "s");
+        SourceLoader.Stats stats = new SourceLoader(hostsSource).parse(reader, this.hostListItemDao);
+        long duration = System.currentTimeMillis() - startTime;
+        Timber.i("Parsed %s in %dms: %d lines, %d rejected.", hostsSource.getUrl(), duration, stats.getLines(),
+                stats.getRejected());
+        String label = hostsSource.getLabel();
+        this.refreshHistory.record(label, PARSE, duration, stats.getLines(), stats.getRejected());
+        this.refreshHistory.record(label, INSERT, stats.getInsertTime() / 1_000_000, stats.getInserted(), 0);
     }
 
     /**
@@ -0,0 +1,139 @@
+package org.adaway.model.source;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+import androidx.lifecycle.LiveData;
+
+import org.adaway.db.AppDatabase;
+import org.adaway.db.dao.SourceTimingDao;
+import org.adaway.db.entity.SourceTiming;
+import org.adaway.util.AppExecutors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.adaway.db.entity.SourceTiming.APPLY;
+
+/**
+ * This class is the history of the source refresh stage timings.
+ * <p>
+ * A refresh starts when the sources are retrieved, or when the host entries are synchronized if no refresh is
+ * ongoing, and ends when the host entries are applied. Each stage timing is stored on the disk executor and only the
+ * timings of the last refreshes are kept. The last timing of each stage is also kept in memory for the metrics
+ * export.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class SourceRefreshHistory {
+    /**
+     * The number of refreshes to keep.
+     */
+    private static final int MAX_REFRESHES = 20;
+    private static SourceRefreshHistory instance;
+    private final SourceTimingDao sourceTimingDao;
+    /**
+     * The last timing of each stage, by source label and stage.
+     */
+    private final Map<String, SourceTiming> lastTimings;
+    /**
+     * The ongoing refresh start time (in ms since epoch), {@code 0} if there is no ongoing refresh.
+     */
+    private volatile long refresh;
+
+    private SourceRefreshHistory(Context context) {
+        this.sourceTimingDao = AppDatabase.getInstance(context).sourceTimingDao();
+        this.lastTimings = new ConcurrentHashMap<>();
+        this.refresh = 0;
+    }
+
+    /**
+     * Get the source refresh history instance.
+     *
+     * @param context The application context.
+     * @return The source refresh history instance.
+     */
+    public static synchronized SourceRefreshHistory getInstance(Context context) {
+        if (instance == null) {
+            instance = new SourceRefreshHistory(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Start a new refresh.
+     */
+    void startRefresh() {
+        this.refresh = System.currentTimeMillis();
+    }
+
+    /**
+     * Record a stage timing of the ongoing refresh, starting a new refresh if none.
+     *
+     * @param source   The source label, {@code null} for the stages of all sources.
+     * @param stage    The stage, from {@link SourceTiming#CHECK} to {@link SourceTiming#APPLY}.
+     * @param duration The stage duration (in ms).
+     * @param count    The number of items processed by the stage.
+     * @param rejected The number of items rejected by the stage.
+     */
+    void record(@Nullable String source, int stage, long duration, long count, long rejected) {
+        if (this.refresh == 0) {
+            startRefresh();
+        }
+        SourceTiming timing = new SourceTiming();
+        timing.setRefresh(this.refresh);
+        timing.setStage(stage);
+        timing.setSource(source);
+        timing.setDuration(duration);
+        timing.setCount(count);
+        timing.setRejected(rejected);
+        this.lastTimings.put(source + '\0' + stage, timing);
+        AppExecutors.getInstance().diskIO().execute(() -> this.sourceTimingDao.insert(timing, MAX_REFRESHES));
+    }
+
+    /**
+     * Record the apply stage timing if a refresh is ongoing.
+     * Applying the host entries outside a refresh, like enabling ad blocking, is not recorded.
+     *
+     * @param duration The apply duration (in ms).
+     */
+    public void recordApply(long duration) {
+        if (this.refresh != 0) {
+            record(null, APPLY, duration, 0, 0);
+        }
+    }
+
+    /**
+     * End the ongoing refresh, if any.
+     */
+    public void endRefresh() {
+        this.refresh = 0;
+    }
+
+    /**
+     * Get the last timing of each stage.
+     *
+     * @return The last timing of each stage recorded since the application started.
+     */
+    public List<SourceTiming> getLastTimings() {
+        return new ArrayList<>(this.lastTimings.values());
+    }
+
+    /**
+     * Get the stored stage timings.
+     *
+     * @return The stored stage timings, last refresh first and stages in recording order.
+     */
+    public LiveData<List<SourceTiming>> getTimings() {
+        return this.sourceTimingDao.getAll();
+    }
+
+    /**
+     * Delete the stored stage timings.
+     */
+    public void clear() {
+        AppExecutors.getInstance().diskIO().execute(this.sourceTimingDao::clear);
+    }
+}
@@ -0,0 +1,147 @@
+package org.adaway.model.vpn;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.lifecycle.LiveData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * This class publishes the VPN events to the UI observers at a bounded rate.
+ * <p>
+ * The VPN threads never post to the main thread. They only write the latest state, like the last queried host with
+ * a volatile write or the request counts with their adders. While at least one {@link Channel} is observed, the
+ * channels are polled from the main thread four times per second and publish their value when it changed, so any
+ * burst of events is conflated into a single update. Nothing is polled while no one is observing.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class VpnEventHub {
+    /**
+     * The period to publish the channel values (in ms).
+     */
+    private static final long PUBLISH_PERIOD_MS = 250;
+    private static VpnEventHub instance;
+    private final Handler mainHandler;
+    /**
+     * The observed channels, accessed from the main thread only.
+     */
+    private final List<Channel<?>> activeChannels;
+    private final Runnable publishTask;
+    private final Channel<String> lastQuery;
+    private volatile String lastQueryHost;
+
+    private VpnEventHub() {
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.activeChannels = new ArrayList<>();
+        this.publishTask = this::publish;
+        this.lastQuery = createChannel(() -> this.lastQueryHost);
+    }
+
+    /**
+     * Get the VPN event hub instance.
+     *
+     * @return The VPN event hub instance.
+     */
+    public static synchronized VpnEventHub getInstance() {
+        if (instance == null) {
+            instance = new VpnEventHub();
+        }
+        return instance;
+    }
+
+    /**
+     * Create a channel publishing a polled value.
+     *
+     * @param supplier The value supplier, called from the main thread.
+     * @param <T>      The value type.
+     * @return The created channel.
+     */
+    public <T> Channel<T> createChannel(Supplier<T> supplier) {
+        return new Channel<>(this, supplier);
+    }
+
+    /**
+     * Publish a queried host.
+     * <p>
+     * It can be called from any thread and never blocks.
+     *
+     * @param host The queried host name.
+     */
+    public void publishQuery(String host) {
+        this.lastQueryHost = host;
+    }
+
+    /**
+     * Get the last queried host.
+     *
+     * @return The last queried host, conflated to the publishing rate.
+     */
+    public LiveData<String> getLastQuery() {
+        return this.lastQuery;
+    }
+
+    private void activate(Channel<?> channel) {
+        channel.poll();
+        this.activeChannels.add(channel);
+        if (this.activeChannels.size() == 1) {
+            this.mainHandler.postDelayed(this.publishTask, PUBLISH_PERIOD_MS);
+        }
+    }
+
+    private void deactivate(Channel<?> channel) {
+        this.activeChannels.remove(channel);
+        if (this.activeChannels.isEmpty()) {
+            this.mainHandler.removeCallbacks(this.publishTask);
+        }
+    }
+
+    private void publish() {
+        // Copy channels as observers could stop observing while notified
+        for (Channel<?> channel : this.activeChannels.toArray(new Channel<?>[0])) {
+            channel.poll();
+        }
+        if (!this.activeChannels.isEmpty()) {
+            this.mainHandler.postDelayed(this.publishTask, PUBLISH_PERIOD_MS);
+        }
+    }
+
+    /**
+     * This class is a {@link LiveData} polled by the hub while observed.
+     *
+     * @param <T> The value type.
+     */
+    public static final class Channel<T> extends LiveData<T> {
+        private final VpnEventHub hub;
+        private final Supplier<T> supplier;
+        private boolean polled;
+
+        private Channel(VpnEventHub hub, Supplier<T> supplier) {
+            this.hub = hub;
+            this.supplier = supplier;
+            this.polled = false;
+        }
+
+        @Override
+        protected void onActive() {
+            this.hub.activate(this);
+        }
+
+        @Override
+        protected void onInactive() {
+            this.hub.deactivate(this);
+        }
+
+        private void poll() {
+            T value = this.supplier.get();
+            if (!this.polled || !Objects.equals(value, getValue())) {
+                this.polled = true;
+                setValue(value);
+            }
+        }
+    }
+}
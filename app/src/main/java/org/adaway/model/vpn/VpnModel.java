@@ -6,18 +6,23 @@ import static org.adaway.model.error.HostError.ENABLE_VPN_FAIL;
 import android.content.Context;
 import android.util.LruCache;
 
+import androidx.lifecycle.LiveData;
+
 import org.adaway.R;
 import org.adaway.db.AppDatabase;
 import org.adaway.db.dao.HostEntryDao;
 import org.adaway.db.entity.HostEntry;
+import org.adaway.db.entity.ListType;
 import org.adaway.model.adblocking.AdBlockMethod;
 import org.adaway.model.adblocking.AdBlockModel;
 import org.adaway.model.error.HostErrorException;
 import org.adaway.vpn.VpnServiceControls;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import timber.log.Timber;
 
@@ -27,10 +32,17 @@ import timber.log.Timber;
  * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
  */
 public class VpnModel extends AdBlockModel {
+    /**
+     * The persistent query log directory, in application files.
+     */
+    private static final String QUERY_LOG_DIRECTORY = "query_log";
     private final HostEntryDao hostEntryDao;
     private final LruCache<String, HostEntry> blockCache;
-    private final LinkedHashSet<String> logs;
-    private boolean recordingLogs;
+    private final VpnQueryLog logs;
+    private final VpnQueryStore queryStore;
+    private final AtomicInteger rulesVersion;
+    private final VpnEventHub eventHub;
+    private volatile boolean recordingLogs;
     private int requestCount;
 
     /**
@@ -48,7 +60,10 @@ public class VpnModel extends AdBlockModel {
                 return VpnModel.this.hostEntryDao.getEntry(key);
             }
         };
-        this.logs = new LinkedHashSet<>();
+        this.logs = new VpnQueryLog(VpnQueryLog.DEFAULT_CAPACITY);
+        this.queryStore = new VpnQueryStore(new File(context.getFilesDir(), QUERY_LOG_DIRECTORY));
+        this.rulesVersion = new AtomicInteger(0);
+        this.eventHub = VpnEventHub.getInstance();
         this.recordingLogs = false;
         this.requestCount = 0;
         this.applied.postValue(VpnServiceControls.isRunning(context));
@@ -60,9 +75,11 @@ public class VpnModel extends AdBlockModel {
     }
 
     @Override
-    public void apply() throws HostErrorException {
+    protected void applyHostsList() throws HostErrorException {
         // Clear cache
         this.blockCache.evictAll();
+        // Notify VPN of rules change
+        this.rulesVersion.incrementAndGet();
         // Start VPN
         boolean started = VpnServiceControls.start(this.context);
         this.applied.postValue(started);
@@ -78,6 +95,11 @@ public class VpnModel extends AdBlockModel {
         this.applied.postValue(false);
     }
 
+    @Override
+    public LiveData<String> getLastLog() {
+        return this.eventHub.getLastQuery();
+    }
+
     @Override
     public boolean isRecordingLogs() {
         return this.recordingLogs;
@@ -90,12 +112,49 @@ public class VpnModel extends AdBlockModel {
 
     @Override
     public List<String> getLogs() {
-        return new ArrayList<>(this.logs);
+        VpnQueryLog.Snapshot snapshot = this.logs.snapshot();
+        LinkedHashSet<String> hosts = new LinkedHashSet<>(snapshot.size());
+        for (int i = 0; i < snapshot.size(); i++) {
+            hosts.add(snapshot.getHost(i));
+        }
+        return new ArrayList<>(hosts);
+    }
+
+    /**
+     * Get the recorded answered query logs with their verdict and latency.
+     *
+     * @return The recorded query logs, older first.
+     */
+    public VpnQueryLog.Snapshot getQueryLogs() {
+        return this.logs.snapshot();
+    }
+
+    /**
+     * Get the persistent query log.
+     * <p>
+     * Queries should only be appended while {@link #isRecordingLogs() recording logs}.
+     *
+     * @return The persistent query log.
+     */
+    public VpnQueryStore getQueryStore() {
+        return this.queryStore;
     }
 
     @Override
     public void clearLogs() {
         this.logs.clear();
+        this.queryStore.clear();
+    }
+
+    /**
+     * Get the version of the applied rules.
+     * <p>
+     * The version changes each time the rules are applied so VPN caches could be invalidated.
+     *
+     * @return The version of the applied rules.
+     */
+    public int getRulesVersion() {
+        return this.rulesVersion.get();
     }
 
     /**
@@ -114,12 +173,43 @@ public class VpnModel extends AdBlockModel {
             Timber.d("Host cache miss rate: %s.", missRate);
             this.requestCount = 0;
         }
-        // Add host to logs
+        // Check cache
+        HostEntry entry = this.blockCache.get(host);
         if (this.recordingLogs) {
-            this.logs.add(host);
-            this.lastLog.postValue(host);
+            this.eventHub.publishQuery(host);
         }
-        // Check cache
-        return this.blockCache.get(host);
+        return entry;
+    }
+
+    /**
+     * Add an answered query to the logs.
+     * <p>
+     * Queries should only be added while {@link #isRecordingLogs() recording logs}.
+     *
+     * @param time      The query answer time (in ms).
+     * @param host      The queried host name.
+     * @param verdict   The query verdict.
+     * @param latencyUs The time from the query reception to its answer (in µs).
+     */
+    public void logQuery(long time, String host, ListType verdict, int latencyUs) {
+        this.logs.append(time, host, verdict, latencyUs);
+    }
+
+    /**
+     * Get the number of host names found in the host entry cache.
+     *
+     * @return The number of host cache hits.
+     */
+    public int getHostCacheHitCount() {
+        return this.blockCache.hitCount();
+    }
+
+    /**
+     * Get the number of host names not found in the host entry cache.
+     *
+     * @return The number of host cache misses.
+     */
+    public int getHostCacheMissCount() {
+        return this.blockCache.missCount();
     }
 }
@@ -0,0 +1,169 @@
+package org.adaway.model.vpn;
+
+import org.adaway.db.entity.ListType;
+
+import java.util.Arrays;
+
+/**
+ * This class is a bounded log of the DNS queries answered by the VPN.
+ * <p>
+ * Records are stored in a ring of fixed capacity, as parallel arrays of time, host name, verdict and latency.
+ * Appending a record only writes the slot at the head of the ring, overwriting the oldest record once the ring is
+ * full, so logging never allocates nor grows while recording on always-on devices.<br>
+ * Readers take a snapshot copy of the ring, older record first.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class VpnQueryLog {
+    /**
+     * The default number of kept records.
+     */
+    static final int DEFAULT_CAPACITY = 4096;
+    private final long[] times;
+    private final String[] hosts;
+    private final ListType[] verdicts;
+    private final int[] latencies;
+    /**
+     * The index of the next record to write.
+     */
+    private int head;
+    /**
+     * The number of kept records.
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The number of kept records.
+     */
+    VpnQueryLog(int capacity) {
+        this.times = new long[capacity];
+        this.hosts = new String[capacity];
+        this.verdicts = new ListType[capacity];
+        this.latencies = new int[capacity];
+        this.head = 0;
+        this.size = 0;
+    }
+
+    /**
+     * Append a record, overwriting the oldest one if the log is full.
+     *
+     * @param time      The query answer time (in ms).
+     * @param host      The queried host name.
+     * @param verdict   The query verdict.
+     * @param latencyUs The time from the query reception to its answer (in µs).
+     */
+    synchronized void append(long time, String host, ListType verdict, int latencyUs) {
+        int index = this.head;
+        this.times[index] = time;
+        this.hosts[index] = host;
+        this.verdicts[index] = verdict;
+        this.latencies[index] = latencyUs;
+        this.head = index + 1 == this.hosts.length ? 0 : index + 1;
+        if (this.size < this.hosts.length) {
+            this.size++;
+        }
+    }
+
+    /**
+     * Take a snapshot of the records.
+     *
+     * @return The records, older first.
+     */
+    public synchronized Snapshot snapshot() {
+        int capacity = this.hosts.length;
+        int start = this.size < capacity ? 0 : this.head;
+        int firstLength = Math.min(this.size, capacity - start);
+        int secondLength = this.size - firstLength;
+        long[] times = new long[this.size];
+        String[] hosts = new String[this.size];
+        ListType[] verdicts = new ListType[this.size];
+        int[] latencies = new int[this.size];
+        System.arraycopy(this.times, start, times, 0, firstLength);
+        System.arraycopy(this.hosts, start, hosts, 0, firstLength);
+        System.arraycopy(this.verdicts, start, verdicts, 0, firstLength);
+        System.arraycopy(this.latencies, start, latencies, 0, firstLength);
+        System.arraycopy(this.times, 0, times, firstLength, secondLength);
+        System.arraycopy(this.hosts, 0, hosts, firstLength, secondLength);
+        System.arraycopy(this.verdicts, 0, verdicts, firstLength, secondLength);
+        System.arraycopy(this.latencies, 0, latencies, firstLength, secondLength);
+        return new Snapshot(times, hosts, verdicts, latencies);
+    }
+
+    /**
+     * Remove all the records.
+     */
+    synchronized void clear() {
+        Arrays.fill(this.hosts, null);
+        Arrays.fill(this.verdicts, null);
+        this.head = 0;
+        this.size = 0;
+    }
+
+    /**
+     * This class is a copy of the log records, older first.
+     */
+    public static final class Snapshot {
+        private final long[] times;
+        private final String[] hosts;
+        private final ListType[] verdicts;
+        private final int[] latencies;
+
+        private Snapshot(long[] times, String[] hosts, ListType[] verdicts, int[] latencies) {
+            this.times = times;
+            this.hosts = hosts;
+            this.verdicts = verdicts;
+            this.latencies = latencies;
+        }
+
+        /**
+         * Get the number of records.
+         *
+         * @return The number of records.
+         */
+        public int size() {
+            return this.hosts.length;
+        }
+
+        /**
+         * Get the time of a record.
+         *
+         * @param index The record index.
+         * @return The query answer time (in ms).
+         */
+        public long getTime(int index) {
+            return this.times[index];
+        }
+
+        /**
+         * Get the host name of a record.
+         *
+         * @param index The record index.
+         * @return The queried host name.
+         */
+        public String getHost(int index) {
+            return this.hosts[index];
+        }
+
+        /**
+         * Get the verdict of a record.
+         *
+         * @param index The record index.
+         * @return The query verdict.
+         */
+        public ListType getVerdict(int index) {
+            return this.verdicts[index];
+        }
+
+        /**
+         * Get the latency of a record.
+         *
+         * @param index The record index.
+         * @return The time from the query reception to its answer (in µs).
+         */
+        public int getLatency(int index) {
+            return this.latencies[index];
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package org.adaway.model.vpn;
+
+import org.adaway.db.entity.ListType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is a segment of the persistent query log: the queries of a time period.
+ * <p>
+ * A segment is made of three files named after the time of its first query:
+ * <ul>
+ * <li>the log file of fixed width records, in time order,</li>
+ * <li>the hosts file, the host names referenced by the records, in id order,</li>
+ * <li>the index file, written when the segment is sealed, of the records of each host sorted by host hash.</li>
+ * </ul>
+ * Looking for the queries of a host binary searches the index then reads only the matching records. The index of
+ * the active segment is kept in memory. A segment left without index, like when the process is killed, has its
+ * index rebuilt from its log and hosts files when opened.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class VpnQuerySegment {
+    static final String LOG_EXTENSION = ".log";
+    private static final String HOSTS_EXTENSION = ".hosts";
+    private static final String INDEX_EXTENSION = ".idx";
+    private static final int LOG_MAGIC = 0x4144514C;
+    private static final int INDEX_MAGIC = 0x41445149;
+    private static final int VERSION = 1;
+    /**
+     * The log file header size: magic and version.
+     */
+    private static final int LOG_HEADER_SIZE = 8;
+    /**
+     * The record size: time, host id, type, verdict, source and latency.
+     */
+    static final int RECORD_SIZE = 20;
+    /**
+     * The index file header size: magic, version, end time, record count and entry count.
+     */
+    private static final int INDEX_HEADER_SIZE = 24;
+    /**
+     * The index entry size: host hash, host offset, record count and records offset.
+     */
+    private static final int INDEX_ENTRY_SIZE = 16;
+    /**
+     * The segment start time (in ms).
+     */
+    final long startTime;
+    private final File logFile;
+    private final File hostsFile;
+    private final File indexFile;
+    /**
+     * The time of the last record (in ms).
+     */
+    private long endTime;
+    private int recordCount;
+    private int hostsSize;
+    /**
+     * The log output, {@code null} once sealed.
+     */
+    private DataOutputStream logOutput;
+    /**
+     * The hosts output, {@code null} once sealed.
+     */
+    private DataOutputStream hostsOutput;
+    /**
+     * The records of each host, {@code null} once sealed.
+     */
+    private Map<String, Postings> postings;
+
+    private VpnQuerySegment(File directory, long startTime) {
+        this.startTime = startTime;
+        this.logFile = new File(directory, startTime + LOG_EXTENSION);
+        this.hostsFile = new File(directory, startTime + HOSTS_EXTENSION);
+        this.indexFile = new File(directory, startTime + INDEX_EXTENSION);
+        this.endTime = startTime;
+    }
+
+    /**
+     * Create a new active segment.
+     *
+     * @param directory The segment directory.
+     * @param startTime The segment start time (in ms).
+     * @return The created segment.
+     * @throws IOException If the segment files could not be created.
+     */
+    static VpnQuerySegment create(File directory, long startTime) throws IOException {
+        VpnQuerySegment segment = new VpnQuerySegment(directory, startTime);
+        segment.postings = new HashMap<>();
+        segment.hostsOutput = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(segment.hostsFile)));
+        segment.logOutput = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(segment.logFile)));
+        segment.logOutput.writeInt(LOG_MAGIC);
+        segment.logOutput.writeInt(VERSION);
+        return segment;
+    }
+
+    /**
+     * Open a sealed segment, rebuilding its index if missing.
+     *
+     * @param directory The segment directory.
+     * @param startTime The segment start time (in ms).
+     * @return The opened segment.
+     * @throws IOException If the segment files could not be read.
+     */
+    static VpnQuerySegment open(File directory, long startTime) throws IOException {
+        VpnQuerySegment segment = new VpnQuerySegment(directory, startTime);
+        if (!segment.readIndexHeader()) {
+            segment.rebuildIndex();
+        }
+        return segment;
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param time      The query time (in ms).
+     * @param host      The queried host name.
+     * @param type      The query type.
+     * @param verdict   The query verdict.
+     * @param source    The query answer source.
+     * @param latencyUs The query latency (in µs).
+     * @throws IOException If the record could not be written.
+     */
+    void append(long time, String host, int type, ListType verdict, int source, int latencyUs) throws IOException {
+        Postings hostPostings = this.postings.get(host);
+        if (hostPostings == null) {
+            hostPostings = new Postings(host, this.postings.size(), this.hostsSize);
+            this.postings.put(host, hostPostings);
+            byte[] bytes = host.getBytes(StandardCharsets.UTF_8);
+            this.hostsOutput.writeShort(bytes.length);
+            this.hostsOutput.write(bytes);
+            this.hostsSize += 2 + bytes.length;
+        }
+        hostPostings.add(this.recordCount);
+        this.logOutput.writeLong(time);
+        this.logOutput.writeInt(hostPostings.id);
+        this.logOutput.writeShort(type);
+        this.logOutput.writeByte(verdict.getValue());
+        this.logOutput.writeByte(source);
+        this.logOutput.writeInt(latencyUs);
+        this.recordCount++;
+        this.endTime = Math.max(this.endTime, time);
+    }
+
+    /**
+     * Write the buffered records to the segment files.
+     *
+     * @throws IOException If the records could not be written.
+     */
+    void flush() throws IOException {
+        if (this.logOutput != null) {
+            // Write hosts first so written records never reference a missing host
+            this.hostsOutput.flush();
+            this.logOutput.flush();
+        }
+    }
+
+    /**
+     * Seal the segment: close its files and write its index.
+     *
+     * @throws IOException If the segment could not be sealed.
+     */
+    void seal() throws IOException {
+        if (this.logOutput == null) {
+            return;
+        }
+        try {
+            this.hostsOutput.close();
+            this.logOutput.close();
+            writeIndex(this.postings.values());
+        } finally {
+            this.hostsOutput = null;
+            this.logOutput = null;
+            this.postings = null;
+        }
+    }
+
+    /**
+     * Close the segment files without writing its index.
+     */
+    void close() {
+        if (this.logOutput == null) {
+            return;
+        }
+        try {
+            this.hostsOutput.close();
+            this.logOutput.close();
+        } catch (IOException e) {
+            // Nothing more to do as the segment is dropped
+        }
+        this.hostsOutput = null;
+        this.logOutput = null;
+        this.postings = null;
+    }
+
+    /**
+     * Get the time of the last record.
+     *
+     * @return The time of the last record (in ms).
+     */
+    long getEndTime() {
+        return this.endTime;
+    }
+
+    /**
+     * Get the segment size on disk.
+     *
+     * @return The segment size (in bytes).
+     */
+    long getSize() {
+        long size = LOG_HEADER_SIZE + (long) this.recordCount * RECORD_SIZE + this.hostsSize;
+        if (this.logOutput == null) {
+            size += this.indexFile.length();
+        }
+        return size;
+    }
+
+    /**
+     * Find the records of a host in a time range.
+     *
+     * @param host   The host name to look for.
+     * @param from   The range start time (in ms), included.
+     * @param to     The range end time (in ms), included.
+     * @param result The result to add the found records to.
+     * @throws IOException If the segment files could not be read.
+     */
+    void find(String host, long from, long to, VpnQueryStore.Result result) throws IOException {
+        if (this.postings != null) {
+            Postings hostPostings = this.postings.get(host);
+            if (hostPostings != null) {
+                readRecords(hostPostings.records, hostPostings.count, from, to, result);
+            }
+            return;
+        }
+        int hash = host.hashCode();
+        try (RandomAccessFile index = new RandomAccessFile(this.indexFile, "r")) {
+            index.seek(INDEX_HEADER_SIZE - 4);
+            int entryCount = index.readInt();
+            // Look for the first entry of the host hash
+            int low = 0;
+            int high = entryCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                index.seek(INDEX_HEADER_SIZE + (long) middle * INDEX_ENTRY_SIZE);
+                if (index.readInt() < hash) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            for (int entry = low; entry < entryCount; entry++) {
+                index.seek(INDEX_HEADER_SIZE + (long) entry * INDEX_ENTRY_SIZE);
+                if (index.readInt() != hash) {
+                    break;
+                }
+                int hostOffset = index.readInt();
+                int count = index.readInt();
+                int recordsOffset = index.readInt();
+                // Check the host as different hosts could share the same hash
+                if (!host.equals(readHost(hostOffset))) {
+                    continue;
+                }
+                int[] records = new int[count];
+                index.seek(recordsOffset);
+                for (int i = 0; i < count; i++) {
+                    records[i] = index.readInt();
+                }
+                readRecords(records, count, from, to, result);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Delete the segment files.
+     */
+    void delete() {
+        close();
+        deleteFile(this.logFile);
+        deleteFile(this.hostsFile);
+        deleteFile(this.indexFile);
+    }
+
+    /**
+     * List the start time of the segments of a directory.
+     *
+     * @param directory The segment directory.
+     * @return The segment start times, older first.
+     */
+    static long[] list(File directory) {
+        String[] names = directory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] startTimes = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.endsWith(LOG_EXTENSION)) {
+                continue;
+            }
+            try {
+                startTimes[count] = Long.parseLong(name.substring(0, name.length() - LOG_EXTENSION.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                // Not a segment file
+            }
+        }
+        startTimes = Arrays.copyOf(startTimes, count);
+        Arrays.sort(startTimes);
+        return startTimes;
+    }
+
+    private void readRecords(int[] records, int count, long from, long to, VpnQueryStore.Result result)
+            throws IOException {
+        byte[] buffer = new byte[RECORD_SIZE];
+        ByteBuffer record = ByteBuffer.wrap(buffer);
+        try (RandomAccessFile log = new RandomAccessFile(this.logFile, "r")) {
+            for (int i = 0; i < count; i++) {
+                log.seek(LOG_HEADER_SIZE + (long) records[i] * RECORD_SIZE);
+                log.readFully(buffer);
+                long time = record.getLong(0);
+                if (time < from || time > to) {
+                    continue;
+                }
+                result.add(
+                        time,
+                        record.getShort(12) & 0xFFFF,
+                        ListType.fromValue(record.get(14)),
+                        record.get(15),
+                        record.getInt(16)
+                );
+            }
+        }
+    }
+
+    private String readHost(int offset) throws IOException {
+        try (RandomAccessFile hosts = new RandomAccessFile(this.hostsFile, "r")) {
+            hosts.seek(offset);
+            byte[] bytes = new byte[hosts.readUnsignedShort()];
+            hosts.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private boolean readIndexHeader() {
+        if (!this.indexFile.exists()) {
+            return false;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(this.indexFile)))) {
+            if (input.readInt() != INDEX_MAGIC || input.readInt() != VERSION) {
+                return false;
+            }
+            this.endTime = input.readLong();
+            this.recordCount = input.readInt();
+            this.hostsSize = (int) this.hostsFile.length();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void rebuildIndex() throws IOException {
+        // Read hosts
+        List<Postings> hosts = new ArrayList<>();
+        int offset = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(this.hostsFile)))) {
+            while (true) {
+                int length;
+                try {
+                    length = input.readUnsignedShort();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                try {
+                    input.readFully(bytes);
+                } catch (EOFException e) {
+                    break;
+                }
+                hosts.add(new Postings(new String(bytes, StandardCharsets.UTF_8), hosts.size(), offset));
+                offset += 2 + length;
+            }
+        }
+        this.hostsSize = offset;
+        // Read records
+        int count = (int) Math.max(0, (this.logFile.length() - LOG_HEADER_SIZE) / RECORD_SIZE);
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(this.logFile)))) {
+            if (input.readInt() != LOG_MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unsupported query log segment " + this.logFile.getName() + ".");
+            }
+            for (int i = 0; i < count; i++) {
+                long time = input.readLong();
+                int hostId = input.readInt();
+                input.skipBytes(RECORD_SIZE - 12);
+                // Skip records whose host was not written before the process died
+                if (hostId >= 0 && hostId < hosts.size()) {
+                    hosts.get(hostId).add(i);
+                    this.endTime = Math.max(this.endTime, time);
+                }
+            }
+        }
+        this.recordCount = count;
+        writeIndex(hosts);
+    }
+
+    private void writeIndex(Collection<Postings> hosts) throws IOException {
+        Postings[] entries = hosts.toArray(new Postings[0]);
+        Arrays.sort(entries, (first, second) -> Integer.compare(first.host.hashCode(), second.host.hashCode()));
+        File tempFile = new File(this.indexFile.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)))) {
+            output.writeInt(INDEX_MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(this.endTime);
+            output.writeInt(this.recordCount);
+            output.writeInt(entries.length);
+            int recordsOffset = INDEX_HEADER_SIZE + entries.length * INDEX_ENTRY_SIZE;
+            for (Postings entry : entries) {
+                output.writeInt(entry.host.hashCode());
+                output.writeInt(entry.hostOffset);
+                output.writeInt(entry.count);
+                output.writeInt(recordsOffset);
+                recordsOffset += entry.count * 4;
+            }
+            for (Postings entry : entries) {
+                for (int i = 0; i < entry.count; i++) {
+                    output.writeInt(entry.records[i]);
+                }
+            }
+        }
+        if (!tempFile.renameTo(this.indexFile)) {
+            throw new IOException("Failed to write query log index " + this.indexFile.getName() + ".");
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * This class is the records of a host.
+     */
+    private static final class Postings {
+        private final String host;
+        private final int id;
+        /**
+         * The host offset in the hosts file.
+         */
+        private final int hostOffset;
+        /**
+         * The host record indexes, in time order.
+         */
+        private int[] records;
+        private int count;
+
+        private Postings(String host, int id, int hostOffset) {
+            this.host = host;
+            this.id = id;
+            this.hostOffset = hostOffset;
+            this.records = new int[4];
+            this.count = 0;
+        }
+
+        private void add(int record) {
+            if (this.count == this.records.length) {
+                this.records = Arrays.copyOf(this.records, this.count * 2);
+            }
+            this.records[this.count++] = record;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package org.adaway.model.vpn;
+
+import org.adaway.db.entity.ListType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * This class is the persistent log of the DNS queries handled by the VPN.
+ * <p>
+ * Queries are appended by the VPN threads into a bounded in memory batch, without any I/O. While the VPN runs, the
+ * batch is written every second by a dedicated thread into time ordered {@link VpnQuerySegment}s. The thread ends
+ * once idle when the VPN stops. A new segment is started when the
+ * active one is too large or too old, and the oldest segments are deleted to keep the log under a disk cap.<br>
+ * Each segment indexes its records by host so looking for the queries of a host only reads the matching records
+ * of the segments overlapping the time range.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class VpnQueryStore {
+    /**
+     * The query answered by the VPN itself, like blocked and redirected queries.
+     */
+    public static final int SOURCE_LOCAL = 0;
+    /**
+     * The query answered from the upstream answer cache.
+     */
+    public static final int SOURCE_CACHE = 1;
+    /**
+     * The query answered by an upstream server.
+     */
+    public static final int SOURCE_UPSTREAM = 2;
+    /**
+     * The maximum number of queries pending to be written.
+     */
+    private static final int BATCH_CAPACITY = 4096;
+    /**
+     * The period to write the pending queries (in ms).
+     */
+    private static final long WRITE_PERIOD_MS = 1000;
+    /**
+     * The time for the idle write thread to end (in ms).
+     */
+    private static final long WRITE_THREAD_KEEP_ALIVE_MS = 2 * WRITE_PERIOD_MS;
+    /**
+     * The maximum segment size (in bytes).
+     */
+    private static final long SEGMENT_MAX_SIZE = 2 * 1024 * 1024;
+    /**
+     * The maximum segment duration (in ms).
+     */
+    private static final long SEGMENT_MAX_AGE_MS = 6 * 3_600_000L;
+    /**
+     * The maximum total size of the segments (in bytes).
+     */
+    private static final long TOTAL_MAX_SIZE = 32 * 1024 * 1024;
+    private final File directory;
+    private final ScheduledThreadPoolExecutor writeExecutor;
+    /**
+     * The periodic write, {@code null} if the VPN is not running.
+     */
+    private ScheduledFuture<?> periodicWrite;
+    /**
+     * The lock of the pending queries.
+     */
+    private final Object batchLock;
+    /**
+     * The sealed segments, older first.
+     */
+    private final ArrayDeque<VpnQuerySegment> segments;
+    /**
+     * The segment written to, {@code null} if not created yet.
+     */
+    private VpnQuerySegment activeSegment;
+    private boolean opened;
+    /**
+     * The queries pending to be written.
+     */
+    private Batch pendingBatch;
+    /**
+     * The batch being written.
+     */
+    private Batch writtenBatch;
+    private long droppedCount;
+
+    /**
+     * Constructor.
+     *
+     * @param directory The directory to store the segments to.
+     */
+    public VpnQueryStore(File directory) {
+        this.directory = directory;
+        this.batchLock = new Object();
+        this.segments = new ArrayDeque<>();
+        this.opened = false;
+        this.pendingBatch = new Batch(BATCH_CAPACITY);
+        this.writtenBatch = new Batch(BATCH_CAPACITY);
+        this.droppedCount = 0;
+        this.writeExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "VpnQueryStore");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writeExecutor.setRemoveOnCancelPolicy(true);
+        this.writeExecutor.setKeepAliveTime(WRITE_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        this.writeExecutor.allowCoreThreadTimeOut(true);
+        this.periodicWrite = null;
+    }
+
+    /**
+     * Start writing the pending queries periodically.
+     * It should be called when the VPN starts.
+     */
+    public synchronized void start() {
+        if (this.periodicWrite == null) {
+            this.periodicWrite = this.writeExecutor.scheduleWithFixedDelay(this::write, WRITE_PERIOD_MS,
+                    WRITE_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop writing the pending queries periodically and write the last ones.
+     * It should be called when the VPN stops.
+     */
+    public synchronized void stop() {
+        if (this.periodicWrite != null) {
+            this.periodicWrite.cancel(false);
+            this.periodicWrite = null;
+        }
+        flush();
+    }
+
+    /**
+     * Append a query.
+     * <p>
+     * It can be called from any thread and never blocks on I/O. The query is dropped if too many queries are
+     * pending to be written.
+     *
+     * @param time      The query time (in ms).
+     * @param host      The queried host name.
+     * @param type      The query type.
+     * @param verdict   The query verdict.
+     * @param source    The query answer source, {@link #SOURCE_LOCAL}, {@link #SOURCE_CACHE} or
+     *                  {@link #SOURCE_UPSTREAM}.
+     * @param latencyUs The time to answer the query (in µs).
+     */
+    public void append(long time, String host, int type, ListType verdict, int source, int latencyUs) {
+        synchronized (this.batchLock) {
+            if (!this.pendingBatch.add(time, host, type, verdict, source, latencyUs)) {
+                this.droppedCount++;
+            }
+        }
+    }
+
+    /**
+     * Write the pending queries without waiting for the next periodic write.
+     */
+    public void flush() {
+        this.writeExecutor.execute(this::write);
+    }
+
+    /**
+     * Delete all the logged queries.
+     */
+    public void clear() {
+        this.writeExecutor.execute(() -> {
+            synchronized (this) {
+                open();
+                synchronized (this.batchLock) {
+                    this.pendingBatch.clear();
+                }
+                for (VpnQuerySegment segment : this.segments) {
+                    segment.delete();
+                }
+                this.segments.clear();
+                if (this.activeSegment != null) {
+                    this.activeSegment.delete();
+                    this.activeSegment = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Find the queries of a host in a time range.
+     * <p>
+     * It reads the disk and must not be called from the main thread.
+     *
+     * @param host The host name to look for.
+     * @param from The range start time (in ms), included.
+     * @param to   The range end time (in ms), included.
+     * @return The queries of the host, older first.
+     */
+    public synchronized Result search(String host, long from, long to) {
+        // Write the pending queries so they are part of the result
+        write();
+        Result result = new Result(host);
+        try {
+            for (VpnQuerySegment segment : this.segments) {
+                if (segment.startTime <= to && segment.getEndTime() >= from) {
+                    segment.find(host, from, to, result);
+                }
+            }
+            if (this.activeSegment != null && this.activeSegment.startTime <= to) {
+                this.activeSegment.find(host, from, to, result);
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Failed to search query log for %s.", host);
+        }
+        return result;
+    }
+
+    private synchronized void write() {
+        open();
+        Batch batch;
+        long dropped;
+        synchronized (this.batchLock) {
+            batch = this.pendingBatch;
+            this.pendingBatch = this.writtenBatch;
+            this.writtenBatch = batch;
+            dropped = this.droppedCount;
+            this.droppedCount = 0;
+        }
+        if (dropped > 0) {
+            Timber.w("Dropped %d queries from query log.", dropped);
+        }
+        if (batch.size == 0) {
+            return;
+        }
+        try {
+            for (int i = 0; i < batch.size; i++) {
+                long time = batch.times[i];
+                rotate(time);
+                this.activeSegment.append(time, batch.hosts[i], batch.types[i], batch.verdicts[i],
+                        batch.sources[i], batch.latencies[i]);
+            }
+            this.activeSegment.flush();
+        } catch (IOException e) {
+            Timber.w(e, "Failed to write query log.");
+            VpnQuerySegment segment = this.activeSegment;
+            if (segment != null) {
+                // Close the active segment and reopen it to rebuild its index from the written records
+                segment.close();
+                this.activeSegment = null;
+                try {
+                    this.segments.add(VpnQuerySegment.open(this.directory, segment.startTime));
+                } catch (IOException openException) {
+                    Timber.w(openException, "Failed to reopen query log segment %d.", segment.startTime);
+                }
+            }
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * Open the segments of the directory once.
+     */
+    private void open() {
+        if (this.opened) {
+            return;
+        }
+        this.opened = true;
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            Timber.w("Failed to create query log directory.");
+            return;
+        }
+        for (long startTime : VpnQuerySegment.list(this.directory)) {
+            try {
+                this.segments.add(VpnQuerySegment.open(this.directory, startTime));
+            } catch (IOException e) {
+                Timber.w(e, "Failed to open query log segment %d.", startTime);
+            }
+        }
+        enforceSizeCap();
+    }
+
+    /**
+     * Start a new segment if there is no active segment or if it is full or too old.
+     *
+     * @param time The time of the next record (in ms).
+     * @throws IOException If the segment could not be created.
+     */
+    private void rotate(long time) throws IOException {
+        VpnQuerySegment segment = this.activeSegment;
+        if (segment != null && segment.getSize() < SEGMENT_MAX_SIZE
+                && time - segment.startTime < SEGMENT_MAX_AGE_MS) {
+            return;
+        }
+        long startTime = time;
+        if (segment != null) {
+            segment.seal();
+            this.segments.add(segment);
+            this.activeSegment = null;
+            startTime = Math.max(startTime, segment.startTime + 1);
+        }
+        VpnQuerySegment lastSegment = this.segments.peekLast();
+        if (lastSegment != null) {
+            startTime = Math.max(startTime, lastSegment.startTime + 1);
+        }
+        enforceSizeCap();
+        this.activeSegment = VpnQuerySegment.create(this.directory, startTime);
+    }
+
+    /**
+     * Delete the oldest segments until the log fits in the disk cap.
+     */
+    private void enforceSizeCap() {
+        long totalSize = SEGMENT_MAX_SIZE;
+        for (VpnQuerySegment segment : this.segments) {
+            totalSize += segment.getSize();
+        }
+        while (totalSize > TOTAL_MAX_SIZE && !this.segments.isEmpty()) {
+            VpnQuerySegment segment = this.segments.removeFirst();
+            totalSize -= segment.getSize();
+            segment.delete();
+        }
+    }
+
+    /**
+     * This class is a batch of queries pending to be written.
+     */
+    private static final class Batch {
+        private final long[] times;
+        private final String[] hosts;
+        private final int[] types;
+        private final ListType[] verdicts;
+        private final int[] sources;
+        private final int[] latencies;
+        private int size;
+
+        private Batch(int capacity) {
+            this.times = new long[capacity];
+            this.hosts = new String[capacity];
+            this.types = new int[capacity];
+            this.verdicts = new ListType[capacity];
+            this.sources = new int[capacity];
+            this.latencies = new int[capacity];
+            this.size = 0;
+        }
+
+        private boolean add(long time, String host, int type, ListType verdict, int source, int latencyUs) {
+            if (this.size == this.times.length) {
+                return false;
+            }
+            int index = this.size++;
+            this.times[index] = time;
+            this.hosts[index] = host;
+            this.types[index] = type;
+            this.verdicts[index] = verdict;
+            this.sources[index] = source;
+            this.latencies[index] = latencyUs;
+            return true;
+        }
+
+        private void clear() {
+            Arrays.fill(this.hosts, 0, this.size, null);
+            Arrays.fill(this.verdicts, 0, this.size, null);
+            this.size = 0;
+        }
+    }
+
+    /**
+     * This class is the logged queries of a host.
+     */
+    public static final class Result {
+        private final String host;
+        private long[] times;
+        private int[] types;
+        private ListType[] verdicts;
+        private int[] sources;
+        private int[] latencies;
+        private int size;
+
+        private Result(String host) {
+            this.host = host;
+            this.times = new long[16];
+            this.types = new int[16];
+            this.verdicts = new ListType[16];
+            this.sources = new int[16];
+            this.latencies = new int[16];
+            this.size = 0;
+        }
+
+        void add(long time, int type, ListType verdict, int source, int latencyUs) {
+            if (this.size == this.times.length) {
+                int capacity = this.size * 2;
+                this.times = Arrays.copyOf(this.times, capacity);
+                this.types = Arrays.copyOf(this.types, capacity);
+                this.verdicts = Arrays.copyOf(this.verdicts, capacity);
+                this.sources = Arrays.copyOf(this.sources, capacity);
+                this.latencies = Arrays.copyOf(this.latencies, capacity);
+            }
+            int index = this.size++;
+            this.times[index] = time;
+            this.types[index] = type;
+            this.verdicts[index] = verdict;
+            this.sources[index] = source;
+            this.latencies[index] = latencyUs;
+        }
+
+        /**
+         * Get the host name of the queries.
+         *
+         * @return The queried host name.
+         */
+        public String getHost() {
+            return this.host;
+        }
+
+        /**
+         * Get the number of queries.
+         *
+         * @return The number of queries.
+         */
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * Get the time of a query.
+         *
+         * @param index The query index.
+         * @return The query time (in ms).
+         */
+        public long getTime(int index) {
+            return this.times[index];
+        }
+
+        /**
+         * Get the type of a query.
+         *
+         * @param index The query index.
+         * @return The query type.
+         */
+        public int getType(int index) {
+            return this.types[index];
+        }
+
+        /**
+         * Get the verdict of a query.
+         *
+         * @param index The query index.
+         * @return The query verdict.
+         */
+        public ListType getVerdict(int index) {
+            return this.verdicts[index];
+        }
+
+        /**
+         * Get the answer source of a query.
+         *
+         * @param index The query index.
+         * @return The query answer source.
+         */
+        public int getSource(int index) {
+            return this.sources[index];
+        }
+
+        /**
+         * Get the latency of a query.
+         *
+         * @param index The query index.
+         * @return The time to answer the query (in µs).
+         */
+        public int getLatency(int index) {
+            return this.latencies[index];
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.adaway.model.vpn;
+
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts the blocked, allowed and redirected DNS requests without contention.
+ * <p>
+ * Requests are counted by the VPN threads with {@link LongAdder}s, and snapshots are taken from time to time to be
+ * persisted. The adders are never reset, so a request counted while a snapshot is taken is always part of the next
+ * snapshot and never lost.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class VpnRequestCounters {
+    /**
+     * The blocked request counter index.
+     */
+    static final int BLOCKED = 0;
+    /**
+     * The allowed request counter index.
+     */
+    static final int ALLOWED = 1;
+    /**
+     * The redirected request counter index.
+     */
+    static final int REDIRECTED = 2;
+    /**
+     * The request counters.
+     */
+    private final LongAdder[] adders;
+    /**
+     * The request counts to add to the adders sums, from persisted values and resets.
+     */
+    private final long[] offsets;
+    /**
+     * The request counts of the last snapshot.
+     */
+    private final long[] lastSnapshot;
+
+    /**
+     * Constructor.
+     *
+     * @param blocked    The persisted blocked request count.
+     * @param allowed    The persisted allowed request count.
+     * @param redirected The persisted redirected request count.
+     */
+    VpnRequestCounters(long blocked, long allowed, long redirected) {
+        this.adders = new LongAdder[]{new LongAdder(), new LongAdder(), new LongAdder()};
+        this.offsets = new long[]{blocked, allowed, redirected};
+        this.lastSnapshot = this.offsets.clone();
+    }
+
+    /**
+     * Count a request.
+     * <p>
+     * It can be called from any thread.
+     *
+     * @param counter The counter index.
+     */
+    void increment(int counter) {
+        this.adders[counter].increment();
+    }
+
+    /**
+     * Get a request count.
+     *
+     * @param counter The counter index.
+     * @return The request count.
+     */
+    long get(int counter) {
+        synchronized (this.offsets) {
+            return this.offsets[counter] + this.adders[counter].sum();
+        }
+    }
+
+    /**
+     * Take a snapshot of the request counts if they changed since the last snapshot.
+     *
+     * @return The blocked, allowed and redirected request counts, {@code null} if unchanged.
+     */
+    @Nullable
+    long[] snapshot() {
+        synchronized (this.offsets) {
+            long[] counts = new long[this.adders.length];
+            boolean changed = false;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = this.offsets[i] + this.adders[i].sum();
+                changed |= counts[i] != this.lastSnapshot[i];
+            }
+            if (!changed) {
+                return null;
+            }
+            System.arraycopy(counts, 0, this.lastSnapshot, 0, counts.length);
+            return counts;
+        }
+    }
+
+    /**
+     * Reset the request counts to zero.
+     */
+    void reset() {
+        synchronized (this.offsets) {
+            for (int i = 0; i < this.adders.length; i++) {
+                this.offsets[i] = -this.adders[i].sum();
+            }
+        }
+    }
+}
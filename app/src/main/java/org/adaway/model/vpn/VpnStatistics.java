@@ -1,18 +1,26 @@
 package org.adaway.model.vpn;
 
+import static org.adaway.model.vpn.VpnRequestCounters.ALLOWED;
+import static org.adaway.model.vpn.VpnRequestCounters.BLOCKED;
+import static org.adaway.model.vpn.VpnRequestCounters.REDIRECTED;
+
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 
 import androidx.lifecycle.LiveData;
-import androidx.lifecycle.MutableLiveData;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.io.File;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * VPN statistics tracker for monitoring DNS requests.
  * This class tracks total, blocked, allowed, and redirected DNS requests.
- * Statistics are persisted using SharedPreferences and exposed via LiveData.
+ * Requests are counted without contention from the VPN threads. Statistics are persisted using SharedPreferences
+ * every few seconds while the VPN runs, and when it stops. They are exposed via LiveData polled by the {@link VpnEventHub}.
+ * Their history is kept in a time series, persisted every minute.
  *
  * @author AdAway developers
  */
@@ -22,40 +30,75 @@ public class VpnStatistics {
     private static final String KEY_BLOCKED_REQUESTS = "blocked_requests";
     private static final String KEY_ALLOWED_REQUESTS = "allowed_requests";
     private static final String KEY_REDIRECTED_REQUESTS = "redirected_requests";
+    private static final String STATISTICS_UPDATED_ACTION = "org.adaway.STATISTICS_UPDATED";
+    // The period to persist statistics and notify their changes (in seconds)
+    private static final long FLUSH_PERIOD_S = 5;
+    // The time for the idle flush thread to end (in seconds)
+    private static final long FLUSH_THREAD_KEEP_ALIVE_S = 2 * FLUSH_PERIOD_S;
+    private static final String TIME_SERIES_FILE = "vpn_statistics.bin";
+    // The period to persist the time series (in ms)
+    private static final long TIME_SERIES_SAVE_PERIOD_MS = 60_000;
 
     private static VpnStatistics instance;
     private final Context context;
     private final SharedPreferences preferences;
 
     // Thread-safe counters
-    private final AtomicLong totalRequests;
-    private final AtomicLong blockedRequests;
-    private final AtomicLong allowedRequests;
-    private final AtomicLong redirectedRequests;
+    private final VpnRequestCounters counters;
+    // Periodic flush executor
+    private final ScheduledThreadPoolExecutor flushExecutor;
+    // The periodic flush, null if the VPN is not running
+    private ScheduledFuture<?> periodicFlush;
+    // The blocked request count of the last flush
+    private long lastFlushedBlockedRequests;
+    // Request counts over time
+    private final VpnTimeSeries timeSeries;
+    private final File timeSeriesFile;
+    private long lastTimeSeriesSave;
 
     // LiveData for UI updates
-    private final MutableLiveData<Long> totalRequestsLiveData;
-    private final MutableLiveData<Long> blockedRequestsLiveData;
-    private final MutableLiveData<Long> allowedRequestsLiveData;
-    private final MutableLiveData<Long> redirectedRequestsLiveData;
-    private final MutableLiveData<Float> blockPercentageLiveData;
+    private final LiveData<Long> totalRequestsLiveData;
+    private final LiveData<Long> blockedRequestsLiveData;
+    private final LiveData<Long> allowedRequestsLiveData;
+    private final LiveData<Long> redirectedRequestsLiveData;
+    private final LiveData<Float> blockPercentageLiveData;
 
     private VpnStatistics(Context context) {
         this.context = context.getApplicationContext();
         this.preferences = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
 
         // Load persisted values
-        this.totalRequests = new AtomicLong(preferences.getLong(KEY_TOTAL_REQUESTS, 0));
-        this.blockedRequests = new AtomicLong(preferences.getLong(KEY_BLOCKED_REQUESTS, 0));
-        this.allowedRequests = new AtomicLong(preferences.getLong(KEY_ALLOWED_REQUESTS, 0));
-        this.redirectedRequests = new AtomicLong(preferences.getLong(KEY_REDIRECTED_REQUESTS, 0));
+        this.counters = new VpnRequestCounters(
+                preferences.getLong(KEY_BLOCKED_REQUESTS, 0),
+                preferences.getLong(KEY_ALLOWED_REQUESTS, 0),
+                preferences.getLong(KEY_REDIRECTED_REQUESTS, 0)
+        );
 
         // Initialize LiveData
-        this.totalRequestsLiveData = new MutableLiveData<>(this.totalRequests.get());
-        this.blockedRequestsLiveData = new MutableLiveData<>(this.blockedRequests.get());
-        this.allowedRequestsLiveData = new MutableLiveData<>(this.allowedRequests.get());
-        this.redirectedRequestsLiveData = new MutableLiveData<>(this.redirectedRequests.get());
-        this.blockPercentageLiveData = new MutableLiveData<>(calculateBlockPercentage());
+        VpnEventHub eventHub = VpnEventHub.getInstance();
+        this.totalRequestsLiveData = eventHub.createChannel(this::getTotalRequests);
+        this.blockedRequestsLiveData = eventHub.createChannel(this::getBlockedRequests);
+        this.allowedRequestsLiveData = eventHub.createChannel(this::getAllowedRequests);
+        this.redirectedRequestsLiveData = eventHub.createChannel(this::getRedirectedRequests);
+        this.blockPercentageLiveData = eventHub.createChannel(this::calculateBlockPercentage);
+        this.lastFlushedBlockedRequests = getBlockedRequests();
+
+        // Load time series
+        this.timeSeries = new VpnTimeSeries();
+        this.timeSeriesFile = new File(this.context.getFilesDir(), TIME_SERIES_FILE);
+        this.timeSeries.load(this.timeSeriesFile);
+        this.lastTimeSeriesSave = System.currentTimeMillis();
+
+        // Create periodic flush executor, its thread ends once idle
+        this.flushExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "VpnStatistics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flushExecutor.setRemoveOnCancelPolicy(true);
+        this.flushExecutor.setKeepAliveTime(FLUSH_THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS);
+        this.flushExecutor.allowCoreThreadTimeOut(true);
+        this.periodicFlush = null;
     }
 
     /**
@@ -75,55 +118,64 @@ public class VpnStatistics {
      * Increment total and blocked request counts.
      */
     public void incrementBlockedRequests() {
-        long total = totalRequests.incrementAndGet();
-        long blocked = blockedRequests.incrementAndGet();
-
-        persistValues();
-        notifyLiveData(total, blocked);
-
-        // Notify VpnService to update notification
-        Intent intent = new Intent("org.adaway.STATISTICS_UPDATED");
-        context.sendBroadcast(intent);
+        counters.increment(BLOCKED);
+        timeSeries.record(BLOCKED, System.currentTimeMillis());
     }
 
     /**
      * Increment total and allowed request counts.
      */
     public void incrementAllowedRequests() {
-        long total = totalRequests.incrementAndGet();
-        long allowed = allowedRequests.incrementAndGet();
-
-        persistValues();
-        notifyLiveDataAllowed(total, allowed);
+        counters.increment(ALLOWED);
+        timeSeries.record(ALLOWED, System.currentTimeMillis());
     }
 
     /**
      * Increment total and redirected request counts.
      */
     public void incrementRedirectedRequests() {
-        long total = totalRequests.incrementAndGet();
-        long redirected = redirectedRequests.incrementAndGet();
+        counters.increment(REDIRECTED);
+        timeSeries.record(REDIRECTED, System.currentTimeMillis());
+    }
 
-        persistValues();
-        notifyLiveDataRedirected(total, redirected);
+    /**
+     * Start persisting the statistics periodically.
+     * It should be called when the VPN starts.
+     */
+    public synchronized void start() {
+        if (periodicFlush == null) {
+            periodicFlush = flushExecutor.scheduleWithFixedDelay(() -> flush(true), FLUSH_PERIOD_S,
+                    FLUSH_PERIOD_S, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop persisting the statistics periodically and persist the pending changes.
+     * It should be called when the VPN stops.
+     */
+    public synchronized void stop() {
+        if (periodicFlush != null) {
+            periodicFlush.cancel(false);
+            periodicFlush = null;
+        }
+        flush(false);
+    }
+
+    /**
+     * Persist the pending statistics changes.
+     * It should be called when the VPN stops not to lose the last changes. Changes are written before returning.
+     */
+    public void flush() {
+        flush(false);
     }
 
     /**
      * Reset all statistics to zero.
      */
     public void resetStatistics() {
-        totalRequests.set(0);
-        blockedRequests.set(0);
-        allowedRequests.set(0);
-        redirectedRequests.set(0);
-
-        persistValues();
-
-        totalRequestsLiveData.postValue(0L);
-        blockedRequestsLiveData.postValue(0L);
-        allowedRequestsLiveData.postValue(0L);
-        redirectedRequestsLiveData.postValue(0L);
-        blockPercentageLiveData.postValue(0f);
+        counters.reset();
+        timeSeries.clear();
+        flush(false);
     }
 
     /**
@@ -132,7 +184,7 @@ public class VpnStatistics {
      * @return Total request count
      */
     public long getTotalRequests() {
-        return totalRequests.get();
+        return getBlockedRequests() + getAllowedRequests() + getRedirectedRequests();
     }
 
     /**
@@ -141,7 +193,7 @@ public class VpnStatistics {
      * @return Blocked request count
      */
     public long getBlockedRequests() {
-        return blockedRequests.get();
+        return counters.get(BLOCKED);
     }
 
     /**
@@ -150,7 +202,7 @@ public class VpnStatistics {
      * @return Allowed request count
      */
     public long getAllowedRequests() {
-        return allowedRequests.get();
+        return counters.get(ALLOWED);
     }
 
     /**
@@ -159,7 +211,7 @@ public class VpnStatistics {
      * @return Redirected request count
      */
     public long getRedirectedRequests() {
-        return redirectedRequests.get();
+        return counters.get(REDIRECTED);
     }
 
     /**
@@ -168,11 +220,16 @@ public class VpnStatistics {
      * @return Percentage of blocked requests (0-100)
      */
     public float calculateBlockPercentage() {
-        long total = totalRequests.get();
-        if (total == 0) {
-            return 0f;
-        }
-        return (blockedRequests.get() * 100f) / total;
+        return calculateBlockPercentage(getTotalRequests(), getBlockedRequests());
+    }
+
+    /**
+     * Get the request counts over time.
+     *
+     * @return The request counts time series.
+     */
+    public VpnTimeSeries getTimeSeries() {
+        return timeSeries;
     }
 
     /**
@@ -221,41 +278,52 @@ public class VpnStatistics {
     }
 
     /**
-     * Persist current values to SharedPreferences.
+     * Persist the statistics if they changed since the last flush.
+     *
+     * @param notifyService Whether to notify the VPN service to update its notification, {@code true} for periodic
+     *                      flush written asynchronously, {@code false} for explicit flush written synchronously.
      */
-    private void persistValues() {
-        preferences.edit()
-                .putLong(KEY_TOTAL_REQUESTS, totalRequests.get())
-                .putLong(KEY_BLOCKED_REQUESTS, blockedRequests.get())
-                .putLong(KEY_ALLOWED_REQUESTS, allowedRequests.get())
-                .putLong(KEY_REDIRECTED_REQUESTS, redirectedRequests.get())
-                .apply();
-    }
+    private synchronized void flush(boolean notifyService) {
+        long[] counts = counters.snapshot();
+        if (counts == null) {
+            return;
+        }
+        long blocked = counts[BLOCKED];
+        long allowed = counts[ALLOWED];
+        long redirected = counts[REDIRECTED];
+        long total = blocked + allowed + redirected;
+        boolean blockedChanged = blocked != lastFlushedBlockedRequests;
+        lastFlushedBlockedRequests = blocked;
+
+        SharedPreferences.Editor editor = preferences.edit()
+                .putLong(KEY_TOTAL_REQUESTS, total)
+                .putLong(KEY_BLOCKED_REQUESTS, blocked)
+                .putLong(KEY_ALLOWED_REQUESTS, allowed)
+                .putLong(KEY_REDIRECTED_REQUESTS, redirected);
+        // Write explicit flush synchronously as the process could be killed once the VPN stops
+        if (notifyService) {
+            editor.apply();
+        } else {
+            editor.commit();
+        }
 
-    /**
-     * Notify LiveData observers after blocking a request.
-     */
-    private void notifyLiveData(long total, long blocked) {
-        totalRequestsLiveData.postValue(total);
-        blockedRequestsLiveData.postValue(blocked);
-        blockPercentageLiveData.postValue(calculateBlockPercentage());
-    }
+        // Notify VpnService to update notification, at most once per flush period
+        if (notifyService && blockedChanged) {
+            context.sendBroadcast(new Intent(STATISTICS_UPDATED_ACTION));
+        }
 
-    /**
-     * Notify LiveData observers after allowing a request.
-     */
-    private void notifyLiveDataAllowed(long total, long allowed) {
-        totalRequestsLiveData.postValue(total);
-        allowedRequestsLiveData.postValue(allowed);
-        blockPercentageLiveData.postValue(calculateBlockPercentage());
+        // Save time series every save period and on explicit flush
+        long now = System.currentTimeMillis();
+        if (!notifyService || now - lastTimeSeriesSave >= TIME_SERIES_SAVE_PERIOD_MS) {
+            timeSeries.save(timeSeriesFile);
+            lastTimeSeriesSave = now;
+        }
     }
 
-    /**
-     * Notify LiveData observers after redirecting a request.
-     */
-    private void notifyLiveDataRedirected(long total, long redirected) {
-        totalRequestsLiveData.postValue(total);
-        redirectedRequestsLiveData.postValue(redirected);
-        blockPercentageLiveData.postValue(calculateBlockPercentage());
+    private static float calculateBlockPercentage(long total, long blocked) {
+        if (total == 0) {
+            return 0f;
+        }
+        return (blocked * 100f) / total;
     }
 }
@@ -0,0 +1,333 @@
+package org.adaway.model.vpn;
+
+import static org.adaway.model.vpn.VpnRequestCounters.ALLOWED;
+import static org.adaway.model.vpn.VpnRequestCounters.BLOCKED;
+import static org.adaway.model.vpn.VpnRequestCounters.REDIRECTED;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import timber.log.Timber;
+
+/**
+ * This class stores the blocked, allowed and redirected DNS request counts over time.
+ * <p>
+ * Counts are kept in rings of fixed size buckets at three resolutions: per minute for the last day, per hour for
+ * the last week and per day for the last year. Each request increments its bucket at every resolution, so the
+ * coarser resolutions are downsampled as requests come without any allocation. A bucket is cleared when the ring
+ * rolls over it for a new period.<br>
+ * Periods are aligned on UTC time.
+ * <p>
+ * The rings are persisted in a small binary file.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class VpnTimeSeries {
+    /**
+     * The binary file magic number.
+     */
+    private static final int MAGIC = 0x41445453;
+    /**
+     * The binary file format version.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The number of counters per bucket.
+     */
+    private static final int COUNTERS = 3;
+    /**
+     * The rings, by resolution ordinal.
+     */
+    private final Ring[] rings;
+
+    /**
+     * Constructor.
+     */
+    public VpnTimeSeries() {
+        Resolution[] resolutions = Resolution.values();
+        this.rings = new Ring[resolutions.length];
+        for (int i = 0; i < resolutions.length; i++) {
+            this.rings[i] = new Ring(resolutions[i]);
+        }
+    }
+
+    /**
+     * Count a request.
+     *
+     * @param counter The counter index.
+     * @param now     The request time (in ms).
+     */
+    synchronized void record(int counter, long now) {
+        for (Ring ring : this.rings) {
+            ring.increment(counter, now);
+        }
+    }
+
+    /**
+     * Get the request counts of a time range.
+     * <p>
+     * The range is bounded to the periods kept at the given resolution.
+     *
+     * @param resolution The resolution of the counts.
+     * @param from       The range start time (in ms), included.
+     * @param to         The range end time (in ms), included.
+     * @return The request counts of each period of the range.
+     */
+    public synchronized Range query(Resolution resolution, long from, long to) {
+        Ring ring = this.rings[resolution.ordinal()];
+        long lastPeriod = to / resolution.periodMs;
+        long firstPeriod = Math.max(from / resolution.periodMs, lastPeriod - resolution.size + 1);
+        int size = (int) Math.max(0, lastPeriod - firstPeriod + 1);
+        long[] counts = new long[size * COUNTERS];
+        for (int i = 0; i < size; i++) {
+            ring.copy(firstPeriod + i, counts, i * COUNTERS);
+        }
+        return new Range(firstPeriod * resolution.periodMs, resolution.periodMs, counts);
+    }
+
+    /**
+     * Clear all the request counts.
+     */
+    public synchronized void clear() {
+        for (Ring ring : this.rings) {
+            ring.clear();
+        }
+    }
+
+    /**
+     * Load the request counts from a file, if it exists.
+     *
+     * @param file The file to load.
+     */
+    synchronized void load(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+                Timber.w("Unsupported VPN time series file.");
+                return;
+            }
+            int ringCount = inputStream.readInt();
+            for (int i = 0; i < ringCount && i < this.rings.length; i++) {
+                this.rings[i].read(inputStream);
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Failed to load VPN time series.");
+            clear();
+        }
+    }
+
+    /**
+     * Save the request counts to a file.
+     * <p>
+     * The counts are copied then written without holding the lock, so recording requests never waits for the disk.
+     * The file is written aside then renamed so a failure never corrupts the previous one.
+     *
+     * @param file The file to save to.
+     */
+    void save(File file) {
+        Ring[] snapshot = new Ring[this.rings.length];
+        synchronized (this) {
+            for (int i = 0; i < this.rings.length; i++) {
+                snapshot[i] = new Ring(this.rings[i]);
+            }
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)))) {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(snapshot.length);
+            for (Ring ring : snapshot) {
+                ring.write(outputStream);
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Failed to save VPN time series.");
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            Timber.w("Failed to replace VPN time series file.");
+        }
+    }
+
+    /**
+     * This enumeration is the resolutions of the request counts.
+     */
+    public enum Resolution {
+        /**
+         * Per minute counts, for the last day.
+         */
+        MINUTE(60_000L, 24 * 60),
+        /**
+         * Per hour counts, for the last week.
+         */
+        HOUR(3_600_000L, 7 * 24),
+        /**
+         * Per day counts, for the last year.
+         */
+        DAY(86_400_000L, 365);
+
+        /**
+         * The period duration (in ms).
+         */
+        private final long periodMs;
+        /**
+         * The number of kept periods.
+         */
+        private final int size;
+
+        Resolution(long periodMs, int size) {
+            this.periodMs = periodMs;
+            this.size = size;
+        }
+    }
+
+    /**
+     * This class is the request counts of consecutive periods.
+     */
+    public static final class Range {
+        private final long startTime;
+        private final long periodMs;
+        private final long[] counts;
+
+        private Range(long startTime, long periodMs, long[] counts) {
+            this.startTime = startTime;
+            this.periodMs = periodMs;
+            this.counts = counts;
+        }
+
+        /**
+         * Get the number of periods.
+         *
+         * @return The number of periods.
+         */
+        public int size() {
+            return this.counts.length / COUNTERS;
+        }
+
+        /**
+         * Get the start time of a period.
+         *
+         * @param index The period index.
+         * @return The period start time (in ms).
+         */
+        public long getTime(int index) {
+            return this.startTime + index * this.periodMs;
+        }
+
+        /**
+         * Get the blocked request count of a period.
+         *
+         * @param index The period index.
+         * @return The blocked request count.
+         */
+        public long getBlocked(int index) {
+            return this.counts[index * COUNTERS + BLOCKED];
+        }
+
+        /**
+         * Get the allowed request count of a period.
+         *
+         * @param index The period index.
+         * @return The allowed request count.
+         */
+        public long getAllowed(int index) {
+            return this.counts[index * COUNTERS + ALLOWED];
+        }
+
+        /**
+         * Get the redirected request count of a period.
+         *
+         * @param index The period index.
+         * @return The redirected request count.
+         */
+        public long getRedirected(int index) {
+            return this.counts[index * COUNTERS + REDIRECTED];
+        }
+    }
+
+    /**
+     * This class is a ring of buckets, each holding the request counts of a period.
+     */
+    private static final class Ring {
+        private final long periodMs;
+        /**
+         * The period of each bucket, {@code -1} for empty buckets.
+         */
+        private final long[] periods;
+        /**
+         * The bucket counts, {@link #COUNTERS} per bucket.
+         */
+        private final long[] counts;
+
+        private Ring(Resolution resolution) {
+            this.periodMs = resolution.periodMs;
+            this.periods = new long[resolution.size];
+            this.counts = new long[resolution.size * COUNTERS];
+            clear();
+        }
+
+        private Ring(Ring ring) {
+            this.periodMs = ring.periodMs;
+            this.periods = new long[ring.periods.length];
+            this.counts = new long[ring.counts.length];
+            System.arraycopy(ring.periods, 0, this.periods, 0, this.periods.length);
+            System.arraycopy(ring.counts, 0, this.counts, 0, this.counts.length);
+        }
+
+        private void increment(int counter, long now) {
+            long period = now / this.periodMs;
+            int index = (int) (period % this.periods.length);
+            if (this.periods[index] != period) {
+                // Roll over the bucket of an older period
+                this.periods[index] = period;
+                Arrays.fill(this.counts, index * COUNTERS, (index + 1) * COUNTERS, 0L);
+            }
+            this.counts[index * COUNTERS + counter]++;
+        }
+
+        private void copy(long period, long[] destination, int offset) {
+            int index = (int) (period % this.periods.length);
+            if (this.periods[index] == period) {
+                System.arraycopy(this.counts, index * COUNTERS, destination, offset, COUNTERS);
+            }
+        }
+
+        private void clear() {
+            Arrays.fill(this.periods, -1L);
+            Arrays.fill(this.counts, 0L);
+        }
+
+        private void read(DataInputStream inputStream) throws IOException {
+            int size = inputStream.readInt();
+            if (size != this.periods.length) {
+                throw new IOException("Unexpected ring size " + size + ".");
+            }
+            for (int i = 0; i < size; i++) {
+                this.periods[i] = inputStream.readLong();
+            }
+            for (int i = 0; i < this.counts.length; i++) {
+                this.counts[i] = inputStream.readLong();
+            }
+        }
+
+        private void write(DataOutputStream outputStream) throws IOException {
+            outputStream.writeInt(this.periods.length);
+            for (long period : this.periods) {
+                outputStream.writeLong(period);
+            }
+            for (long count : this.counts) {
+                outputStream.writeLong(count);
+            }
+        }
+    }
+}
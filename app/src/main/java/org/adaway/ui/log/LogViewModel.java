@@ -12,8 +12,10 @@ import org.adaway.AdAwayApplication;
 import org.adaway.db.AppDatabase;
 import org.adaway.db.dao.HostEntryDao;
 import org.adaway.db.dao.HostListItemDao;
+import org.adaway.db.dao.TopDomainDao;
 import org.adaway.db.entity.HostListItem;
 import org.adaway.db.entity.ListType;
+import org.adaway.db.entity.TopDomain;
 import org.adaway.model.adblocking.AdBlockMethod;
 import org.adaway.model.adblocking.AdBlockModel;
 import org.adaway.util.AppExecutors;
@@ -34,6 +36,7 @@ public class LogViewModel extends AndroidViewModel {
     private final AdBlockModel adBlockModel;
     private final HostListItemDao hostListItemDao;
     private final HostEntryDao hostEntryDao;
+    private final TopDomainDao topDomainDao;
     private final MutableLiveData<List<LogEntry>> logEntries;
     private final MutableLiveData<Boolean> recording;
     private LogEntrySort sort;
@@ -43,6 +46,7 @@ public class LogViewModel extends AndroidViewModel {
         this.adBlockModel = ((AdAwayApplication) application).getAdBlockModel();
         this.hostListItemDao = AppDatabase.getInstance(application).hostsListItemDao();
         this.hostEntryDao = AppDatabase.getInstance(application).hostEntryDao();
+        this.topDomainDao = AppDatabase.getInstance(application).topDomainDao();
         this.logEntries = new MutableLiveData<>();
         this.recording = new MutableLiveData<>(this.adBlockModel.isRecordingLogs());
         this.sort = LogEntrySort.TOP_LEVEL_DOMAIN;
@@ -86,6 +90,14 @@ public class LogViewModel extends AndroidViewModel {
         );
     }
 
+    public LiveData<List<TopDomain>> getTopQueriedDomains(int limit) {
+        return this.topDomainDao.getTop(TopDomain.QUERIED, limit);
+    }
+
+    public LiveData<List<TopDomain>> getTopBlockedDomains(int limit) {
+        return this.topDomainDao.getTop(TopDomain.BLOCKED, limit);
+    }
+
     public LiveData<Boolean> isRecording() {
         return this.recording;
     }
@@ -22,7 +22,7 @@ import org.adaway.helper.ThemeHelper;
 public class PrefsActivity extends AppCompatActivity implements PreferenceFragmentCompat.OnPreferenceStartFragmentCallback {
     static final String PREFERENCE_NOT_FOUND = "preference not found";
 
-    static void setAppBarTitle(PreferenceFragmentCompat fragment, @StringRes int title) {
+    static void setAppBarTitle(Fragment fragment, @StringRes int title) {
         FragmentActivity activity = fragment.getActivity();
         if (!(activity instanceof PrefsActivity)) {
             return;
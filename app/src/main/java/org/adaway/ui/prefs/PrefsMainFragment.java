@@ -10,7 +10,9 @@ import androidx.preference.PreferenceFragmentCompat;
 import org.adaway.R;
 import org.adaway.helper.PreferenceHelper;
 import org.adaway.model.adblocking.AdBlockMethod;
+import org.adaway.util.log.ApplicationLog;
 import org.adaway.util.log.SentryLog;
+import org.adaway.util.metrics.MetricsServer;
 
 import static org.adaway.model.adblocking.AdBlockMethod.ROOT;
 import static org.adaway.model.adblocking.AdBlockMethod.VPN;
@@ -32,6 +34,7 @@ public class PrefsMainFragment extends PreferenceFragmentCompat {
         bindThemePrefAction();
         bindAdBlockMethod();
         bindTelemetryPrefAction();
+        bindMetricsEndpointPrefAction();
     }
 
     @Override
@@ -78,4 +81,15 @@ public class PrefsMainFragment extends PreferenceFragmentCompat {
             enableTelemetryPref.setSummary(R.string.pref_enable_telemetry_disabled_summary);
         }
     }
+
+    private void bindMetricsEndpointPrefAction() {
+        Preference metricsEndpointPref = findPreference(getString(R.string.pref_metrics_endpoint_key));
+        assert metricsEndpointPref != null : PREFERENCE_NOT_FOUND;
+        metricsEndpointPref.setSummary(getString(R.string.pref_metrics_endpoint_summary, MetricsServer.PORT));
+        metricsEndpointPref.setVisible(ApplicationLog.isDebugEnabled(requireContext()));
+        metricsEndpointPref.setOnPreferenceChangeListener((preference, newValue) -> {
+            MetricsServer.setEnabled(requireActivity().getApplication(), (boolean) newValue);
+            return true;
+        });
+    }
 }
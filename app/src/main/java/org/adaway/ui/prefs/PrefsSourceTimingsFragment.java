@@ -0,0 +1,117 @@
+package org.adaway.ui.prefs;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.text.format.Formatter;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.fragment.app.Fragment;
+
+import org.adaway.AdAwayApplication;
+import org.adaway.R;
+import org.adaway.db.entity.SourceTiming;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Objects;
+
+import static java.time.format.FormatStyle.MEDIUM;
+import static org.adaway.db.entity.SourceTiming.APPLY;
+import static org.adaway.db.entity.SourceTiming.CHECK;
+import static org.adaway.db.entity.SourceTiming.DOWNLOAD;
+import static org.adaway.db.entity.SourceTiming.INSERT;
+import static org.adaway.db.entity.SourceTiming.PARSE;
+import static org.adaway.db.entity.SourceTiming.SYNC;
+
+/**
+ * This fragment is the diagnostics screen of the source refresh stage timings.
+ * <p>
+ * It lists the stage timings of the last source refreshes, last refresh first, to spot which source or stage
+ * regressed.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class PrefsSourceTimingsFragment extends Fragment {
+    private TextView timingsTextView;
+
+    @Override
+    public void onAttach(@NonNull Context context) {
+        super.onAttach(context);
+        PrefsActivity.setAppBarTitle(this, R.string.pref_source_timings);
+    }
+
+    @Override
+    public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container,
+                             @Nullable Bundle savedInstanceState) {
+        View view = inflater.inflate(R.layout.prefs_source_timings_fragment, container, false);
+        this.timingsTextView = view.findViewById(R.id.sourceTimingsTextView);
+        AdAwayApplication application = (AdAwayApplication) requireActivity().getApplication();
+        application.getSourceModel()
+                .getRefreshHistory()
+                .getTimings()
+                .observe(getViewLifecycleOwner(), this::displayTimings);
+        return view;
+    }
+
+    private void displayTimings(List<SourceTiming> timings) {
+        if (timings.isEmpty()) {
+            this.timingsTextView.setText(R.string.source_timings_empty);
+            return;
+        }
+        DateTimeFormatter dateTimeFormatter = DateTimeFormatter.ofLocalizedDateTime(MEDIUM)
+                .withZone(ZoneId.systemDefault());
+        StringBuilder builder = new StringBuilder();
+        long refresh = 0;
+        String source = null;
+        for (SourceTiming timing : timings) {
+            // Add refresh header
+            boolean newRefresh = timing.getRefresh() != refresh;
+            if (newRefresh) {
+                refresh = timing.getRefresh();
+                if (builder.length() > 0) {
+                    builder.append('\n');
+                }
+                builder.append(dateTimeFormatter.format(Instant.ofEpochMilli(refresh))).append('\n');
+            }
+            // Add source header
+            if (newRefresh || !Objects.equals(timing.getSource(), source)) {
+                source = timing.getSource();
+                builder.append("  ")
+                        .append(source == null ? getString(R.string.source_timings_all_sources) : source)
+                        .append('\n');
+            }
+            builder.append("    ").append(formatTiming(timing)).append('\n');
+        }
+        this.timingsTextView.setText(builder);
+    }
+
+    private String formatTiming(SourceTiming timing) {
+        long duration = timing.getDuration();
+        long count = timing.getCount();
+        long rate = count * 1000 / Math.max(1, duration);
+        switch (timing.getStage()) {
+            case CHECK:
+                return getString(R.string.source_timings_check, duration);
+            case DOWNLOAD:
+                String size = Formatter.formatShortFileSize(requireContext(), count);
+                return getString(R.string.source_timings_download, duration, size);
+            case PARSE:
+                return getString(R.string.source_timings_parse, duration, count, rate, timing.getRejected());
+            case INSERT:
+                return getString(R.string.source_timings_insert, duration, count, rate);
+            case SYNC:
+                return getString(R.string.source_timings_sync, duration, count);
+            case APPLY:
+                return getString(R.string.source_timings_apply, duration);
+            default:
+                return "";
+        }
+    }
+}
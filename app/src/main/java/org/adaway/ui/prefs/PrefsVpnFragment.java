@@ -7,13 +7,25 @@ import android.os.Bundle;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts.StartActivityForResult;
 import androidx.annotation.NonNull;
+import androidx.preference.EditTextPreference;
 import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
 
+import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+
 import org.adaway.R;
+import org.adaway.db.AppDatabase;
+import org.adaway.db.dao.DnsForwardingRuleDao;
+import org.adaway.db.entity.DnsForwardingRule;
 import org.adaway.ui.prefs.exclusion.PrefsVpnExcludedAppsActivity;
+import org.adaway.util.AppExecutors;
 import org.adaway.vpn.VpnServiceControls;
+import org.adaway.vpn.dns.DnsForwardingRules;
+import org.adaway.vpn.dns.DnsLatencyMetrics;
+import org.adaway.vpn.dns.DnsProxyMetrics;
+
+import java.util.List;
 
 import static org.adaway.ui.prefs.PrefsActivity.PREFERENCE_NOT_FOUND;
 import static org.adaway.util.Constants.PREFS_NAME;
@@ -34,6 +46,15 @@ public class PrefsVpnFragment extends PreferenceFragmentCompat {
         // Register for activity
         registerForStartActivity();
         // Bind pref actions
+        bindDnsTransport();
+        bindUpstreamRacing();
+        bindDnsQueryTimeout();
+        bindDnsMaxStale();
+        bindDnsTtlBounds();
+        bindDnsForwardingRules();
+        bindBlockedHosts();
+        bindLocalDnsServer();
+        bindDnsLatency();
         bindExcludedSystemApps();
         bindExcludedUserApps();
     }
@@ -51,6 +72,158 @@ public class PrefsVpnFragment extends PreferenceFragmentCompat {
         );
     }
 
+    private void bindDnsTransport() {
+        ListPreference dnsTransportPreference = findPreference(getString(R.string.pref_vpn_dns_transport_key));
+        assert dnsTransportPreference != null : PREFERENCE_NOT_FOUND;
+        dnsTransportPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+            restartVpn();
+            return true;
+        });
+        Preference dohEndpointsPreference = findPreference(getString(R.string.pref_vpn_doh_endpoints_key));
+        assert dohEndpointsPreference != null : PREFERENCE_NOT_FOUND;
+        dohEndpointsPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+            restartVpn();
+            return true;
+        });
+        Preference dotServersPreference = findPreference(getString(R.string.pref_vpn_dot_servers_key));
+        assert dotServersPreference != null : PREFERENCE_NOT_FOUND;
+        dotServersPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+            restartVpn();
+            return true;
+        });
+    }
+
+    private void bindUpstreamRacing() {
+        Preference upstreamRacingPreference = findPreference(getString(R.string.pref_vpn_upstream_racing_key));
+        assert upstreamRacingPreference != null : PREFERENCE_NOT_FOUND;
+        upstreamRacingPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+            restartVpn();
+            return true;
+        });
+    }
+
+    private void bindDnsQueryTimeout() {
+        Preference dnsQueryTimeoutPreference = findPreference(getString(R.string.pref_vpn_dns_query_timeout_key));
+        assert dnsQueryTimeoutPreference != null : PREFERENCE_NOT_FOUND;
+        dnsQueryTimeoutPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+            restartVpn();
+            return true;
+        });
+    }
+
+    private void bindDnsMaxStale() {
+        Preference dnsMaxStalePreference = findPreference(getString(R.string.pref_vpn_dns_max_stale_key));
+        assert dnsMaxStalePreference != null : PREFERENCE_NOT_FOUND;
+        dnsMaxStalePreference.setOnPreferenceChangeListener((preference, newValue) -> {
+            restartVpn();
+            return true;
+        });
+    }
+
+    private void bindDnsTtlBounds() {
+        int[] keys = {
+                R.string.pref_vpn_dns_min_ttl_key,
+                R.string.pref_vpn_dns_max_ttl_key,
+                R.string.pref_vpn_dns_ttl_exceptions_key
+        };
+        for (int key : keys) {
+            Preference ttlPreference = findPreference(getString(key));
+            assert ttlPreference != null : PREFERENCE_NOT_FOUND;
+            ttlPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+                restartVpn();
+                return true;
+            });
+        }
+    }
+
+    private void bindDnsForwardingRules() {
+        EditTextPreference forwardingRulesPreference =
+                findPreference(getString(R.string.pref_vpn_dns_forwarding_rules_key));
+        assert forwardingRulesPreference != null : PREFERENCE_NOT_FOUND;
+        DnsForwardingRuleDao dnsForwardingRuleDao = AppDatabase.getInstance(requireContext()).dnsForwardingRuleDao();
+        AppExecutors executors = AppExecutors.getInstance();
+        // Rules are stored in database, not in preferences
+        executors.diskIO().execute(() -> {
+            String rules = DnsForwardingRules.formatRules(dnsForwardingRuleDao.getAll());
+            executors.mainThread().execute(() -> forwardingRulesPreference.setText(rules));
+        });
+        // The VPN watches the rules so there is no need to restart it
+        forwardingRulesPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+            List<DnsForwardingRule> rules = DnsForwardingRules.parseRules((String) newValue);
+            executors.diskIO().execute(() -> dnsForwardingRuleDao.replaceAll(rules));
+            forwardingRulesPreference.setText(DnsForwardingRules.formatRules(rules));
+            return false;
+        });
+    }
+
+    private void bindBlockedHosts() {
+        int[] keys = {
+                R.string.pref_vpn_cname_inspection_key,
+                R.string.pref_vpn_blocked_ttl_key,
+                R.string.pref_vpn_redirected_ttl_key,
+                R.string.pref_vpn_synthesized_max_ttl_key
+        };
+        for (int key : keys) {
+            Preference ttlPreference = findPreference(getString(key));
+            assert ttlPreference != null : PREFERENCE_NOT_FOUND;
+            ttlPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+                restartVpn();
+                return true;
+            });
+        }
+    }
+
+    private void bindLocalDnsServer() {
+        int[] keys = {
+                R.string.pref_vpn_local_dns_server_key,
+                R.string.pref_vpn_local_dns_server_interface_key,
+                R.string.pref_vpn_local_dns_server_rate_limit_key
+        };
+        for (int key : keys) {
+            Preference localDnsServerPreference = findPreference(getString(key));
+            assert localDnsServerPreference != null : PREFERENCE_NOT_FOUND;
+            localDnsServerPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+                restartVpn();
+                return true;
+            });
+        }
+        Preference portPreference = findPreference(getString(R.string.pref_vpn_local_dns_server_port_key));
+        assert portPreference != null : PREFERENCE_NOT_FOUND;
+        portPreference.setOnPreferenceChangeListener((preference, newValue) -> {
+            // Only accept unprivileged ports
+            try {
+                int port = Integer.parseInt(((String) newValue).trim());
+                if (port < 1024 || port > 65535) {
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            restartVpn();
+            return true;
+        });
+    }
+
+    private void bindDnsLatency() {
+        Preference dnsLatencyPreference = findPreference(getString(R.string.pref_vpn_dns_latency_key));
+        assert dnsLatencyPreference != null : PREFERENCE_NOT_FOUND;
+        dnsLatencyPreference.setOnPreferenceClickListener(preference -> {
+            DnsLatencyMetrics latencyMetrics = DnsLatencyMetrics.getInstance();
+            new MaterialAlertDialogBuilder(requireContext())
+                    .setCancelable(true)
+                    .setTitle(R.string.pref_vpn_dns_latency)
+                    .setMessage(latencyMetrics.dump() + DnsProxyMetrics.getInstance().dump())
+                    .setPositiveButton(android.R.string.ok, (dialog, which) -> dialog.dismiss())
+                    .setNeutralButton(R.string.pref_vpn_dns_latency_dialog_reset, (dialog, which) -> {
+                        latencyMetrics.reset();
+                        dialog.dismiss();
+                    })
+                    .create()
+                    .show();
+            return true;
+        });
+    }
+
     private void bindExcludedSystemApps() {
         ListPreference excludeUserAppsPreferences = findPreference(getString(R.string.pref_vpn_excluded_system_apps_key));
         assert excludeUserAppsPreferences != null : PREFERENCE_NOT_FOUND;
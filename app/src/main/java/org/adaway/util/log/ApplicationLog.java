@@ -29,7 +29,7 @@ public final class ApplicationLog {
      * @param application The application instance.
      */
     public static void init(Application application) {
-        if (isApplicationDebuggable(application) || PreferenceHelper.getDebugEnabled(application)) {
+        if (isDebugEnabled(application)) {
             Shell.enableVerboseLogging = true;
             Timber.plant(new Timber.DebugTree());
         } else {
@@ -38,6 +38,17 @@ public final class ApplicationLog {
         }
     }
 
+    /**
+     * Check whether the debug features are enabled.
+     *
+     * @param context The application context.
+     * @return {@code true} if the application is debuggable or the verbose logging is enabled, {@code false}
+     * otherwise.
+     */
+    public static boolean isDebugEnabled(Context context) {
+        return isApplicationDebuggable(context) || PreferenceHelper.getDebugEnabled(context);
+    }
+
     private static boolean isApplicationDebuggable(Context context) {
         return (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
     }
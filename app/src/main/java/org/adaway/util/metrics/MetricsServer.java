@@ -0,0 +1,257 @@
+package org.adaway.util.metrics;
+
+import android.app.Application;
+
+import org.adaway.AdAwayApplication;
+import org.adaway.db.entity.SourceTiming;
+import org.adaway.helper.PreferenceHelper;
+import org.adaway.model.adblocking.AdBlockModel;
+import org.adaway.model.vpn.VpnModel;
+import org.adaway.model.vpn.VpnStatistics;
+import org.adaway.util.log.ApplicationLog;
+import org.adaway.vpn.dns.DnsLatencyMetrics;
+import org.adaway.vpn.dns.DnsProxyMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import timber.log.Timber;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.adaway.util.metrics.OpenMetricsWriter.COUNTER;
+import static org.adaway.util.metrics.OpenMetricsWriter.GAUGE;
+
+/**
+ * This class is a local HTTP endpoint exporting the application metrics in the OpenMetrics text format.
+ * <p>
+ * It is opt-in and only available when debug is enabled. It listens on the loopback interface only, so metrics are
+ * scraped from the device itself or through {@code adb forward tcp:9153 tcp:9153}. Requests are served one at a time
+ * by a dedicated thread that reads the counters the VPN already maintains, so scraping never blocks the VPN thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class MetricsServer implements Runnable {
+    /**
+     * The endpoint port.
+     */
+    public static final int PORT = 9153;
+    /**
+     * The endpoint path.
+     */
+    private static final String PATH = "/metrics";
+    /**
+     * The database files to report the size of.
+     */
+    private static final String[] DATABASE_FILES = {"app.db", "app.db-wal"};
+    /**
+     * The source refresh stage labels, indexed by {@link SourceTiming} stage.
+     */
+    private static final String[] SOURCE_STAGES = {"check", "download", "parse", "insert", "sync", "apply"};
+    /**
+     * The maximum request size (in bytes), larger requests are rejected.
+     */
+    private static final int MAX_REQUEST_SIZE = 4096;
+    /**
+     * The time to wait for a request (in ms).
+     */
+    private static final int READ_TIMEOUT_MS = 2000;
+    private static MetricsServer instance;
+    private final Application application;
+    private final ServerSocket serverSocket;
+    private final OpenMetricsWriter writer;
+    private final byte[] requestBuffer;
+
+    private MetricsServer(Application application) throws IOException {
+        this.application = application;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT));
+        this.writer = new OpenMetricsWriter();
+        this.requestBuffer = new byte[MAX_REQUEST_SIZE];
+    }
+
+    /**
+     * Start the metrics endpoint according user preferences.
+     *
+     * @param application The application instance.
+     */
+    public static void init(Application application) {
+        setEnabled(application, PreferenceHelper.getMetricsEndpointEnabled(application));
+    }
+
+    /**
+     * Start or stop the metrics endpoint.
+     *
+     * @param application The application instance.
+     * @param enabled     Whether the endpoint is enabled by the user or not. It is only started if debug is enabled.
+     */
+    public static synchronized void setEnabled(Application application, boolean enabled) {
+        boolean started = enabled && ApplicationLog.isDebugEnabled(application);
+        if (started && instance == null) {
+            try {
+                instance = new MetricsServer(application);
+            } catch (IOException e) {
+                Timber.w(e, "Failed to start metrics endpoint on port %d.", PORT);
+                return;
+            }
+            Thread thread = new Thread(instance, "MetricsServer");
+            thread.setDaemon(true);
+            thread.start();
+            Timber.i("Metrics endpoint started on port %d.", PORT);
+        } else if (!started && instance != null) {
+            try {
+                instance.serverSocket.close();
+            } catch (IOException e) {
+                Timber.d(e, "Failed to close metrics endpoint.");
+            }
+            instance = null;
+            Timber.i("Metrics endpoint stopped.");
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!this.serverSocket.isClosed()) {
+            try (Socket socket = this.serverSocket.accept()) {
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                serve(socket);
+            } catch (IOException e) {
+                if (!this.serverSocket.isClosed()) {
+                    Timber.d(e, "Failed to serve metrics request.");
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        String requestLine = readRequest(socket.getInputStream());
+        OutputStream outputStream = socket.getOutputStream();
+        if (requestLine == null) {
+            writeStatus(outputStream, "400 Bad Request");
+            return;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[1].equals(PATH)) {
+            writeStatus(outputStream, "404 Not Found");
+            return;
+        }
+        if (!parts[0].equals("GET")) {
+            writeStatus(outputStream, "405 Method Not Allowed");
+            return;
+        }
+        render();
+        String header = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: " + OpenMetricsWriter.CONTENT_TYPE + "\r\n"
+                + "Content-Length: " + this.writer.size() + "\r\n"
+                + "Connection: close\r\n\r\n";
+        outputStream.write(header.getBytes(US_ASCII));
+        this.writer.writeTo(outputStream);
+        outputStream.flush();
+    }
+
+    /**
+     * Read a request until the end of its headers.
+     *
+     * @param inputStream The request stream.
+     * @return The request line, {@code null} if the request is malformed or too large.
+     * @throws IOException If the request could not be read.
+     */
+    private String readRequest(InputStream inputStream) throws IOException {
+        int size = 0;
+        int lineEnd = -1;
+        while (size < this.requestBuffer.length) {
+            int read = inputStream.read(this.requestBuffer, size, this.requestBuffer.length - size);
+            if (read == -1) {
+                return null;
+            }
+            for (int i = size; i < size + read; i++) {
+                if (this.requestBuffer[i] != '\n') {
+                    continue;
+                }
+                if (lineEnd == -1) {
+                    lineEnd = i;
+                }
+                // Check end of headers, an empty line
+                boolean emptyLine = i >= 1 && this.requestBuffer[i - 1] == '\n'
+                        || i >= 2 && this.requestBuffer[i - 1] == '\r' && this.requestBuffer[i - 2] == '\n';
+                if (emptyLine) {
+                    int end = lineEnd > 0 && this.requestBuffer[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+                    return new String(this.requestBuffer, 0, end, US_ASCII);
+                }
+            }
+            size += read;
+        }
+        return null;
+    }
+
+    private void writeStatus(OutputStream outputStream, String status) throws IOException {
+        String response = "HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        outputStream.write(response.getBytes(US_ASCII));
+        outputStream.flush();
+    }
+
+    private void render() {
+        this.writer.reset();
+        // Write VPN request counters
+        VpnStatistics statistics = VpnStatistics.getInstance(this.application);
+        this.writer.family("adaway_vpn_requests", COUNTER, "The DNS requests handled by the VPN.");
+        this.writer.sample("adaway_vpn_requests_total").label("verdict", "blocked")
+                .value(statistics.getBlockedRequests());
+        this.writer.sample("adaway_vpn_requests_total").label("verdict", "allowed")
+                .value(statistics.getAllowedRequests());
+        this.writer.sample("adaway_vpn_requests_total").label("verdict", "redirected")
+                .value(statistics.getRedirectedRequests());
+        // Write host cache counters
+        AdBlockModel adBlockModel = ((AdAwayApplication) this.application).getAdBlockModel();
+        if (adBlockModel instanceof VpnModel) {
+            VpnModel vpnModel = (VpnModel) adBlockModel;
+            this.writer.family("adaway_vpn_host_cache_lookups", COUNTER, "The host entry cache lookups.");
+            this.writer.sample("adaway_vpn_host_cache_lookups_total").label("result", "hit")
+                    .value(vpnModel.getHostCacheHitCount());
+            this.writer.sample("adaway_vpn_host_cache_lookups_total").label("result", "miss")
+                    .value(vpnModel.getHostCacheMissCount());
+        }
+        // Write DNS latencies
+        DnsLatencyMetrics.getInstance().writeMetrics(this.writer);
+        // Write DNS proxy counters
+        DnsProxyMetrics.getInstance().writeMetrics(this.writer);
+        // Write source refresh stage timings
+        List<SourceTiming> timings = ((AdAwayApplication) this.application).getSourceModel()
+                .getRefreshHistory()
+                .getLastTimings();
+        this.writer.family("adaway_source_stage_duration_seconds", GAUGE,
+                "The last duration of each source refresh stage.");
+        for (SourceTiming timing : timings) {
+            String source = timing.getSource();
+            this.writer.sample("adaway_source_stage_duration_seconds")
+                    .label("source", source == null ? "" : source)
+                    .label("stage", SOURCE_STAGES[timing.getStage()])
+                    .seconds(timing.getDuration() * 1000);
+        }
+        this.writer.family("adaway_source_stage_items", GAUGE,
+                "The items processed by the last run of each source refresh stage.");
+        for (SourceTiming timing : timings) {
+            String source = timing.getSource();
+            this.writer.sample("adaway_source_stage_items")
+                    .label("source", source == null ? "" : source)
+                    .label("stage", SOURCE_STAGES[timing.getStage()])
+                    .value(timing.getCount());
+        }
+        // Write database sizes
+        this.writer.family("adaway_database_size_bytes", GAUGE, "The size of the database files.");
+        for (String name : DATABASE_FILES) {
+            File file = this.application.getDatabasePath(name);
+            if (file.isFile()) {
+                this.writer.sample("adaway_database_size_bytes").label("file", name).value(file.length());
+            }
+        }
+        this.writer.eof();
+    }
+}
@@ -0,0 +1,239 @@
+package org.adaway.util.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * This class renders metrics in the OpenMetrics text format.
+ * <p>
+ * The exposition is written into a reusable byte buffer, sized once for a typical scrape, so rendering the same
+ * metrics again does not allocate. Samples are written with a fluent API:
+ * <pre>{@code
+ * writer.family("adaway_vpn_requests", COUNTER, "The DNS requests handled by the VPN.");
+ * writer.sample("adaway_vpn_requests_total").label("verdict", "blocked").value(42);
+ * }</pre>
+ * It is not thread safe.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class OpenMetricsWriter {
+    /**
+     * The OpenMetrics text format content type.
+     */
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    /**
+     * The counter metric type.
+     */
+    public static final String COUNTER = "counter";
+    /**
+     * The gauge metric type.
+     */
+    public static final String GAUGE = "gauge";
+    /**
+     * The summary metric type.
+     */
+    public static final String SUMMARY = "summary";
+    private static final int DEFAULT_CAPACITY = 16 * 1024;
+    private byte[] buffer;
+    private int size;
+    private boolean labeled;
+
+    /**
+     * Constructor.
+     */
+    public OpenMetricsWriter() {
+        this.buffer = new byte[DEFAULT_CAPACITY];
+        this.size = 0;
+        this.labeled = false;
+    }
+
+    /**
+     * Forget the written metrics to render them again.
+     */
+    public void reset() {
+        this.size = 0;
+        this.labeled = false;
+    }
+
+    /**
+     * Start a metric family.
+     *
+     * @param name The family name.
+     * @param type The family type, {@link #COUNTER}, {@link #GAUGE} or {@link #SUMMARY}.
+     * @param help The family description.
+     */
+    public void family(String name, String type, String help) {
+        append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        append("# HELP ").append(name).append(' ').appendEscaped(help, false).append('\n');
+    }
+
+    /**
+     * Start a sample.
+     *
+     * @param name The sample name.
+     * @return The writer to add sample labels and value.
+     */
+    public OpenMetricsWriter sample(String name) {
+        this.labeled = false;
+        return append(name);
+    }
+
+    /**
+     * Add a label to the current sample.
+     *
+     * @param name  The label name.
+     * @param value The label value.
+     * @return The writer to add more sample labels and value.
+     */
+    public OpenMetricsWriter label(String name, String value) {
+        append(this.labeled ? ',' : '{');
+        this.labeled = true;
+        return append(name).append("=\"").appendEscaped(value, true).append('"');
+    }
+
+    /**
+     * End the current sample with an integer value.
+     *
+     * @param value The sample value.
+     */
+    public void value(long value) {
+        endLabels();
+        appendLong(value).append('\n');
+    }
+
+    /**
+     * End the current sample with a duration value, in seconds.
+     *
+     * @param micros The sample duration (in µs).
+     */
+    public void seconds(long micros) {
+        endLabels();
+        if (micros < 0) {
+            append('-');
+            micros = -micros;
+        }
+        appendLong(micros / 1_000_000).append('.');
+        long fraction = micros % 1_000_000;
+        for (long divider = 100_000; divider > 0; divider /= 10) {
+            append((char) ('0' + fraction / divider % 10));
+        }
+        append('\n');
+    }
+
+    /**
+     * End the exposition.
+     */
+    public void eof() {
+        append("# EOF\n");
+    }
+
+    /**
+     * Get the rendered exposition size.
+     *
+     * @return The rendered exposition size (in bytes).
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Write the rendered exposition.
+     *
+     * @param outputStream The stream to write to.
+     * @throws IOException If the exposition could not be written.
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(this.buffer, 0, this.size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(this.buffer, 0, this.size, UTF_8);
+    }
+
+    private void endLabels() {
+        if (this.labeled) {
+            append('}');
+            this.labeled = false;
+        }
+        append(' ');
+    }
+
+    private OpenMetricsWriter append(char c) {
+        ensureCapacity(1);
+        this.buffer[this.size++] = (byte) c;
+        return this;
+    }
+
+    private OpenMetricsWriter append(String text) {
+        // Metric names and keywords are ASCII only
+        int length = text.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            this.buffer[this.size++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    private OpenMetricsWriter appendEscaped(String text, boolean quoted) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // Encode the remaining non ASCII text at once
+                return appendEscapedUtf8(text.substring(i), quoted);
+            } else if (c == '\\') {
+                append('\\').append('\\');
+            } else if (c == '\n') {
+                append('\\').append('n');
+            } else if (c == '"' && quoted) {
+                append('\\').append('"');
+            } else {
+                append(c);
+            }
+        }
+        return this;
+    }
+
+    private OpenMetricsWriter appendEscapedUtf8(String text, boolean quoted) {
+        String escaped = text.replace("\\", "\\\\").replace("\n", "\\n");
+        if (quoted) {
+            escaped = escaped.replace("\"", "\\\"");
+        }
+        byte[] bytes = escaped.getBytes(UTF_8);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, this.buffer, this.size, bytes.length);
+        this.size += bytes.length;
+        return this;
+    }
+
+    private OpenMetricsWriter appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = this.size + digits - 1; i >= this.size; i--) {
+            this.buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        this.size += digits;
+        return this;
+    }
+
+    private void ensureCapacity(int length) {
+        if (this.size + length > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.size + length));
+        }
+    }
+}
@@ -67,9 +67,14 @@ import org.adaway.broadcast.CommandReceiver;
 import org.adaway.helper.PreferenceHelper;
 import org.adaway.model.vpn.VpnStatistics;
 import org.adaway.ui.home.HomeActivity;
+import org.adaway.vpn.dns.DnsLatencyMetrics;
+import org.adaway.vpn.dns.DnsProxyMetrics;
 import org.adaway.vpn.worker.VpnWorker;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -164,6 +169,8 @@ public class VpnService extends android.net.VpnService implements Handler.Callba
     public void onDestroy() {
         Timber.d("Destroying VPN service…");
         unregisterNetworkCallback();
+        // Persist the statistics counted since the last flush
+        VpnStatistics.getInstance(this).flush();
         try {
             unregisterReceiver(statisticsUpdateReceiver);
         } catch (IllegalArgumentException e) {
@@ -172,6 +179,25 @@ public class VpnService extends android.net.VpnService implements Handler.Callba
         Timber.d("Destroyed VPN service.");
     }
 
+    /**
+     * Dump the DNS latency and proxy metrics.
+     * <p>
+     * Use {@code adb shell dumpsys activity service org.adaway/.vpn.VpnService} to dump them, with an additional
+     * {@code reset} argument to reset the latency metrics after dumping.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        DnsLatencyMetrics latencyMetrics = DnsLatencyMetrics.getInstance();
+        writer.println("DNS latency:");
+        writer.print(latencyMetrics.dump());
+        if (args != null && Arrays.asList(args).contains("reset")) {
+            latencyMetrics.reset();
+            writer.println("DNS latency reset.");
+        }
+        writer.println("DNS proxy:");
+        writer.print(DnsProxyMetrics.getInstance().dump());
+    }
+
     /*
      * Handler callback.
      */
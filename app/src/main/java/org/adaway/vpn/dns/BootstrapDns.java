@@ -0,0 +1,124 @@
+package org.adaway.vpn.dns;
+
+import android.net.VpnService;
+
+import androidx.annotation.NonNull;
+
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import okhttp3.Dns;
+import timber.log.Timber;
+
+/**
+ * This class resolves the encrypted DNS endpoint host names.
+ * <p>
+ * As the system resolver goes through the VPN, and so through the encrypted DNS endpoints, endpoint host names are
+ * resolved by querying the network DNS servers directly, with sockets protected from the VPN.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class BootstrapDns implements Dns {
+    /**
+     * The IPv4 address pattern.
+     */
+    private static final Pattern IPV4_ADDRESS = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+    /**
+     * The DNS port.
+     */
+    private static final int DNS_PORT = 53;
+    /**
+     * The time to wait for a network DNS server response (in ms).
+     */
+    private static final int TIMEOUT_MS = 2_000;
+    /**
+     * The maximum DNS response size (in bytes).
+     */
+    private static final int MAX_RESPONSE_SIZE = 4096;
+    /**
+     * The VPN service to protect sockets with.
+     */
+    private final VpnService vpnService;
+    /**
+     * The mapper to get the network DNS servers from.
+     */
+    private final DnsServerMapper dnsServerMapper;
+
+    /**
+     * Constructor.
+     *
+     * @param vpnService      The VPN service to protect sockets with.
+     * @param dnsServerMapper The mapper to get the network DNS servers from.
+     */
+    BootstrapDns(VpnService vpnService, DnsServerMapper dnsServerMapper) {
+        this.vpnService = vpnService;
+        this.dnsServerMapper = dnsServerMapper;
+    }
+
+    @NonNull
+    @Override
+    public List<InetAddress> lookup(@NonNull String hostname) throws UnknownHostException {
+        if (hostname.indexOf(':') >= 0 || IPV4_ADDRESS.matcher(hostname).matches()) {
+            // Address literals do not need to be resolved
+            return Collections.singletonList(InetAddress.getByName(hostname));
+        }
+        Name name;
+        try {
+            name = Name.fromString(hostname, Name.root);
+        } catch (IOException e) {
+            throw new UnknownHostException("Invalid host name " + hostname);
+        }
+        for (InetAddress dnsServer : this.dnsServerMapper.getDnsServers()) {
+            List<InetAddress> addresses = new ArrayList<>();
+            try {
+                addresses.addAll(query(dnsServer, name, Type.A));
+                addresses.addAll(query(dnsServer, name, Type.AAAA));
+            } catch (IOException e) {
+                Timber.d(e, "Failed to resolve %s with %s.", hostname, dnsServer);
+                continue;
+            }
+            if (!addresses.isEmpty()) {
+                return addresses;
+            }
+        }
+        throw new UnknownHostException("Failed to resolve " + hostname);
+    }
+
+    private List<InetAddress> query(InetAddress dnsServer, Name name, int type) throws IOException {
+        byte[] query = Message.newQuery(Record.newRecord(name, type, DClass.IN)).toWire();
+        byte[] responseData = new byte[MAX_RESPONSE_SIZE];
+        DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            this.vpnService.protect(socket);
+            socket.setSoTimeout(TIMEOUT_MS);
+            socket.send(new DatagramPacket(query, query.length, dnsServer, DNS_PORT));
+            socket.receive(responsePacket);
+        }
+        Message response = new Message(responsePacket.getData());
+        List<InetAddress> addresses = new ArrayList<>();
+        for (Record record : response.getSection(Section.ANSWER)) {
+            if (record instanceof ARecord) {
+                addresses.add(((ARecord) record).getAddress());
+            } else if (record instanceof AAAARecord) {
+                addresses.add(((AAAARecord) record).getAddress());
+            }
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,391 @@
+package org.adaway.vpn.dns;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import timber.log.Timber;
+
+/**
+ * This class is a cache of upstream DNS answers.
+ * <p>
+ * Answers are keyed by question (name, type and class) and kept up to their minimum record TTL.
+ * Cached answers are returned with the requester transaction identifier and their TTLs reduced by the elapsed
+ * time.<br>
+ * Expired answers are kept up to a maximum staleness and served with a short TTL (RFC 8767), the caller being
+ * expected to refresh them in background. It keeps clients working while the upstream DNS servers are
+ * unreachable.<br>
+ * Answers whose TTLs were raised remember their upstream TTL to count the hits served only thanks to the raise.<br>
+ * Answers hit often are due for prefetch in the last tenth of their TTL, so they can be refreshed before they
+ * expire.<br>
+ * The cache is bound by a memory budget and evicts the least recently used answers first.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ * Its counters are only written by this thread and could be read from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsAnswerCache {
+    /**
+     * The estimated memory overhead of an entry (in bytes): map node, key and entry objects.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+    /**
+     * The number of lookups between two statistics logs.
+     */
+    private static final int STATISTICS_LOG_PERIOD = 1000;
+    /**
+     * The response code for no error.
+     */
+    private static final int RCODE_NOERROR = 0;
+    /**
+     * The response code for non-existent domain.
+     */
+    private static final int RCODE_NXDOMAIN = 3;
+    /**
+     * The TTL of stale answers (in seconds), as recommended by RFC 8767.
+     */
+    static final long STALE_TTL = 30;
+    /**
+     * The minimum number of hits for an answer to be prefetched.
+     */
+    private static final int PREFETCH_MINIMUM_HITS = 3;
+    /**
+     * The minimum TTL for an answer to be prefetched (in seconds).
+     */
+    private static final long PREFETCH_MINIMUM_TTL = 10;
+    /**
+     * The remaining fraction of the TTL when an answer is due for prefetch.
+     */
+    private static final double PREFETCH_TTL_RATIO = 0.1D;
+    /**
+     * The memory budget (in bytes).
+     */
+    private final long memoryBudget;
+    /**
+     * The cached answers, in access order (least recently used first).
+     */
+    private final LinkedHashMap<DnsQuestion, Entry> entries;
+    /**
+     * The estimated memory usage (in bytes).
+     */
+    private volatile long memoryUsage;
+    /**
+     * The time expired answers can still be served (in seconds).
+     */
+    private long maxStale;
+    private volatile long hitCount;
+    private volatile long staleHitCount;
+    private volatile long raisedTtlHitCount;
+    private volatile long missCount;
+    private volatile long evictionCount;
+    private int lookupCount;
+
+    /**
+     * Constructor.
+     *
+     * @param memoryBudget The memory budget (in bytes).
+     */
+    public DnsAnswerCache(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        this.entries = new LinkedHashMap<>(64, 0.75F, true);
+        this.memoryUsage = 0;
+        this.maxStale = 0;
+    }
+
+    /**
+     * Set the time expired answers can still be served.
+     *
+     * @param maxStale The time expired answers can still be served (in seconds), {@code 0} to disable stale answers.
+     */
+    public void setMaxStale(long maxStale) {
+        this.maxStale = Math.max(0, maxStale);
+    }
+
+    /**
+     * Get a cached answer.
+     * <p>
+     * Expired answers are returned with a short TTL while they are within the maximum staleness.
+     *
+     * @param question The question to get answer.
+     * @param id       The requester transaction identifier.
+     * @return The answer to send back to the requester, {@code null} if no valid answer is cached.
+     * @see #isStale(DnsQuestion)
+     */
+    @Nullable
+    byte[] get(DnsQuestion question, int id) {
+        return get(question, id, System.currentTimeMillis());
+    }
+
+    @Nullable
+    byte[] get(DnsQuestion question, int id, long now) {
+        logStatistics();
+        Entry entry = this.entries.get(question);
+        if (entry == null) {
+            this.missCount++;
+            return null;
+        }
+        long elapsed = (now - entry.time) / 1000;
+        if (elapsed >= entry.ttl + this.maxStale) {
+            remove(question, entry);
+            this.missCount++;
+            return null;
+        }
+        byte[] answer = Arrays.copyOf(entry.response, entry.response.length);
+        boolean stale = elapsed >= entry.ttl;
+        boolean updated = stale ?
+                DnsWire.setTtls(answer, answer.length, STALE_TTL) :
+                DnsWire.decreaseTtls(answer, answer.length, elapsed);
+        if (!updated) {
+            remove(question, entry);
+            this.missCount++;
+            return null;
+        }
+        DnsWire.setId(answer, id);
+        entry.hitCount++;
+        this.hitCount++;
+        if (stale) {
+            this.staleHitCount++;
+        } else if (entry.upstreamTtl >= 0 && elapsed >= entry.upstreamTtl) {
+            this.raisedTtlHitCount++;
+        }
+        return answer;
+    }
+
+    /**
+     * Check whether a cached answer is expired and needs to be refreshed.
+     *
+     * @param question The question to check answer.
+     * @return {@code true} if the cached answer is expired, {@code false} if it is valid or not cached.
+     */
+    boolean isStale(DnsQuestion question) {
+        return isStale(question, System.currentTimeMillis());
+    }
+
+    boolean isStale(DnsQuestion question, long now) {
+        Entry entry = this.entries.get(question);
+        return entry != null && (now - entry.time) / 1000 >= entry.ttl;
+    }
+
+    /**
+     * Check whether a cached answer is popular and close enough to expiration to be prefetched.
+     *
+     * @param question The question to check answer.
+     * @return {@code true} if the cached answer is due for prefetch, {@code false} otherwise.
+     */
+    boolean isPrefetchDue(DnsQuestion question) {
+        return isPrefetchDue(question, System.currentTimeMillis());
+    }
+
+    boolean isPrefetchDue(DnsQuestion question, long now) {
+        Entry entry = this.entries.get(question);
+        if (entry == null || entry.hitCount < PREFETCH_MINIMUM_HITS || entry.ttl < PREFETCH_MINIMUM_TTL) {
+            return false;
+        }
+        long ttlMs = entry.ttl * 1000;
+        long remainingMs = ttlMs - (now - entry.time);
+        return remainingMs > 0 && remainingMs <= ttlMs * PREFETCH_TTL_RATIO;
+    }
+
+    /**
+     * Cache an upstream answer.
+     * <p>
+     * Truncated, failed, malformed or zero TTL answers are not cached.
+     *
+     * @param question The answered question.
+     * @param response The upstream response.
+     */
+    void put(DnsQuestion question, byte[] response) {
+        put(question, response, -1, System.currentTimeMillis());
+    }
+
+    void put(DnsQuestion question, byte[] response, long now) {
+        put(question, response, -1, now);
+    }
+
+    /**
+     * Cache an upstream answer whose TTLs were rewritten.
+     *
+     * @param question    The answered question.
+     * @param response    The rewritten upstream response.
+     * @param upstreamTtl The upstream response minimum TTL before rewriting (in seconds), {@code -1} if unknown.
+     * @see DnsTtlClamp
+     */
+    void putRewritten(DnsQuestion question, byte[] response, long upstreamTtl) {
+        put(question, response, upstreamTtl, System.currentTimeMillis());
+    }
+
+    void put(DnsQuestion question, byte[] response, long upstreamTtl, long now) {
+        if (response.length < DnsWire.HEADER_LENGTH || DnsWire.isTruncated(response)) {
+            return;
+        }
+        int rcode = DnsWire.getRcode(response);
+        if (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN) {
+            return;
+        }
+        long ttl = DnsWire.getMinimumTtl(response, response.length);
+        if (ttl <= 0) {
+            return;
+        }
+        long size = ENTRY_OVERHEAD + 2L * question.name.length() + response.length;
+        if (size > this.memoryBudget) {
+            return;
+        }
+        Entry previousEntry = this.entries.put(question, new Entry(response, ttl, upstreamTtl, now, size));
+        if (previousEntry != null) {
+            this.memoryUsage -= previousEntry.size;
+        }
+        this.memoryUsage += size;
+        ensureMemoryBudget();
+    }
+
+    /**
+     * Remove all cached answers.
+     */
+    public void clear() {
+        Timber.d("Clearing %d cached DNS answers.", this.entries.size());
+        this.entries.clear();
+        this.memoryUsage = 0;
+    }
+
+    /**
+     * Get the number of cached answers.
+     *
+     * @return The number of cached answers.
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Get the estimated memory usage.
+     *
+     * @return The estimated memory usage (in bytes).
+     */
+    public long getMemoryUsage() {
+        return this.memoryUsage;
+    }
+
+    /**
+     * Get the number of lookups answered from cache.
+     *
+     * @return The number of cache hits.
+     */
+    public long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * Get the number of lookups answered from cache with an expired answer.
+     *
+     * @return The number of stale cache hits.
+     */
+    public long getStaleHitCount() {
+        return this.staleHitCount;
+    }
+
+    /**
+     * Get the number of cache hits served only because the answer TTL was raised.
+     * <p>
+     * Each of them is an upstream query avoided by the TTL rewriting.
+     *
+     * @return The number of cache hits after the upstream TTL expiration.
+     */
+    public long getRaisedTtlHitCount() {
+        return this.raisedTtlHitCount;
+    }
+
+    /**
+     * Get the number of lookups not answered from cache.
+     *
+     * @return The number of cache misses.
+     */
+    public long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * Get the number of answers evicted to respect the memory budget.
+     *
+     * @return The number of evicted answers.
+     */
+    public long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    /**
+     * Get the cache hit rate.
+     *
+     * @return The cache hit rate, from {@code 0} to {@code 1}.
+     */
+    public double getHitRate() {
+        long lookups = this.hitCount + this.missCount;
+        return lookups == 0 ? 0D : (double) this.hitCount / lookups;
+    }
+
+    private void remove(DnsQuestion question, Entry entry) {
+        this.entries.remove(question);
+        this.memoryUsage -= entry.size;
+    }
+
+    private void ensureMemoryBudget() {
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (this.memoryUsage > this.memoryBudget && iterator.hasNext()) {
+            Entry eldestEntry = iterator.next();
+            iterator.remove();
+            this.memoryUsage -= eldestEntry.size;
+            this.evictionCount++;
+        }
+    }
+
+    private void logStatistics() {
+        this.lookupCount++;
+        if (this.lookupCount >= STATISTICS_LOG_PERIOD) {
+            Timber.d("DNS answer cache hit rate: %.1f%% (%d entries, %d bytes, %d evictions, %d stale hits, "
+                            + "%d raised TTL hits).",
+                    100D * getHitRate(), this.entries.size(), this.memoryUsage, this.evictionCount,
+                    this.staleHitCount, this.raisedTtlHitCount);
+            this.lookupCount = 0;
+        }
+    }
+
+    /**
+     * This class is a cache entry, an upstream response and its validity.
+     */
+    private static final class Entry {
+        /**
+         * The upstream response.
+         */
+        private final byte[] response;
+        /**
+         * The response minimum TTL (in seconds).
+         */
+        private final long ttl;
+        /**
+         * The upstream response minimum TTL before rewriting (in seconds), {@code -1} if not rewritten.
+         */
+        private final long upstreamTtl;
+        /**
+         * The response reception time (UNIX timestamp in milliseconds).
+         */
+        private final long time;
+        /**
+         * The estimated entry memory usage (in bytes).
+         */
+        private final long size;
+        /**
+         * The number of times the answer was served.
+         */
+        private int hitCount;
+
+        private Entry(byte[] response, long ttl, long upstreamTtl, long time, long size) {
+            this.response = response;
+            this.ttl = ttl;
+            this.upstreamTtl = upstreamTtl;
+            this.time = time;
+            this.size = size;
+        }
+    }
+}
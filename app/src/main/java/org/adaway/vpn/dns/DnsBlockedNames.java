@@ -0,0 +1,125 @@
+package org.adaway.vpn.dns;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import org.adaway.db.AppDatabase;
+import org.adaway.db.dao.HostEntryDao;
+import org.adaway.util.AppExecutors;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * This class holds an in-memory snapshot of the blocked hosts to check upstream answer names against.
+ * <p>
+ * The snapshot is loaded from the host entries on the disk executor each time new rules are applied, and swapped
+ * once loaded. Until then, the previous snapshot is used. Checking a name neither queries the database nor
+ * allocates.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsBlockedNames {
+    /**
+     * The number of blocked hosts to load per query.
+     */
+    private static final int PAGE_SIZE = 10_000;
+    /**
+     * The rules version of the last requested load.
+     */
+    private final AtomicInteger requestedVersion;
+    @Nullable
+    private HostEntryDao hostEntryDao;
+    /**
+     * The current snapshot, replaced on load.
+     */
+    private volatile DnsNameHashSet names;
+
+    /**
+     * Constructor.
+     */
+    DnsBlockedNames() {
+        this.requestedVersion = new AtomicInteger(-1);
+        this.names = DnsNameHashSet.EMPTY;
+    }
+
+    /**
+     * Load the blocked hosts of the applied rules.
+     *
+     * @param context      The application context.
+     * @param rulesVersion The version of the applied rules.
+     */
+    void start(Context context, int rulesVersion) {
+        this.hostEntryDao = AppDatabase.getInstance(context).hostEntryDao();
+        load(rulesVersion);
+    }
+
+    /**
+     * Load the blocked hosts of a rules version, unless already loaded or loading.
+     *
+     * @param rulesVersion The version of the applied rules.
+     */
+    void load(int rulesVersion) {
+        HostEntryDao hostEntryDao = this.hostEntryDao;
+        if (hostEntryDao == null || this.requestedVersion.getAndSet(rulesVersion) == rulesVersion) {
+            return;
+        }
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            // Skip load if newer rules were applied since
+            if (this.requestedVersion.get() != rulesVersion) {
+                return;
+            }
+            DnsNameHashSet names = loadNames(hostEntryDao);
+            // Drop loaded hosts if stopped or newer rules were applied while loading
+            if (this.requestedVersion.get() == rulesVersion) {
+                this.names = names;
+                Timber.i("Loaded %d blocked hosts to inspect aliases.", names.size());
+            }
+        });
+    }
+
+    /**
+     * Release the loaded snapshot.
+     */
+    void stop() {
+        this.hostEntryDao = null;
+        this.requestedVersion.set(-1);
+        this.names = DnsNameHashSet.EMPTY;
+    }
+
+    /**
+     * Check whether a name of a DNS message is blocked.
+     *
+     * @param message The DNS message.
+     * @param offset  The name offset.
+     * @param length  The DNS message length.
+     * @return {@code true} if the name is blocked, {@code false} otherwise.
+     */
+    boolean isBlocked(byte[] message, int offset, int length) {
+        return this.names.contains(message, offset, length);
+    }
+
+    private static DnsNameHashSet loadNames(HostEntryDao hostEntryDao) {
+        long[] hashes = new long[PAGE_SIZE];
+        int size = 0;
+        String lastHost = "";
+        List<String> hosts;
+        do {
+            hosts = hostEntryDao.getBlockedHosts(lastHost, PAGE_SIZE);
+            if (size + hosts.size() > hashes.length) {
+                hashes = Arrays.copyOf(hashes, Math.max(size + hosts.size(), hashes.length * 2));
+            }
+            for (String host : hosts) {
+                hashes[size++] = DnsNameHashSet.hash(host);
+            }
+            if (!hosts.isEmpty()) {
+                lastHost = hosts.get(hosts.size() - 1);
+            }
+        } while (hosts.size() == PAGE_SIZE);
+        return new DnsNameHashSet(hashes, size);
+    }
+}
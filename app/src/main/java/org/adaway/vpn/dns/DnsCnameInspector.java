@@ -0,0 +1,151 @@
+package org.adaway.vpn.dns;
+
+import androidx.annotation.Nullable;
+
+/**
+ * This class inspects upstream answers to detect CNAME cloaking.
+ * <p>
+ * Trackers hide behind first-party aliases ({@code metrics.site.com} being an alias of
+ * {@code tracker.adtech.net}), so checking the question name is not enough. The answer section is scanned in its
+ * wire format, and each CNAME target and answer owner name is checked in place against the blocked hosts.<br>
+ * Only blocked names are read, into a single reusable buffer. Owner names pointing to the question or to the previous
+ * CNAME target are already checked and skipped.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ * Its counters are only written by this thread and could be read from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsCnameInspector {
+    /**
+     * The CNAME record type.
+     */
+    private static final int TYPE_CNAME = 5;
+    /**
+     * The compression pointer to the question name, right after the header.
+     */
+    private static final int QUESTION_POINTER = 0xC000 | DnsWire.HEADER_LENGTH;
+    /**
+     * The predicate to check whether a host is blocked.
+     */
+    private final BlockedNamePredicate blockedNamePredicate;
+    /**
+     * The buffer to read names into.
+     */
+    private final StringBuilder nameBuilder;
+    private volatile long inspectedCount;
+    private volatile long checkedNameCount;
+    private volatile long cloakedCount;
+
+    /**
+     * Constructor.
+     *
+     * @param blockedNamePredicate The predicate to check whether a name of a DNS message is blocked.
+     */
+    public DnsCnameInspector(BlockedNamePredicate blockedNamePredicate) {
+        this.blockedNamePredicate = blockedNamePredicate;
+        this.nameBuilder = new StringBuilder(64);
+    }
+
+    /**
+     * Find a blocked name in the answer section of an upstream response.
+     *
+     * @param response The upstream response.
+     * @param length   The upstream response length.
+     * @return The first blocked CNAME target or owner name, {@code null} if there is none or the response is
+     * malformed.
+     */
+    @Nullable
+    String findBlockedName(byte[] response, int length) {
+        this.inspectedCount++;
+        if (length < DnsWire.HEADER_LENGTH) {
+            return null;
+        }
+        int answerCount = DnsWire.getAnswerCount(response);
+        int offset = DnsWire.skipQuestions(response, length);
+        if (answerCount == 0 || offset < 0) {
+            return null;
+        }
+        int checkedPointer = QUESTION_POINTER;
+        for (int i = 0; i < answerCount; i++) {
+            int nameOffset = offset;
+            offset = DnsWire.skipName(response, offset, length);
+            if (offset < 0 || offset + 10 > length) {
+                return null;
+            }
+            int type = DnsWire.readUnsignedShort(response, offset);
+            int dataOffset = offset + 10;
+            offset = dataOffset + DnsWire.readUnsignedShort(response, offset + 8);
+            if (offset > length) {
+                return null;
+            }
+            // Check owner name unless it points to an already checked name
+            int ownerPointer = DnsWire.readUnsignedShort(response, nameOffset);
+            if (ownerPointer != QUESTION_POINTER && ownerPointer != checkedPointer
+                    && isBlocked(response, nameOffset, length)) {
+                return blockedName(response, nameOffset, length);
+            }
+            if (type == TYPE_CNAME) {
+                if (isBlocked(response, dataOffset, length)) {
+                    return blockedName(response, dataOffset, length);
+                }
+                checkedPointer = 0xC000 | dataOffset;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of inspected upstream responses.
+     *
+     * @return The number of inspected responses.
+     */
+    public long getInspectedCount() {
+        return this.inspectedCount;
+    }
+
+    /**
+     * Get the number of names checked against the blocked hosts.
+     *
+     * @return The number of checked names.
+     */
+    public long getCheckedNameCount() {
+        return this.checkedNameCount;
+    }
+
+    /**
+     * Get the number of upstream responses blocked because of a blocked alias.
+     *
+     * @return The number of cloaked responses.
+     */
+    public long getCloakedCount() {
+        return this.cloakedCount;
+    }
+
+    private boolean isBlocked(byte[] response, int nameOffset, int length) {
+        this.checkedNameCount++;
+        return this.blockedNamePredicate.test(response, nameOffset, length);
+    }
+
+    private String blockedName(byte[] response, int nameOffset, int length) {
+        this.cloakedCount++;
+        DnsWire.readName(response, nameOffset, length, this.nameBuilder);
+        return this.nameBuilder.toString();
+    }
+
+    /**
+     * This interface checks whether a name of a DNS message is blocked.
+     */
+    @FunctionalInterface
+    public interface BlockedNamePredicate {
+        /**
+         * Check whether a name of a DNS message is blocked.
+         *
+         * @param message The DNS message.
+         * @param offset  The name offset.
+         * @param length  The DNS message length.
+         * @return {@code true} if the name is blocked, {@code false} if not or if the name is malformed.
+         */
+        boolean test(byte[] message, int offset, int length);
+    }
+}
@@ -0,0 +1,212 @@
+package org.adaway.vpn.dns;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * This class limits the rate of identical DNS queries to protect the VPN from flooding applications.
+ * <p>
+ * Allowed queries are counted per question (name, type and class) in a count-min sketch, hashed from their wire
+ * format without decoding them. Counters are halved every second so each acts as an approximate token bucket: a
+ * question is limited while its decayed count reaches twice the allowed rate, which allows short bursts and lets
+ * the allowed rate through during a flood.<br>
+ * The sketch uses a fixed amount of memory whatever the number of names, and only overestimates counts when
+ * flooded questions collide on every row, which is unlikely below a few hundred distinct busy questions.
+ * <p>
+ * The names of the most recently limited questions are kept for statistics, and published every second.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ * Its statistics are only written by this thread and could be read from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsFloodGuard {
+    /**
+     * The default maximum rate of identical queries (in queries per second).
+     */
+    static final int DEFAULT_RATE = 20;
+    /**
+     * The number of sketch rows, each with its own hash function.
+     */
+    private static final int DEPTH = 4;
+    /**
+     * The number of counters per row, a power of two.
+     */
+    private static final int WIDTH = 1024;
+    /**
+     * The period to halve counters (in ms).
+     */
+    private static final long DECAY_PERIOD_MS = 1_000;
+    /**
+     * The maximum number of tracked offenders.
+     */
+    private static final int MAX_OFFENDERS = 16;
+    /**
+     * The row hash seeds.
+     */
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+    /**
+     * The sketch counters, rows laid out one after the other.
+     */
+    private final int[] counters;
+    /**
+     * The decayed count from which questions are limited.
+     */
+    private final int threshold;
+    /**
+     * The limited query count of the most recent offenders, by name, in access order.
+     */
+    private final LinkedHashMap<String, Long> offenders;
+    /**
+     * The buffer to read offender names into.
+     */
+    private final StringBuilder nameBuilder;
+    /**
+     * The last published copy of {@link #offenders}.
+     */
+    private volatile Map<String, Long> publishedOffenders;
+    /**
+     * Whether {@link #offenders} changed since published.
+     */
+    private boolean offendersChanged;
+    private long lastDecay;
+    private volatile long limitedCount;
+
+    /**
+     * Constructor.
+     */
+    public DnsFloodGuard() {
+        this(DEFAULT_RATE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param rate The maximum rate of identical queries (in queries per second).
+     */
+    DnsFloodGuard(int rate) {
+        this.counters = new int[DEPTH * WIDTH];
+        // Counters halved every period converge to twice the query rate
+        this.threshold = 2 * Math.max(1, rate);
+        this.offenders = new LinkedHashMap<>(MAX_OFFENDERS, 0.75F, true);
+        this.nameBuilder = new StringBuilder(64);
+        this.publishedOffenders = Collections.emptyMap();
+        this.offendersChanged = false;
+        this.lastDecay = 0;
+        this.limitedCount = 0;
+    }
+
+    /**
+     * Count a query and check it is within its question rate limit.
+     *
+     * @param query  The DNS query message.
+     * @param length The DNS query message length.
+     * @return {@code true} if the query can be handled, {@code false} if its question is flooding.
+     */
+    boolean tryAcquire(byte[] query, int length) {
+        return tryAcquire(query, length, System.currentTimeMillis());
+    }
+
+    boolean tryAcquire(byte[] query, int length, long now) {
+        decay(now);
+        int questionEnd = DnsWire.skipQuestions(query, length);
+        if (questionEnd < 0) {
+            // Let malformed queries be discarded by the decoder
+            return true;
+        }
+        int hash = hashQuestion(query, questionEnd);
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, this.counters[index(hash, row)]);
+        }
+        if (estimate >= this.threshold) {
+            this.limitedCount++;
+            trackOffender(query, length);
+            return false;
+        }
+        // Count allowed queries only, with conservative update of the counters holding the estimate
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(hash, row);
+            if (this.counters[index] == estimate) {
+                this.counters[index]++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of queries limited since the VPN started.
+     *
+     * @return The number of limited queries.
+     */
+    public long getLimitedCount() {
+        return this.limitedCount;
+    }
+
+    /**
+     * Get the most recent offenders, as published up to a second ago.
+     *
+     * @return The limited query count of the most recently limited names, least recent first.
+     */
+    public Map<String, Long> getOffenders() {
+        return this.publishedOffenders;
+    }
+
+    private void decay(long now) {
+        long periods = (now - this.lastDecay) / DECAY_PERIOD_MS;
+        if (periods <= 0) {
+            return;
+        }
+        this.lastDecay += periods * DECAY_PERIOD_MS;
+        if (this.offendersChanged) {
+            this.publishedOffenders = Collections.unmodifiableMap(new LinkedHashMap<>(this.offenders));
+            this.offendersChanged = false;
+        }
+        int shift = (int) Math.min(31, periods);
+        for (int i = 0; i < this.counters.length; i++) {
+            this.counters[i] >>>= shift;
+        }
+    }
+
+    private static int hashQuestion(byte[] query, int questionEnd) {
+        // FNV-1a on the question section, case insensitive
+        int hash = 0x811C9DC5;
+        for (int i = DnsWire.HEADER_LENGTH; i < questionEnd; i++) {
+            int value = query[i] & 0xFF;
+            if (value >= 'A' && value <= 'Z') {
+                value += 'a' - 'A';
+            }
+            hash = (hash ^ value) * 0x01000193;
+        }
+        return hash;
+    }
+
+    private static int index(int hash, int row) {
+        int mixed = (hash ^ SEEDS[row]) * 0x9E3779B1;
+        mixed ^= mixed >>> 16;
+        return row * WIDTH + (mixed & (WIDTH - 1));
+    }
+
+    private void trackOffender(byte[] query, int length) {
+        if (!DnsWire.readName(query, DnsWire.HEADER_LENGTH, length, this.nameBuilder)) {
+            return;
+        }
+        String name = this.nameBuilder.toString();
+        Long count = this.offenders.get(name);
+        if (count == null) {
+            Timber.w("Rate limiting DNS queries for %s.", name);
+            if (this.offenders.size() >= MAX_OFFENDERS) {
+                Iterator<String> iterator = this.offenders.keySet().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+            count = 0L;
+        }
+        this.offenders.put(name, count + 1);
+        this.offendersChanged = true;
+    }
+}
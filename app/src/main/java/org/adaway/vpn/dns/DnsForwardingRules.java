@@ -0,0 +1,183 @@
+package org.adaway.vpn.dns;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.InvalidationTracker;
+
+import com.google.common.net.InetAddresses;
+
+import org.adaway.db.AppDatabase;
+import org.adaway.db.entity.DnsForwardingRule;
+import org.adaway.util.RegexUtils;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * This class holds the conditional forwarding (split DNS) rules of the VPN.
+ * <p>
+ * Each rule sends the queries of a domain and its subdomains to dedicated DNS servers, like internal resolvers for
+ * corporate domains and reverse zones. The rules are stored in the database and watched for changes, so they are
+ * swapped while the VPN runs without reconnecting it.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsForwardingRules {
+    /**
+     * The forwarding rules table name.
+     */
+    private static final String TABLE_NAME = "dns_forwarding_rules";
+    /**
+     * The current rules, replaced on change.
+     */
+    private volatile DnsForwardingTrie trie;
+    @Nullable
+    private AppDatabase database;
+    @Nullable
+    private InvalidationTracker.Observer observer;
+
+    /**
+     * Constructor.
+     */
+    public DnsForwardingRules() {
+        this.trie = new DnsForwardingTrie();
+    }
+
+    /**
+     * Load the rules and watch them for changes.
+     * <p>
+     * It must be called from a worker thread.
+     *
+     * @param context The application context.
+     */
+    void start(Context context) {
+        this.database = AppDatabase.getInstance(context);
+        this.observer = new InvalidationTracker.Observer(TABLE_NAME) {
+            @Override
+            public void onInvalidated(@NonNull Set<String> tables) {
+                load();
+            }
+        };
+        this.database.getInvalidationTracker().addObserver(this.observer);
+        load();
+    }
+
+    /**
+     * Stop watching the rules for changes.
+     * <p>
+     * It must be called from a worker thread.
+     */
+    void stop() {
+        if (this.database != null && this.observer != null) {
+            this.database.getInvalidationTracker().removeObserver(this.observer);
+        }
+        this.database = null;
+        this.observer = null;
+    }
+
+    /**
+     * Get the DNS servers to forward the queries of a name to.
+     *
+     * @param name The name to resolve, lower case and without trailing dot.
+     * @return The DNS servers of the longest matching rule, {@code null} if no rule matches.
+     */
+    @Nullable
+    List<InetAddress> match(String name) {
+        return this.trie.match(name);
+    }
+
+    private void load() {
+        AppDatabase database = this.database;
+        if (database == null) {
+            return;
+        }
+        DnsForwardingTrie trie = new DnsForwardingTrie();
+        for (DnsForwardingRule rule : database.dnsForwardingRuleDao().getAll()) {
+            List<InetAddress> servers = parseServers(rule.getServers());
+            if (!servers.isEmpty()) {
+                trie.put(rule.getDomain(), servers);
+            }
+        }
+        this.trie = trie;
+        Timber.i("Loaded %d DNS forwarding rules.", trie.size());
+    }
+
+    /**
+     * Parse forwarding rules from text.
+     * <p>
+     * Each line is a rule: a domain followed by its DNS server IP addresses, separated by spaces or commas.
+     * Invalid rules are skipped.
+     *
+     * @param text The text to parse.
+     * @return The parsed rules.
+     */
+    public static List<DnsForwardingRule> parseRules(String text) {
+        List<DnsForwardingRule> rules = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            String[] tokens = line.trim().split("[,\\s]+", 2);
+            if (tokens.length < 2) {
+                continue;
+            }
+            // Strip leading and trailing dots
+            String domain = tokens[0].toLowerCase(Locale.ENGLISH).replaceAll("^\\.+|\\.+$", "");
+            List<InetAddress> servers = parseServers(tokens[1]);
+            if (!RegexUtils.isValidHostname(domain) || servers.isEmpty()) {
+                Timber.w("Invalid DNS forwarding rule: %s.", line);
+                continue;
+            }
+            StringBuilder serversBuilder = new StringBuilder();
+            for (InetAddress server : servers) {
+                if (serversBuilder.length() > 0) {
+                    serversBuilder.append(' ');
+                }
+                serversBuilder.append(server.getHostAddress());
+            }
+            DnsForwardingRule rule = new DnsForwardingRule();
+            rule.setDomain(domain);
+            rule.setServers(serversBuilder.toString());
+            rules.add(rule);
+        }
+        return rules;
+    }
+
+    /**
+     * Format forwarding rules as text, one rule per line.
+     *
+     * @param rules The rules to format.
+     * @return The formatted rules.
+     * @see #parseRules(String)
+     */
+    public static String formatRules(List<DnsForwardingRule> rules) {
+        StringBuilder builder = new StringBuilder();
+        for (DnsForwardingRule rule : rules) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(rule.getDomain()).append(' ').append(rule.getServers());
+        }
+        return builder.toString();
+    }
+
+    private static List<InetAddress> parseServers(String value) {
+        List<InetAddress> servers = new ArrayList<>();
+        for (String server : value.split("[,\\s]+")) {
+            if (server.isEmpty()) {
+                continue;
+            }
+            try {
+                servers.add(InetAddresses.forString(server));
+            } catch (IllegalArgumentException e) {
+                Timber.w("Invalid DNS forwarding server: %s.", server);
+            }
+        }
+        return Collections.unmodifiableList(servers);
+    }
+}
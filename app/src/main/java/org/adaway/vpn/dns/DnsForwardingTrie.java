@@ -0,0 +1,141 @@
+package org.adaway.vpn.dns;
+
+import androidx.annotation.Nullable;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is a trie of domain suffixes to their DNS servers, keyed by reversed labels.
+ * <p>
+ * A name is matched label by label from its top level domain, and the servers of the longest matching suffix are
+ * returned. Labels are compared in place in the name so matching does not allocate.<br>
+ * Forwarding rules are expected to be few, so children are kept in small arrays and scanned linearly.
+ * <p>
+ * The trie is not modified once built so it can be published to other threads.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsForwardingTrie {
+    /**
+     * The root node, for the root domain.
+     */
+    private final Node root;
+    /**
+     * The number of domains.
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     */
+    DnsForwardingTrie() {
+        this.root = new Node(null);
+        this.size = 0;
+    }
+
+    /**
+     * Add the DNS servers of a domain and its subdomains.
+     *
+     * @param domain  The domain, lower case and without trailing dot.
+     * @param servers The domain DNS servers.
+     */
+    void put(String domain, List<InetAddress> servers) {
+        Node node = this.root;
+        int end = domain.length();
+        while (end > 0) {
+            int start = domain.lastIndexOf('.', end - 1) + 1;
+            if (start < end) {
+                node = node.getOrCreateChild(domain.substring(start, end));
+            }
+            end = start - 1;
+        }
+        if (node.servers == null) {
+            this.size++;
+        }
+        node.servers = servers;
+    }
+
+    /**
+     * Get the DNS servers of the longest domain suffix of a name.
+     *
+     * @param name The name to match, lower case and without trailing dot.
+     * @return The DNS servers of the longest matching domain, {@code null} if no domain matches.
+     */
+    @Nullable
+    List<InetAddress> match(String name) {
+        Node node = this.root;
+        List<InetAddress> servers = node.servers;
+        int end = name.length();
+        while (end > 0) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            node = node.findChild(name, start, end - start);
+            if (node == null) {
+                break;
+            }
+            if (node.servers != null) {
+                servers = node.servers;
+            }
+            end = start - 1;
+        }
+        return servers;
+    }
+
+    /**
+     * Get the number of domains.
+     *
+     * @return The number of domains.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * This class is a trie node, a domain label.
+     */
+    private static final class Node {
+        private static final Node[] NO_CHILDREN = new Node[0];
+        /**
+         * The node label, {@code null} for the root node.
+         */
+        @Nullable
+        private final String label;
+        /**
+         * The node children.
+         */
+        private Node[] children;
+        /**
+         * The DNS servers of the node domain, {@code null} if the domain has no rule.
+         */
+        @Nullable
+        private List<InetAddress> servers;
+
+        private Node(@Nullable String label) {
+            this.label = label;
+            this.children = NO_CHILDREN;
+        }
+
+        @Nullable
+        private Node findChild(String name, int offset, int length) {
+            for (Node child : this.children) {
+                String childLabel = child.label;
+                if (childLabel != null && childLabel.length() == length
+                        && name.regionMatches(offset, childLabel, 0, length)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        private Node getOrCreateChild(String label) {
+            Node child = findChild(label, 0, label.length());
+            if (child == null) {
+                child = new Node(label);
+                this.children = Arrays.copyOf(this.children, this.children.length + 1);
+                this.children[this.children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.adaway.vpn.dns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class finds the most frequent names of a stream with the Space-Saving algorithm.
+ * <p>
+ * A fixed number of counters is monitored. An unmonitored name takes over the counter with the lowest count and
+ * inherits it as its overestimation error, so frequent names quickly reach the top while rare ones keep replacing
+ * each other at the bottom. Any name more frequent than 1/capacity of the stream is guaranteed to be monitored.<br>
+ * Counters are kept in a binary min-heap indexed by a hash map, so each name costs a lookup and a logarithmic
+ * sift, and counters are reused on replacement without allocation.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsHeavyHitters {
+    /**
+     * The monitored counters, by name.
+     */
+    private final HashMap<String, Counter> counters;
+    /**
+     * The counters min-heap, by count.
+     */
+    private final Counter[] heap;
+    /**
+     * The number of monitored counters.
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The number of monitored counters.
+     */
+    DnsHeavyHitters(int capacity) {
+        this.counters = new HashMap<>(capacity * 2);
+        this.heap = new Counter[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Count a name occurrence.
+     *
+     * @param name The name to count.
+     */
+    void offer(String name) {
+        Counter counter = this.counters.get(name);
+        if (counter != null) {
+            counter.count++;
+            siftDown(counter.index);
+        } else if (this.size < this.heap.length) {
+            counter = new Counter(name, this.size);
+            counter.count = 1;
+            this.heap[this.size++] = counter;
+            this.counters.put(name, counter);
+            siftUp(counter.index);
+        } else {
+            // Replace the least frequent name
+            counter = this.heap[0];
+            this.counters.remove(counter.name);
+            counter.name = name;
+            counter.error = counter.count;
+            counter.count++;
+            this.counters.put(name, counter);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Get the most frequent names.
+     *
+     * @param limit The maximum number of names to get.
+     * @return The most frequent names with their guaranteed count (estimated count minus overestimation error),
+     * highest guaranteed count first.
+     */
+    List<Entry> top(int limit) {
+        Counter[] sorted = Arrays.copyOf(this.heap, this.size);
+        Arrays.sort(sorted, (first, second) ->
+                Long.compare(second.count - second.error, first.count - first.error));
+        int count = Math.min(limit, sorted.length);
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(new Entry(sorted[i].name, sorted[i].count - sorted[i].error));
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Forget all the counted names.
+     */
+    void clear() {
+        this.counters.clear();
+        Arrays.fill(this.heap, null);
+        this.size = 0;
+    }
+
+    /**
+     * Check whether no name was counted.
+     *
+     * @return {@code true} if no name was counted, {@code false} otherwise.
+     */
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    private void siftUp(int index) {
+        Counter counter = this.heap[index];
+        while (index > 0) {
+            int parentIndex = (index - 1) / 2;
+            Counter parent = this.heap[parentIndex];
+            if (parent.count <= counter.count) {
+                break;
+            }
+            place(parent, index);
+            index = parentIndex;
+        }
+        place(counter, index);
+    }
+
+    private void siftDown(int index) {
+        Counter counter = this.heap[index];
+        while (true) {
+            int childIndex = 2 * index + 1;
+            if (childIndex >= this.size) {
+                break;
+            }
+            if (childIndex + 1 < this.size && this.heap[childIndex + 1].count < this.heap[childIndex].count) {
+                childIndex++;
+            }
+            Counter child = this.heap[childIndex];
+            if (counter.count <= child.count) {
+                break;
+            }
+            place(child, index);
+            index = childIndex;
+        }
+        place(counter, index);
+    }
+
+    private void place(Counter counter, int index) {
+        this.heap[index] = counter;
+        counter.index = index;
+    }
+
+    /**
+     * This class is a frequent name with its guaranteed count.
+     */
+    static final class Entry {
+        final String name;
+        final long count;
+
+        private Entry(String name, long count) {
+            this.name = name;
+            this.count = count;
+        }
+    }
+
+    /**
+     * This class is a monitored counter.
+     */
+    private static final class Counter {
+        private String name;
+        private long count;
+        private long error;
+        private int index;
+
+        private Counter(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.adaway.vpn.dns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import timber.log.Timber;
+
+/**
+ * This class keeps track of the questions sent upstream and waiting for a response.
+ * <p>
+ * Identical questions asked while one is in flight are attached to it instead of being sent upstream again.
+ * The single upstream response is then dispatched to all the requesters, each with its own transaction identifier.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ * Its counters are only written by this thread and could be read from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsInFlightQueries {
+    /**
+     * The time after which an in flight query no more coalesces new requesters (in ms).
+     * Requesters asking after this delay are likely retrying so their question is sent upstream again.
+     */
+    private static final long COALESCING_WINDOW_MS = 2_000;
+    /**
+     * The time after which an unanswered query is forgotten (in ms).
+     * It must exceed two maximum query timeouts, for a query and its retry on an alternate server.
+     */
+    private static final long EXPIRATION_MS = 45_000;
+    /**
+     * The in flight queries, by question.
+     */
+    private final Map<DnsQuestion, InFlightQuery> queries;
+    /**
+     * The last time expired queries were removed (UNIX timestamp in ms).
+     */
+    private long lastExpiration;
+    /**
+     * The number of requesters attached to an in flight query.
+     */
+    private volatile long coalescedCount;
+
+    /**
+     * Constructor.
+     */
+    DnsInFlightQueries() {
+        this.queries = new HashMap<>();
+        this.lastExpiration = 0;
+        this.coalescedCount = 0;
+    }
+
+    /**
+     * Register a requester for a question.
+     *
+     * @param question The question to answer.
+     * @param id       The requester transaction identifier.
+     * @param callback The callback to call with the requester response.
+     * @return {@code true} if the requester was attached to an in flight query,
+     * {@code false} if the question needs to be sent upstream.
+     */
+    boolean register(DnsQuestion question, int id, Consumer<byte[]> callback) {
+        long now = System.currentTimeMillis();
+        removeExpiredQueries(now);
+        InFlightQuery query = this.queries.get(question);
+        if (query == null) {
+            query = new InFlightQuery(now);
+            this.queries.put(question, query);
+            query.requesters.add(new Requester(id, callback));
+            return false;
+        }
+        query.requesters.add(new Requester(id, callback));
+        if (now - query.time < COALESCING_WINDOW_MS) {
+            this.coalescedCount++;
+            Timber.d("Coalescing query %s with %d other requesters.", question, query.requesters.size() - 1);
+            return true;
+        }
+        query.time = now;
+        return false;
+    }
+
+    /**
+     * Dispatch an upstream response to the requesters of a question.
+     *
+     * @param question The answered question.
+     * @param response The upstream response.
+     */
+    void complete(DnsQuestion question, byte[] response) {
+        InFlightQuery query = this.queries.remove(question);
+        if (query == null) {
+            return;
+        }
+        for (Requester requester : query.requesters) {
+            byte[] requesterResponse = Arrays.copyOf(response, response.length);
+            DnsWire.setId(requesterResponse, requester.id);
+            requester.callback.accept(requesterResponse);
+        }
+    }
+
+    /**
+     * Check whether a question is still waiting for a response.
+     *
+     * @param question The question to check.
+     * @return {@code true} if the question is in flight, {@code false} if it was answered or expired.
+     */
+    boolean isInFlight(DnsQuestion question) {
+        return this.queries.containsKey(question);
+    }
+
+    /**
+     * Get the number of questions in flight.
+     *
+     * @return The number of questions in flight.
+     */
+    int size() {
+        return this.queries.size();
+    }
+
+    /**
+     * Get the number of requesters attached to an in flight query instead of being sent upstream.
+     *
+     * @return The number of coalesced queries.
+     */
+    long getCoalescedCount() {
+        return this.coalescedCount;
+    }
+
+    private void removeExpiredQueries(long now) {
+        if (now - this.lastExpiration < COALESCING_WINDOW_MS) {
+            return;
+        }
+        this.lastExpiration = now;
+        Iterator<InFlightQuery> iterator = this.queries.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().time >= EXPIRATION_MS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * This class represents a question sent upstream and its requesters.
+     */
+    private static class InFlightQuery {
+        /**
+         * The requesters waiting for the response.
+         */
+        private final List<Requester> requesters;
+        /**
+         * The last time the question was sent upstream (UNIX timestamp in ms).
+         */
+        private long time;
+
+        private InFlightQuery(long time) {
+            this.requesters = new ArrayList<>(2);
+            this.time = time;
+        }
+    }
+
+    /**
+     * This class represents a requester waiting for a response.
+     */
+    private static class Requester {
+        /**
+         * The requester transaction identifier.
+         */
+        private final int id;
+        /**
+         * The callback to call with the requester response.
+         */
+        private final Consumer<byte[]> callback;
+
+        private Requester(int id, Consumer<byte[]> callback) {
+            this.id = id;
+            this.callback = callback;
+        }
+    }
+}
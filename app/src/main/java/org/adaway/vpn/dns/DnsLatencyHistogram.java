@@ -0,0 +1,138 @@
+package org.adaway.vpn.dns;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a latency histogram with log-linear buckets, like HDR histograms.
+ * <p>
+ * Values below 64µs have their own bucket. Above, each power of two range is split into 32 linear buckets, so any
+ * recorded value is reported within 1/32 (about 3%) of its actual value, up to one minute. The buckets are a fixed
+ * array so recording a value only computes its bucket and increments it, without allocation.
+ * <p>
+ * Values are recorded by a single thread, the VPN worker one, and could be read from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class DnsLatencyHistogram {
+    /**
+     * The number of bits of the linear sub-buckets.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    /**
+     * The number of linear sub-buckets per power of two range.
+     */
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_BITS;
+    /**
+     * The number of values with their own bucket.
+     */
+    private static final int SUB_BUCKET_COUNT = SUB_BUCKET_HALF_COUNT * 2;
+    /**
+     * The highest recordable value (in µs), higher values are clamped.
+     */
+    static final long MAX_VALUE = 60_000_000L;
+    private final AtomicLongArray counts;
+    private volatile long max;
+
+    /**
+     * Constructor.
+     */
+    DnsLatencyHistogram() {
+        this.counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+        this.max = 0;
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param value The value to record (in µs).
+     */
+    void record(long value) {
+        long clampedValue = Math.max(0, Math.min(value, MAX_VALUE));
+        int index = indexOf(clampedValue);
+        // Single writer, no need to atomically increment
+        this.counts.lazySet(index, this.counts.get(index) + 1);
+        if (clampedValue > this.max) {
+            this.max = clampedValue;
+        }
+    }
+
+    /**
+     * Get the number of recorded values.
+     *
+     * @return The number of recorded values.
+     */
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < this.counts.length(); i++) {
+            count += this.counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Get the highest recorded value.
+     *
+     * @return The highest recorded value (in µs).
+     */
+    long getMax() {
+        return this.max;
+    }
+
+    /**
+     * Get the value at a percentile.
+     *
+     * @param percentile The percentile, from {@code 0} to {@code 100}.
+     * @return The highest value equivalent to the value at the given percentile (in µs), {@code 0} if no value
+     * was recorded.
+     */
+    long getValueAtPercentile(double percentile) {
+        long[] counts = new long[this.counts.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.counts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long cumulated = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulated += counts[i];
+            if (cumulated >= target) {
+                return Math.min(highestValueOf(i), this.max);
+            }
+        }
+        return this.max;
+    }
+
+    /**
+     * Forget all the recorded values.
+     * <p>
+     * Values recorded while resetting could be partially kept.
+     */
+    void reset() {
+        for (int i = 0; i < this.counts.length(); i++) {
+            this.counts.set(i, 0);
+        }
+        this.max = 0;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> exponent);
+        return exponent * SUB_BUCKET_HALF_COUNT + subBucket;
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKET_HALF_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << exponent) - 1;
+    }
+}
@@ -0,0 +1,180 @@
+package org.adaway.vpn.dns;
+
+import org.adaway.util.metrics.OpenMetricsWriter;
+
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class measures the latency the VPN adds to DNS queries.
+ * <p>
+ * Each {@link Stage} of the query path and the round trip time of each upstream server have their own
+ * {@link DnsLatencyHistogram}. Durations are recorded by the VPN worker thread without allocation and could be
+ * dumped from any thread, from the debug preferences or with
+ * {@code adb shell dumpsys activity service org.adaway/.vpn.VpnService}, or exported in the OpenMetrics format.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class DnsLatencyMetrics {
+    private static final DnsLatencyMetrics INSTANCE = new DnsLatencyMetrics();
+    /**
+     * The exported percentiles, with their OpenMetrics quantile label.
+     */
+    private static final double[] EXPORTED_PERCENTILES = {50, 90, 99};
+    private static final String[] EXPORTED_QUANTILES = {"0.5", "0.9", "0.99"};
+    private final DnsLatencyHistogram[] stages;
+    private final Map<InetAddress, DnsLatencyHistogram> upstreamRtts;
+    private volatile int pendingQueries;
+
+    private DnsLatencyMetrics() {
+        Stage[] values = Stage.values();
+        this.stages = new DnsLatencyHistogram[values.length];
+        for (int i = 0; i < values.length; i++) {
+            this.stages[i] = new DnsLatencyHistogram();
+        }
+        this.upstreamRtts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Get the DNS latency metrics instance.
+     *
+     * @return The DNS latency metrics instance.
+     */
+    public static DnsLatencyMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Record the duration of a stage.
+     *
+     * @param stage     The stage to record.
+     * @param startTime The stage start time, from {@link System#nanoTime()}.
+     */
+    public void record(Stage stage, long startTime) {
+        this.stages[stage.ordinal()].record((System.nanoTime() - startTime) / 1000);
+    }
+
+    /**
+     * Record the round trip time of an upstream server.
+     *
+     * @param server   The upstream server.
+     * @param sendTime The query send time, from {@link System#nanoTime()}.
+     */
+    void recordUpstreamRtt(InetAddress server, long sendTime) {
+        long rtt = (System.nanoTime() - sendTime) / 1000;
+        DnsLatencyHistogram histogram = this.upstreamRtts.get(server);
+        if (histogram == null) {
+            histogram = this.upstreamRtts.computeIfAbsent(server, key -> new DnsLatencyHistogram());
+        }
+        histogram.record(rtt);
+    }
+
+    /**
+     * Set the number of queries waiting for an upstream answer.
+     *
+     * @param count The number of pending queries.
+     */
+    public void setPendingQueries(int count) {
+        this.pendingQueries = count;
+    }
+
+    /**
+     * Forget all the recorded durations.
+     */
+    public void reset() {
+        for (DnsLatencyHistogram histogram : this.stages) {
+            histogram.reset();
+        }
+        this.upstreamRtts.clear();
+    }
+
+    /**
+     * Dump the latency percentiles.
+     *
+     * @return The latency percentiles, one stage or upstream server per line.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            dump(builder, stage.label, this.stages[stage.ordinal()]);
+        }
+        for (Map.Entry<InetAddress, DnsLatencyHistogram> entry : this.upstreamRtts.entrySet()) {
+            dump(builder, "Upstream " + entry.getKey().getHostAddress() + " RTT", entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Write the latency metrics in the OpenMetrics format.
+     *
+     * @param writer The writer to write metrics to.
+     */
+    public void writeMetrics(OpenMetricsWriter writer) {
+        writer.family("adaway_vpn_dns_pending_queries", OpenMetricsWriter.GAUGE,
+                "The DNS queries waiting for an upstream answer.");
+        writer.sample("adaway_vpn_dns_pending_queries").value(this.pendingQueries);
+        writer.family("adaway_vpn_dns_stage_latency_seconds", OpenMetricsWriter.SUMMARY,
+                "The time spent in each stage of the DNS query path.");
+        for (Stage stage : Stage.values()) {
+            writeSummary(writer, "adaway_vpn_dns_stage_latency_seconds", "stage", stage.metricLabel,
+                    this.stages[stage.ordinal()]);
+        }
+        writer.family("adaway_vpn_dns_upstream_rtt_seconds", OpenMetricsWriter.SUMMARY,
+                "The round trip time of each upstream DNS server.");
+        for (Map.Entry<InetAddress, DnsLatencyHistogram> entry : this.upstreamRtts.entrySet()) {
+            writeSummary(writer, "adaway_vpn_dns_upstream_rtt_seconds", "server", entry.getKey().getHostAddress(),
+                    entry.getValue());
+        }
+    }
+
+    private static void writeSummary(OpenMetricsWriter writer, String name, String labelName, String labelValue,
+                                     DnsLatencyHistogram histogram) {
+        for (int i = 0; i < EXPORTED_PERCENTILES.length; i++) {
+            writer.sample(name)
+                    .label(labelName, labelValue)
+                    .label("quantile", EXPORTED_QUANTILES[i])
+                    .seconds(histogram.getValueAtPercentile(EXPORTED_PERCENTILES[i]));
+        }
+        writer.sample(name + "_count").label(labelName, labelValue).value(histogram.getCount());
+    }
+
+    private static void dump(StringBuilder builder, String label, DnsLatencyHistogram histogram) {
+        builder.append(String.format(Locale.ROOT,
+                "%s: count=%d p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms%n",
+                label,
+                histogram.getCount(),
+                histogram.getValueAtPercentile(50) / 1000D,
+                histogram.getValueAtPercentile(90) / 1000D,
+                histogram.getValueAtPercentile(99) / 1000D,
+                histogram.getMax() / 1000D
+        ));
+    }
+
+    /**
+     * This enumeration is the measured stages of the DNS query path.
+     */
+    public enum Stage {
+        /**
+         * From reading the query from the tunnel to deciding to block, redirect or allow it.
+         */
+        DECISION("TUN read to decision", "decision"),
+        /**
+         * From deciding to allow the query to sending it upstream.
+         */
+        UPSTREAM_SEND("Decision to upstream send", "upstream_send"),
+        /**
+         * From queuing the response to writing it to the tunnel.
+         */
+        RESPONSE_WRITE("Response to TUN write", "response_write");
+
+        private final String label;
+        private final String metricLabel;
+
+        Stage(String label, String metricLabel) {
+            this.label = label;
+            this.metricLabel = metricLabel;
+        }
+    }
+}
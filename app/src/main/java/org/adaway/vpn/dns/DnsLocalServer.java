@@ -0,0 +1,690 @@
+package org.adaway.vpn.dns;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.net.InetAddresses;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import timber.log.Timber;
+
+/**
+ * This class is a DNS server for the other devices of the network, like tethered devices or hotspot clients.
+ * <p>
+ * It listens to UDP and TCP queries on a configurable address and port, and hands them to a {@link QueryHandler}
+ * which applies the same filtering as the VPN. A single thread serves all the clients with non blocking channels.
+ * <br>
+ * By default, it only listens to the hotspot or tethering interface so it is not an open resolver for the mobile data
+ * or joined Wi-Fi networks. Listening to all interfaces must be explicitly set.
+ * <br>
+ * Each client is limited to a number of queries per second with a token bucket. Queries over the limit are
+ * dropped. Clients are tracked with their query statistics, the least recently active ones being forgotten.
+ * <p>
+ * Responses can be sent back from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsLocalServer implements Closeable {
+    /**
+     * The interface setting to listen to all interfaces.
+     */
+    public static final String ALL_INTERFACES = "*";
+    /**
+     * The name prefixes of the hotspot and tethering interfaces.
+     */
+    private static final String[] TETHERING_INTERFACE_PREFIXES = {"ap", "swlan", "softap", "rndis", "ncm", "usb",
+            "bt-pan"};
+    /**
+     * The maximum DNS message size (in bytes).
+     */
+    private static final int MAX_MESSAGE_SIZE = 0xFFFF;
+    /**
+     * The maximum number of datagrams read at once, to serve TCP connections in between.
+     */
+    private static final int MAX_DATAGRAMS_PER_READ = 64;
+    /**
+     * The maximum number of open TCP connections.
+     */
+    private static final int MAX_CONNECTIONS = 64;
+    /**
+     * The maximum number of responses waiting to be written on a TCP connection.
+     */
+    private static final int MAX_PENDING_WRITES = 64;
+    /**
+     * The time after which an idle TCP connection is closed (in ms).
+     */
+    private static final long IDLE_TIMEOUT_MS = 30_000;
+    /**
+     * The maximum time to wait for events before checking idle connections (in ms).
+     */
+    private static final long SELECT_TIMEOUT_MS = 1_000;
+    /**
+     * The maximum number of tracked clients.
+     */
+    private static final int MAX_CLIENTS = 256;
+    /**
+     * The handler of the received DNS queries.
+     */
+    private final QueryHandler queryHandler;
+    /**
+     * The maximum number of queries per second of each client, {@code 0} for no limit.
+     */
+    private final int rateLimit;
+    /**
+     * The responses to send, from any thread.
+     */
+    private final Queue<Response> responses;
+    /**
+     * The tracked clients, in access order (least recently active first).
+     */
+    private final LinkedHashMap<InetAddress, Client> clients;
+    /**
+     * The open TCP connections, in access order (least recently active first).
+     */
+    private final LinkedHashMap<SocketChannel, Connection> connections;
+    /**
+     * The buffer to receive datagrams into.
+     */
+    private final ByteBuffer datagramBuffer;
+    @Nullable
+    private Selector selector;
+    @Nullable
+    private DatagramChannel udpChannel;
+    @Nullable
+    private ServerSocketChannel tcpChannel;
+    @Nullable
+    private Thread thread;
+    private volatile boolean running;
+    private long lastIdleCheck;
+
+    /**
+     * Constructor.
+     *
+     * @param queryHandler The handler of the received DNS queries.
+     * @param rateLimit    The maximum number of queries per second of each client, {@code 0} for no limit.
+     */
+    public DnsLocalServer(QueryHandler queryHandler, int rateLimit) {
+        this.queryHandler = queryHandler;
+        this.rateLimit = Math.max(0, rateLimit);
+        this.responses = new ConcurrentLinkedQueue<>();
+        this.clients = new LinkedHashMap<>(16, 0.75F, true);
+        this.connections = new LinkedHashMap<>(16, 0.75F, true);
+        this.datagramBuffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Get the address to listen to from an interface setting.
+     *
+     * @param value The network interface name or IP address, empty for the hotspot or tethering interface,
+     *              {@link #ALL_INTERFACES} for all interfaces.
+     * @return The address to listen to, {@code null} for all interfaces.
+     * @throws IOException If the network interface is not found or has no address.
+     */
+    @Nullable
+    public static InetAddress parseBindAddress(String value) throws IOException {
+        String name = value.trim();
+        if (name.isEmpty()) {
+            return findTetheringAddress();
+        }
+        if (ALL_INTERFACES.equals(name)) {
+            return null;
+        }
+        if (InetAddresses.isInetAddress(name)) {
+            return InetAddresses.forString(name);
+        }
+        NetworkInterface networkInterface = NetworkInterface.getByName(name);
+        if (networkInterface == null) {
+            throw new IOException("Network interface " + name + " not found.");
+        }
+        InetAddress bindAddress = getInterfaceAddress(networkInterface);
+        if (bindAddress == null) {
+            throw new IOException("Network interface " + name + " has no address.");
+        }
+        return bindAddress;
+    }
+
+    private static InetAddress findTetheringAddress() throws IOException {
+        Enumeration<NetworkInterface> networkInterfaces = NetworkInterface.getNetworkInterfaces();
+        while (networkInterfaces != null && networkInterfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = networkInterfaces.nextElement();
+            if (!networkInterface.isUp() || networkInterface.isLoopback()
+                    || !isTetheringInterface(networkInterface.getName())) {
+                continue;
+            }
+            InetAddress address = getInterfaceAddress(networkInterface);
+            if (address != null) {
+                return address;
+            }
+        }
+        throw new IOException("No hotspot or tethering interface found.");
+    }
+
+    private static boolean isTetheringInterface(String name) {
+        for (String prefix : TETHERING_INTERFACE_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    private static InetAddress getInterfaceAddress(NetworkInterface networkInterface) {
+        // Prefer IPv4 address as most clients configure their DNS server with it
+        InetAddress bindAddress = null;
+        Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+        while (addresses.hasMoreElements()) {
+            InetAddress address = addresses.nextElement();
+            if (bindAddress == null || address.getAddress().length == 4) {
+                bindAddress = address;
+            }
+        }
+        return bindAddress;
+    }
+
+    /**
+     * Start listening to DNS queries.
+     *
+     * @param address The address to listen to, {@code null} for all interfaces.
+     * @param port    The port to listen to, {@code 0} for any free port.
+     * @throws IOException If the server could not listen to the address and port.
+     */
+    public void start(@Nullable InetAddress address, int port) throws IOException {
+        if (this.thread != null) {
+            throw new IllegalStateException("Local DNS server already started.");
+        }
+        this.selector = Selector.open();
+        this.udpChannel = DatagramChannel.open();
+        this.udpChannel.configureBlocking(false);
+        this.udpChannel.bind(address == null ? new InetSocketAddress(port) : new InetSocketAddress(address, port));
+        this.udpChannel.register(this.selector, SelectionKey.OP_READ);
+        // Listen to TCP on the same port, even if it was picked by the system
+        InetSocketAddress udpAddress = (InetSocketAddress) this.udpChannel.getLocalAddress();
+        this.tcpChannel = ServerSocketChannel.open();
+        this.tcpChannel.configureBlocking(false);
+        this.tcpChannel.bind(udpAddress);
+        this.tcpChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.running = true;
+        this.thread = new Thread(this::serve, "DnsLocalServer");
+        this.thread.start();
+        if (address == null) {
+            Timber.w("Local DNS server listening on all interfaces, port %d.", udpAddress.getPort());
+        } else {
+            Timber.i("Local DNS server listening on %s.", udpAddress);
+        }
+    }
+
+    /**
+     * Get the port the server listens to.
+     *
+     * @return The listened port, {@code -1} if not started.
+     */
+    public int getLocalPort() {
+        DatagramChannel channel = this.udpChannel;
+        return channel == null ? -1 : channel.socket().getLocalPort();
+    }
+
+    /**
+     * Get the statistics of the tracked clients.
+     *
+     * @return The statistics of the tracked clients, least recently active first.
+     */
+    public List<ClientStatistics> getClientStatistics() {
+        List<ClientStatistics> statistics = new ArrayList<>();
+        synchronized (this.clients) {
+            for (Client client : this.clients.values()) {
+                statistics.add(new ClientStatistics(client.address, client.queryCount, client.rateLimitedCount,
+                        client.responseCount));
+            }
+        }
+        return Collections.unmodifiableList(statistics);
+    }
+
+    /**
+     * Stop listening and close the connections.
+     */
+    @Override
+    public void close() {
+        this.running = false;
+        Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        Thread thread = this.thread;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(SELECT_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.thread = null;
+    }
+
+    private void serve() {
+        try {
+            while (this.running) {
+                this.selector.select(SELECT_TIMEOUT_MS);
+                sendResponses();
+                Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    handleKey(key);
+                }
+                closeIdleConnections();
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Local DNS server failed.");
+        } finally {
+            closeChannels();
+        }
+    }
+
+    private void handleKey(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.channel() == this.udpChannel) {
+            readDatagrams();
+        } else if (key.channel() == this.tcpChannel) {
+            acceptConnection();
+        } else {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.write();
+                }
+            } catch (IOException e) {
+                Timber.d(e, "Closing local DNS connection from %s.", connection.client);
+                closeConnection(connection);
+            }
+        }
+    }
+
+    private void readDatagrams() throws IOException {
+        DatagramChannel channel = this.udpChannel;
+        for (int i = 0; i < MAX_DATAGRAMS_PER_READ; i++) {
+            this.datagramBuffer.clear();
+            SocketAddress source = channel.receive(this.datagramBuffer);
+            if (source == null) {
+                return;
+            }
+            InetSocketAddress client = (InetSocketAddress) source;
+            byte[] query = new byte[this.datagramBuffer.position()];
+            this.datagramBuffer.flip();
+            this.datagramBuffer.get(query);
+            if (query.length < DnsWire.HEADER_LENGTH || !acquire(client.getAddress())) {
+                continue;
+            }
+            // Truncate answers exceeding the client payload size for it to query again over TCP
+            int maxResponseSize = DnsWire.getUdpPayloadSize(query, query.length);
+            this.queryHandler.handleQuery(client.getAddress(), query, response -> queueResponse(
+                    new Response(client, null, response.length > maxResponseSize ?
+                            DnsWire.truncate(response, response.length) : response)
+            ));
+        }
+    }
+
+    private void acceptConnection() throws IOException {
+        SocketChannel channel = this.tcpChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (this.connections.size() >= MAX_CONNECTIONS) {
+            closeConnection(this.connections.values().iterator().next());
+        }
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, (InetSocketAddress) channel.getRemoteAddress());
+        connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+        this.connections.put(channel, connection);
+    }
+
+    private void queueResponse(Response response) {
+        this.responses.add(response);
+        Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void sendResponses() {
+        Response response;
+        while ((response = this.responses.poll()) != null) {
+            Connection connection = response.connection;
+            try {
+                if (connection == null) {
+                    this.udpChannel.send(ByteBuffer.wrap(response.data), response.client);
+                } else if (connection.channel.isOpen()) {
+                    connection.queueWrite(response.data);
+                } else {
+                    continue;
+                }
+                onResponse(response.client.getAddress());
+            } catch (IOException e) {
+                Timber.d(e, "Failed to send local DNS response to %s.", response.client);
+                if (connection != null) {
+                    closeConnection(connection);
+                }
+            }
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.nanoTime() / 1_000_000;
+        if (now - this.lastIdleCheck < SELECT_TIMEOUT_MS) {
+            return;
+        }
+        this.lastIdleCheck = now;
+        Iterator<Connection> iterator = this.connections.values().iterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (now - connection.lastActivity < IDLE_TIMEOUT_MS) {
+                // Connections are in access order so the next ones are not idle either
+                break;
+            }
+            iterator.remove();
+            connection.close();
+        }
+    }
+
+    private void closeConnection(Connection connection) {
+        this.connections.remove(connection.channel);
+        connection.close();
+    }
+
+    private void closeChannels() {
+        for (Connection connection : this.connections.values()) {
+            connection.close();
+        }
+        this.connections.clear();
+        this.responses.clear();
+        closeQuietly(this.tcpChannel);
+        closeQuietly(this.udpChannel);
+        closeQuietly(this.selector);
+        long queryCount = 0;
+        long rateLimitedCount = 0;
+        synchronized (this.clients) {
+            for (Client client : this.clients.values()) {
+                queryCount += client.queryCount;
+                rateLimitedCount += client.rateLimitedCount;
+            }
+            Timber.i("Local DNS server stopped: %d queries from %d clients, %d rate limited.",
+                    queryCount, this.clients.size(), rateLimitedCount);
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Timber.d(e, "Failed to close local DNS server resource.");
+        }
+    }
+
+    /**
+     * Count a query of a client and check it is within the client rate limit.
+     *
+     * @param address The client address.
+     * @return {@code true} if the query can be handled, {@code false} if it exceeds the client rate limit.
+     */
+    private boolean acquire(InetAddress address) {
+        long now = System.nanoTime();
+        synchronized (this.clients) {
+            Client client = this.clients.get(address);
+            if (client == null) {
+                if (this.clients.size() >= MAX_CLIENTS) {
+                    Iterator<Client> iterator = this.clients.values().iterator();
+                    iterator.next();
+                    iterator.remove();
+                }
+                client = new Client(address, this.rateLimit, now);
+                this.clients.put(address, client);
+            }
+            client.queryCount++;
+            if (this.rateLimit == 0) {
+                return true;
+            }
+            // Refill the bucket up to one second of queries
+            client.tokens = Math.min(this.rateLimit,
+                    client.tokens + (now - client.lastRefill) * this.rateLimit / 1e9);
+            client.lastRefill = now;
+            if (client.tokens < 1) {
+                client.rateLimitedCount++;
+                return false;
+            }
+            client.tokens--;
+            return true;
+        }
+    }
+
+    private void onResponse(InetAddress address) {
+        synchronized (this.clients) {
+            Client client = this.clients.get(address);
+            if (client != null) {
+                client.responseCount++;
+            }
+        }
+    }
+
+    /**
+     * This interface handles the DNS queries received by the server.
+     */
+    public interface QueryHandler {
+        /**
+         * Handle a DNS query.
+         * <p>
+         * It is called from the server thread and must not block.
+         *
+         * @param client    The client address.
+         * @param query     The DNS query message.
+         * @param responder The callback to send the DNS response message back, from any thread.
+         */
+        void handleQuery(InetAddress client, byte[] query, Consumer<byte[]> responder);
+    }
+
+    /**
+     * This class is the statistics of a client.
+     */
+    public static final class ClientStatistics {
+        private final InetAddress address;
+        private final long queryCount;
+        private final long rateLimitedCount;
+        private final long responseCount;
+
+        private ClientStatistics(InetAddress address, long queryCount, long rateLimitedCount, long responseCount) {
+            this.address = address;
+            this.queryCount = queryCount;
+            this.rateLimitedCount = rateLimitedCount;
+            this.responseCount = responseCount;
+        }
+
+        /**
+         * Get the client address.
+         *
+         * @return The client address.
+         */
+        public InetAddress getAddress() {
+            return this.address;
+        }
+
+        /**
+         * Get the number of received queries.
+         *
+         * @return The number of received queries.
+         */
+        public long getQueryCount() {
+            return this.queryCount;
+        }
+
+        /**
+         * Get the number of queries dropped by the rate limit.
+         *
+         * @return The number of rate limited queries.
+         */
+        public long getRateLimitedCount() {
+            return this.rateLimitedCount;
+        }
+
+        /**
+         * Get the number of sent responses.
+         *
+         * @return The number of sent responses.
+         */
+        public long getResponseCount() {
+            return this.responseCount;
+        }
+    }
+
+    /**
+     * This class is a tracked client, with its rate limit token bucket.
+     */
+    private static final class Client {
+        private final InetAddress address;
+        private double tokens;
+        private long lastRefill;
+        private long queryCount;
+        private long rateLimitedCount;
+        private long responseCount;
+
+        private Client(InetAddress address, int tokens, long now) {
+            this.address = address;
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+    }
+
+    /**
+     * This class is a response to send, over UDP or a TCP connection.
+     */
+    private static final class Response {
+        private final InetSocketAddress client;
+        @Nullable
+        private final Connection connection;
+        private final byte[] data;
+
+        private Response(InetSocketAddress client, @Nullable Connection connection, byte[] data) {
+            this.client = client;
+            this.connection = connection;
+            this.data = data;
+        }
+    }
+
+    /**
+     * This class is a TCP connection, exchanging length-prefixed DNS messages (RFC 1035 section 4.2.2).
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final InetSocketAddress client;
+        private final ByteBuffer lengthBuffer;
+        private final ArrayDeque<ByteBuffer> writes;
+        @Nullable
+        private ByteBuffer queryBuffer;
+        private SelectionKey key;
+        private long lastActivity;
+
+        private Connection(SocketChannel channel, InetSocketAddress client) {
+            this.channel = channel;
+            this.client = client;
+            this.lengthBuffer = ByteBuffer.allocate(2);
+            this.writes = new ArrayDeque<>();
+            this.lastActivity = System.nanoTime() / 1_000_000;
+        }
+
+        private void read() throws IOException {
+            touch();
+            while (true) {
+                if (this.queryBuffer == null) {
+                    if (this.channel.read(this.lengthBuffer) < 0) {
+                        throw new IOException("Connection closed by client.");
+                    }
+                    if (this.lengthBuffer.hasRemaining()) {
+                        return;
+                    }
+                    int length = this.lengthBuffer.getShort(0) & 0xFFFF;
+                    this.lengthBuffer.clear();
+                    if (length < DnsWire.HEADER_LENGTH) {
+                        throw new IOException("Invalid DNS message length " + length + ".");
+                    }
+                    this.queryBuffer = ByteBuffer.allocate(length);
+                }
+                if (this.channel.read(this.queryBuffer) < 0) {
+                    throw new IOException("Connection closed by client.");
+                }
+                if (this.queryBuffer.hasRemaining()) {
+                    return;
+                }
+                byte[] query = this.queryBuffer.array();
+                this.queryBuffer = null;
+                if (acquire(this.client.getAddress())) {
+                    queryHandler.handleQuery(this.client.getAddress(), query,
+                            response -> queueResponse(new Response(this.client, this, response)));
+                }
+            }
+        }
+
+        private void queueWrite(byte[] response) throws IOException {
+            if (this.writes.size() >= MAX_PENDING_WRITES) {
+                throw new IOException("Too many pending responses.");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(2 + response.length);
+            buffer.putShort((short) response.length);
+            buffer.put(response);
+            buffer.flip();
+            this.writes.add(buffer);
+            write();
+        }
+
+        private void write() throws IOException {
+            touch();
+            while (!this.writes.isEmpty()) {
+                ByteBuffer buffer = this.writes.peek();
+                this.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                this.writes.poll();
+            }
+            this.key.interestOps(this.writes.isEmpty() ?
+                    SelectionKey.OP_READ :
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        private void touch() {
+            this.lastActivity = System.nanoTime() / 1_000_000;
+            // Update connection access order
+            connections.get(this.channel);
+        }
+
+        private void close() {
+            closeQuietly(this.channel);
+        }
+    }
+}
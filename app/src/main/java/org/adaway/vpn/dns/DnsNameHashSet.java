@@ -0,0 +1,117 @@
+package org.adaway.vpn.dns;
+
+import java.util.Arrays;
+
+/**
+ * This class is a compact set of domain names, stored as sorted 64-bit hashes.
+ * <p>
+ * Names are hashed with FNV-1a, lower case and without trailing dot, either from their text or from their wire format
+ * in a DNS message, so names of upstream answers are checked in place without being read into a string. A set of a
+ * million names takes 8 MB. Hash collisions are possible but negligible at this size.
+ * <p>
+ * The set is not modified once built so it can be published to other threads.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsNameHashSet {
+    /**
+     * The empty set.
+     */
+    static final DnsNameHashSet EMPTY = new DnsNameHashSet(new long[0], 0);
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    /**
+     * The maximum number of compression pointers to follow in a name.
+     */
+    private static final int MAX_NAME_POINTERS = 16;
+    /**
+     * The sorted and distinct name hashes.
+     */
+    private final long[] hashes;
+
+    /**
+     * Constructor.
+     *
+     * @param hashes The name hashes, from {@link #hash(String)}. The array is sorted in place.
+     * @param size   The number of name hashes in the array.
+     */
+    DnsNameHashSet(long[] hashes, int size) {
+        Arrays.sort(hashes, 0, size);
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (distinct == 0 || hashes[i] != hashes[distinct - 1]) {
+                hashes[distinct++] = hashes[i];
+            }
+        }
+        this.hashes = distinct == hashes.length ? hashes : Arrays.copyOf(hashes, distinct);
+    }
+
+    /**
+     * Hash a name.
+     *
+     * @param name The name to hash, without trailing dot.
+     * @return The name hash.
+     */
+    static long hash(String name) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < name.length(); i++) {
+            hash = (hash ^ toLowerCase(name.charAt(i) & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Check whether a name of a DNS message is in the set.
+     *
+     * @param message The DNS message.
+     * @param offset  The name offset.
+     * @param length  The DNS message length.
+     * @return {@code true} if the name is in the set, {@code false} if not or if the name is empty or malformed.
+     */
+    boolean contains(byte[] message, int offset, int length) {
+        if (this.hashes.length == 0) {
+            return false;
+        }
+        long hash = FNV_OFFSET_BASIS;
+        boolean empty = true;
+        int pointerCount = 0;
+        while (offset < length) {
+            int labelLength = message[offset] & 0xFF;
+            if (labelLength == 0) {
+                return !empty && Arrays.binarySearch(this.hashes, hash) >= 0;
+            }
+            if ((labelLength & 0xC0) == 0xC0) {
+                if (offset + 2 > length || ++pointerCount > MAX_NAME_POINTERS) {
+                    return false;
+                }
+                offset = ((labelLength & 0x3F) << 8) | (message[offset + 1] & 0xFF);
+                continue;
+            }
+            if ((labelLength & 0xC0) != 0 || offset + 1 + labelLength > length) {
+                return false;
+            }
+            if (!empty) {
+                hash = (hash ^ '.') * FNV_PRIME;
+            }
+            for (int i = offset + 1; i <= offset + labelLength; i++) {
+                hash = (hash ^ toLowerCase(message[i] & 0xFF)) * FNV_PRIME;
+            }
+            empty = false;
+            offset += labelLength + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of names.
+     *
+     * @return The number of names.
+     */
+    int size() {
+        return this.hashes.length;
+    }
+
+    private static int toLowerCase(int c) {
+        return c >= 'A' && c <= 'Z' ? c + 'a' - 'A' : c;
+    }
+}
@@ -16,10 +16,14 @@ package org.adaway.vpn.dns;
 
 import android.content.Context;
 
+import androidx.annotation.Nullable;
+
 import org.adaway.AdAwayApplication;
 import org.adaway.db.entity.HostEntry;
 import org.adaway.db.entity.ListType;
+import org.adaway.helper.PreferenceHelper;
 import org.adaway.model.vpn.VpnModel;
+import org.adaway.model.vpn.VpnQueryStore;
 import org.adaway.model.vpn.VpnStatistics;
 import org.pcap4j.packet.IpPacket;
 import org.pcap4j.packet.IpSelector;
@@ -32,9 +36,11 @@ import org.pcap4j.packet.namednumber.IpNumber;
 import org.xbill.DNS.AAAARecord;
 import org.xbill.DNS.ARecord;
 import org.xbill.DNS.DClass;
+import org.xbill.DNS.ExtendedFlags;
 import org.xbill.DNS.Flags;
 import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
 import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
 import org.xbill.DNS.SOARecord;
@@ -47,6 +53,7 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
 import java.util.function.Consumer;
@@ -57,17 +64,15 @@ import timber.log.Timber;
  * Creates and parses packets, and sends packets to a remote socket or the device using VpnWorker.
  */
 public class DnsPacketProxy {
-    // Choose a value that is smaller than the time needed to unblock a host.
-    private static final int NEGATIVE_CACHE_TTL_SECONDS = 5;
-    private static final SOARecord NEGATIVE_CACHE_SOA_RECORD;
+    private static final Name NEGATIVE_CACHE_SOA_NAME;
+    // The memory budget of the upstream answer cache (in bytes).
+    private static final long ANSWER_CACHE_MEMORY_BUDGET = 512 * 1024;
 
     static {
         try {
             // Let's use a guaranteed invalid hostname here, clients are not supposed to use
             // our fake values, the whole thing just exists for negative caching.
-            Name name = new Name("adaway.vpn.invalid.");
-            NEGATIVE_CACHE_SOA_RECORD = new SOARecord(name, DClass.IN, NEGATIVE_CACHE_TTL_SECONDS,
-                    name, name, 0, 0, 0, 0, NEGATIVE_CACHE_TTL_SECONDS);
+            NEGATIVE_CACHE_SOA_NAME = new Name("adaway.vpn.invalid.");
         } catch (TextParseException e) {
             throw new RuntimeException(e);
         }
@@ -75,12 +80,51 @@ public class DnsPacketProxy {
 
     private final EventLoop eventLoop;
     private final DnsServerMapper dnsServerMapper;
+    private final DnsAnswerCache answerCache;
+    private final DnsInFlightQueries inFlightQueries;
+    private final DnsUpstreamSelector upstreamSelector;
+    private final DnsTcpResponder tcpResponder;
+    private final DnsPrefetcher prefetcher;
+    private final DnsSynthesizedTtlPolicy synthesizedTtlPolicy;
+    private final DnsTtlClamp ttlClamp;
+    private final DnsCnameInspector cnameInspector;
+    private final DnsBlockedNames blockedNames;
+    private final DnsForwardingRules forwardingRules;
+    private final DnsFloodGuard floodGuard;
+    private final DnsTopDomains topDomains;
+    private final DnsLatencyMetrics latencyMetrics;
     private VpnModel vpnModel;
     private VpnStatistics vpnStatistics;
+    private int rulesVersion;
+    private boolean upstreamRacing;
+    private boolean cnameInspection;
+    private DnsTransport dnsTransport;
+    /**
+     * The time of the decision to send the handled query upstream, {@code 0} if no query is being handled.
+     */
+    private long decisionTime;
+    /**
+     * The verdict of the upstream answer being dispatched to its requesters.
+     */
+    private ListType upstreamVerdict;
 
     public DnsPacketProxy(EventLoop eventLoop, DnsServerMapper dnsServerMapper) {
         this.eventLoop = eventLoop;
         this.dnsServerMapper = dnsServerMapper;
+        this.answerCache = new DnsAnswerCache(ANSWER_CACHE_MEMORY_BUDGET);
+        this.inFlightQueries = new DnsInFlightQueries();
+        this.upstreamSelector = new DnsUpstreamSelector();
+        this.tcpResponder = new DnsTcpResponder(eventLoop::queueDeviceWrite, this::handleTcpDnsQuery);
+        this.prefetcher = new DnsPrefetcher();
+        this.synthesizedTtlPolicy = new DnsSynthesizedTtlPolicy();
+        this.ttlClamp = new DnsTtlClamp();
+        this.blockedNames = new DnsBlockedNames();
+        this.cnameInspector = new DnsCnameInspector(this.blockedNames::isBlocked);
+        this.forwardingRules = new DnsForwardingRules();
+        this.floodGuard = new DnsFloodGuard();
+        this.topDomains = new DnsTopDomains();
+        this.latencyMetrics = DnsLatencyMetrics.getInstance();
+        this.upstreamVerdict = ListType.ALLOWED;
     }
 
     /**
@@ -91,6 +135,141 @@ public class DnsPacketProxy {
     public void initialize(Context context) {
         this.vpnModel = (VpnModel) ((AdAwayApplication) context.getApplicationContext()).getAdBlockModel();
         this.vpnStatistics = VpnStatistics.getInstance(context);
+        this.vpnStatistics.start();
+        this.vpnModel.getQueryStore().start();
+        this.rulesVersion = this.vpnModel.getRulesVersion();
+        this.upstreamRacing = PreferenceHelper.getVpnUpstreamRacing(context);
+        this.cnameInspection = PreferenceHelper.getVpnCnameInspection(context);
+        if (this.cnameInspection) {
+            this.blockedNames.start(context, this.rulesVersion);
+        }
+        this.dnsTransport = PreferenceHelper.getVpnDnsTransport(context);
+        this.answerCache.setMaxStale(PreferenceHelper.getVpnDnsMaxStale(context) * 3600L);
+        this.prefetcher.initialize(context);
+        this.synthesizedTtlPolicy.setTtls(
+                PreferenceHelper.getVpnBlockedTtl(context),
+                PreferenceHelper.getVpnRedirectedTtl(context),
+                PreferenceHelper.getVpnSynthesizedMaxTtl(context)
+        );
+        this.ttlClamp.setBounds(
+                PreferenceHelper.getVpnDnsMinTtl(context),
+                PreferenceHelper.getVpnDnsMaxTtl(context) * 3600L
+        );
+        this.ttlClamp.setExceptions(PreferenceHelper.getVpnDnsTtlExceptions(context));
+        this.forwardingRules.start(context);
+        this.topDomains.start(context);
+        DnsProxyMetrics.getInstance().setProxy(this);
+    }
+
+    /**
+     * Set the transport the queries are sent upstream with.
+     * <p>
+     * It overrides the configured transport, like when the encrypted upstream could not be created and the queries
+     * fall back to the network DNS servers.
+     *
+     * @param dnsTransport The transport the queries are sent upstream with.
+     */
+    public void setDnsTransport(DnsTransport dnsTransport) {
+        this.dnsTransport = dnsTransport;
+    }
+
+    /**
+     * Releases the resources acquired at initialization.
+     */
+    public void release() {
+        DnsProxyMetrics.getInstance().setProxy(null);
+        this.blockedNames.stop();
+        this.forwardingRules.stop();
+        this.topDomains.stop();
+        if (this.vpnModel != null) {
+            this.vpnModel.getQueryStore().stop();
+        }
+        if (this.vpnStatistics != null) {
+            this.vpnStatistics.stop();
+        }
+    }
+
+    /**
+     * Create the SOA record for clients to cache negative answers.
+     *
+     * @param ttl The negative caching TTL (in seconds).
+     * @return The SOA record to add to the authority section.
+     */
+    static SOARecord createNegativeCacheSoaRecord(long ttl) {
+        return new SOARecord(NEGATIVE_CACHE_SOA_NAME, DClass.IN, ttl,
+                NEGATIVE_CACHE_SOA_NAME, NEGATIVE_CACHE_SOA_NAME, 0, 0, 0, 0, ttl);
+    }
+
+    /**
+     * Get the upstream answer cache.
+     *
+     * @return The upstream answer cache.
+     */
+    public DnsAnswerCache getAnswerCache() {
+        return this.answerCache;
+    }
+
+    /**
+     * Get the number of queries attached to an identical in flight query instead of being sent upstream.
+     *
+     * @return The number of coalesced queries.
+     */
+    public long getCoalescedQueryCount() {
+        return this.inFlightQueries.getCoalescedCount();
+    }
+
+    /**
+     * Get the number of popular cached answers prefetched before their expiration.
+     *
+     * @return The number of prefetched answers.
+     */
+    public long getPrefetchCount() {
+        return this.prefetcher.getPrefetchCount();
+    }
+
+    /**
+     * Get the TTL policy of the answers synthesized for blocked and redirected hosts.
+     *
+     * @return The synthesized answers TTL policy.
+     */
+    public DnsSynthesizedTtlPolicy getSynthesizedTtlPolicy() {
+        return this.synthesizedTtlPolicy;
+    }
+
+    /**
+     * Get the TTL rewriter of upstream answers.
+     *
+     * @return The upstream answers TTL rewriter.
+     */
+    public DnsTtlClamp getTtlClamp() {
+        return this.ttlClamp;
+    }
+
+    /**
+     * Get the CNAME cloaking inspector of upstream answers.
+     *
+     * @return The CNAME cloaking inspector.
+     */
+    public DnsCnameInspector getCnameInspector() {
+        return this.cnameInspector;
+    }
+
+    /**
+     * Get the rate limiter of identical queries.
+     *
+     * @return The identical queries rate limiter.
+     */
+    public DnsFloodGuard getFloodGuard() {
+        return this.floodGuard;
+    }
+
+    /**
+     * Get the upstream DNS server selector.
+     *
+     * @return The upstream DNS server selector.
+     */
+    public DnsUpstreamSelector getUpstreamSelector() {
+        return this.upstreamSelector;
     }
 
     /**
@@ -111,7 +290,17 @@ public class DnsPacketProxy {
                 .payloadBuilder(
                         new UnknownPacket.Builder().rawData(responsePayload)
                 );
+        this.eventLoop.queueDeviceWrite(buildResponsePacket(requestPacket, payLoadBuilder));
+    }
 
+    /**
+     * Build an IP packet back to the sender of a request packet.
+     *
+     * @param requestPacket  The request packet.
+     * @param payloadBuilder The builder of the response payload.
+     * @return The response IP packet.
+     */
+    static IpPacket buildResponsePacket(IpPacket requestPacket, Packet.Builder payloadBuilder) {
         IpPacket ipOutPacket;
         if (requestPacket instanceof IpV4Packet) {
             ipOutPacket = new IpV4Packet.Builder((IpV4Packet) requestPacket)
@@ -119,7 +308,7 @@ public class DnsPacketProxy {
                     .dstAddr((Inet4Address) requestPacket.getHeader().getSrcAddr())
                     .correctChecksumAtBuild(true)
                     .correctLengthAtBuild(true)
-                    .payloadBuilder(payLoadBuilder)
+                    .payloadBuilder(payloadBuilder)
                     .build();
 
         } else {
@@ -127,11 +316,10 @@ public class DnsPacketProxy {
                     .srcAddr((Inet6Address) requestPacket.getHeader().getDstAddr())
                     .dstAddr((Inet6Address) requestPacket.getHeader().getSrcAddr())
                     .correctLengthAtBuild(true)
-                    .payloadBuilder(payLoadBuilder)
+                    .payloadBuilder(payloadBuilder)
                     .build();
         }
-
-        this.eventLoop.queueDeviceWrite(ipOutPacket);
+        return ipOutPacket;
     }
 
     /**
@@ -141,6 +329,17 @@ public class DnsPacketProxy {
      * @throws IOException If some network error occurred
      */
     public void handleDnsRequest(byte[] packetData) throws IOException {
+        handleDnsRequest(packetData, System.nanoTime());
+    }
+
+    /**
+     * Handles a DNS request, by either blocking it or forwarding it to the remote location.
+     *
+     * @param packetData The packet data to read
+     * @param readTime   The time the packet was read from the tunnel, from {@link System#nanoTime()}.
+     * @throws IOException If some network error occurred
+     */
+    public void handleDnsRequest(byte[] packetData, long readTime) throws IOException {
         IpPacket ipPacket;
         try {
             ipPacket = (IpPacket) IpSelector.newPacket(packetData, 0, packetData.length);
@@ -149,8 +348,13 @@ public class DnsPacketProxy {
             return;
         }
 
-        // Check UDP protocol
-        if (ipPacket.getHeader().getProtocol() != IpNumber.UDP) {
+        // Check protocol, TCP being used by clients to query again truncated answers
+        IpNumber protocol = ipPacket.getHeader().getProtocol();
+        if (protocol == IpNumber.TCP) {
+            this.tcpResponder.handlePacket(ipPacket, packetData);
+            return;
+        }
+        if (protocol != IpNumber.UDP) {
             return;
         }
 
@@ -186,6 +390,63 @@ public class DnsPacketProxy {
         }
 
         byte[] dnsRawData = udpPayload.getRawData();
+        // Refuse flooding queries before decoding them or counting them in statistics
+        if (!this.floodGuard.tryAcquire(dnsRawData, dnsRawData.length)) {
+            byte[] refused = DnsWire.refuse(dnsRawData, dnsRawData.length);
+            if (refused != null) {
+                handleDnsResponse(ipPacket, refused);
+            }
+            return;
+        }
+        // Truncate answers exceeding the client payload size for it to query again over TCP
+        int maxResponseSize = DnsWire.getUdpPayloadSize(dnsRawData, dnsRawData.length);
+        handleDnsQuery(dnsRawData, dnsAddress, packetPort, readTime, response -> handleDnsResponse(ipPacket,
+                response.length > maxResponseSize ? DnsWire.truncate(response, response.length) : response));
+    }
+
+    /**
+     * Handles a DNS request received by the local DNS server from another device of the network.
+     *
+     * @param dnsRawData The request DNS message.
+     * @param responder  The callback to send the response with.
+     * @throws IOException If some network error occurred
+     */
+    public void handleLocalDnsRequest(byte[] dnsRawData, Consumer<byte[]> responder) throws IOException {
+        InetAddress dnsAddress = this.dnsServerMapper.getDefaultDnsServerAddress();
+        handleDnsQuery(dnsRawData, dnsAddress, DnsTcpResponder.DNS_PORT, System.nanoTime(), responder);
+    }
+
+    /**
+     * Handles a DNS request received over TCP.
+     *
+     * @param ipPacket   The last IP packet holding the request.
+     * @param dnsRawData The request DNS message.
+     * @param responder  The callback to send the response with.
+     * @throws IOException If some network error occurred
+     */
+    private void handleTcpDnsQuery(IpPacket ipPacket, byte[] dnsRawData, Consumer<byte[]> responder)
+            throws IOException {
+        InetAddress packetAddress = ipPacket.getHeader().getDstAddr();
+        Optional<InetAddress> dnsAddressOptional = this.dnsServerMapper.getDnsServerFromFakeAddress(packetAddress);
+        if (!dnsAddressOptional.isPresent()) {
+            Timber.w("Cannot find mapped DNS for %s.", packetAddress.getHostAddress());
+            return;
+        }
+        handleDnsQuery(dnsRawData, dnsAddressOptional.get(), DnsTcpResponder.DNS_PORT, System.nanoTime(), responder);
+    }
+
+    /**
+     * Handles a DNS request message, by either blocking it or forwarding it to the remote location.
+     *
+     * @param dnsRawData The request DNS message.
+     * @param dnsAddress The upstream DNS server address.
+     * @param packetPort The upstream DNS server port.
+     * @param startTime  The request receiving time (in ns).
+     * @param responder  The callback to send the response with.
+     * @throws IOException If some network error occurred
+     */
+    private void handleDnsQuery(byte[] dnsRawData, InetAddress dnsAddress, int packetPort, long startTime,
+                                Consumer<byte[]> responder) throws IOException {
         Message dnsMsg;
         try {
             dnsMsg = new Message(dnsRawData);
@@ -198,8 +459,11 @@ public class DnsPacketProxy {
             return;
         }
         Name name = dnsMsg.getQuestion().getName();
+        int type = dnsMsg.getQuestion().getType();
         String dnsQueryName = name.toString(true);
         HostEntry entry = getHostEntry(dnsQueryName);
+        this.latencyMetrics.record(DnsLatencyMetrics.Stage.DECISION, startTime);
+        this.topDomains.onQuery(entry.getHost(), entry.getType() == ListType.BLOCKED);
         switch (entry.getType()) {
             case BLOCKED:
                 Timber.i("handleDnsRequest: DNS Name %s blocked!", dnsQueryName);
@@ -209,17 +473,20 @@ public class DnsPacketProxy {
                 }
                 dnsMsg.getHeader().setFlag(Flags.QR);
                 dnsMsg.getHeader().setRcode(Rcode.NOERROR);
-                dnsMsg.addRecord(NEGATIVE_CACHE_SOA_RECORD, Section.AUTHORITY);
-                handleDnsResponse(ipPacket, dnsMsg.toWire());
+                long blockedTtl = this.synthesizedTtlPolicy.getBlockedTtl(entry.getHost());
+                dnsMsg.addRecord(createNegativeCacheSoaRecord(blockedTtl), Section.AUTHORITY);
+                responder.accept(dnsMsg.toWire());
+                logQuery(entry.getHost(), type, ListType.BLOCKED, VpnQueryStore.SOURCE_LOCAL, startTime);
                 break;
             case ALLOWED:
                 Timber.i("handleDnsRequest: DNS Name %s allowed, sending to %s.", dnsQueryName, dnsAddress);
-                // Track allowed request statistics
-                if (this.vpnStatistics != null) {
-                    this.vpnStatistics.incrementAllowedRequests();
-                }
-                DatagramPacket outPacket = new DatagramPacket(dnsRawData, 0, dnsRawData.length, dnsAddress, packetPort);
-                this.eventLoop.forwardPacket(outPacket, data -> handleDnsResponse(ipPacket, data));
+                // Allowed request statistics are tracked once answered, as the answer could alias a blocked host
+                DnsQuestion question = new DnsQuestion(entry.getHost(), type, dnsMsg.getQuestion().getDClass(),
+                        getDnssecFlags(dnsMsg));
+                this.decisionTime = System.nanoTime();
+                forwardDnsRequest(responder, dnsMsg.getHeader().getID(), question, dnsRawData, dnsAddress, packetPort,
+                        startTime);
+                this.decisionTime = 0;
                 break;
             case REDIRECTED:
                 Timber.i("handleDnsRequest: DNS Name %s redirected to %s.", dnsQueryName, entry.getRedirection());
@@ -233,22 +500,316 @@ public class DnsPacketProxy {
                 dnsMsg.getHeader().setRcode(Rcode.NOERROR);
                 try {
                     InetAddress address = InetAddress.getByName(entry.getRedirection());
+                    long redirectedTtl = this.synthesizedTtlPolicy.getRedirectedTtl(entry.getHost());
                     Record record;
                     if (address instanceof Inet6Address) {
-                        record = new AAAARecord(name, DClass.IN, NEGATIVE_CACHE_TTL_SECONDS, address);
+                        record = new AAAARecord(name, DClass.IN, redirectedTtl, address);
                     } else {
-                        record = new ARecord(name, DClass.IN, NEGATIVE_CACHE_TTL_SECONDS, address);
+                        record = new ARecord(name, DClass.IN, redirectedTtl, address);
                     }
                     dnsMsg.addRecord(record, Section.ANSWER);
                 } catch (UnknownHostException e) {
                     Timber.w(e, "Failed to get inet address for host %s.", dnsQueryName);
                 }
-                handleDnsResponse(ipPacket, dnsMsg.toWire());
+                responder.accept(dnsMsg.toWire());
+                logQuery(entry.getHost(), type, ListType.REDIRECTED, VpnQueryStore.SOURCE_LOCAL, startTime);
                 break;
         }
     }
 
+    /**
+     * Get the DNSSEC flags of a DNS request, for DNSSEC aware and unaware clients not to share answers.
+     *
+     * @param dnsMsg The DNS request.
+     * @return The request DNSSEC flags.
+     */
+    private static int getDnssecFlags(Message dnsMsg) {
+        int dnssecFlags = 0;
+        OPTRecord opt = dnsMsg.getOPT();
+        if (opt != null && (opt.getFlags() & ExtendedFlags.DO) != 0) {
+            dnssecFlags |= DnsQuestion.DNSSEC_OK;
+        }
+        if (dnsMsg.getHeader().getFlag(Flags.CD)) {
+            dnssecFlags |= DnsQuestion.CHECKING_DISABLED;
+        }
+        return dnssecFlags;
+    }
+
+    /**
+     * Forward an allowed DNS request upstream unless it could be answered from cache or an identical query is
+     * already in flight.
+     * <p>
+     * Stale cached answers are sent back right away and refreshed in background, like popular cached answers
+     * close to expiration within the prefetch budget.
+     *
+     * @param responder  The callback to send the response with.
+     * @param id         The request transaction identifier.
+     * @param question   The request question.
+     * @param dnsRawData The request DNS message.
+     * @param dnsAddress The upstream DNS server address.
+     * @param packetPort The upstream DNS server port.
+     * @param startTime  The request receiving time (in ns).
+     * @throws IOException If the request could not be forwarded.
+     */
+    private void forwardDnsRequest(Consumer<byte[]> responder, int id, DnsQuestion question, byte[] dnsRawData,
+                                   InetAddress dnsAddress, int packetPort, long startTime) throws IOException {
+        byte[] cachedAnswer = this.answerCache.get(question, id);
+        if (cachedAnswer != null) {
+            Timber.i("handleDnsRequest: DNS Name %s answered from cache.", question.name);
+            responder.accept(cachedAnswer);
+            countAnswer(ListType.ALLOWED);
+            logQuery(question.name, question.type, ListType.ALLOWED, VpnQueryStore.SOURCE_CACHE, startTime);
+            if (this.inFlightQueries.isInFlight(question)) {
+                return;
+            }
+            if (this.answerCache.isStale(question)) {
+                Timber.i("handleDnsRequest: Refreshing stale DNS Name %s.", question.name);
+                refreshUpstream(question, id, dnsRawData, dnsAddress, packetPort);
+            } else if (this.answerCache.isPrefetchDue(question) && this.prefetcher.tryAcquire()) {
+                Timber.i("handleDnsRequest: Prefetching DNS Name %s.", question.name);
+                refreshUpstream(question, id, dnsRawData, dnsAddress, packetPort);
+            }
+            return;
+        }
+        Consumer<byte[]> loggedResponder = data -> {
+            responder.accept(data);
+            ListType verdict = this.upstreamVerdict;
+            countAnswer(verdict);
+            logQuery(question.name, question.type, verdict, VpnQueryStore.SOURCE_UPSTREAM, startTime);
+        };
+        if (this.inFlightQueries.register(question, id, loggedResponder)) {
+            Timber.i("handleDnsRequest: DNS Name %s already in flight.", question.name);
+            return;
+        }
+        resolveUpstream(question, dnsRawData, dnsAddress, packetPort);
+    }
+
+    /**
+     * Resolve a DNS request in background to refresh its cached answer.
+     *
+     * @param question   The request question.
+     * @param id         The request transaction identifier.
+     * @param dnsRawData The request DNS message.
+     * @param dnsAddress The upstream DNS server address.
+     * @param packetPort The upstream DNS server port.
+     * @throws IOException If the request could not be forwarded.
+     */
+    private void refreshUpstream(DnsQuestion question, int id, byte[] dnsRawData, InetAddress dnsAddress,
+                                 int packetPort) throws IOException {
+        // No requester to dispatch to, the refreshed answer will only be cached
+        this.inFlightQueries.register(question, id, data -> {
+        });
+        resolveUpstream(question, dnsRawData, dnsAddress, packetPort);
+    }
+
+    /**
+     * Resolve a DNS request with the configured transport and upstream servers.
+     *
+     * @param question   The request question.
+     * @param dnsRawData The request DNS message.
+     * @param dnsAddress The upstream DNS server address.
+     * @param packetPort The upstream DNS server port.
+     * @throws IOException If the request could not be forwarded.
+     */
+    private void resolveUpstream(DnsQuestion question, byte[] dnsRawData, InetAddress dnsAddress, int packetPort)
+            throws IOException {
+        List<InetAddress> forwardingServers = this.forwardingRules.match(question.name);
+        if (forwardingServers != null) {
+            // Conditional forwarding servers are network DNS servers, whatever the transport
+            Timber.i("handleDnsRequest: DNS Name %s forwarded to %s.", question.name, forwardingServers.get(0));
+            InetAddress alternateServer = forwardingServers.size() > 1 ? forwardingServers.get(1) : null;
+            sendUpstream(question, dnsRawData, forwardingServers.get(0), DnsTcpResponder.DNS_PORT,
+                    alternateServer, true);
+            return;
+        }
+        if (this.dnsTransport != DnsTransport.UDP) {
+            // Encrypted transports have their own endpoints, network DNS servers are not used
+            sendUpstream(question, dnsRawData, dnsAddress, packetPort, null, false);
+            return;
+        }
+        List<InetAddress> dnsServers = this.dnsServerMapper.getDnsServers();
+        InetAddress dnsServer = this.upstreamSelector.select(dnsAddress, dnsServers);
+        InetAddress alternateDnsServer = this.upstreamSelector.selectAlternate(dnsServer, dnsServers);
+        if (this.upstreamRacing && alternateDnsServer != null) {
+            // Race both servers, the first response will be dispatched
+            sendUpstream(question, dnsRawData, dnsServer, packetPort, null, false);
+            sendUpstream(question, dnsRawData, alternateDnsServer, packetPort, null, false);
+        } else {
+            sendUpstream(question, dnsRawData, dnsServer, packetPort, alternateDnsServer, false);
+        }
+    }
+
+    /**
+     * Send a DNS request upstream and track the server health.
+     *
+     * @param question           The request question.
+     * @param dnsRawData         The request DNS message.
+     * @param dnsServer          The upstream DNS server address.
+     * @param packetPort         The upstream DNS server port.
+     * @param alternateDnsServer The DNS server to retry on if the server does not respond quickly,
+     *                           {@code null} to wait for the server as long as possible.
+     * @param forwarded          {@code true} if the server comes from a conditional forwarding rule,
+     *                           {@code false} if it is a configured upstream server.
+     * @throws IOException If the request could not be forwarded.
+     */
+    private void sendUpstream(DnsQuestion question, byte[] dnsRawData, InetAddress dnsServer, int packetPort,
+                              @Nullable InetAddress alternateDnsServer, boolean forwarded) throws IOException {
+        int timeout = this.eventLoop.getQueryTimeout();
+        if (alternateDnsServer != null) {
+            timeout = Math.min(timeout, this.upstreamSelector.getAttemptTimeout(dnsServer));
+        }
+        boolean networkServer = forwarded || this.dnsTransport == DnsTransport.UDP;
+        boolean trackServerHealth = !forwarded && this.dnsTransport == DnsTransport.UDP;
+        long startTime = System.currentTimeMillis();
+        long sendTime = System.nanoTime();
+        DatagramPacket outPacket = new DatagramPacket(dnsRawData, 0, dnsRawData.length, dnsServer, packetPort);
+        Consumer<byte[]> callback = data -> {
+            this.latencyMetrics.recordUpstreamRtt(dnsServer, sendTime);
+            if (trackServerHealth) {
+                this.upstreamSelector.reportResponse(dnsServer, System.currentTimeMillis() - startTime);
+            }
+            if (DnsWire.isTruncated(data) && networkServer) {
+                sendUpstreamOverTcp(question, dnsRawData, dnsServer, packetPort, data);
+                return;
+            }
+            completeUpstream(question, data);
+        };
+        Runnable timeoutCallback = () -> {
+            if (trackServerHealth) {
+                this.upstreamSelector.reportTimeout(dnsServer);
+            }
+            if (alternateDnsServer != null && this.inFlightQueries.isInFlight(question)) {
+                Timber.i("DNS server %s timed out, retrying %s with %s.", dnsServer, question.name, alternateDnsServer);
+                try {
+                    sendUpstream(question, dnsRawData, alternateDnsServer, packetPort, null, forwarded);
+                } catch (IOException e) {
+                    Timber.w(e, "Failed to retry DNS query %s.", question.name);
+                }
+            }
+        };
+        if (forwarded) {
+            this.eventLoop.forwardNetworkPacket(outPacket, timeout, callback, timeoutCallback);
+        } else {
+            this.eventLoop.forwardPacket(outPacket, timeout, callback, timeoutCallback);
+        }
+        // Only measure the first send of the handled query, not the racing and retried ones
+        if (this.decisionTime != 0) {
+            this.latencyMetrics.record(DnsLatencyMetrics.Stage.UPSTREAM_SEND, this.decisionTime);
+            this.decisionTime = 0;
+        }
+    }
+
+    /**
+     * Send a DNS request upstream over TCP as its UDP answer was truncated.
+     *
+     * @param question      The request question.
+     * @param dnsRawData    The request DNS message.
+     * @param dnsServer     The upstream DNS server address.
+     * @param packetPort    The upstream DNS server port.
+     * @param truncatedData The truncated UDP answer, to dispatch if the TCP request fails.
+     */
+    private void sendUpstreamOverTcp(DnsQuestion question, byte[] dnsRawData, InetAddress dnsServer,
+                                     int packetPort, byte[] truncatedData) {
+        if (!this.inFlightQueries.isInFlight(question)) {
+            return;
+        }
+        Timber.i("DNS answer for %s truncated, retrying over TCP with %s.", question.name, dnsServer);
+        DatagramPacket outPacket = new DatagramPacket(dnsRawData, 0, dnsRawData.length, dnsServer, packetPort);
+        Runnable fallback = () -> this.inFlightQueries.complete(question, truncatedData);
+        try {
+            this.eventLoop.forwardTcpPacket(outPacket, this.eventLoop.getQueryTimeout(),
+                    data -> completeUpstream(question, data), fallback);
+        } catch (IOException e) {
+            Timber.w(e, "Failed to send DNS query %s over TCP.", question.name);
+            fallback.run();
+        }
+    }
+
+    /**
+     * Complete an in flight DNS request with its upstream answer.
+     * <p>
+     * Answers aliasing a blocked host are replaced by a blocked answer and dispatched to the requesters as blocked,
+     * without being cached. Other answer TTLs are rewritten before being cached and dispatched to the requesters.
+     *
+     * @param question The request question.
+     * @param data     The upstream answer.
+     */
+    private void completeUpstream(DnsQuestion question, byte[] data) {
+        if (this.cnameInspection) {
+            String blockedName = this.cnameInspector.findBlockedName(data, data.length);
+            if (blockedName != null) {
+                Timber.i("handleDnsRequest: DNS Name %s blocked as alias of %s!", question.name, blockedName);
+                this.upstreamVerdict = ListType.BLOCKED;
+                this.inFlightQueries.complete(question, buildBlockedAnswer(question, data));
+                this.upstreamVerdict = ListType.ALLOWED;
+                return;
+            }
+        }
+        long upstreamTtl = this.ttlClamp.clamp(question.name, data);
+        this.answerCache.putRewritten(question, data, upstreamTtl);
+        this.inFlightQueries.complete(question, data);
+    }
+
+    /**
+     * Build a blocked answer from an upstream answer.
+     *
+     * @param question The request question.
+     * @param data     The upstream answer.
+     * @return The blocked answer, the upstream answer if it could not be parsed.
+     */
+    private byte[] buildBlockedAnswer(DnsQuestion question, byte[] data) {
+        try {
+            Message message = new Message(data);
+            message.removeAllRecords(Section.ANSWER);
+            message.removeAllRecords(Section.AUTHORITY);
+            message.removeAllRecords(Section.ADDITIONAL);
+            message.getHeader().setRcode(Rcode.NOERROR);
+            long blockedTtl = this.synthesizedTtlPolicy.getBlockedTtl(question.name);
+            message.addRecord(createNegativeCacheSoaRecord(blockedTtl), Section.AUTHORITY);
+            return message.toWire();
+        } catch (IOException e) {
+            Timber.w(e, "Failed to parse DNS answer for %s.", question.name);
+            return data;
+        }
+    }
+
+    /**
+     * Track the statistics of an answered allowed query.
+     *
+     * @param verdict The query verdict, {@link ListType#BLOCKED} if its answer aliases a blocked host.
+     */
+    private void countAnswer(ListType verdict) {
+        if (this.vpnStatistics == null) {
+            return;
+        }
+        if (verdict == ListType.BLOCKED) {
+            this.vpnStatistics.incrementBlockedRequests();
+        } else {
+            this.vpnStatistics.incrementAllowedRequests();
+        }
+    }
+
+    /**
+     * Append an answered query to the recent and persistent query logs while recording logs.
+     *
+     * @param host      The queried host name.
+     * @param type      The query type.
+     * @param verdict   The query verdict.
+     * @param source    The query answer source.
+     * @param startTime The query receiving time (in ns).
+     */
+    private void logQuery(String host, int type, ListType verdict, int source, long startTime) {
+        if (this.vpnModel == null || !this.vpnModel.isRecordingLogs()) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        int latencyUs = (int) Math.min((System.nanoTime() - startTime) / 1000, Integer.MAX_VALUE);
+        this.vpnModel.logQuery(time, host, verdict, latencyUs);
+        this.vpnModel.getQueryStore().append(time, host, type, verdict, source, latencyUs);
+    }
+
     private HostEntry getHostEntry(String dnsQueryName) {
+        checkRulesVersion();
         String hostname = dnsQueryName.toLowerCase(Locale.ENGLISH);
         HostEntry entry = null;
         if (this.vpnModel != null) {
@@ -262,6 +823,25 @@ public class DnsPacketProxy {
         return entry;
     }
 
+    /**
+     * Flush the upstream answer cache, shorten synthesized answer TTLs and reload the blocked hosts to inspect
+     * aliases when new rules were applied.
+     */
+    private void checkRulesVersion() {
+        if (this.vpnModel == null) {
+            return;
+        }
+        int version = this.vpnModel.getRulesVersion();
+        if (version != this.rulesVersion) {
+            this.rulesVersion = version;
+            this.answerCache.clear();
+            this.synthesizedTtlPolicy.onRulesChanged();
+            if (this.cnameInspection) {
+                this.blockedNames.load(version);
+            }
+        }
+    }
+
     /**
      * Interface abstracting away VpnWorker.
      */
@@ -277,11 +857,45 @@ public class DnsPacketProxy {
         /**
          * Forward a packet to the VPN underlying network.
          *
-         * @param packet   The packet to forward.
-         * @param callback The callback to call with the packet response data.
+         * @param packet          The packet to forward.
+         * @param timeout         The time to wait for the response (in ms).
+         * @param callback        The callback to call with the packet response data.
+         * @param timeoutCallback The callback to call if no response is received in time.
+         * @throws IOException If the packet could not be forwarded.
+         */
+        void forwardPacket(DatagramPacket packet, int timeout, Consumer<byte[]> callback, Runnable timeoutCallback)
+                throws IOException;
+
+        /**
+         * Forward a packet to a DNS server of the VPN underlying network, even if an encrypted transport is used.
+         *
+         * @param packet          The packet to forward.
+         * @param timeout         The time to wait for the response (in ms).
+         * @param callback        The callback to call with the packet response data.
+         * @param timeoutCallback The callback to call if no response is received in time.
          * @throws IOException If the packet could not be forwarded.
          */
-        void forwardPacket(DatagramPacket packet, Consumer<byte[]> callback) throws IOException;
+        void forwardNetworkPacket(DatagramPacket packet, int timeout, Consumer<byte[]> callback,
+                                  Runnable timeoutCallback) throws IOException;
+
+        /**
+         * Forward a packet to the VPN underlying network over TCP.
+         *
+         * @param packet          The packet to forward.
+         * @param timeout         The time to wait for the response (in ms).
+         * @param callback        The callback to call with the packet response data.
+         * @param timeoutCallback The callback to call if no response is received in time.
+         * @throws IOException If the packet could not be forwarded.
+         */
+        void forwardTcpPacket(DatagramPacket packet, int timeout, Consumer<byte[]> callback,
+                              Runnable timeoutCallback) throws IOException;
+
+        /**
+         * Get the time to wait for an upstream response.
+         *
+         * @return The time to wait for an upstream response (in ms).
+         */
+        int getQueryTimeout();
 
         /**
          * Write an IP packet to the local TUN device
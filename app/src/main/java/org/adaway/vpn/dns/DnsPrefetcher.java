@@ -0,0 +1,151 @@
+package org.adaway.vpn.dns;
+
+import static android.content.Context.CONNECTIVITY_SERVICE;
+import static android.content.Context.POWER_SERVICE;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_NOT_METERED;
+import static android.net.NetworkCapabilities.TRANSPORT_VPN;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.PowerManager;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+import timber.log.Timber;
+
+/**
+ * This class decides whether popular cached answers can be prefetched before they expire.
+ * <p>
+ * Prefetches are bound by a budget per minute and are suspended while the underlying network is metered or the
+ * device is in Doze mode. The device state is checked at most every 10 seconds.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ * Its counters are only written by this thread and could be read from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsPrefetcher {
+    /**
+     * The maximum number of prefetches per minute.
+     */
+    private static final int PREFETCH_BUDGET_PER_MINUTE = 30;
+    /**
+     * The budget period (in ms).
+     */
+    private static final long BUDGET_PERIOD_MS = 60_000;
+    /**
+     * The time between two device state checks (in ms).
+     */
+    private static final long DEVICE_STATE_CHECK_PERIOD_MS = 10_000;
+    /**
+     * The connectivity manager, {@code null} if not initialized.
+     */
+    @Nullable
+    private ConnectivityManager connectivityManager;
+    /**
+     * The power manager, {@code null} if not initialized.
+     */
+    @Nullable
+    private PowerManager powerManager;
+    /**
+     * The current budget period start time (UNIX timestamp in ms).
+     */
+    private long budgetPeriodStart;
+    /**
+     * The number of prefetches in the current budget period.
+     */
+    private int prefetchCount;
+    /**
+     * The last device state check time (UNIX timestamp in ms).
+     */
+    private long lastDeviceStateCheck;
+    /**
+     * Whether the device state allows prefetches.
+     */
+    private boolean deviceStateAllowed;
+    private volatile long totalPrefetchCount;
+
+    /**
+     * Constructor.
+     */
+    DnsPrefetcher() {
+        this.lastDeviceStateCheck = Long.MIN_VALUE;
+        this.deviceStateAllowed = false;
+    }
+
+    /**
+     * Initialize the prefetcher with the system services to check the device state.
+     *
+     * @param context The application context.
+     */
+    void initialize(Context context) {
+        this.connectivityManager = (ConnectivityManager) context.getSystemService(CONNECTIVITY_SERVICE);
+        this.powerManager = (PowerManager) context.getSystemService(POWER_SERVICE);
+        this.lastDeviceStateCheck = Long.MIN_VALUE;
+    }
+
+    /**
+     * Try to acquire a prefetch from the budget.
+     *
+     * @return {@code true} if a prefetch can be sent, {@code false} otherwise.
+     */
+    boolean tryAcquire() {
+        return tryAcquire(System.currentTimeMillis());
+    }
+
+    boolean tryAcquire(long now) {
+        if (now - this.budgetPeriodStart >= BUDGET_PERIOD_MS) {
+            this.budgetPeriodStart = now;
+            this.prefetchCount = 0;
+        }
+        if (this.prefetchCount >= PREFETCH_BUDGET_PER_MINUTE || !isDeviceStateAllowed(now)) {
+            return false;
+        }
+        this.prefetchCount++;
+        this.totalPrefetchCount++;
+        return true;
+    }
+
+    /**
+     * Get the number of prefetches sent.
+     *
+     * @return The number of prefetches sent.
+     */
+    long getPrefetchCount() {
+        return this.totalPrefetchCount;
+    }
+
+    private boolean isDeviceStateAllowed(long now) {
+        if (now - this.lastDeviceStateCheck >= DEVICE_STATE_CHECK_PERIOD_MS) {
+            this.lastDeviceStateCheck = now;
+            boolean allowed = !isDeviceIdle() && !isUnderlyingNetworkMetered();
+            if (allowed != this.deviceStateAllowed) {
+                Timber.d("DNS prefetching %s.", allowed ? "resumed" : "suspended");
+            }
+            this.deviceStateAllowed = allowed;
+        }
+        return this.deviceStateAllowed;
+    }
+
+    private boolean isDeviceIdle() {
+        return this.powerManager == null || this.powerManager.isDeviceIdleMode();
+    }
+
+    private boolean isUnderlyingNetworkMetered() {
+        if (this.connectivityManager == null) {
+            return true;
+        }
+        // The VPN network is declared not metered, check the networks it runs on
+        ConnectivityManager connectivityManager = this.connectivityManager;
+        return Arrays.stream(connectivityManager.getAllNetworks())
+                .map(connectivityManager::getNetworkCapabilities)
+                .filter(Objects::nonNull)
+                .filter(capabilities -> !capabilities.hasTransport(TRANSPORT_VPN))
+                .filter(capabilities -> capabilities.hasCapability(NET_CAPABILITY_INTERNET))
+                .noneMatch(capabilities -> capabilities.hasCapability(NET_CAPABILITY_NOT_METERED));
+    }
+}
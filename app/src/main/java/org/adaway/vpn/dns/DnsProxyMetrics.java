@@ -0,0 +1,155 @@
+package org.adaway.vpn.dns;
+
+import androidx.annotation.Nullable;
+
+import org.adaway.util.metrics.OpenMetricsWriter;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class exposes the counters of the running DNS packet proxy.
+ * <p>
+ * The proxy registers itself while the VPN is running. Its counters are written by the VPN worker thread and could
+ * be dumped from any thread, from the debug preferences or with
+ * {@code adb shell dumpsys activity service org.adaway/.vpn.VpnService}, or exported in the OpenMetrics format.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class DnsProxyMetrics {
+    private static final DnsProxyMetrics INSTANCE = new DnsProxyMetrics();
+    /**
+     * The running proxy, {@code null} if the VPN is not running.
+     */
+    @Nullable
+    private volatile DnsPacketProxy proxy;
+
+    private DnsProxyMetrics() {
+        this.proxy = null;
+    }
+
+    /**
+     * Get the DNS proxy metrics instance.
+     *
+     * @return The DNS proxy metrics instance.
+     */
+    public static DnsProxyMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set the running proxy.
+     *
+     * @param proxy The running proxy, {@code null} if the VPN is stopped.
+     */
+    void setProxy(@Nullable DnsPacketProxy proxy) {
+        this.proxy = proxy;
+    }
+
+    /**
+     * Dump the proxy counters.
+     *
+     * @return The proxy counters, one component per line, empty if the VPN is not running.
+     */
+    public String dump() {
+        DnsPacketProxy proxy = this.proxy;
+        if (proxy == null) {
+            return "";
+        }
+        DnsAnswerCache answerCache = proxy.getAnswerCache();
+        DnsCnameInspector cnameInspector = proxy.getCnameInspector();
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ROOT,
+                "Answer cache: hit rate=%.1f%% hits=%d stale hits=%d raised TTL hits=%d misses=%d evictions=%d "
+                        + "memory=%dKB%n",
+                100D * answerCache.getHitRate(),
+                answerCache.getHitCount(),
+                answerCache.getStaleHitCount(),
+                answerCache.getRaisedTtlHitCount(),
+                answerCache.getMissCount(),
+                answerCache.getEvictionCount(),
+                answerCache.getMemoryUsage() / 1024
+        ));
+        builder.append(String.format(Locale.ROOT,
+                "Queries: coalesced=%d prefetched=%d saved by synthesized TTLs=%d raised TTLs=%d%n",
+                proxy.getCoalescedQueryCount(),
+                proxy.getPrefetchCount(),
+                proxy.getSynthesizedTtlPolicy().getSavedQueryCount(),
+                proxy.getTtlClamp().getRaisedCount()
+        ));
+        builder.append(String.format(Locale.ROOT,
+                "CNAME inspection: answers=%d checked names=%d cloaked=%d%n",
+                cnameInspector.getInspectedCount(),
+                cnameInspector.getCheckedNameCount(),
+                cnameInspector.getCloakedCount()
+        ));
+        DnsFloodGuard floodGuard = proxy.getFloodGuard();
+        builder.append(String.format(Locale.ROOT, "Flood guard: limited=%d%n", floodGuard.getLimitedCount()));
+        for (Map.Entry<String, Long> offender : floodGuard.getOffenders().entrySet()) {
+            builder.append(String.format(Locale.ROOT, "  %s: limited=%d%n", offender.getKey(), offender.getValue()));
+        }
+        builder.append(proxy.getUpstreamSelector().dump());
+        return builder.toString();
+    }
+
+    /**
+     * Write the proxy counters in the OpenMetrics format.
+     *
+     * @param writer The writer to write metrics to.
+     */
+    public void writeMetrics(OpenMetricsWriter writer) {
+        DnsPacketProxy proxy = this.proxy;
+        if (proxy == null) {
+            return;
+        }
+        DnsAnswerCache answerCache = proxy.getAnswerCache();
+        writer.family("adaway_vpn_dns_answer_cache_lookups", OpenMetricsWriter.COUNTER,
+                "The upstream answer cache lookups, stale hits being included in hits.");
+        writer.sample("adaway_vpn_dns_answer_cache_lookups_total").label("result", "hit")
+                .value(answerCache.getHitCount());
+        writer.sample("adaway_vpn_dns_answer_cache_lookups_total").label("result", "stale_hit")
+                .value(answerCache.getStaleHitCount());
+        writer.sample("adaway_vpn_dns_answer_cache_lookups_total").label("result", "raised_ttl_hit")
+                .value(answerCache.getRaisedTtlHitCount());
+        writer.sample("adaway_vpn_dns_answer_cache_lookups_total").label("result", "miss")
+                .value(answerCache.getMissCount());
+        writer.family("adaway_vpn_dns_answer_cache_evictions", OpenMetricsWriter.COUNTER,
+                "The upstream answers evicted to respect the cache memory budget.");
+        writer.sample("adaway_vpn_dns_answer_cache_evictions_total").value(answerCache.getEvictionCount());
+        writer.family("adaway_vpn_dns_answer_cache_memory_bytes", OpenMetricsWriter.GAUGE,
+                "The estimated memory usage of the upstream answer cache.");
+        writer.sample("adaway_vpn_dns_answer_cache_memory_bytes").value(answerCache.getMemoryUsage());
+        writer.family("adaway_vpn_dns_coalesced_queries", OpenMetricsWriter.COUNTER,
+                "The queries attached to an identical in flight query instead of being sent upstream.");
+        writer.sample("adaway_vpn_dns_coalesced_queries_total").value(proxy.getCoalescedQueryCount());
+        writer.family("adaway_vpn_dns_prefetched_answers", OpenMetricsWriter.COUNTER,
+                "The popular cached answers prefetched before their expiration.");
+        writer.sample("adaway_vpn_dns_prefetched_answers_total").value(proxy.getPrefetchCount());
+        writer.family("adaway_vpn_dns_synthesized_saved_queries", OpenMetricsWriter.COUNTER,
+                "The estimated queries saved by backing off the TTL of blocked and redirected answers.");
+        writer.sample("adaway_vpn_dns_synthesized_saved_queries_total")
+                .value(proxy.getSynthesizedTtlPolicy().getSavedQueryCount());
+        writer.family("adaway_vpn_dns_raised_ttl_answers", OpenMetricsWriter.COUNTER,
+                "The upstream answers whose TTL was raised to the minimum TTL.");
+        writer.sample("adaway_vpn_dns_raised_ttl_answers_total").value(proxy.getTtlClamp().getRaisedCount());
+        DnsCnameInspector cnameInspector = proxy.getCnameInspector();
+        writer.family("adaway_vpn_dns_cname_inspected_answers", OpenMetricsWriter.COUNTER,
+                "The upstream answers inspected for CNAME cloaking.");
+        writer.sample("adaway_vpn_dns_cname_inspected_answers_total").value(cnameInspector.getInspectedCount());
+        writer.family("adaway_vpn_dns_cname_cloaked_answers", OpenMetricsWriter.COUNTER,
+                "The upstream answers blocked as aliases of blocked hosts.");
+        writer.sample("adaway_vpn_dns_cname_cloaked_answers_total").value(cnameInspector.getCloakedCount());
+        DnsFloodGuard floodGuard = proxy.getFloodGuard();
+        writer.family("adaway_vpn_dns_limited_queries", OpenMetricsWriter.COUNTER,
+                "The identical queries refused for flooding the VPN.");
+        writer.sample("adaway_vpn_dns_limited_queries_total").value(floodGuard.getLimitedCount());
+        writer.family("adaway_vpn_dns_flood_offender_limited_queries", OpenMetricsWriter.GAUGE,
+                "The refused queries of the most recently limited names.");
+        for (Map.Entry<String, Long> offender : floodGuard.getOffenders().entrySet()) {
+            writer.sample("adaway_vpn_dns_flood_offender_limited_queries")
+                    .label("name", offender.getKey())
+                    .value(offender.getValue());
+        }
+        proxy.getUpstreamSelector().writeMetrics(writer);
+    }
+}
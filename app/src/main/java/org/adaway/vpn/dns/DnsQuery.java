@@ -8,6 +8,7 @@ import android.system.StructPollfd;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.util.Arrays;
 import java.util.function.Consumer;
 
 import timber.log.Timber;
@@ -18,6 +19,10 @@ import timber.log.Timber;
  * @author Bruce BUJON
  */
 class DnsQuery implements AutoCloseable {
+    /**
+     * The query identifier, unique within the queue.
+     */
+    private final int id;
     /**
      * The socket used to query DNS server.
      */
@@ -26,38 +31,68 @@ class DnsQuery implements AutoCloseable {
      * The callback to call with the query response data.
      */
     private final Consumer<byte[]> callback;
+    /**
+     * The callback to call if the query times out.
+     */
+    private final Runnable timeoutCallback;
     /**
      * The pollfd related to the query to poll the OS with.
      */
     private final StructPollfd pollfd;
     /**
-     * The query creation time, UNIX timestamp in seconds).
+     * The query send time (in ms, from {@link android.os.SystemClock#elapsedRealtime()}).
+     */
+    private final long sendTime;
+    /**
+     * The time to wait for the response (in ms).
      */
-    private final long time;
+    private final int timeout;
+    /**
+     * The query deadline in the queue timing wheel.
+     */
+    private DnsTimingWheel.Timeout<DnsQuery> deadline;
 
     /**
      * Constructor.
      *
-     * @param socket   The socket used to query DNS server.
-     * @param callback The callback to call with the query response data.
+     * @param id              The query identifier, unique within the queue.
+     * @param socket          The socket used to query DNS server.
+     * @param sendTime        The query send time (in ms).
+     * @param timeout         The time to wait for the response (in ms).
+     * @param callback        The callback to call with the query response data.
+     * @param timeoutCallback The callback to call if the query times out.
      */
-    DnsQuery(DatagramSocket socket, Consumer<byte[]> callback) {
+    DnsQuery(int id, DatagramSocket socket, long sendTime, int timeout, Consumer<byte[]> callback,
+             Runnable timeoutCallback) {
+        this.id = id;
         this.socket = socket;
+        this.sendTime = sendTime;
+        this.timeout = timeout;
         this.callback = callback;
-        this.time = System.currentTimeMillis() / 1000;
+        this.timeoutCallback = timeoutCallback;
         this.pollfd = new StructPollfd();
         this.pollfd.fd = ParcelFileDescriptor.fromDatagramSocket(this.socket).getFileDescriptor();
         this.pollfd.events = (short) POLLIN;
     }
 
-    /**
-     * Check whether a query is older than a timestamp.
-     *
-     * @param timestamp The UNIX timestamp (in seconds) to compare query time with.
-     * @return <code>true</code> if the query is older than the given timestamp, <code>false</code> otherwise.
-     */
-    boolean isOlderThan(long timestamp) {
-        return this.time < timestamp;
+    int getId() {
+        return this.id;
+    }
+
+    long getSendTime() {
+        return this.sendTime;
+    }
+
+    int getTimeout() {
+        return this.timeout;
+    }
+
+    DnsTimingWheel.Timeout<DnsQuery> getDeadline() {
+        return this.deadline;
+    }
+
+    void setDeadline(DnsTimingWheel.Timeout<DnsQuery> deadline) {
+        this.deadline = deadline;
     }
 
     /**
@@ -79,13 +114,22 @@ class DnsQuery implements AutoCloseable {
 
     /**
      * Read DNS query response and notify callback.
+     * <p>
+     * Responses shorter than a DNS header are dropped and the query is handled as timed out.
+     *
+     * @param responseData The buffer to read the response into, large enough for any DNS message.
      */
-    void handleResponse() {
+    void handleResponse(byte[] responseData) {
         try {
-            byte[] responseData = new byte[1024];
             DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length);
             this.socket.receive(responsePacket);
-            this.callback.accept(responseData);
+            int length = responsePacket.getLength();
+            if (length < DnsWire.HEADER_LENGTH) {
+                Timber.w("Dropping DNS response of %d bytes.", length);
+                this.timeoutCallback.run();
+                return;
+            }
+            this.callback.accept(Arrays.copyOf(responseData, length));
         } catch (IOException e) {
             Timber.w(e, "Could not handle DNS response.");
         } finally {
@@ -93,6 +137,14 @@ class DnsQuery implements AutoCloseable {
         }
     }
 
+    /**
+     * Close the query and notify its timeout callback.
+     */
+    void handleTimeout() {
+        close();
+        this.timeoutCallback.run();
+    }
+
     @Override
     public void close() {
         this.socket.close();
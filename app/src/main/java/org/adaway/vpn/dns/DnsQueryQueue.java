@@ -1,11 +1,15 @@
 package org.adaway.vpn.dns;
 
+import android.os.SystemClock;
 import android.system.StructPollfd;
 
+import androidx.annotation.Nullable;
+
 import java.net.DatagramSocket;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.function.Consumer;
 
 import timber.log.Timber;
@@ -13,6 +17,9 @@ import timber.log.Timber;
 /**
  * This class represents the running DNS queries queue.<br>
  * This queue is time and space bound.
+ * <p>
+ * Pending queries are indexed by identifier and their deadlines are tracked in a timing wheel.
+ * The time to wait for a response adapts to the observed upstream round trip times.
  *
  * @author Bruce BUJON
  */
@@ -22,52 +29,155 @@ public class DnsQueryQueue {
      */
     private static final int DNS_MAXIMUM_WAITING = 1024;
     /**
-     * The maximum time to wait for the response (in seconds).
+     * The default maximum time to wait for the response (in ms).
+     */
+    public static final int DEFAULT_MAXIMUM_TIMEOUT_MS = 10_000;
+    /**
+     * The maximum DNS response size (in bytes).
+     */
+    private static final int MAX_RESPONSE_SIZE = 65_535;
+    /**
+     * The pending queries by identifier (older queries first).
+     */
+    private final LinkedHashMap<Integer, DnsQuery> queries;
+    /**
+     * The query deadlines.
+     */
+    private final DnsTimingWheel<DnsQuery> deadlines;
+    /**
+     * The adaptive query timeout.
+     */
+    private final DnsQueryTimeout queryTimeout;
+    /**
+     * The queries timed out by {@link #handleTimeouts()}, reused between calls.
      */
-    private static final long DNS_TIMEOUT_SEC = 10;
+    private final List<DnsQuery> timedOutQueries;
     /**
-     * The packet queue (older packets first, in the queue head).
+     * The queries whose pollfds were last returned by {@link #getQueryFds()}, {@code null} if pending queries changed
+     * since.
      */
-    private final Queue<DnsQuery> queries;
+    @Nullable
+    private DnsQuery[] polledQueries;
+    /**
+     * The pollfds of {@link #polledQueries}.
+     */
+    private StructPollfd[] polledFds;
+    /**
+     * The buffer to read responses into.
+     */
+    private final byte[] responseBuffer;
+    /**
+     * The next query identifier.
+     */
+    private int nextId;
 
     /**
      * Constructor.
      */
     public DnsQueryQueue() {
-        this.queries = new LinkedList<>();
+        this.queries = new LinkedHashMap<>();
+        this.deadlines = new DnsTimingWheel<>(SystemClock.elapsedRealtime());
+        this.queryTimeout = new DnsQueryTimeout(DEFAULT_MAXIMUM_TIMEOUT_MS);
+        this.timedOutQueries = new ArrayList<>();
+        this.polledQueries = null;
+        this.polledFds = new StructPollfd[0];
+        this.responseBuffer = new byte[MAX_RESPONSE_SIZE];
+        this.nextId = 0;
+    }
+
+    /**
+     * Set the maximum time to wait for a response.
+     *
+     * @param maximumTimeout The maximum time to wait for a response (in ms).
+     */
+    public void setMaximumTimeout(int maximumTimeout) {
+        this.queryTimeout.setMaximumTimeout(maximumTimeout);
+    }
+
+    /**
+     * Get the time to wait for a response, adapted to the observed upstream round trip times.
+     *
+     * @return The time to wait for a response (in ms).
+     */
+    public int getQueryTimeout() {
+        return this.queryTimeout.get();
     }
 
     /**
      * Add DNS query to the queue.
+     * <p>
+     * If the queue is full, the oldest query is dropped and its timeout callback is notified.
      *
-     * @param socket   The socket used to query DNS server.
-     * @param callback The callback to call with the query response data.
+     * @param socket          The socket used to query DNS server.
+     * @param timeout         The time to wait for the response (in ms).
+     * @param callback        The callback to call with the query response data.
+     * @param timeoutCallback The callback to call if the query times out.
      */
-    public void addQuery(DatagramSocket socket, Consumer<byte[]> callback) {
-        // Apply time constraint by removing timed out queries
-        clearTimedOutQueries();
+    public void addQuery(DatagramSocket socket, int timeout, Consumer<byte[]> callback, Runnable timeoutCallback) {
         // Apply space constraint by removing older packet if queue is full
-        ensureFreeSpace();
+        DnsQuery droppedQuery = ensureFreeSpace();
         // Add query to the queue
-        DnsQuery query = new DnsQuery(socket, callback);
-        this.queries.add(query);
+        long now = SystemClock.elapsedRealtime();
+        DnsQuery query = new DnsQuery(this.nextId++, socket, now, timeout, callback, timeoutCallback);
+        query.setDeadline(this.deadlines.schedule(query, now + timeout));
+        this.queries.put(query.getId(), query);
+        this.polledQueries = null;
+        // Notify after addition as callbacks may add new queries
+        if (droppedQuery != null) {
+            droppedQuery.handleTimeout();
+        }
     }
 
-    private void ensureFreeSpace() {
-        if (this.queries.size() > DNS_MAXIMUM_WAITING) {
-            DnsQuery oldestQuery = this.queries.remove();
-            Timber.d("Dropping query due to space constraints: %s.", oldestQuery);
-            oldestQuery.close();
+    @Nullable
+    private DnsQuery ensureFreeSpace() {
+        if (this.queries.size() < DNS_MAXIMUM_WAITING) {
+            return null;
         }
+        Iterator<DnsQuery> iterator = this.queries.values().iterator();
+        DnsQuery oldestQuery = iterator.next();
+        iterator.remove();
+        this.deadlines.cancel(oldestQuery.getDeadline());
+        this.polledQueries = null;
+        Timber.d("Dropping query due to space constraints: %s.", oldestQuery);
+        return oldestQuery;
     }
 
-    private void clearTimedOutQueries() {
-        long now = System.currentTimeMillis() / 1000;
-        while (!this.queries.isEmpty() && this.queries.element().isOlderThan(now - DNS_TIMEOUT_SEC)) {
-            DnsQuery timedOutQuery = this.queries.remove();
+    /**
+     * Remove timed out queries and notify their timeout callback.
+     */
+    public void handleTimeouts() {
+        if (this.deadlines.size() == 0) {
+            return;
+        }
+        List<DnsQuery> timedOutQueries = this.timedOutQueries;
+        this.deadlines.expire(SystemClock.elapsedRealtime(), timedOutQueries);
+        if (timedOutQueries.isEmpty()) {
+            return;
+        }
+        for (DnsQuery timedOutQuery : timedOutQueries) {
+            this.queries.remove(timedOutQuery.getId());
+            this.polledQueries = null;
+        }
+        // Notify after removal as callbacks may add new queries
+        for (DnsQuery timedOutQuery : timedOutQueries) {
             Timber.d("Query %s timed out.", timedOutQuery);
-            timedOutQuery.close();
+            this.queryTimeout.reportTimeout(timedOutQuery.getTimeout());
+            timedOutQuery.handleTimeout();
+        }
+        timedOutQueries.clear();
+    }
+
+    /**
+     * Get the time until the next query deadline.
+     *
+     * @return The time until the next query deadline (in ms), {@code -1} if there is no pending query.
+     */
+    public int getPollTimeout() {
+        long nextDeadline = this.deadlines.getNextDeadline();
+        if (nextDeadline < 0) {
+            return -1;
         }
+        return (int) Math.max(0, nextDeadline - SystemClock.elapsedRealtime());
     }
 
     /**
@@ -85,21 +195,32 @@ public class DnsQueryQueue {
      * @return The query pollfds.
      */
     public StructPollfd[] getQueryFds() {
-        return this.queries.stream()
-                .map(DnsQuery::getPollfd)
-                .toArray(StructPollfd[]::new);
+        if (this.polledQueries == null) {
+            this.polledQueries = this.queries.values().toArray(new DnsQuery[0]);
+            this.polledFds = new StructPollfd[this.polledQueries.length];
+            for (int i = 0; i < this.polledQueries.length; i++) {
+                this.polledFds[i] = this.polledQueries[i].getPollfd();
+            }
+        }
+        return this.polledFds;
     }
 
     /**
      * Handle any responded query.
      */
     public void handleResponses() {
-        Iterator<DnsQuery> iterator = this.queries.iterator();
-        while (iterator.hasNext()) {
-            DnsQuery query = iterator.next();
-            if (query.isAnswered()) {
-                iterator.remove();
-                query.handleResponse();
+        DnsQuery[] queries = this.polledQueries;
+        if (queries == null) {
+            // Pending queries changed since last poll, check them all
+            queries = this.queries.values().toArray(new DnsQuery[0]);
+        }
+        long now = SystemClock.elapsedRealtime();
+        for (DnsQuery query : queries) {
+            if (query.isAnswered() && this.queries.remove(query.getId()) != null) {
+                this.deadlines.cancel(query.getDeadline());
+                this.polledQueries = null;
+                this.queryTimeout.reportResponse(now - query.getSendTime());
+                query.handleResponse(this.responseBuffer);
             }
         }
     }
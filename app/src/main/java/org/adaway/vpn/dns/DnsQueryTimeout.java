@@ -0,0 +1,141 @@
+package org.adaway.vpn.dns;
+
+import java.util.Arrays;
+
+import timber.log.Timber;
+
+/**
+ * This class computes the time to wait for upstream responses from the observed round trip times.
+ * <p>
+ * The latest round trip times are kept in a ring buffer and their percentiles are computed periodically.
+ * The timeout is a multiple of the 99th percentile, bound by a minimum and the configured maximum.<br>
+ * Timed out queries are accounted with the timeout they waited for so a too short timeout grows back.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsQueryTimeout {
+    /**
+     * The number of round trip times to keep.
+     */
+    private static final int SAMPLE_COUNT = 256;
+    /**
+     * The number of round trip times to get before adapting the timeout.
+     */
+    private static final int MINIMUM_SAMPLE_COUNT = 16;
+    /**
+     * The number of new round trip times between two timeout updates.
+     */
+    private static final int UPDATE_PERIOD = 32;
+    /**
+     * The multiplier applied to the 99th percentile.
+     */
+    private static final int PERCENTILE_MULTIPLIER = 2;
+    /**
+     * The minimum timeout (in ms).
+     */
+    private static final int MINIMUM_TIMEOUT_MS = 1_000;
+    /**
+     * The latest round trip times (in ms).
+     */
+    private final int[] samples;
+    /**
+     * The sorted round trip times to compute percentiles with.
+     */
+    private final int[] sortedSamples;
+    /**
+     * The maximum timeout (in ms).
+     */
+    private int maximumTimeout;
+    /**
+     * The current timeout (in ms).
+     */
+    private int timeout;
+    private long sampleIndex;
+    private int samplesSinceUpdate;
+
+    /**
+     * Constructor.
+     *
+     * @param maximumTimeout The maximum timeout (in ms).
+     */
+    DnsQueryTimeout(int maximumTimeout) {
+        this.samples = new int[SAMPLE_COUNT];
+        this.sortedSamples = new int[SAMPLE_COUNT];
+        setMaximumTimeout(maximumTimeout);
+    }
+
+    /**
+     * Set the maximum timeout.
+     *
+     * @param maximumTimeout The maximum timeout (in ms).
+     */
+    void setMaximumTimeout(int maximumTimeout) {
+        this.maximumTimeout = Math.max(MINIMUM_TIMEOUT_MS, maximumTimeout);
+        this.timeout = this.maximumTimeout;
+        if (this.sampleIndex >= MINIMUM_SAMPLE_COUNT) {
+            update();
+        }
+    }
+
+    /**
+     * Get the time to wait for an upstream response.
+     *
+     * @return The time to wait for an upstream response (in ms).
+     */
+    int get() {
+        return this.timeout;
+    }
+
+    /**
+     * Report the round trip time of an answered query.
+     *
+     * @param rtt The query round trip time (in ms).
+     */
+    void reportResponse(long rtt) {
+        addSample((int) Math.min(rtt, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Report a query which did not get a response in time.
+     *
+     * @param timeout The time the query waited for (in ms).
+     */
+    void reportTimeout(int timeout) {
+        addSample(timeout);
+    }
+
+    /**
+     * Get a round trip time percentile.
+     *
+     * @param percentile The percentile to get, from {@code 0} to {@code 100}.
+     * @return The round trip time percentile (in ms), {@code -1} if there is no round trip time.
+     */
+    int getPercentile(int percentile) {
+        int count = (int) Math.min(this.sampleIndex, SAMPLE_COUNT);
+        if (count == 0) {
+            return -1;
+        }
+        System.arraycopy(this.samples, 0, this.sortedSamples, 0, count);
+        Arrays.sort(this.sortedSamples, 0, count);
+        int rank = Math.min(count - 1, (int) Math.ceil(percentile * count / 100D) - 1);
+        return this.sortedSamples[Math.max(0, rank)];
+    }
+
+    private void addSample(int rtt) {
+        this.samples[(int) (this.sampleIndex % SAMPLE_COUNT)] = rtt;
+        this.sampleIndex++;
+        this.samplesSinceUpdate++;
+        if (this.sampleIndex >= MINIMUM_SAMPLE_COUNT && this.samplesSinceUpdate >= UPDATE_PERIOD) {
+            update();
+        }
+    }
+
+    private void update() {
+        this.samplesSinceUpdate = 0;
+        int p99 = getPercentile(99);
+        this.timeout = Math.max(MINIMUM_TIMEOUT_MS, Math.min(this.maximumTimeout, PERCENTILE_MULTIPLIER * p99));
+        Timber.d("DNS query timeout set to %dms (p50=%dms, p99=%dms).", this.timeout, getPercentile(50), p99);
+    }
+}
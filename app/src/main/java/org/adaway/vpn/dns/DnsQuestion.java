@@ -0,0 +1,84 @@
+package org.adaway.vpn.dns;
+
+import androidx.annotation.NonNull;
+
+/**
+ * This class represents a DNS question: a name, a type, a class and the DNSSEC flags of the query.
+ * <p>
+ * It is used as key to identify identical queries. The DNSSEC flags are part of the key as they change the answer:
+ * DNSSEC aware clients get the signatures and unchecked answers, others do not.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class DnsQuestion {
+    /**
+     * The DNSSEC OK (DO) EDNS flag, the client accepts DNSSEC records.
+     */
+    static final int DNSSEC_OK = 0x01;
+    /**
+     * The checking disabled (CD) header flag, the client does not want the server to validate the answer.
+     */
+    static final int CHECKING_DISABLED = 0x02;
+    /**
+     * The question name (lower case).
+     */
+    final String name;
+    /**
+     * The question type.
+     */
+    final int type;
+    /**
+     * The question class.
+     */
+    final int dclass;
+    /**
+     * The query DNSSEC flags, {@link #DNSSEC_OK} and {@link #CHECKING_DISABLED}.
+     */
+    final int dnssecFlags;
+
+    /**
+     * Constructor.
+     *
+     * @param name   The question name (lower case).
+     * @param type   The question type.
+     * @param dclass The question class.
+     */
+    DnsQuestion(String name, int type, int dclass) {
+        this(name, type, dclass, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name        The question name (lower case).
+     * @param type        The question type.
+     * @param dclass      The question class.
+     * @param dnssecFlags The query DNSSEC flags, {@link #DNSSEC_OK} and {@link #CHECKING_DISABLED}.
+     */
+    DnsQuestion(String name, int type, int dclass, int dnssecFlags) {
+        this.name = name;
+        this.type = type;
+        this.dclass = dclass;
+        this.dnssecFlags = dnssecFlags;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DnsQuestion question = (DnsQuestion) o;
+        return this.type == question.type && this.dclass == question.dclass
+                && this.dnssecFlags == question.dnssecFlags && this.name.equals(question.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * this.name.hashCode() + this.type) + this.dclass) + this.dnssecFlags;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return this.name + " " + this.type + " " + this.dclass + " " + this.dnssecFlags;
+    }
+}
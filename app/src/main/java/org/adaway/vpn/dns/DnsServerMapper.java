@@ -21,6 +21,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -108,6 +109,15 @@ public class DnsServerMapper {
         return this.dnsServers.get(this.dnsServers.size() - 1);
     }
 
+    /**
+     * Get the original DNS servers.
+     *
+     * @return The original DNS server addresses.
+     */
+    List<InetAddress> getDnsServers() {
+        return Collections.unmodifiableList(this.dnsServers);
+    }
+
     /**
      * Get the original DNS server address from fake DNS server address.
      *
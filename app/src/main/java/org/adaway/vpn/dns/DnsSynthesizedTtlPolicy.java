@@ -0,0 +1,187 @@
+package org.adaway.vpn.dns;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * This class computes the TTL of the answers synthesized for blocked and redirected hosts.
+ * <p>
+ * Each host starts with its configured base TTL. When a client queries the same host again shortly after the
+ * previous answer expired, the TTL is doubled, up to a maximum TTL. Hosts not queried for a while go back to their
+ * base TTL.<br>
+ * After a rule change, the base TTLs are used for a short period and the back off is reset, so unblocked hosts are
+ * resolved again quickly.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ * Its counters are only written by this thread and could be read from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsSynthesizedTtlPolicy {
+    /**
+     * The default TTL of synthesized answers (in seconds).
+     */
+    static final long DEFAULT_TTL = 5;
+    /**
+     * The maximum number of hosts to track the TTL back off of.
+     */
+    private static final int MAX_TRACKED_HOSTS = 1024;
+    /**
+     * The time the base TTLs are used after a rule change (in ms).
+     */
+    private static final long RULE_CHANGE_PERIOD_MS = 60_000;
+    /**
+     * The number of answers between two statistics logs.
+     */
+    private static final int STATISTICS_LOG_PERIOD = 1000;
+    /**
+     * The TTL back off of tracked hosts, in access order (least recently used first).
+     */
+    private final LinkedHashMap<String, Backoff> backoffs;
+    /**
+     * The base TTL of blocked answers (in seconds).
+     */
+    private long blockedTtl;
+    /**
+     * The base TTL of redirected answers (in seconds).
+     */
+    private long redirectedTtl;
+    /**
+     * The maximum TTL of synthesized answers (in seconds).
+     */
+    private long maxTtl;
+    /**
+     * The end of the rule change period (UNIX timestamp in ms).
+     */
+    private long ruleChangePeriodEnd;
+    /**
+     * The estimated number of queries saved by the TTL back off.
+     */
+    private volatile long savedQueryCount;
+    private int answerCount;
+
+    /**
+     * Constructor.
+     */
+    public DnsSynthesizedTtlPolicy() {
+        this.backoffs = new LinkedHashMap<String, Backoff>(64, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Backoff> eldest) {
+                return size() > MAX_TRACKED_HOSTS;
+            }
+        };
+        this.blockedTtl = DEFAULT_TTL;
+        this.redirectedTtl = DEFAULT_TTL;
+        this.maxTtl = DEFAULT_TTL;
+        this.ruleChangePeriodEnd = 0;
+        this.savedQueryCount = 0;
+    }
+
+    /**
+     * Set the TTLs of synthesized answers.
+     *
+     * @param blockedTtl    The base TTL of blocked answers (in seconds).
+     * @param redirectedTtl The base TTL of redirected answers (in seconds).
+     * @param maxTtl        The maximum TTL of synthesized answers (in seconds), not lower than the base TTLs.
+     */
+    public void setTtls(long blockedTtl, long redirectedTtl, long maxTtl) {
+        this.blockedTtl = Math.max(1, blockedTtl);
+        this.redirectedTtl = Math.max(1, redirectedTtl);
+        this.maxTtl = Math.max(maxTtl, Math.max(this.blockedTtl, this.redirectedTtl));
+        this.backoffs.clear();
+    }
+
+    /**
+     * Notify the rules changed to use the base TTLs for a while.
+     */
+    public void onRulesChanged() {
+        onRulesChanged(System.currentTimeMillis());
+    }
+
+    void onRulesChanged(long now) {
+        this.ruleChangePeriodEnd = now + RULE_CHANGE_PERIOD_MS;
+        this.backoffs.clear();
+    }
+
+    /**
+     * Get the TTL of a blocked answer.
+     *
+     * @param host The blocked host.
+     * @return The answer TTL (in seconds).
+     */
+    public long getBlockedTtl(String host) {
+        return getTtl(host, this.blockedTtl, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the TTL of a redirected answer.
+     *
+     * @param host The redirected host.
+     * @return The answer TTL (in seconds).
+     */
+    public long getRedirectedTtl(String host) {
+        return getTtl(host, this.redirectedTtl, System.currentTimeMillis());
+    }
+
+    long getTtl(String host, long baseTtl, long now) {
+        if (now < this.ruleChangePeriodEnd) {
+            return baseTtl;
+        }
+        Backoff backoff = this.backoffs.get(host);
+        if (backoff == null) {
+            this.backoffs.put(host, new Backoff(baseTtl, now));
+            return baseTtl;
+        }
+        // Back off if queried again within twice the previous TTL, otherwise start over
+        long elapsed = now - backoff.lastAnswerTime;
+        if (elapsed >= backoff.ttl * 1000 && elapsed < 2 * backoff.ttl * 1000) {
+            backoff.ttl = Math.min(this.maxTtl, backoff.ttl * 2);
+        } else if (elapsed >= backoff.ttl * 1000) {
+            backoff.ttl = baseTtl;
+        }
+        backoff.lastAnswerTime = now;
+        // Each base TTL period covered by the longer TTL is a query the client will not send
+        this.savedQueryCount += (backoff.ttl - baseTtl) / baseTtl;
+        logStatistics();
+        return backoff.ttl;
+    }
+
+    /**
+     * Get the estimated number of queries saved by increasing the TTL of synthesized answers.
+     *
+     * @return The estimated number of saved queries.
+     */
+    public long getSavedQueryCount() {
+        return this.savedQueryCount;
+    }
+
+    private void logStatistics() {
+        this.answerCount++;
+        if (this.answerCount >= STATISTICS_LOG_PERIOD) {
+            Timber.d("Synthesized DNS answers TTL back off saved about %d queries (%d hosts tracked).",
+                    this.savedQueryCount, this.backoffs.size());
+            this.answerCount = 0;
+        }
+    }
+
+    /**
+     * This class is the TTL back off of a host.
+     */
+    private static final class Backoff {
+        /**
+         * The current TTL (in seconds).
+         */
+        private long ttl;
+        /**
+         * The last answer time (UNIX timestamp in ms).
+         */
+        private long lastAnswerTime;
+
+        private Backoff(long ttl, long lastAnswerTime) {
+            this.ttl = ttl;
+            this.lastAnswerTime = lastAnswerTime;
+        }
+    }
+}
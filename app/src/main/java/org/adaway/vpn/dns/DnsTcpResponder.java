@@ -0,0 +1,459 @@
+package org.adaway.vpn.dns;
+
+import androidx.annotation.Nullable;
+
+import org.pcap4j.packet.IpPacket;
+import org.pcap4j.packet.IpV4Packet;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.TcpMaximumSegmentSizeOption;
+import org.pcap4j.packet.TcpPacket;
+import org.pcap4j.packet.UnknownPacket;
+import org.pcap4j.packet.namednumber.TcpPort;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import timber.log.Timber;
+
+/**
+ * This class is a minimal TCP responder for the DNS queries sent over TCP to the VPN DNS servers.
+ * <p>
+ * Clients query again over TCP when their UDP answer is truncated (RFC 7766). As the tunnel only carries IP
+ * packets, this class terminates those TCP connections in user space: it accepts connections, acknowledges
+ * segments, reassembles the length-prefixed queries and writes back length-prefixed responses.<br>
+ * The tunnel to the local network stack neither loses nor reorders packets so there is no retransmission: out of
+ * sequence segments are dropped and acknowledged again for the client to send them back.<br>
+ * Idle connections are forgotten after 30 seconds.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsTcpResponder {
+    /**
+     * The DNS server port.
+     */
+    static final int DNS_PORT = 53;
+    /**
+     * The default maximum segment size if the client does not advertise one (in bytes).
+     */
+    private static final int DEFAULT_MAXIMUM_SEGMENT_SIZE = 536;
+    /**
+     * The advertised maximum segment size (in bytes).
+     */
+    private static final short MAXIMUM_SEGMENT_SIZE = 1220;
+    /**
+     * The advertised receive window (in bytes).
+     */
+    private static final short RECEIVE_WINDOW = (short) 0xFFFF;
+    /**
+     * The time after which an idle connection is forgotten (in ms).
+     */
+    private static final long IDLE_TIMEOUT_MS = 30_000;
+    /**
+     * The maximum number of open connections.
+     */
+    private static final int MAX_CONNECTIONS = 64;
+    /**
+     * The callback to write packets to the device.
+     */
+    private final Consumer<IpPacket> deviceWriter;
+    /**
+     * The handler of the received DNS queries.
+     */
+    private final QueryHandler queryHandler;
+    /**
+     * The open connections, in access order (least recently active first).
+     */
+    private final LinkedHashMap<Key, Connection> connections;
+    /**
+     * The initial sequence number generator.
+     */
+    private final Random random;
+
+    /**
+     * Constructor.
+     *
+     * @param deviceWriter The callback to write packets to the device.
+     * @param queryHandler The handler of the received DNS queries.
+     */
+    DnsTcpResponder(Consumer<IpPacket> deviceWriter, QueryHandler queryHandler) {
+        this.deviceWriter = deviceWriter;
+        this.queryHandler = queryHandler;
+        this.connections = new LinkedHashMap<>(16, 0.75F, true);
+        this.random = new Random();
+    }
+
+    /**
+     * Handle a TCP packet from the device.
+     *
+     * @param ipPacket   The IP packet holding the TCP segment.
+     * @param packetData The IP packet data.
+     * @throws IOException If a query could not be forwarded.
+     */
+    void handlePacket(IpPacket ipPacket, byte[] packetData) throws IOException {
+        Packet payload = ipPacket.getPayload();
+        if (!(payload instanceof TcpPacket)) {
+            Timber.i("Discarding invalid TCP packet %s.", ipPacket.getHeader());
+            return;
+        }
+        TcpPacket tcpPacket = (TcpPacket) payload;
+        TcpPacket.TcpHeader header = tcpPacket.getHeader();
+        long now = System.currentTimeMillis();
+        removeIdleConnections(now);
+        Key key = new Key(
+                ipPacket.getHeader().getSrcAddr(),
+                header.getSrcPort().valueAsInt(),
+                ipPacket.getHeader().getDstAddr()
+        );
+        if (header.getRst()) {
+            close(key);
+            return;
+        }
+        if (header.getSyn() && !header.getAck()) {
+            accept(key, ipPacket, tcpPacket, now);
+            return;
+        }
+        Connection connection = this.connections.get(key);
+        if (connection == null) {
+            reset(ipPacket, tcpPacket, getData(ipPacket, tcpPacket, packetData).length);
+            return;
+        }
+        connection.lastActivity = now;
+        if (connection.finSent && header.getAck() && header.getAcknowledgmentNumber() == connection.sequence) {
+            // Both sides are closed
+            close(key);
+            return;
+        }
+        byte[] data = getData(ipPacket, tcpPacket, packetData);
+        if (header.getSequenceNumber() != connection.clientSequence) {
+            if (data.length > 0 || header.getFin()) {
+                sendSegment(connection, null, false, false);
+            }
+            return;
+        }
+        if (data.length > 0) {
+            connection.clientSequence += data.length;
+            connection.append(data);
+        }
+        if (header.getFin()) {
+            connection.clientSequence++;
+            connection.clientClosed = true;
+        }
+        byte[] query;
+        while ((query = connection.nextQuery()) != null) {
+            connection.pendingResponseCount++;
+            this.queryHandler.handleQuery(ipPacket, query, response -> respond(connection, response));
+        }
+        if (connection.acknowledgedSequence != connection.clientSequence) {
+            // Acknowledge the received segment if no response did
+            sendSegment(connection, null, false, false);
+        }
+        closeIfDone(connection);
+    }
+
+    /**
+     * Get the number of open connections.
+     *
+     * @return The number of open connections.
+     */
+    int size() {
+        return this.connections.size();
+    }
+
+    private void accept(Key key, IpPacket ipPacket, TcpPacket tcpPacket, long now) {
+        TcpPacket.TcpHeader header = tcpPacket.getHeader();
+        if (header.getDstPort().valueAsInt() != DNS_PORT) {
+            reset(ipPacket, tcpPacket, 0);
+            return;
+        }
+        Connection connection = new Connection(
+                ipPacket,
+                header.getSrcPort(),
+                header.getDstPort(),
+                this.random.nextInt(),
+                header.getSequenceNumber() + 1,
+                getMaximumSegmentSize(header),
+                now
+        );
+        Connection previousConnection = this.connections.put(key, connection);
+        if (previousConnection != null) {
+            previousConnection.closed = true;
+        }
+        sendSegment(connection, null, true, false);
+        removeIdleConnections(now);
+    }
+
+    private void respond(Connection connection, byte[] response) {
+        if (connection.closed) {
+            return;
+        }
+        // Each message is prefixed by its length
+        byte[] message = new byte[2 + response.length];
+        message[0] = (byte) (response.length >>> 8);
+        message[1] = (byte) response.length;
+        System.arraycopy(response, 0, message, 2, response.length);
+        for (int offset = 0; offset < message.length; offset += connection.maximumSegmentSize) {
+            int length = Math.min(connection.maximumSegmentSize, message.length - offset);
+            sendSegment(connection, Arrays.copyOfRange(message, offset, offset + length), false, false);
+        }
+        connection.pendingResponseCount--;
+        closeIfDone(connection);
+    }
+
+    private void closeIfDone(Connection connection) {
+        if (connection.clientClosed && connection.pendingResponseCount <= 0 && !connection.finSent) {
+            sendSegment(connection, null, false, true);
+            connection.finSent = true;
+        }
+    }
+
+    private void sendSegment(Connection connection, @Nullable byte[] data, boolean syn, boolean fin) {
+        int length = data == null ? 0 : data.length;
+        List<TcpPacket.TcpOption> options = Collections.emptyList();
+        if (syn) {
+            options = Collections.singletonList(new TcpMaximumSegmentSizeOption.Builder()
+                    .maxSegSize(MAXIMUM_SEGMENT_SIZE)
+                    .correctLengthAtBuild(true)
+                    .build());
+        }
+        TcpPacket.Builder builder = new TcpPacket.Builder()
+                .srcPort(connection.serverPort)
+                .dstPort(connection.clientPort)
+                .sequenceNumber(connection.sequence)
+                .acknowledgmentNumber(connection.clientSequence)
+                .ack(true)
+                .syn(syn)
+                .psh(length > 0)
+                .fin(fin)
+                .window(RECEIVE_WINDOW)
+                .options(options)
+                .srcAddr(connection.requestPacket.getHeader().getDstAddr())
+                .dstAddr(connection.requestPacket.getHeader().getSrcAddr())
+                .correctChecksumAtBuild(true)
+                .correctLengthAtBuild(true)
+                .paddingAtBuild(true);
+        if (length > 0) {
+            builder.payloadBuilder(new UnknownPacket.Builder().rawData(data));
+        }
+        connection.sequence += length + (syn ? 1 : 0) + (fin ? 1 : 0);
+        connection.acknowledgedSequence = connection.clientSequence;
+        this.deviceWriter.accept(DnsPacketProxy.buildResponsePacket(connection.requestPacket, builder));
+    }
+
+    /**
+     * Reset a segment not matching any connection (RFC 793 reset generation).
+     *
+     * @param ipPacket  The IP packet holding the TCP segment.
+     * @param tcpPacket  The TCP segment.
+     * @param dataLength The TCP segment data length.
+     */
+    private void reset(IpPacket ipPacket, TcpPacket tcpPacket, int dataLength) {
+        TcpPacket.TcpHeader header = tcpPacket.getHeader();
+        TcpPacket.Builder builder = new TcpPacket.Builder()
+                .srcPort(header.getDstPort())
+                .dstPort(header.getSrcPort())
+                .rst(true)
+                .window((short) 0)
+                .options(Collections.emptyList())
+                .srcAddr(ipPacket.getHeader().getDstAddr())
+                .dstAddr(ipPacket.getHeader().getSrcAddr())
+                .correctChecksumAtBuild(true)
+                .correctLengthAtBuild(true)
+                .paddingAtBuild(true);
+        if (header.getAck()) {
+            builder.sequenceNumber(header.getAcknowledgmentNumber());
+        } else {
+            int segmentLength = dataLength + (header.getSyn() ? 1 : 0) + (header.getFin() ? 1 : 0);
+            builder.sequenceNumber(0)
+                    .acknowledgmentNumber(header.getSequenceNumber() + segmentLength)
+                    .ack(true);
+        }
+        this.deviceWriter.accept(DnsPacketProxy.buildResponsePacket(ipPacket, builder));
+    }
+
+    private void close(Key key) {
+        Connection connection = this.connections.remove(key);
+        if (connection != null) {
+            connection.closed = true;
+        }
+    }
+
+    private void removeIdleConnections(long now) {
+        Iterator<Connection> iterator = this.connections.values().iterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (this.connections.size() <= MAX_CONNECTIONS && now - connection.lastActivity < IDLE_TIMEOUT_MS) {
+                break;
+            }
+            connection.closed = true;
+            iterator.remove();
+        }
+    }
+
+    private static int getMaximumSegmentSize(TcpPacket.TcpHeader header) {
+        for (TcpPacket.TcpOption option : header.getOptions()) {
+            if (option instanceof TcpMaximumSegmentSizeOption) {
+                int maximumSegmentSize = ((TcpMaximumSegmentSizeOption) option).getMaxSegSizeAsInt();
+                if (maximumSegmentSize > 0) {
+                    return maximumSegmentSize;
+                }
+            }
+        }
+        return DEFAULT_MAXIMUM_SEGMENT_SIZE;
+    }
+
+    /**
+     * Get the TCP segment data.
+     * <p>
+     * It is read from the packet data as pcap4j decodes port 53 payloads as DNS messages, missing the length
+     * prefix and any partial message.
+     *
+     * @param ipPacket   The IP packet holding the TCP segment.
+     * @param tcpPacket  The TCP segment.
+     * @param packetData The IP packet data.
+     * @return The TCP segment data.
+     */
+    private static byte[] getData(IpPacket ipPacket, TcpPacket tcpPacket, byte[] packetData) {
+        int end = packetData.length;
+        if (ipPacket instanceof IpV4Packet) {
+            end = Math.min(end, ((IpV4Packet) ipPacket).getHeader().getTotalLengthAsInt());
+        }
+        int start = Math.min(end, ipPacket.getHeader().length() + tcpPacket.getHeader().length());
+        return Arrays.copyOfRange(packetData, start, end);
+    }
+
+    /**
+     * This interface handles the DNS queries received over TCP.
+     */
+    interface QueryHandler {
+        /**
+         * Handle a DNS query.
+         *
+         * @param ipPacket  The last IP packet holding the query.
+         * @param query     The DNS query message.
+         * @param responder The callback to send the DNS response message back.
+         * @throws IOException If the query could not be forwarded.
+         */
+        void handleQuery(IpPacket ipPacket, byte[] query, Consumer<byte[]> responder) throws IOException;
+    }
+
+    /**
+     * This class identifies a connection by its client address and port, and its server address.
+     */
+    private static final class Key {
+        private final InetAddress clientAddress;
+        private final int clientPort;
+        private final InetAddress serverAddress;
+
+        private Key(InetAddress clientAddress, int clientPort, InetAddress serverAddress) {
+            this.clientAddress = clientAddress;
+            this.clientPort = clientPort;
+            this.serverAddress = serverAddress;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return this.clientPort == key.clientPort &&
+                    this.clientAddress.equals(key.clientAddress) &&
+                    this.serverAddress.equals(key.serverAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.clientAddress, this.clientPort, this.serverAddress);
+        }
+    }
+
+    /**
+     * This class is the state of a connection.
+     */
+    private static final class Connection {
+        /**
+         * The connection first IP packet, used as template to write packets back.
+         */
+        private final IpPacket requestPacket;
+        private final TcpPort clientPort;
+        private final TcpPort serverPort;
+        /**
+         * The maximum size of the segments to send (in bytes).
+         */
+        private final int maximumSegmentSize;
+        /**
+         * The next sequence number to send.
+         */
+        private int sequence;
+        /**
+         * The next sequence number expected from the client.
+         */
+        private int clientSequence;
+        /**
+         * The last acknowledged client sequence number.
+         */
+        private int acknowledgedSequence;
+        /**
+         * The received data not yet forming a complete query.
+         */
+        private byte[] buffer;
+        private int bufferLength;
+        private int pendingResponseCount;
+        private boolean clientClosed;
+        private boolean finSent;
+        private boolean closed;
+        /**
+         * The last time a segment was received (UNIX timestamp in ms).
+         */
+        private long lastActivity;
+
+        private Connection(IpPacket requestPacket, TcpPort clientPort, TcpPort serverPort, int sequence,
+                           int clientSequence, int maximumSegmentSize, long now) {
+            this.requestPacket = requestPacket;
+            this.clientPort = clientPort;
+            this.serverPort = serverPort;
+            this.sequence = sequence;
+            this.clientSequence = clientSequence;
+            this.acknowledgedSequence = clientSequence;
+            this.maximumSegmentSize = maximumSegmentSize;
+            this.buffer = new byte[512];
+            this.bufferLength = 0;
+            this.lastActivity = now;
+        }
+
+        private void append(byte[] data) {
+            if (this.bufferLength + data.length > this.buffer.length) {
+                int capacity = Math.max(this.buffer.length * 2, this.bufferLength + data.length);
+                this.buffer = Arrays.copyOf(this.buffer, capacity);
+            }
+            System.arraycopy(data, 0, this.buffer, this.bufferLength, data.length);
+            this.bufferLength += data.length;
+        }
+
+        @Nullable
+        private byte[] nextQuery() {
+            while (this.bufferLength >= 2) {
+                int length = DnsWire.readUnsignedShort(this.buffer, 0);
+                if (this.bufferLength < 2 + length) {
+                    return null;
+                }
+                byte[] query = Arrays.copyOfRange(this.buffer, 2, 2 + length);
+                this.bufferLength -= 2 + length;
+                System.arraycopy(this.buffer, 2 + length, this.buffer, 0, this.bufferLength);
+                if (length >= DnsWire.HEADER_LENGTH) {
+                    return query;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.adaway.vpn.dns;
+
+import android.net.VpnService;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import timber.log.Timber;
+
+/**
+ * This class sends DNS queries upstream over TCP (RFC 7766).
+ * <p>
+ * It is used to query again the network DNS servers when their UDP answer is truncated. Each query uses its own
+ * short-lived connection from a small pool of threads. Like encrypted upstreams, each query gets a loopback socket
+ * the response is delivered to, so queries are polled and timed out by the {@link DnsQueryQueue} like UDP queries.
+ * Query sockets are connected to the response socket so other local applications cannot spoof responses.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsTcpUpstream implements AutoCloseable {
+    /**
+     * The maximum number of concurrent TCP queries.
+     */
+    private static final int MAX_CONCURRENT_QUERIES = 4;
+    /**
+     * The time to wait for the connection to the server and its response (in ms).
+     */
+    private static final int SOCKET_TIMEOUT_MS = 5_000;
+    /**
+     * The time to keep idle threads alive (in seconds).
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private final SocketFactory socketFactory;
+    private final ThreadPoolExecutor executor;
+    /**
+     * The socket to deliver responses to query loopback sockets.
+     */
+    private final DatagramSocket responseSocket;
+
+    /**
+     * Constructor.
+     *
+     * @param socketFactory The factory to create the connections.
+     * @throws IOException If the response socket could not be opened.
+     */
+    public DnsTcpUpstream(SocketFactory socketFactory) throws IOException {
+        this.socketFactory = socketFactory;
+        this.executor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_QUERIES,
+                MAX_CONCURRENT_QUERIES,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>()
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+        this.responseSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Create a TCP upstream for the VPN.
+     * <p>
+     * The connections are protected from the VPN.
+     *
+     * @param vpnService The VPN service to protect connections with.
+     * @return The TCP upstream.
+     * @throws IOException If the response socket could not be opened.
+     */
+    public static DnsTcpUpstream create(VpnService vpnService) throws IOException {
+        return new DnsTcpUpstream(new ProtectedSocketFactory(vpnService));
+    }
+
+    /**
+     * Send a DNS query.
+     *
+     * @param packet The DNS query message and the DNS server address.
+     * @return The socket the response will be received on.
+     * @throws IOException If the query socket could not be opened or the query could not be sent.
+     */
+    public DatagramSocket query(DatagramPacket packet) throws IOException {
+        byte[] message = Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+                packet.getOffset() + packet.getLength());
+        SocketAddress server = packet.getSocketAddress();
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        SocketAddress responseAddress = socket.getLocalSocketAddress();
+        try {
+            // Only accept the response from the response socket, not from any other local application
+            socket.connect(this.responseSocket.getLocalSocketAddress());
+            this.executor.execute(() -> send(message, server, responseAddress));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        } catch (RejectedExecutionException e) {
+            socket.close();
+            throw new IOException("TCP upstream is closed.", e);
+        }
+        return socket;
+    }
+
+    private void send(byte[] message, SocketAddress server, SocketAddress responseAddress) {
+        try (Socket socket = this.socketFactory.createSocket()) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            socket.connect(server, SOCKET_TIMEOUT_MS);
+            // Each message is prefixed by its length
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            output.writeShort(message.length);
+            output.write(message);
+            output.flush();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            byte[] response = new byte[input.readUnsignedShort()];
+            input.readFully(response);
+            this.responseSocket.send(new DatagramPacket(response, response.length, responseAddress));
+        } catch (IOException e) {
+            Timber.w(e, "Failed to query DNS server %s over TCP.", server);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+        this.responseSocket.close();
+    }
+}
@@ -0,0 +1,233 @@
+package org.adaway.vpn.dns;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * This class is a hashed timing wheel to track query deadlines.
+ * <p>
+ * Deadlines are hashed into slots by tick, scheduling and cancelling are constant time operations.
+ * Deadlines further than a wheel revolution share slots with nearer ones and are skipped until their
+ * revolution.<br>
+ * Deadlines keep their millisecond resolution, the tick only selects the slot to store them into.<br>
+ * The next deadline is cached and only looked up again, from the previous one, once it is cancelled or expired.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ *
+ * @param <T> The type of the scheduled values.
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsTimingWheel<T> {
+    /**
+     * The duration of a tick (in ms).
+     */
+    private static final int TICK_MS = 8;
+    /**
+     * The number of slots, must be a power of two.
+     */
+    private static final int WHEEL_SIZE = 2048;
+    /**
+     * The mask to get a slot from a tick.
+     */
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    /**
+     * The slots, each one being the head of a doubly linked list of timeouts.
+     */
+    private final Timeout<?>[] slots;
+    /**
+     * The wheel origin time (in ms).
+     */
+    private final long origin;
+    /**
+     * The current tick, every timeout of previous ticks is expired.
+     */
+    private long currentTick;
+    /**
+     * The number of scheduled timeouts.
+     */
+    private int size;
+    /**
+     * The next deadline (in ms), a lower bound of the scheduled deadlines if {@link #nextDeadlineStale}.
+     */
+    private long nextDeadline;
+    /**
+     * Whether the next deadline was cancelled or expired and must be looked up again.
+     */
+    private boolean nextDeadlineStale;
+
+    /**
+     * Constructor.
+     *
+     * @param now The current time (in ms).
+     */
+    DnsTimingWheel(long now) {
+        this.slots = new Timeout<?>[WHEEL_SIZE];
+        this.origin = now;
+        this.currentTick = 0;
+        this.size = 0;
+        this.nextDeadline = -1;
+        this.nextDeadlineStale = false;
+    }
+
+    /**
+     * Schedule a deadline.
+     *
+     * @param value    The value to get back once the deadline is expired.
+     * @param deadline The deadline (in ms).
+     * @return The timeout to cancel the deadline.
+     */
+    Timeout<T> schedule(T value, long deadline) {
+        long tick = Math.max(this.currentTick, getTick(deadline));
+        int slot = (int) (tick & WHEEL_MASK);
+        Timeout<T> timeout = new Timeout<>(value, deadline, slot);
+        Timeout<?> head = this.slots[slot];
+        timeout.next = head;
+        if (head != null) {
+            head.previous = timeout;
+        }
+        this.slots[slot] = timeout;
+        // Keep next deadline, or its lower bound if stale
+        if (this.size == 0) {
+            this.nextDeadline = deadline;
+            this.nextDeadlineStale = false;
+        } else {
+            this.nextDeadline = Math.min(this.nextDeadline, deadline);
+        }
+        this.size++;
+        return timeout;
+    }
+
+    /**
+     * Cancel a scheduled deadline.
+     *
+     * @param timeout The timeout to cancel.
+     */
+    void cancel(Timeout<T> timeout) {
+        if (timeout.cancelled) {
+            return;
+        }
+        timeout.cancelled = true;
+        if (timeout.previous == null) {
+            this.slots[timeout.slot] = timeout.next;
+        } else {
+            timeout.previous.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        this.size--;
+        if (timeout.deadline <= this.nextDeadline) {
+            this.nextDeadlineStale = true;
+        }
+    }
+
+    /**
+     * Remove the expired deadlines.
+     *
+     * @param now     The current time (in ms).
+     * @param expired The list to add the values of the expired deadlines to.
+     */
+    @SuppressWarnings("unchecked")
+    void expire(long now, List<T> expired) {
+        long nowTick = getTick(now);
+        if (nowTick < this.currentTick) {
+            return;
+        }
+        // Visit each slot at most once, even after a long idle period
+        long lastTick = Math.min(nowTick, this.currentTick + WHEEL_MASK);
+        for (long tick = this.currentTick; tick <= lastTick && this.size > 0; tick++) {
+            Timeout<?> timeout = this.slots[(int) (tick & WHEEL_MASK)];
+            while (timeout != null) {
+                Timeout<?> next = timeout.next;
+                if (timeout.deadline <= now) {
+                    cancel((Timeout<T>) timeout);
+                    expired.add((T) timeout.value);
+                }
+                timeout = next;
+            }
+        }
+        // Keep the current tick as it may hold deadlines later in the tick
+        this.currentTick = nowTick;
+        if (this.nextDeadline <= now) {
+            this.nextDeadlineStale = true;
+        }
+    }
+
+    /**
+     * Get the next deadline.
+     * <p>
+     * If no deadline is due within a wheel revolution of the previous next deadline, the end of the revolution is
+     * returned instead.
+     *
+     * @return The next deadline (in ms), {@code -1} if there is no scheduled deadline.
+     */
+    long getNextDeadline() {
+        if (this.size == 0) {
+            return -1;
+        }
+        if (this.nextDeadlineStale) {
+            // Look up from the previous next deadline as no scheduled deadline is before it
+            long fromTick = Math.max(this.currentTick, getTick(this.nextDeadline));
+            this.nextDeadline = findNextDeadline(fromTick);
+            this.nextDeadlineStale = false;
+        }
+        return this.nextDeadline;
+    }
+
+    private long findNextDeadline(long fromTick) {
+        for (long tick = fromTick; tick < fromTick + WHEEL_SIZE; tick++) {
+            long tickEnd = this.origin + (tick + 1) * TICK_MS;
+            long nextDeadline = Long.MAX_VALUE;
+            for (Timeout<?> timeout = this.slots[(int) (tick & WHEEL_MASK)]; timeout != null; timeout = timeout.next) {
+                if (timeout.deadline < tickEnd) {
+                    nextDeadline = Math.min(nextDeadline, timeout.deadline);
+                }
+            }
+            if (nextDeadline != Long.MAX_VALUE) {
+                return nextDeadline;
+            }
+        }
+        return this.origin + (fromTick + WHEEL_SIZE) * TICK_MS;
+    }
+
+    /**
+     * Get the number of scheduled deadlines.
+     *
+     * @return The number of scheduled deadlines.
+     */
+    int size() {
+        return this.size;
+    }
+
+    private long getTick(long time) {
+        return Math.max(0, (time - this.origin) / TICK_MS);
+    }
+
+    /**
+     * This class is a scheduled deadline.
+     *
+     * @param <T> The type of the scheduled value.
+     */
+    static final class Timeout<T> {
+        private final T value;
+        /**
+         * The deadline (in ms).
+         */
+        private final long deadline;
+        private final int slot;
+        @Nullable
+        private Timeout<?> previous;
+        @Nullable
+        private Timeout<?> next;
+        private boolean cancelled;
+
+        private Timeout(T value, long deadline, int slot) {
+            this.value = value;
+            this.deadline = deadline;
+            this.slot = slot;
+        }
+    }
+}
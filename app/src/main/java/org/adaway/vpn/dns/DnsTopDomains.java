@@ -0,0 +1,121 @@
+package org.adaway.vpn.dns;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import org.adaway.db.AppDatabase;
+import org.adaway.db.dao.TopDomainDao;
+import org.adaway.db.entity.TopDomain;
+import org.adaway.util.AppExecutors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * This class ranks the most queried and most blocked domains of the VPN.
+ * <p>
+ * Each ranking is estimated in memory with a bounded {@link DnsHeavyHitters}. Every ten minutes, and when the VPN
+ * stops, the top domains of the period are merged into the database and the estimation starts over. The database
+ * only keeps the top domains of each ranking so reading them stays cheap.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsTopDomains {
+    /**
+     * The number of domains kept in database for each ranking.
+     */
+    public static final int RANKING_SIZE = 100;
+    /**
+     * The number of monitored domains for each ranking.
+     */
+    private static final int CAPACITY = 512;
+    /**
+     * The period to merge rankings into database (in ms).
+     */
+    private static final long MERGE_PERIOD_MS = 10 * 60_000;
+    private final DnsHeavyHitters queried;
+    private final DnsHeavyHitters blocked;
+    @Nullable
+    private TopDomainDao topDomainDao;
+    private long lastMerge;
+
+    /**
+     * Constructor.
+     */
+    public DnsTopDomains() {
+        this.queried = new DnsHeavyHitters(CAPACITY);
+        this.blocked = new DnsHeavyHitters(CAPACITY);
+    }
+
+    /**
+     * Start merging the rankings into the database.
+     *
+     * @param context The application context.
+     */
+    void start(Context context) {
+        this.topDomainDao = AppDatabase.getInstance(context).topDomainDao();
+        this.lastMerge = System.currentTimeMillis();
+    }
+
+    /**
+     * Count a queried domain.
+     *
+     * @param domain    The queried domain, lower case and without trailing dot.
+     * @param isBlocked Whether the domain is blocked.
+     */
+    void onQuery(String domain, boolean isBlocked) {
+        this.queried.offer(domain);
+        if (isBlocked) {
+            this.blocked.offer(domain);
+        }
+        long now = System.currentTimeMillis();
+        if (now - this.lastMerge >= MERGE_PERIOD_MS) {
+            this.lastMerge = now;
+            merge();
+        }
+    }
+
+    /**
+     * Merge the pending rankings into the database and stop.
+     */
+    void stop() {
+        merge();
+        this.topDomainDao = null;
+    }
+
+    private void merge() {
+        TopDomainDao topDomainDao = this.topDomainDao;
+        if (topDomainDao == null || this.queried.isEmpty()) {
+            return;
+        }
+        List<TopDomain> queriedDomains = drain(this.queried, TopDomain.QUERIED);
+        List<TopDomain> blockedDomains = drain(this.blocked, TopDomain.BLOCKED);
+        AppExecutors.getInstance().diskIO().execute(() -> {
+            topDomainDao.merge(TopDomain.QUERIED, queriedDomains, RANKING_SIZE);
+            topDomainDao.merge(TopDomain.BLOCKED, blockedDomains, RANKING_SIZE);
+            Timber.d("Merged %d queried and %d blocked top domains.",
+                    queriedDomains.size(), blockedDomains.size());
+        });
+    }
+
+    private static List<TopDomain> drain(DnsHeavyHitters heavyHitters, int ranking) {
+        List<TopDomain> domains = new ArrayList<>();
+        for (DnsHeavyHitters.Entry entry : heavyHitters.top(RANKING_SIZE)) {
+            if (entry.count <= 0) {
+                continue;
+            }
+            TopDomain domain = new TopDomain();
+            domain.setRanking(ranking);
+            domain.setDomain(entry.name);
+            domain.setHits(entry.count);
+            domains.add(domain);
+        }
+        heavyHitters.clear();
+        return domains;
+    }
+}
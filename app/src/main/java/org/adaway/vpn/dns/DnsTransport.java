@@ -0,0 +1,40 @@
+package org.adaway.vpn.dns;
+
+import java.util.Arrays;
+
+/**
+ * This enum represents the transports to send DNS queries upstream with.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public enum DnsTransport {
+    /**
+     * Plain DNS over UDP to the network DNS servers.
+     */
+    UDP("udp"),
+    /**
+     * DNS over HTTPS (RFC 8484) to the configured endpoints.
+     */
+    DOH("doh"),
+    /**
+     * DNS over TLS (RFC 7858) to the configured servers.
+     */
+    DOT("dot");
+
+    private final String value;
+
+    DnsTransport(String value) {
+        this.value = value;
+    }
+
+    public static DnsTransport fromValue(String value) {
+        return Arrays.stream(DnsTransport.values())
+                .filter(transport -> transport.value.equals(value))
+                .findAny()
+                .orElse(UDP);
+    }
+
+    public String toValue() {
+        return this.value;
+    }
+}
@@ -0,0 +1,142 @@
+package org.adaway.vpn.dns;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * This class rewrites the TTLs of upstream answers between a minimum and a maximum TTL.
+ * <p>
+ * Some CDNs answer with TTLs of a few seconds, making applications resolve their hosts again and again through the
+ * VPN. Raising their TTL keeps the answers in the client and VPN caches longer.<br>
+ * Only positive answers are rewritten, in place in their wire format. Negative answers keep the TTL of their SOA
+ * record. Domains and their subdomains can be excluded from rewriting.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ * Its counters are only written by this thread and could be read from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsTtlClamp {
+    /**
+     * The maximum TTL value (in seconds), as defined by RFC 2181.
+     */
+    static final long MAX_TTL = Integer.MAX_VALUE;
+    /**
+     * The response code for no error.
+     */
+    private static final int RCODE_NOERROR = 0;
+    /**
+     * The minimum TTL (in seconds).
+     */
+    private long minTtl;
+    /**
+     * The maximum TTL (in seconds).
+     */
+    private long maxTtl;
+    /**
+     * The domains excluded from rewriting, lower case and without leading or trailing dots.
+     */
+    private Set<String> exceptions;
+    private volatile long raisedCount;
+
+    /**
+     * Constructor.
+     */
+    public DnsTtlClamp() {
+        this.minTtl = 0;
+        this.maxTtl = MAX_TTL;
+        this.exceptions = Collections.emptySet();
+        this.raisedCount = 0;
+    }
+
+    /**
+     * Set the TTL bounds.
+     *
+     * @param minTtl The minimum TTL (in seconds), {@code 0} for no minimum.
+     * @param maxTtl The maximum TTL (in seconds), {@code 0} for no maximum.
+     */
+    public void setBounds(long minTtl, long maxTtl) {
+        this.minTtl = Math.max(0, Math.min(MAX_TTL, minTtl));
+        this.maxTtl = maxTtl <= 0 ? MAX_TTL : Math.max(this.minTtl, Math.min(MAX_TTL, maxTtl));
+    }
+
+    /**
+     * Set the domains excluded from rewriting.
+     *
+     * @param exceptions The excluded domains, separated by commas or whitespaces. Their subdomains are excluded too.
+     */
+    public void setExceptions(String exceptions) {
+        Set<String> domains = new HashSet<>();
+        for (String domain : exceptions.split("[,\\s]+")) {
+            // Strip leading and trailing dots
+            domain = domain.toLowerCase(Locale.ENGLISH).replaceAll("^\\.+|\\.+$", "");
+            if (!domain.isEmpty()) {
+                domains.add(domain);
+            }
+        }
+        this.exceptions = domains;
+    }
+
+    /**
+     * Check whether the TTLs of upstream answers are rewritten.
+     *
+     * @return {@code true} if the TTLs are rewritten, {@code false} if the bounds let them unchanged.
+     */
+    public boolean isEnabled() {
+        return this.minTtl > 0 || this.maxTtl < MAX_TTL;
+    }
+
+    /**
+     * Rewrite the TTLs of an upstream answer, in place.
+     *
+     * @param name     The question name.
+     * @param response The upstream response.
+     * @return The minimum TTL of the upstream answer before rewriting (in seconds), {@code -1} if the answer was
+     * not rewritten.
+     */
+    long clamp(String name, byte[] response) {
+        if (!isEnabled()
+                || response.length < DnsWire.HEADER_LENGTH
+                || DnsWire.getRcode(response) != RCODE_NOERROR
+                || DnsWire.getAnswerCount(response) == 0
+                || isExcepted(name)) {
+            return -1;
+        }
+        long upstreamTtl = DnsWire.getMinimumTtl(response, response.length);
+        if (upstreamTtl < 0 || !DnsWire.clampTtls(response, response.length, this.minTtl, this.maxTtl)) {
+            return -1;
+        }
+        if (upstreamTtl < this.minTtl) {
+            this.raisedCount++;
+        }
+        return upstreamTtl;
+    }
+
+    /**
+     * Get the number of upstream answers whose TTL was raised to the minimum TTL.
+     *
+     * @return The number of raised answers.
+     */
+    public long getRaisedCount() {
+        return this.raisedCount;
+    }
+
+    private boolean isExcepted(String name) {
+        if (this.exceptions.isEmpty()) {
+            return false;
+        }
+        String domain = name.toLowerCase(Locale.ENGLISH);
+        while (true) {
+            if (this.exceptions.contains(domain)) {
+                return true;
+            }
+            int dot = domain.indexOf('.');
+            if (dot < 0) {
+                return false;
+            }
+            domain = domain.substring(dot + 1);
+        }
+    }
+}
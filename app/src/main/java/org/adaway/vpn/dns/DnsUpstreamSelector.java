@@ -0,0 +1,273 @@
+package org.adaway.vpn.dns;
+
+import androidx.annotation.Nullable;
+
+import org.adaway.util.metrics.OpenMetricsWriter;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * This class tracks the upstream DNS servers health and selects the server to send queries to.
+ * <p>
+ * Each server round trip time and error rate are tracked with exponentially weighted moving averages.
+ * Queries go to the server the client picked unless another healthy server is significantly faster.
+ * Servers failing consecutively are avoided for a while, then probed again.
+ * <p>
+ * This class is not thread safe and is expected to be used from the VPN worker thread only.
+ * Its statistics are only written by this thread and could be dumped from any thread.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsUpstreamSelector {
+    /**
+     * The weight of a new sample in the moving averages.
+     */
+    private static final double EWMA_WEIGHT = 0.2;
+    /**
+     * The number of consecutive failures after which a server is considered unhealthy.
+     */
+    private static final int UNHEALTHY_FAILURE_COUNT = 2;
+    /**
+     * The time after which an unhealthy server is probed again (in ms).
+     */
+    private static final long UNHEALTHY_PROBE_DELAY_MS = 30_000;
+    /**
+     * The score ratio from which another server is preferred to the requested one.
+     */
+    private static final double SWITCH_SCORE_RATIO = 1.5;
+    /**
+     * The attempt timeout bounds (in ms), before retrying on an alternate server.
+     */
+    private static final int MINIMUM_ATTEMPT_TIMEOUT_MS = 500;
+    private static final int MAXIMUM_ATTEMPT_TIMEOUT_MS = 2_500;
+    /**
+     * The time between two statistics logs (in ms).
+     */
+    private static final long STATISTICS_LOG_PERIOD_MS = 60_000;
+    /**
+     * The server health, by address.
+     */
+    private final Map<InetAddress, UpstreamHealth> healths;
+    /**
+     * The last time statistics were logged (UNIX timestamp in ms).
+     */
+    private long lastStatisticsLog;
+
+    /**
+     * Constructor.
+     */
+    public DnsUpstreamSelector() {
+        this.healths = new ConcurrentHashMap<>();
+        this.lastStatisticsLog = 0;
+    }
+
+    /**
+     * Select the server to send a query to.
+     *
+     * @param requested The server the client picked.
+     * @param servers   The available servers.
+     * @return The server to send the query to.
+     */
+    InetAddress select(InetAddress requested, List<InetAddress> servers) {
+        long now = System.currentTimeMillis();
+        UpstreamHealth requestedHealth = this.healths.get(requested);
+        InetAddress best = selectBest(servers, null, now);
+        if (best == null || best.equals(requested)) {
+            return requested;
+        }
+        if (requestedHealth == null) {
+            return requested;
+        }
+        if (!requestedHealth.isHealthy(now)) {
+            return best;
+        }
+        UpstreamHealth bestHealth = this.healths.get(best);
+        return bestHealth != null && requestedHealth.getScore() > SWITCH_SCORE_RATIO * bestHealth.getScore() ?
+                best : requested;
+    }
+
+    /**
+     * Select an alternate server to retry a query or to race it.
+     *
+     * @param excluded The server to exclude.
+     * @param servers  The available servers.
+     * @return The alternate server, {@code null} if there is no healthy alternate server.
+     */
+    @Nullable
+    InetAddress selectAlternate(InetAddress excluded, List<InetAddress> servers) {
+        return selectBest(servers, excluded, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the time to wait for a server response before retrying on an alternate server.
+     *
+     * @param server The server to get attempt timeout.
+     * @return The attempt timeout (in ms).
+     */
+    int getAttemptTimeout(InetAddress server) {
+        UpstreamHealth health = this.healths.get(server);
+        if (health == null || health.sampleCount == 0) {
+            return MAXIMUM_ATTEMPT_TIMEOUT_MS;
+        }
+        int timeout = (int) (4 * health.rttEwma);
+        return Math.max(MINIMUM_ATTEMPT_TIMEOUT_MS, Math.min(MAXIMUM_ATTEMPT_TIMEOUT_MS, timeout));
+    }
+
+    /**
+     * Report a server response.
+     *
+     * @param server The server which responded.
+     * @param rtt    The query round trip time (in ms).
+     */
+    void reportResponse(InetAddress server, long rtt) {
+        UpstreamHealth health = getHealth(server);
+        health.rttEwma = health.sampleCount == 0 ? rtt : health.rttEwma + EWMA_WEIGHT * (rtt - health.rttEwma);
+        health.errorEwma -= EWMA_WEIGHT * health.errorEwma;
+        health.sampleCount++;
+        health.responseCount++;
+        health.consecutiveFailures = 0;
+        logStatistics();
+    }
+
+    /**
+     * Report a server which did not respond in time.
+     *
+     * @param server The server which timed out.
+     */
+    void reportTimeout(InetAddress server) {
+        UpstreamHealth health = getHealth(server);
+        health.errorEwma += EWMA_WEIGHT * (1 - health.errorEwma);
+        health.timeoutCount++;
+        health.consecutiveFailures++;
+        health.lastFailure = System.currentTimeMillis();
+        Timber.d("DNS server %s timed out (%d consecutive failures).", server, health.consecutiveFailures);
+        logStatistics();
+    }
+
+    /**
+     * Dump the servers statistics.
+     *
+     * @return The servers statistics, one server per line.
+     */
+    public String dump() {
+        long now = System.currentTimeMillis();
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<InetAddress, UpstreamHealth> entry : this.healths.entrySet()) {
+            UpstreamHealth health = entry.getValue();
+            builder.append(String.format(Locale.ROOT,
+                    "%s: rtt=%.1fms errors=%.1f%% responses=%d timeouts=%d %s%n",
+                    entry.getKey().getHostAddress(),
+                    health.rttEwma,
+                    100 * health.errorEwma,
+                    health.responseCount,
+                    health.timeoutCount,
+                    health.isHealthy(now) ? "healthy" : "unhealthy"
+            ));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Write the servers statistics in the OpenMetrics format.
+     *
+     * @param writer The writer to write metrics to.
+     */
+    void writeMetrics(OpenMetricsWriter writer) {
+        long now = System.currentTimeMillis();
+        writer.family("adaway_vpn_dns_upstream_responses", OpenMetricsWriter.COUNTER,
+                "The responses of each upstream DNS server.");
+        for (Map.Entry<InetAddress, UpstreamHealth> entry : this.healths.entrySet()) {
+            writer.sample("adaway_vpn_dns_upstream_responses_total")
+                    .label("server", entry.getKey().getHostAddress())
+                    .value(entry.getValue().responseCount);
+        }
+        writer.family("adaway_vpn_dns_upstream_timeouts", OpenMetricsWriter.COUNTER,
+                "The timed out queries of each upstream DNS server.");
+        for (Map.Entry<InetAddress, UpstreamHealth> entry : this.healths.entrySet()) {
+            writer.sample("adaway_vpn_dns_upstream_timeouts_total")
+                    .label("server", entry.getKey().getHostAddress())
+                    .value(entry.getValue().timeoutCount);
+        }
+        writer.family("adaway_vpn_dns_upstream_healthy", OpenMetricsWriter.GAUGE,
+                "Whether each upstream DNS server is healthy (1) or avoided (0).");
+        for (Map.Entry<InetAddress, UpstreamHealth> entry : this.healths.entrySet()) {
+            writer.sample("adaway_vpn_dns_upstream_healthy")
+                    .label("server", entry.getKey().getHostAddress())
+                    .value(entry.getValue().isHealthy(now) ? 1 : 0);
+        }
+    }
+
+    @Nullable
+    private InetAddress selectBest(List<InetAddress> servers, @Nullable InetAddress excluded, long now) {
+        InetAddress best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (InetAddress server : servers) {
+            if (server.equals(excluded)) {
+                continue;
+            }
+            UpstreamHealth health = this.healths.get(server);
+            // Prefer unknown servers to learn about them
+            double score = health == null ? 0 : health.getScore();
+            if ((health == null || health.isHealthy(now)) && score < bestScore) {
+                best = server;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private UpstreamHealth getHealth(InetAddress server) {
+        UpstreamHealth health = this.healths.get(server);
+        if (health == null) {
+            health = new UpstreamHealth();
+            this.healths.put(server, health);
+        }
+        return health;
+    }
+
+    private void logStatistics() {
+        long now = System.currentTimeMillis();
+        if (now - this.lastStatisticsLog >= STATISTICS_LOG_PERIOD_MS) {
+            this.lastStatisticsLog = now;
+            Timber.d("DNS servers statistics:%n%s", dump());
+        }
+    }
+
+    /**
+     * This class represents the health of an upstream server.
+     */
+    private static class UpstreamHealth {
+        /**
+         * The round trip time moving average (in ms).
+         */
+        private volatile double rttEwma;
+        /**
+         * The error rate moving average, from {@code 0} to {@code 1}.
+         */
+        private volatile double errorEwma;
+        private int sampleCount;
+        private volatile long responseCount;
+        private volatile long timeoutCount;
+        private volatile int consecutiveFailures;
+        /**
+         * The last failure time (UNIX timestamp in ms).
+         */
+        private volatile long lastFailure;
+
+        private boolean isHealthy(long now) {
+            return this.consecutiveFailures < UNHEALTHY_FAILURE_COUNT ||
+                    now - this.lastFailure >= UNHEALTHY_PROBE_DELAY_MS;
+        }
+
+        private double getScore() {
+            double rtt = this.sampleCount == 0 ? MAXIMUM_ATTEMPT_TIMEOUT_MS : this.rttEwma;
+            return rtt * (1 + 4 * this.errorEwma);
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package org.adaway.vpn.dns;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * This utility class reads and updates DNS messages directly in their wire format.
+ * <p>
+ * It allows the VPN hot path to inspect and patch upstream responses without decoding and re-encoding them.
+ * All methods are bound to the given message length and fail gracefully on malformed messages.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class DnsWire {
+    /**
+     * The DNS message header length (in bytes).
+     */
+    static final int HEADER_LENGTH = 12;
+    /**
+     * The OPT pseudo record type, its TTL field holds EDNS flags instead of a TTL.
+     */
+    private static final int TYPE_OPT = 41;
+    /**
+     * The truncated (TC) flag mask in the third header byte.
+     */
+    private static final int TRUNCATED_MASK = 0x02;
+    /**
+     * The response (QR) flag mask in the third header byte.
+     */
+    private static final int QR_MASK = 0x80;
+    /**
+     * The operation code mask in the third header byte.
+     */
+    private static final int OPCODE_MASK = 0x78;
+    /**
+     * The recursion desired (RD) flag mask in the third header byte.
+     */
+    private static final int RD_MASK = 0x01;
+    /**
+     * The REFUSED response code.
+     */
+    private static final byte RCODE_REFUSED = 5;
+    /**
+     * The maximum UDP payload size of clients without EDNS (in bytes).
+     */
+    static final int DEFAULT_UDP_PAYLOAD_SIZE = 512;
+    /**
+     * The maximum number of compression pointers to follow in a domain name.
+     */
+    private static final int MAX_NAME_POINTERS = 64;
+
+    /**
+     * Private constructor.
+     */
+    private DnsWire() {
+
+    }
+
+    /**
+     * Get the message transaction identifier.
+     *
+     * @param message The DNS message.
+     * @return The message transaction identifier.
+     */
+    public static int getId(byte[] message) {
+        return readUnsignedShort(message, 0);
+    }
+
+    /**
+     * Set the message transaction identifier.
+     *
+     * @param message The DNS message to update, left untouched if shorter than the identifier.
+     * @param id      The message transaction identifier to set.
+     */
+    public static void setId(byte[] message, int id) {
+        if (message.length < 2) {
+            return;
+        }
+        message[0] = (byte) (id >>> 8);
+        message[1] = (byte) id;
+    }
+
+    /**
+     * Check whether the message is truncated (TC flag set).
+     *
+     * @param message The DNS message.
+     * @return {@code true} if the message is truncated, {@code false} otherwise or if the message is too short.
+     */
+    public static boolean isTruncated(byte[] message) {
+        return message.length > 2 && (message[2] & TRUNCATED_MASK) != 0;
+    }
+
+    /**
+     * Truncate a message to its header and question section, and set its TC flag.
+     * <p>
+     * It lets a UDP client know the answer does not fit its payload size and should be queried again over TCP.
+     *
+     * @param message The DNS message.
+     * @param length  The DNS message length.
+     * @return The truncated message.
+     */
+    public static byte[] truncate(byte[] message, int length) {
+        int questionsEnd = skipQuestions(message, length);
+        byte[] truncated = Arrays.copyOf(message, Math.max(questionsEnd, HEADER_LENGTH));
+        truncated[2] |= TRUNCATED_MASK;
+        if (questionsEnd < 0) {
+            // Drop malformed question section
+            truncated[4] = 0;
+            truncated[5] = 0;
+        }
+        // Clear answer, authority and additional record counts
+        Arrays.fill(truncated, 6, HEADER_LENGTH, (byte) 0);
+        return truncated;
+    }
+
+    /**
+     * Build a REFUSED response to a query from its header and question section.
+     * <p>
+     * It answers a query without decoding it, keeping its transaction identifier, operation code and RD flag.
+     *
+     * @param query  The DNS query message.
+     * @param length The DNS query message length.
+     * @return The REFUSED response, {@code null} if the query is malformed.
+     */
+    @Nullable
+    public static byte[] refuse(byte[] query, int length) {
+        int questionsEnd = skipQuestions(query, length);
+        if (questionsEnd < 0) {
+            return null;
+        }
+        byte[] response = Arrays.copyOf(query, questionsEnd);
+        // Set QR flag, keep operation code and RD flag, clear AA and TC flags
+        response[2] = (byte) (QR_MASK | (query[2] & (OPCODE_MASK | RD_MASK)));
+        // Clear RA, Z, AD and CD flags, and set response code
+        response[3] = RCODE_REFUSED;
+        // Clear answer, authority and additional record counts
+        Arrays.fill(response, 6, HEADER_LENGTH, (byte) 0);
+        return response;
+    }
+
+    /**
+     * Get the maximum UDP payload size the message sender can receive.
+     * <p>
+     * It is advertised by the EDNS OPT pseudo record class, and defaults to 512 bytes without EDNS.
+     *
+     * @param message The DNS message.
+     * @param length  The DNS message length.
+     * @return The maximum UDP payload size (in bytes).
+     */
+    public static int getUdpPayloadSize(byte[] message, int length) {
+        int offset = skipQuestions(message, length);
+        if (offset < 0) {
+            return DEFAULT_UDP_PAYLOAD_SIZE;
+        }
+        int recordCount = getRecordCount(message);
+        for (int i = 0; i < recordCount; i++) {
+            offset = skipName(message, offset, length);
+            if (offset < 0 || offset + 10 > length) {
+                break;
+            }
+            if (readUnsignedShort(message, offset) == TYPE_OPT) {
+                return Math.max(DEFAULT_UDP_PAYLOAD_SIZE, readUnsignedShort(message, offset + 2));
+            }
+            offset += 10 + readUnsignedShort(message, offset + 8);
+        }
+        return DEFAULT_UDP_PAYLOAD_SIZE;
+    }
+
+    /**
+     * Get the message response code (from header only, without EDNS extension).
+     *
+     * @param message The DNS message.
+     * @return The message response code.
+     */
+    public static int getRcode(byte[] message) {
+        return message[3] & 0x0F;
+    }
+
+    /**
+     * Get the minimum TTL of the message resource records.
+     * <p>
+     * EDNS OPT pseudo records are ignored.
+     *
+     * @param message The DNS message.
+     * @param length  The DNS message length.
+     * @return The minimum TTL (in seconds), {@code -1} if the message has no record or is malformed.
+     */
+    public static long getMinimumTtl(byte[] message, int length) {
+        int offset = skipQuestions(message, length);
+        if (offset < 0) {
+            return -1;
+        }
+        int recordCount = getRecordCount(message);
+        long minimumTtl = -1;
+        for (int i = 0; i < recordCount; i++) {
+            offset = skipName(message, offset, length);
+            if (offset < 0 || offset + 10 > length) {
+                return -1;
+            }
+            int type = readUnsignedShort(message, offset);
+            if (type != TYPE_OPT) {
+                long ttl = readUnsignedInt(message, offset + 4);
+                if (minimumTtl < 0 || ttl < minimumTtl) {
+                    minimumTtl = ttl;
+                }
+            }
+            offset += 10 + readUnsignedShort(message, offset + 8);
+        }
+        return offset > length ? -1 : minimumTtl;
+    }
+
+    /**
+     * Decrease the TTL of each message resource record, in place.
+     * <p>
+     * TTLs are floored to zero and EDNS OPT pseudo records are left untouched.
+     *
+     * @param message The DNS message to update.
+     * @param length  The DNS message length.
+     * @param elapsed The time to remove from each TTL (in seconds).
+     * @return {@code true} if all records were updated, {@code false} if the message is malformed.
+     */
+    public static boolean decreaseTtls(byte[] message, int length, long elapsed) {
+        int offset = skipQuestions(message, length);
+        if (offset < 0) {
+            return false;
+        }
+        int recordCount = getRecordCount(message);
+        for (int i = 0; i < recordCount; i++) {
+            offset = skipName(message, offset, length);
+            if (offset < 0 || offset + 10 > length) {
+                return false;
+            }
+            int type = readUnsignedShort(message, offset);
+            if (type != TYPE_OPT) {
+                long ttl = readUnsignedInt(message, offset + 4);
+                writeUnsignedInt(message, offset + 4, Math.max(0, ttl - elapsed));
+            }
+            offset += 10 + readUnsignedShort(message, offset + 8);
+        }
+        return offset <= length;
+    }
+
+    /**
+     * Set the TTL of each message resource record, in place.
+     * <p>
+     * EDNS OPT pseudo records are left untouched.
+     *
+     * @param message The DNS message to update.
+     * @param length  The DNS message length.
+     * @param ttl     The TTL to set (in seconds).
+     * @return {@code true} if all records were updated, {@code false} if the message is malformed.
+     */
+    public static boolean setTtls(byte[] message, int length, long ttl) {
+        int offset = skipQuestions(message, length);
+        if (offset < 0) {
+            return false;
+        }
+        int recordCount = getRecordCount(message);
+        for (int i = 0; i < recordCount; i++) {
+            offset = skipName(message, offset, length);
+            if (offset < 0 || offset + 10 > length) {
+                return false;
+            }
+            if (readUnsignedShort(message, offset) != TYPE_OPT) {
+                writeUnsignedInt(message, offset + 4, ttl);
+            }
+            offset += 10 + readUnsignedShort(message, offset + 8);
+        }
+        return offset <= length;
+    }
+
+    /**
+     * Clamp the TTL of each message resource record between bounds, in place.
+     * <p>
+     * EDNS OPT pseudo records are left untouched.
+     *
+     * @param message The DNS message to update.
+     * @param length  The DNS message length.
+     * @param minTtl  The minimum TTL (in seconds).
+     * @param maxTtl  The maximum TTL (in seconds), not lower than the minimum TTL.
+     * @return {@code true} if all records were updated, {@code false} if the message is malformed.
+     */
+    public static boolean clampTtls(byte[] message, int length, long minTtl, long maxTtl) {
+        int offset = skipQuestions(message, length);
+        if (offset < 0) {
+            return false;
+        }
+        int recordCount = getRecordCount(message);
+        for (int i = 0; i < recordCount; i++) {
+            offset = skipName(message, offset, length);
+            if (offset < 0 || offset + 10 > length) {
+                return false;
+            }
+            if (readUnsignedShort(message, offset) != TYPE_OPT) {
+                long ttl = readUnsignedInt(message, offset + 4);
+                writeUnsignedInt(message, offset + 4, Math.min(maxTtl, Math.max(minTtl, ttl)));
+            }
+            offset += 10 + readUnsignedShort(message, offset + 8);
+        }
+        return offset <= length;
+    }
+
+    /**
+     * Get the number of answer section resource records.
+     *
+     * @param message The DNS message.
+     * @return The number of answer section resource records.
+     */
+    static int getAnswerCount(byte[] message) {
+        return readUnsignedShort(message, 6);
+    }
+
+    /**
+     * Get the number of resource records of the answer, authority and additional sections.
+     *
+     * @param message The DNS message.
+     * @return The number of resource records.
+     */
+    static int getRecordCount(byte[] message) {
+        return readUnsignedShort(message, 6) + readUnsignedShort(message, 8) + readUnsignedShort(message, 10);
+    }
+
+    /**
+     * Skip the header and question section.
+     *
+     * @param message The DNS message.
+     * @param length  The DNS message length.
+     * @return The offset of the first resource record, {@code -1} if the message is malformed.
+     */
+    static int skipQuestions(byte[] message, int length) {
+        if (length < HEADER_LENGTH) {
+            return -1;
+        }
+        int questionCount = readUnsignedShort(message, 4);
+        int offset = HEADER_LENGTH;
+        for (int i = 0; i < questionCount; i++) {
+            offset = skipName(message, offset, length);
+            if (offset < 0 || offset + 4 > length) {
+                return -1;
+            }
+            offset += 4;
+        }
+        return offset;
+    }
+
+    /**
+     * Skip a domain name.
+     *
+     * @param message The DNS message.
+     * @param offset  The domain name offset.
+     * @param length  The DNS message length.
+     * @return The offset following the domain name, {@code -1} if the name is malformed.
+     */
+    static int skipName(byte[] message, int offset, int length) {
+        while (offset < length) {
+            int labelLength = message[offset] & 0xFF;
+            if (labelLength == 0) {
+                return offset + 1;
+            }
+            if ((labelLength & 0xC0) == 0xC0) {
+                // Compression pointer ends the name
+                return offset + 2 <= length ? offset + 2 : -1;
+            }
+            if ((labelLength & 0xC0) != 0) {
+                // Reserved label types
+                return -1;
+            }
+            offset += labelLength + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Read a domain name, following compression pointers.
+     *
+     * @param message The DNS message.
+     * @param offset  The domain name offset.
+     * @param length  The DNS message length.
+     * @param builder The builder to read the name into, lower case and without trailing dot. It is cleared first.
+     * @return {@code true} if the name was read, {@code false} if the name is malformed.
+     */
+    static boolean readName(byte[] message, int offset, int length, StringBuilder builder) {
+        builder.setLength(0);
+        int pointerCount = 0;
+        while (offset < length) {
+            int labelLength = message[offset] & 0xFF;
+            if (labelLength == 0) {
+                return true;
+            }
+            if ((labelLength & 0xC0) == 0xC0) {
+                if (offset + 2 > length || ++pointerCount > MAX_NAME_POINTERS) {
+                    return false;
+                }
+                offset = ((labelLength & 0x3F) << 8) | (message[offset + 1] & 0xFF);
+                continue;
+            }
+            if ((labelLength & 0xC0) != 0 || offset + 1 + labelLength > length) {
+                return false;
+            }
+            if (builder.length() > 0) {
+                builder.append('.');
+            }
+            for (int i = offset + 1; i <= offset + labelLength; i++) {
+                char c = (char) (message[i] & 0xFF);
+                builder.append(c >= 'A' && c <= 'Z' ? (char) (c + 'a' - 'A') : c);
+            }
+            offset += labelLength + 1;
+        }
+        return false;
+    }
+
+    static int readUnsignedShort(byte[] message, int offset) {
+        return ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+    }
+
+    static long readUnsignedInt(byte[] message, int offset) {
+        return ((long) readUnsignedShort(message, offset) << 16) | readUnsignedShort(message, offset + 2);
+    }
+
+    static void writeUnsignedInt(byte[] message, int offset, long value) {
+        message[offset] = (byte) (value >>> 24);
+        message[offset + 1] = (byte) (value >>> 16);
+        message[offset + 2] = (byte) (value >>> 8);
+        message[offset + 3] = (byte) value;
+    }
+}
@@ -6,6 +6,7 @@ import android.content.Context;
 import org.adaway.AdAwayApplication;
 import org.adaway.db.entity.HostEntry;
 import org.adaway.db.entity.ListType;
+import org.adaway.helper.PreferenceHelper;
 import org.adaway.model.vpn.VpnModel;
 import org.adaway.util.AppExecutors;
 import org.adaway.vpn.dns.DnsPacketProxy.EventLoop;
@@ -25,9 +26,7 @@ import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
 import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
-import org.xbill.DNS.SOARecord;
 import org.xbill.DNS.Section;
-import org.xbill.DNS.TextParseException;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -50,32 +49,19 @@ import timber.log.Timber;
  * Creates and parses packets, and sends packets to a remote socket or the device using VpnWorker.
  */
 public class DohPacketProxy {
-    // Choose a value that is smaller than the time needed to unblock a host.
-    private static final int NEGATIVE_CACHE_TTL_SECONDS = 5;
-    private static final SOARecord NEGATIVE_CACHE_SOA_RECORD;
-
     private static final Executor EXECUTOR = AppExecutors.getInstance().networkIO();
 
-    static {
-        try {
-            // Let's use a guaranteed invalid hostname here, clients are not supposed to use
-            // our fake values, the whole thing just exists for negative caching.
-            Name name = new Name("adaway.vpn.invalid.");
-            NEGATIVE_CACHE_SOA_RECORD = new SOARecord(name, DClass.IN, NEGATIVE_CACHE_TTL_SECONDS,
-                    name, name, 0, 0, 0, 0, NEGATIVE_CACHE_TTL_SECONDS);
-        } catch (TextParseException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     private final EventLoop eventLoop;
     private final DnsServerMapper dnsServerMapper;
+    private final DnsSynthesizedTtlPolicy synthesizedTtlPolicy;
     private VpnModel vpnModel;
+    private int rulesVersion;
     private DnsOverHttps dnsOverHttps;
 
     public DohPacketProxy(EventLoop eventLoop, DnsServerMapper dnsServerMapper) {
         this.eventLoop = eventLoop;
         this.dnsServerMapper = dnsServerMapper;
+        this.synthesizedTtlPolicy = new DnsSynthesizedTtlPolicy();
     }
 
     private static InetAddress getByIp(String host) {
@@ -94,6 +80,12 @@ public class DohPacketProxy {
      */
     public void initialize(Context context) {
         this.vpnModel = (VpnModel) ((AdAwayApplication) context.getApplicationContext()).getAdBlockModel();
+        this.rulesVersion = this.vpnModel.getRulesVersion();
+        this.synthesizedTtlPolicy.setTtls(
+                PreferenceHelper.getVpnBlockedTtl(context),
+                PreferenceHelper.getVpnRedirectedTtl(context),
+                PreferenceHelper.getVpnSynthesizedMaxTtl(context)
+        );
         this.dnsOverHttps = createDnsOverHttps(context);
     }
 
@@ -221,7 +213,8 @@ public class DohPacketProxy {
                 Timber.i("handleDnsRequest: DNS Name %s blocked!", dnsQueryName);
                 dnsMsg.getHeader().setFlag(Flags.QR);
                 dnsMsg.getHeader().setRcode(Rcode.NOERROR);
-                dnsMsg.addRecord(NEGATIVE_CACHE_SOA_RECORD, Section.AUTHORITY);
+                long blockedTtl = this.synthesizedTtlPolicy.getBlockedTtl(entry.getHost());
+                dnsMsg.addRecord(DnsPacketProxy.createNegativeCacheSoaRecord(blockedTtl), Section.AUTHORITY);
                 handleDnsResponse(ipPacket, dnsMsg.toWire());
                 break;
             case ALLOWED:
@@ -236,11 +229,12 @@ public class DohPacketProxy {
                 dnsMsg.getHeader().setRcode(Rcode.NOERROR);
                 try {
                     InetAddress address = InetAddress.getByName(entry.getRedirection());
+                    long redirectedTtl = this.synthesizedTtlPolicy.getRedirectedTtl(entry.getHost());
                     Record dnsRecord;
                     if (address instanceof Inet6Address) {
-                        dnsRecord = new AAAARecord(name, DClass.IN, NEGATIVE_CACHE_TTL_SECONDS, address);
+                        dnsRecord = new AAAARecord(name, DClass.IN, redirectedTtl, address);
                     } else {
-                        dnsRecord = new ARecord(name, DClass.IN, NEGATIVE_CACHE_TTL_SECONDS, address);
+                        dnsRecord = new ARecord(name, DClass.IN, redirectedTtl, address);
                     }
                     dnsMsg.addRecord(dnsRecord, Section.ANSWER);
                 } catch (UnknownHostException e) {
@@ -275,15 +269,16 @@ public class DohPacketProxy {
         dnsMsg.getHeader().setRcode(Rcode.NOERROR);
         Record dnsRecord;
         if (address instanceof Inet6Address) {
-            dnsRecord = new AAAARecord(name, DClass.IN, NEGATIVE_CACHE_TTL_SECONDS, address);
+            dnsRecord = new AAAARecord(name, DClass.IN, DnsSynthesizedTtlPolicy.DEFAULT_TTL, address);
         } else {
-            dnsRecord = new ARecord(name, DClass.IN, NEGATIVE_CACHE_TTL_SECONDS, address);
+            dnsRecord = new ARecord(name, DClass.IN, DnsSynthesizedTtlPolicy.DEFAULT_TTL, address);
         }
         dnsMsg.addRecord(dnsRecord, Section.ANSWER);
         handleDnsResponse(ipPacket, dnsMsg.toWire());
     }
 
     private HostEntry getHostEntry(String dnsQueryName) {
+        checkRulesVersion();
         String hostname = dnsQueryName.toLowerCase(Locale.ENGLISH);
         HostEntry entry = null;
         if (this.vpnModel != null) {
@@ -296,4 +291,18 @@ public class DohPacketProxy {
         }
         return entry;
     }
+
+    /**
+     * Shorten synthesized answer TTLs when new rules were applied.
+     */
+    private void checkRulesVersion() {
+        if (this.vpnModel == null) {
+            return;
+        }
+        int version = this.vpnModel.getRulesVersion();
+        if (version != this.rulesVersion) {
+            this.rulesVersion = version;
+            this.synthesizedTtlPolicy.onRulesChanged();
+        }
+    }
 }
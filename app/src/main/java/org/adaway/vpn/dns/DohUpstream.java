@@ -0,0 +1,182 @@
+package org.adaway.vpn.dns;
+
+import android.net.VpnService;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import timber.log.Timber;
+
+/**
+ * This class sends DNS queries upstream using DNS over HTTPS (RFC 8484).
+ * <p>
+ * DNS messages are posted unchanged in their wire format to the endpoint and the response messages are relayed
+ * unchanged too. Queries share a single HTTP/2 connection, each query being a concurrent stream.<br>
+ * On failure, queries are retried once on the next endpoint and the next endpoint is used from then.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DohUpstream extends EncryptedDnsUpstream {
+    /**
+     * The DNS message media type.
+     */
+    private static final MediaType DNS_MESSAGE = MediaType.get("application/dns-message");
+    /**
+     * The maximum time for a query, including retry (in ms).
+     */
+    private static final long CALL_TIMEOUT_MS = 20_000;
+    /**
+     * The time to keep the idle connection open (in minutes).
+     */
+    private static final long KEEP_ALIVE_DURATION_MINUTES = 5;
+    /**
+     * The maximum number of concurrent queries, each one being an HTTP/2 stream.
+     */
+    private static final int MAX_CONCURRENT_QUERIES = 128;
+    /**
+     * The HTTP client to post queries with.
+     */
+    private final OkHttpClient client;
+    /**
+     * The DoH endpoints.
+     */
+    private final List<HttpUrl> endpoints;
+    /**
+     * The index of the endpoint in use.
+     */
+    private final AtomicInteger endpointIndex;
+
+    /**
+     * Constructor.
+     *
+     * @param client    The HTTP client to post queries with.
+     * @param endpoints The DoH endpoints, at least one.
+     * @throws IOException If the response socket could not be opened.
+     */
+    public DohUpstream(OkHttpClient client, List<HttpUrl> endpoints) throws IOException {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No DoH endpoint.");
+        }
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_CONCURRENT_QUERIES);
+        dispatcher.setMaxRequestsPerHost(MAX_CONCURRENT_QUERIES);
+        this.client = client.newBuilder()
+                .dispatcher(dispatcher)
+                .build();
+        this.endpoints = new ArrayList<>(endpoints);
+        this.endpointIndex = new AtomicInteger(0);
+    }
+
+    /**
+     * Create a DoH upstream for the VPN.
+     * <p>
+     * The connections are protected from the VPN and endpoint host names are resolved by the network DNS servers.
+     *
+     * @param vpnService      The VPN service to protect connections with.
+     * @param dnsServerMapper The mapper to get the network DNS servers from.
+     * @param endpoints       The DoH endpoints.
+     * @return The DoH upstream.
+     * @throws IOException If the DoH upstream could not be created.
+     */
+    public static DohUpstream create(VpnService vpnService, DnsServerMapper dnsServerMapper, List<HttpUrl> endpoints)
+            throws IOException {
+        OkHttpClient client = new OkHttpClient.Builder()
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectionPool(new ConnectionPool(1, KEEP_ALIVE_DURATION_MINUTES, TimeUnit.MINUTES))
+                .socketFactory(new ProtectedSocketFactory(vpnService))
+                .dns(new BootstrapDns(vpnService, dnsServerMapper))
+                .callTimeout(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .build();
+        return new DohUpstream(client, endpoints);
+    }
+
+    /**
+     * Parse DoH endpoints.
+     *
+     * @param value The endpoint URLs, separated by commas or white spaces.
+     * @return The valid HTTPS endpoints.
+     */
+    public static List<HttpUrl> parseEndpoints(String value) {
+        List<HttpUrl> endpoints = new ArrayList<>();
+        for (String endpoint : value.split("[,\\s]+")) {
+            if (endpoint.isEmpty()) {
+                continue;
+            }
+            HttpUrl url = HttpUrl.parse(endpoint);
+            if (url == null || !url.isHttps()) {
+                Timber.w("Invalid DoH endpoint: %s.", endpoint);
+                continue;
+            }
+            endpoints.add(url);
+        }
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    @Override
+    protected void send(byte[] message, SocketAddress responseAddress) {
+        post(RequestBody.create(message, DNS_MESSAGE), responseAddress, true);
+    }
+
+    private void post(RequestBody body, SocketAddress responseAddress, boolean retry) {
+        int index = this.endpointIndex.get();
+        HttpUrl endpoint = this.endpoints.get(index);
+        Request request = new Request.Builder()
+                .url(endpoint)
+                .header("Accept", DNS_MESSAGE.toString())
+                .post(body)
+                .build();
+        this.client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                try (ResponseBody responseBody = response.body()) {
+                    if (!response.isSuccessful() || responseBody == null) {
+                        onFailure(call, new IOException("Unexpected response code " + response.code()));
+                        return;
+                    }
+                    deliver(responseBody.bytes(), responseAddress);
+                } catch (IOException e) {
+                    Timber.w(e, "Failed to relay DoH response from %s.", endpoint);
+                }
+            }
+
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                Timber.w(e, "DoH query to %s failed.", endpoint);
+                if (endpoints.size() > 1) {
+                    endpointIndex.compareAndSet(index, (index + 1) % endpoints.size());
+                    if (retry) {
+                        post(body, responseAddress, false);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        this.client.dispatcher().cancelAll();
+        this.client.dispatcher().executorService().shutdown();
+        this.client.connectionPool().evictAll();
+    }
+}
@@ -0,0 +1,354 @@
+package org.adaway.vpn.dns;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import okhttp3.Dns;
+import timber.log.Timber;
+
+/**
+ * This class is a long-lived DNS over TLS connection to a server.
+ * <p>
+ * Queries are written by a writer thread, which batches the pending queries, and responses are read by a reader
+ * thread. Each query is written with a connection unique identifier to match its response, the query original
+ * identifier being restored in the response.<br>
+ * The connection is opened on demand and closed after being idle. Queries left unanswered when the connection
+ * breaks are sent again once on a new connection.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DotConnection {
+    /**
+     * The time to wait for the connection to the server (in ms).
+     */
+    private static final int CONNECT_TIMEOUT_MS = 5_000;
+    /**
+     * The time after which an idle connection is closed (in ms).
+     */
+    private static final int IDLE_TIMEOUT_MS = 30_000;
+    /**
+     * The time after which an unanswered query is forgotten (in ms).
+     */
+    private static final long PENDING_EXPIRATION_MS = 30_000;
+    /**
+     * The maximum number of unanswered queries on a connection.
+     */
+    private static final int MAX_PENDING_QUERIES = 4096;
+    private final InetSocketAddress server;
+    private final SocketFactory socketFactory;
+    private final SSLSocketFactory sslSocketFactory;
+    private final HostnameVerifier hostnameVerifier;
+    private final Dns dns;
+    /**
+     * The callback to deliver responses to their query response address.
+     */
+    private final BiConsumer<byte[], SocketAddress> responseCallback;
+    /**
+     * The callback to notify connection failures.
+     */
+    private final Consumer<DotConnection> failureCallback;
+    /**
+     * The queries to write.
+     */
+    private final BlockingQueue<Query> writeQueue;
+    /**
+     * The writer thread, {@code null} if not started.
+     */
+    private Thread writer;
+    /**
+     * The current connection, {@code null} if not connected.
+     */
+    private volatile Connection connection;
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param server           The server to connect to, unresolved.
+     * @param socketFactory    The factory to create the underlying socket.
+     * @param sslSocketFactory The factory to create the TLS socket.
+     * @param hostnameVerifier The verifier for the server certificate.
+     * @param dns              The resolver for the server host name.
+     * @param responseCallback The callback to deliver responses to their query response address.
+     * @param failureCallback  The callback to notify connection failures.
+     */
+    DotConnection(InetSocketAddress server, SocketFactory socketFactory, SSLSocketFactory sslSocketFactory,
+                  HostnameVerifier hostnameVerifier, Dns dns, BiConsumer<byte[], SocketAddress> responseCallback,
+                  Consumer<DotConnection> failureCallback) {
+        this.server = server;
+        this.socketFactory = socketFactory;
+        this.sslSocketFactory = sslSocketFactory;
+        this.hostnameVerifier = hostnameVerifier;
+        this.dns = dns;
+        this.responseCallback = responseCallback;
+        this.failureCallback = failureCallback;
+        this.writeQueue = new LinkedBlockingQueue<>();
+        this.connection = null;
+        this.closed = false;
+    }
+
+    /**
+     * Send a query.
+     *
+     * @param message         The DNS query message.
+     * @param responseAddress The address to deliver the response to.
+     */
+    void send(byte[] message, SocketAddress responseAddress) {
+        if (this.closed) {
+            return;
+        }
+        startWriter();
+        this.writeQueue.offer(new Query(message, responseAddress));
+    }
+
+    /**
+     * Close the connection.
+     */
+    void close() {
+        this.closed = true;
+        synchronized (this) {
+            if (this.writer != null) {
+                this.writer.interrupt();
+            }
+        }
+        Connection connection = this.connection;
+        if (connection != null) {
+            disconnect(connection);
+        }
+        this.writeQueue.clear();
+    }
+
+    @Override
+    public String toString() {
+        return this.server.getHostString() + ":" + this.server.getPort();
+    }
+
+    private synchronized void startWriter() {
+        if (this.writer == null) {
+            this.writer = new Thread(this::write, "DoT writer " + this);
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+    }
+
+    private void write() {
+        List<Query> batch = new ArrayList<>();
+        while (!this.closed) {
+            try {
+                batch.add(this.writeQueue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            // Pipeline all the waiting queries
+            this.writeQueue.drainTo(batch);
+            Connection connection = null;
+            try {
+                connection = getConnection();
+                for (Query query : batch) {
+                    connection.write(query);
+                }
+                connection.output.flush();
+            } catch (IOException e) {
+                Timber.w(e, "Failed to send DoT queries to %s.", this);
+                if (connection != null) {
+                    disconnect(connection);
+                }
+                retry(batch);
+                this.failureCallback.accept(this);
+            }
+            batch.clear();
+        }
+    }
+
+    private Connection getConnection() throws IOException {
+        Connection connection = this.connection;
+        if (connection != null && !connection.socket.isClosed()) {
+            return connection;
+        }
+        Connection newConnection = connect();
+        this.connection = newConnection;
+        Thread reader = new Thread(() -> read(newConnection), "DoT reader " + this);
+        reader.setDaemon(true);
+        reader.start();
+        return newConnection;
+    }
+
+    private Connection connect() throws IOException {
+        String host = this.server.getHostString();
+        int port = this.server.getPort();
+        IOException lastException = new UnknownHostException("No address for " + host);
+        for (InetAddress address : this.dns.lookup(host)) {
+            Socket socket = this.socketFactory.createSocket();
+            try {
+                socket.setKeepAlive(true);
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MS);
+                // Layering over the same factory reuses its session cache to resume previous TLS sessions
+                SSLSocket sslSocket = (SSLSocket) this.sslSocketFactory.createSocket(socket, host, port, true);
+                sslSocket.setSoTimeout(IDLE_TIMEOUT_MS);
+                sslSocket.startHandshake();
+                if (!this.hostnameVerifier.verify(host, sslSocket.getSession())) {
+                    sslSocket.close();
+                    throw new SSLPeerUnverifiedException("Certificate does not match " + host + ".");
+                }
+                Timber.d("Connected to DoT server %s (%s).", this, address.getHostAddress());
+                return new Connection(sslSocket);
+            } catch (IOException e) {
+                socket.close();
+                lastException = e;
+            }
+        }
+        throw lastException;
+    }
+
+    private void read(Connection connection) {
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(connection.socket.getInputStream()));
+            while (!this.closed) {
+                int length;
+                try {
+                    length = input.readUnsignedShort();
+                } catch (SocketTimeoutException e) {
+                    connection.removeExpiredQueries(System.currentTimeMillis());
+                    if (connection.pendingQueries.isEmpty()) {
+                        Timber.d("Closing idle DoT connection to %s.", this);
+                        break;
+                    }
+                    continue;
+                }
+                byte[] response = new byte[length];
+                input.readFully(response);
+                if (length < DnsWire.HEADER_LENGTH) {
+                    continue;
+                }
+                Query query = connection.pendingQueries.remove(DnsWire.getId(response));
+                if (query == null) {
+                    continue;
+                }
+                DnsWire.setId(response, query.originalId);
+                this.responseCallback.accept(response, query.responseAddress);
+            }
+        } catch (IOException e) {
+            if (!this.closed) {
+                Timber.d(e, "DoT connection to %s closed.", this);
+            }
+        }
+        disconnect(connection);
+    }
+
+    private void disconnect(Connection connection) {
+        synchronized (this) {
+            if (this.connection == connection) {
+                this.connection = null;
+            }
+        }
+        try {
+            connection.socket.close();
+        } catch (IOException e) {
+            Timber.d(e, "Failed to close DoT connection to %s.", this);
+        }
+        retry(connection.pendingQueries.values());
+        connection.pendingQueries.clear();
+    }
+
+    private void retry(Collection<Query> queries) {
+        for (Query query : queries) {
+            if (!this.closed && !query.retried) {
+                query.retried = true;
+                this.writeQueue.offer(query);
+            }
+        }
+    }
+
+    /**
+     * This class is a connected TLS socket and its unanswered queries.
+     */
+    private static class Connection {
+        private final SSLSocket socket;
+        private final OutputStream output;
+        /**
+         * The unanswered queries, by connection identifier.
+         */
+        private final Map<Integer, Query> pendingQueries;
+        private int nextId;
+
+        private Connection(SSLSocket socket) throws IOException {
+            this.socket = socket;
+            this.output = new BufferedOutputStream(socket.getOutputStream());
+            this.pendingQueries = new ConcurrentHashMap<>();
+            this.nextId = 0;
+        }
+
+        private void write(Query query) throws IOException {
+            if (this.pendingQueries.size() >= MAX_PENDING_QUERIES) {
+                Timber.d("Dropping DoT query due to space constraints.");
+                return;
+            }
+            int id = this.nextId;
+            while (this.pendingQueries.containsKey(id)) {
+                id = (id + 1) & 0xFFFF;
+            }
+            this.nextId = (id + 1) & 0xFFFF;
+            query.time = System.currentTimeMillis();
+            DnsWire.setId(query.message, id);
+            this.pendingQueries.put(id, query);
+            // Each message is prefixed by its length (RFC 7766)
+            this.output.write(query.message.length >>> 8);
+            this.output.write(query.message.length);
+            this.output.write(query.message);
+        }
+
+        private void removeExpiredQueries(long now) {
+            this.pendingQueries.values().removeIf(query -> now - query.time >= PENDING_EXPIRATION_MS);
+        }
+    }
+
+    /**
+     * This class is a query to send.
+     */
+    private static class Query {
+        /**
+         * The DNS query message, its identifier being rewritten when sent.
+         */
+        private final byte[] message;
+        private final int originalId;
+        private final SocketAddress responseAddress;
+        /**
+         * The last time the query was sent (UNIX timestamp in ms).
+         */
+        private long time;
+        private boolean retried;
+
+        private Query(byte[] message, SocketAddress responseAddress) {
+            this.message = message;
+            this.originalId = DnsWire.getId(message);
+            this.responseAddress = responseAddress;
+            this.retried = false;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.adaway.vpn.dns;
+
+import android.net.VpnService;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+import okhttp3.Dns;
+import timber.log.Timber;
+
+/**
+ * This class sends DNS queries upstream using DNS over TLS (RFC 7858).
+ * <p>
+ * Each server has a small pool of long-lived TLS connections. Queries are pipelined over the connections and
+ * responses are matched back to their query by identifier.<br>
+ * All connections share the same TLS context so reconnections resume the previous TLS session instead of doing
+ * a full handshake.<br>
+ * On connection failure, the next server is used from then.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DotUpstream extends EncryptedDnsUpstream {
+    /**
+     * The DNS over TLS default port.
+     */
+    static final int DOT_PORT = 853;
+    /**
+     * The number of connections per server.
+     */
+    private static final int CONNECTIONS_PER_SERVER = 2;
+    /**
+     * The connections, by server.
+     */
+    private final List<List<DotConnection>> connections;
+    /**
+     * The index of the server in use.
+     */
+    private final AtomicInteger serverIndex;
+    /**
+     * The index of the next connection to use within the server pool.
+     */
+    private final AtomicInteger connectionIndex;
+
+    /**
+     * Constructor.
+     *
+     * @param servers          The DoT servers, at least one.
+     * @param socketFactory    The factory to create the underlying sockets.
+     * @param sslSocketFactory The factory to create the TLS sockets, sharing a session cache.
+     * @param hostnameVerifier The verifier for the server certificates.
+     * @param dns              The resolver for the server host names.
+     * @throws IOException If the response socket could not be opened.
+     */
+    public DotUpstream(List<InetSocketAddress> servers, SocketFactory socketFactory,
+                       SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier, Dns dns)
+            throws IOException {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No DoT server.");
+        }
+        this.connections = new ArrayList<>(servers.size());
+        for (InetSocketAddress server : servers) {
+            List<DotConnection> serverConnections = new ArrayList<>(CONNECTIONS_PER_SERVER);
+            for (int i = 0; i < CONNECTIONS_PER_SERVER; i++) {
+                serverConnections.add(new DotConnection(
+                        server,
+                        socketFactory,
+                        sslSocketFactory,
+                        hostnameVerifier,
+                        dns,
+                        this::deliver,
+                        this::onConnectionFailure
+                ));
+            }
+            this.connections.add(serverConnections);
+        }
+        this.serverIndex = new AtomicInteger(0);
+        this.connectionIndex = new AtomicInteger(0);
+    }
+
+    /**
+     * Create a DoT upstream for the VPN.
+     * <p>
+     * The connections are protected from the VPN and server host names are resolved by the network DNS servers.
+     *
+     * @param vpnService      The VPN service to protect connections with.
+     * @param dnsServerMapper The mapper to get the network DNS servers from.
+     * @param servers         The DoT servers.
+     * @return The DoT upstream.
+     * @throws IOException If the DoT upstream could not be created.
+     */
+    public static DotUpstream create(VpnService vpnService, DnsServerMapper dnsServerMapper,
+                                     List<InetSocketAddress> servers) throws IOException {
+        SSLContext sslContext;
+        try {
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to initialize TLS context.", e);
+        }
+        return new DotUpstream(
+                servers,
+                new ProtectedSocketFactory(vpnService),
+                sslContext.getSocketFactory(),
+                HttpsURLConnection.getDefaultHostnameVerifier(),
+                new BootstrapDns(vpnService, dnsServerMapper)
+        );
+    }
+
+    /**
+     * Parse DoT servers.
+     *
+     * @param value The server host names or addresses with optional port, separated by commas or white spaces.
+     * @return The valid servers, unresolved.
+     */
+    public static List<InetSocketAddress> parseServers(String value) {
+        List<InetSocketAddress> servers = new ArrayList<>();
+        for (String server : value.split("[,\\s]+")) {
+            if (server.isEmpty()) {
+                continue;
+            }
+            InetSocketAddress address = parseServer(server);
+            if (address == null) {
+                Timber.w("Invalid DoT server: %s.", server);
+                continue;
+            }
+            servers.add(address);
+        }
+        return Collections.unmodifiableList(servers);
+    }
+
+    @Nullable
+    private static InetSocketAddress parseServer(String server) {
+        String host = server;
+        String port = null;
+        int separator = server.indexOf(':');
+        if (server.startsWith("[")) {
+            // IPv6 address with brackets, and optional port
+            int closingBracket = server.indexOf(']');
+            if (closingBracket < 0) {
+                return null;
+            }
+            host = server.substring(1, closingBracket);
+            String remaining = server.substring(closingBracket + 1);
+            if (!remaining.isEmpty()) {
+                if (!remaining.startsWith(":")) {
+                    return null;
+                }
+                port = remaining.substring(1);
+            }
+        } else if (separator >= 0 && separator == server.lastIndexOf(':')) {
+            // Host name or IPv4 address with port, bare IPv6 addresses having several colons
+            host = server.substring(0, separator);
+            port = server.substring(separator + 1);
+        }
+        int portNumber = DOT_PORT;
+        if (port != null) {
+            try {
+                portNumber = Integer.parseInt(port);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (host.isEmpty() || portNumber <= 0 || portNumber > 0xFFFF) {
+            return null;
+        }
+        return InetSocketAddress.createUnresolved(host, portNumber);
+    }
+
+    @Override
+    protected void send(byte[] message, SocketAddress responseAddress) {
+        getConnection().send(message, responseAddress);
+    }
+
+    private DotConnection getConnection() {
+        List<DotConnection> serverConnections = this.connections.get(this.serverIndex.get());
+        int index = Math.floorMod(this.connectionIndex.getAndIncrement(), serverConnections.size());
+        return serverConnections.get(index);
+    }
+
+    private void onConnectionFailure(DotConnection connection) {
+        int index = this.serverIndex.get();
+        if (this.connections.size() > 1 && this.connections.get(index).contains(connection)) {
+            int nextIndex = (index + 1) % this.connections.size();
+            if (this.serverIndex.compareAndSet(index, nextIndex)) {
+                Timber.i("Switching DoT server to %s.", this.connections.get(nextIndex).get(0));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (List<DotConnection> serverConnections : this.connections) {
+            for (DotConnection connection : serverConnections) {
+                connection.close();
+            }
+        }
+    }
+}
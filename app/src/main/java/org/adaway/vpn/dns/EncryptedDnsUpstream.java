@@ -0,0 +1,84 @@
+package org.adaway.vpn.dns;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+
+import timber.log.Timber;
+
+/**
+ * This class is the base of the encrypted DNS upstreams.
+ * <p>
+ * Encrypted upstreams send queries from their own threads. Each query gets a loopback socket the response is
+ * delivered to, so queries are polled and timed out by the {@link DnsQueryQueue} like UDP queries. Query sockets are
+ * connected to the response socket so other local applications cannot spoof responses.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public abstract class EncryptedDnsUpstream implements AutoCloseable {
+    /**
+     * The socket to deliver responses to query loopback sockets.
+     */
+    private final DatagramSocket responseSocket;
+
+    /**
+     * Constructor.
+     *
+     * @throws IOException If the response socket could not be opened.
+     */
+    protected EncryptedDnsUpstream() throws IOException {
+        this.responseSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Send a DNS query.
+     *
+     * @param message The DNS query message.
+     * @param offset  The DNS query message offset.
+     * @param length  The DNS query message length.
+     * @return The socket the response will be received on.
+     * @throws IOException If the query socket could not be opened.
+     */
+    public DatagramSocket query(byte[] message, int offset, int length) throws IOException {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        // Only accept the response from the response socket, not from any other local application
+        try {
+            socket.connect(this.responseSocket.getLocalSocketAddress());
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        send(Arrays.copyOfRange(message, offset, offset + length), socket.getLocalSocketAddress());
+        return socket;
+    }
+
+    /**
+     * Send a DNS query upstream.
+     *
+     * @param message         The DNS query message.
+     * @param responseAddress The address to deliver the response to.
+     */
+    protected abstract void send(byte[] message, SocketAddress responseAddress);
+
+    /**
+     * Deliver a DNS response to its query loopback socket.
+     *
+     * @param response        The DNS response message.
+     * @param responseAddress The address to deliver the response to.
+     */
+    protected void deliver(byte[] response, SocketAddress responseAddress) {
+        try {
+            this.responseSocket.send(new DatagramPacket(response, response.length, responseAddress));
+        } catch (IOException e) {
+            Timber.w(e, "Failed to deliver DNS response.");
+        }
+    }
+
+    @Override
+    public void close() {
+        this.responseSocket.close();
+    }
+}
@@ -0,0 +1,67 @@
+package org.adaway.vpn.dns;
+
+import android.net.VpnService;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import javax.net.SocketFactory;
+
+/**
+ * This class creates sockets protected from the VPN, so their traffic goes to the underlying network.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class ProtectedSocketFactory extends SocketFactory {
+    /**
+     * The VPN service to protect sockets with.
+     */
+    private final VpnService vpnService;
+
+    /**
+     * Constructor.
+     *
+     * @param vpnService The VPN service to protect sockets with.
+     */
+    ProtectedSocketFactory(VpnService vpnService) {
+        this.vpnService = vpnService;
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        Socket socket = new Socket();
+        if (!this.vpnService.protect(socket)) {
+            socket.close();
+            throw new IOException("Failed to protect socket from VPN.");
+        }
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return createSocket(InetAddress.getByName(host), port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort) throws IOException {
+        return createSocket(InetAddress.getByName(host), port, localAddress, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port) throws IOException {
+        Socket socket = createSocket();
+        socket.connect(new InetSocketAddress(address, port));
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port));
+        return socket;
+    }
+}
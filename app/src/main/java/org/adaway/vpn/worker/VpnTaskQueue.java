@@ -0,0 +1,125 @@
+package org.adaway.vpn.worker;
+
+import static android.system.OsConstants.POLLIN;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructPollfd;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import timber.log.Timber;
+
+/**
+ * This class is a queue of tasks posted from other threads to run on the VPN worker thread.
+ * <p>
+ * The worker thread waits for events with a poll system call, so posting a task writes to a pipe the worker polls
+ * too. The pipe is written only once until the worker runs the tasks, so it never fills up.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class VpnTaskQueue implements Closeable {
+    /**
+     * The tasks to run.
+     */
+    private final Queue<Runnable> tasks;
+    /**
+     * Whether the pipe was written since the tasks were last run.
+     */
+    private final AtomicBoolean signaled;
+    private final FileDescriptor readFd;
+    private final FileDescriptor writeFd;
+    /**
+     * The pollfd of the pipe read side.
+     */
+    private final StructPollfd pollfd;
+    /**
+     * The buffer to read and write the pipe.
+     */
+    private final byte[] buffer;
+
+    /**
+     * Constructor.
+     *
+     * @throws IOException If the pipe could not be created.
+     */
+    VpnTaskQueue() throws IOException {
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.signaled = new AtomicBoolean(false);
+        try {
+            FileDescriptor[] fds = Os.pipe();
+            this.readFd = fds[0];
+            this.writeFd = fds[1];
+        } catch (ErrnoException e) {
+            throw new IOException("Failed to create task pipe.", e);
+        }
+        this.pollfd = new StructPollfd();
+        this.pollfd.fd = this.readFd;
+        this.pollfd.events = (short) POLLIN;
+        this.buffer = new byte[16];
+    }
+
+    /**
+     * Post a task to run on the VPN worker thread.
+     * <p>
+     * It can be called from any thread.
+     *
+     * @param task The task to run.
+     */
+    void post(Runnable task) {
+        this.tasks.add(task);
+        if (this.signaled.compareAndSet(false, true)) {
+            try {
+                Os.write(this.writeFd, new byte[1], 0, 1);
+            } catch (ErrnoException | InterruptedIOException e) {
+                Timber.w(e, "Failed to signal VPN task.");
+            }
+        }
+    }
+
+    /**
+     * Get the pollfd to wait for posted tasks.
+     *
+     * @return The pollfd to wait for posted tasks.
+     */
+    StructPollfd getPollfd() {
+        return this.pollfd;
+    }
+
+    /**
+     * Run the posted tasks if the pollfd was signaled.
+     */
+    void runTasks() {
+        if ((this.pollfd.revents & POLLIN) == 0) {
+            return;
+        }
+        try {
+            Os.read(this.readFd, this.buffer, 0, this.buffer.length);
+        } catch (ErrnoException | InterruptedIOException e) {
+            Timber.w(e, "Failed to read VPN task signal.");
+        }
+        // Clear the signal before running tasks for the tasks posted meanwhile to signal again
+        this.signaled.set(false);
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.tasks.clear();
+        try {
+            Os.close(this.readFd);
+            Os.close(this.writeFd);
+        } catch (ErrnoException e) {
+            Timber.w(e, "Failed to close task pipe.");
+        }
+    }
+}
@@ -30,11 +30,20 @@ import android.system.ErrnoException;
 import android.system.Os;
 import android.system.StructPollfd;
 
+import androidx.annotation.Nullable;
+
 import org.adaway.helper.PreferenceHelper;
 import org.adaway.vpn.VpnService;
+import org.adaway.vpn.dns.DnsLatencyMetrics;
+import org.adaway.vpn.dns.DnsLocalServer;
 import org.adaway.vpn.dns.DnsPacketProxy;
 import org.adaway.vpn.dns.DnsQueryQueue;
 import org.adaway.vpn.dns.DnsServerMapper;
+import org.adaway.vpn.dns.DnsTcpUpstream;
+import org.adaway.vpn.dns.DnsTransport;
+import org.adaway.vpn.dns.DohUpstream;
+import org.adaway.vpn.dns.DotUpstream;
+import org.adaway.vpn.dns.EncryptedDnsUpstream;
 import org.pcap4j.packet.IpPacket;
 
 import java.io.FileInputStream;
@@ -42,14 +51,17 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
+import okhttp3.HttpUrl;
 import timber.log.Timber;
 
 // TODO Write document
@@ -70,6 +82,14 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
      * The queue of packets to send to the device.
      */
     private final Queue<byte[]> deviceWrites;
+    /**
+     * The queuing time of the packets to send to the device, a ring in the same order as the packets.
+     */
+    private long[] deviceWriteTimes;
+    /**
+     * The ring index of the queuing time of the first packet to send to the device.
+     */
+    private int deviceWriteTimesHead;
     /**
      * The queue of DNS queries.
      */
@@ -78,6 +98,8 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
     private final DnsServerMapper dnsServerMapper;
     // The object where we actually handle packets.
     private final DnsPacketProxy dnsPacketProxy;
+    // The DNS latency metrics
+    private final DnsLatencyMetrics latencyMetrics;
 
     // TODO Comment
     private final VpnConnectionThrottler connectionThrottler;
@@ -94,6 +116,14 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
      * The VPN network interface, (<code>null</code> if not established).
      */
     private final AtomicReference<ParcelFileDescriptor> vpnNetworkInterface;
+    /**
+     * The encrypted DNS upstream (<code>null</code> if DNS queries are sent over UDP).
+     */
+    private EncryptedDnsUpstream encryptedUpstream;
+    /**
+     * The TCP DNS upstream to query again truncated answers (<code>null</code> if not available).
+     */
+    private DnsTcpUpstream tcpUpstream;
 
     /**
      * Constructor.
@@ -103,9 +133,12 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
     public VpnWorker(VpnService vpnService) {
         this.vpnService = vpnService;
         this.deviceWrites = new LinkedList<>();
+        this.deviceWriteTimes = new long[64];
+        this.deviceWriteTimesHead = 0;
         this.dnsQueryQueue = new DnsQueryQueue();
         this.dnsServerMapper = new DnsServerMapper();
         this.dnsPacketProxy = new DnsPacketProxy(this, this.dnsServerMapper);
+        this.latencyMetrics = DnsLatencyMetrics.getInstance();
         this.connectionThrottler = new VpnConnectionThrottler();
         this.connectionMonitor = new VpnConnectionMonitor(this.vpnService);
         this.vpnWatchDog = new VpnWatchdog();
@@ -172,6 +205,15 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
         this.dnsPacketProxy.initialize(this.vpnService);
         // Initialize the watchdog
         this.vpnWatchDog.initialize(PreferenceHelper.getVpnWatchdogEnabled(this.vpnService));
+        // Initialize the DNS query timeout
+        this.dnsQueryQueue.setMaximumTimeout(PreferenceHelper.getVpnDnsQueryTimeout(this.vpnService) * 1000);
+        // Initialize the DNS upstream
+        this.encryptedUpstream = createEncryptedUpstream();
+        if (this.encryptedUpstream == null) {
+            // Queries are sent to the network DNS servers, with their health tracking and TCP retries
+            this.dnsPacketProxy.setDnsTransport(DnsTransport.UDP);
+        }
+        this.tcpUpstream = createTcpUpstream();
         // Try connecting the vpn continuously
         while (true) {
             try {
@@ -191,10 +233,87 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
                 this.vpnService.notifyVpnStatus(RECONNECTING_NETWORK_ERROR);
             }
         }
+        if (this.encryptedUpstream != null) {
+            this.encryptedUpstream.close();
+            this.encryptedUpstream = null;
+        }
+        if (this.tcpUpstream != null) {
+            this.tcpUpstream.close();
+            this.tcpUpstream = null;
+        }
+        this.dnsPacketProxy.release();
         this.vpnService.notifyVpnStatus(STOPPED);
         Timber.d("Exiting work.");
     }
 
+    private EncryptedDnsUpstream createEncryptedUpstream() {
+        try {
+            switch (PreferenceHelper.getVpnDnsTransport(this.vpnService)) {
+                case DOH:
+                    List<HttpUrl> endpoints = DohUpstream.parseEndpoints(
+                            PreferenceHelper.getVpnDohEndpoints(this.vpnService));
+                    if (!endpoints.isEmpty()) {
+                        return DohUpstream.create(this.vpnService, this.dnsServerMapper, endpoints);
+                    }
+                    break;
+                case DOT:
+                    List<InetSocketAddress> servers = DotUpstream.parseServers(
+                            PreferenceHelper.getVpnDotServers(this.vpnService));
+                    if (!servers.isEmpty()) {
+                        return DotUpstream.create(this.vpnService, this.dnsServerMapper, servers);
+                    }
+                    break;
+                default:
+                    return null;
+            }
+            Timber.w("No valid encrypted DNS server, falling back to network DNS servers.");
+        } catch (IOException e) {
+            Timber.w(e, "Failed to create encrypted DNS upstream, falling back to network DNS servers.");
+        }
+        return null;
+    }
+
+    private DnsTcpUpstream createTcpUpstream() {
+        try {
+            return DnsTcpUpstream.create(this.vpnService);
+        } catch (IOException e) {
+            Timber.w(e, "Failed to create TCP DNS upstream, truncated answers will not be queried again.");
+            return null;
+        }
+    }
+
+    /**
+     * Start the local DNS server if enabled.
+     *
+     * @param taskQueue The queue to hand the received queries to the VPN worker thread.
+     * @return The started local DNS server, {@code null} if disabled or failed to start.
+     */
+    @Nullable
+    private DnsLocalServer startLocalServer(VpnTaskQueue taskQueue) {
+        if (!PreferenceHelper.getVpnLocalDnsServer(this.vpnService)) {
+            return null;
+        }
+        int port = PreferenceHelper.getVpnLocalDnsServerPort(this.vpnService);
+        int rateLimit = PreferenceHelper.getVpnLocalDnsServerRateLimit(this.vpnService);
+        // Queries are handled from the VPN worker thread as the packet proxy is not thread safe
+        DnsLocalServer server = new DnsLocalServer((client, query, responder) -> taskQueue.post(() -> {
+            try {
+                this.dnsPacketProxy.handleLocalDnsRequest(query, responder);
+            } catch (IOException e) {
+                Timber.w(e, "Failed to handle local DNS query from %s.", client.getHostAddress());
+            }
+        }), rateLimit);
+        try {
+            String bindInterface = PreferenceHelper.getVpnLocalDnsServerInterface(this.vpnService);
+            server.start(DnsLocalServer.parseBindAddress(bindInterface), port);
+            return server;
+        } catch (IOException e) {
+            Timber.w(e, "Failed to start local DNS server on port %d.", port);
+            server.close();
+            return null;
+        }
+    }
+
     private void runVpn() throws IOException, VpnNetworkException {
         // Allocate the buffer for a single packet.
         byte[] packet = new byte[MAX_PACKET_SIZE];
@@ -203,7 +322,10 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
         try (ParcelFileDescriptor pfd = establish(this.vpnService, this.dnsServerMapper);
              // Read and write views of the tunnel device
              FileInputStream inputStream = new FileInputStream(pfd.getFileDescriptor());
-             FileOutputStream outputStream = new FileOutputStream(pfd.getFileDescriptor())) {
+             FileOutputStream outputStream = new FileOutputStream(pfd.getFileDescriptor());
+             // Tasks posted by the local DNS server
+             VpnTaskQueue taskQueue = new VpnTaskQueue();
+             DnsLocalServer ignored = startLocalServer(taskQueue)) {
             // Store reference to network interface to close it externally on demand
             this.vpnNetworkInterface.set(pfd);
             // Initialize connection monitor
@@ -218,13 +340,13 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
             // We keep forwarding packets till something goes wrong.
             boolean deviceOpened = true;
             while (deviceOpened) {
-                deviceOpened = doOne(inputStream, outputStream, packet);
+                deviceOpened = doOne(inputStream, outputStream, packet, taskQueue);
             }
         }
     }
 
-    private boolean doOne(FileInputStream inputStream, FileOutputStream fileOutputStream, byte[] packet)
-            throws IOException, VpnNetworkException {
+    private boolean doOne(FileInputStream inputStream, FileOutputStream fileOutputStream, byte[] packet,
+                          VpnTaskQueue taskQueue) throws IOException, VpnNetworkException {
         // Create poll FD on tunnel
         StructPollfd deviceFd = new StructPollfd();
         deviceFd.fd = inputStream.getFD();
@@ -234,18 +356,27 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
         }
         // Create poll FD on each DNS query socket
         StructPollfd[] queryFds = this.dnsQueryQueue.getQueryFds();
-        StructPollfd[] polls = new StructPollfd[1 + queryFds.length];
+        this.latencyMetrics.setPendingQueries(queryFds.length);
+        StructPollfd[] polls = new StructPollfd[2 + queryFds.length];
         polls[0] = deviceFd;
-        System.arraycopy(queryFds, 0, polls, 1, queryFds.length);
+        polls[1] = taskQueue.getPollfd();
+        System.arraycopy(queryFds, 0, polls, 2, queryFds.length);
         boolean deviceReadyToWrite;
         boolean deviceReadyToRead;
         try {
             Timber.d("doOne: Polling %d file descriptors.", polls.length);
-            int numberOfEvents = Os.poll(polls, this.vpnWatchDog.getPollTimeout());
+            int watchdogTimeout = this.vpnWatchDog.getPollTimeout();
+            int queryTimeout = this.dnsQueryQueue.getPollTimeout();
+            boolean queryDeadlineFirst = queryTimeout >= 0 && (watchdogTimeout < 0 || queryTimeout < watchdogTimeout);
+            int numberOfEvents = Os.poll(polls, queryDeadlineFirst ? queryTimeout : watchdogTimeout);
             // TODO BUG - There is a bug where the watchdog keeps doing timeout if there is no network activity
             // TODO BUG - 0 Might be a valid value if no current DNS query and everything was already sent back to device
             if (numberOfEvents == 0) {
-                this.vpnWatchDog.handleTimeout();
+                if (queryDeadlineFirst) {
+                    this.dnsQueryQueue.handleTimeouts();
+                } else {
+                    this.vpnWatchDog.handleTimeout();
+                }
                 return true;
             }
             deviceReadyToWrite = (deviceFd.revents & POLLOUT) != 0;
@@ -258,6 +389,8 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
         // invalidate one of the sockets we want to read from either due to size or time out
         // constraints
         this.dnsQueryQueue.handleResponses();
+        this.dnsQueryQueue.handleTimeouts();
+        taskQueue.runTasks();
         if (deviceReadyToWrite) {
             writeToDevice(fileOutputStream);
         }
@@ -272,7 +405,10 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
         try {
             while (!this.deviceWrites.isEmpty()) {
                 byte[] ipPacketData = this.deviceWrites.poll();
+                long queueTime = this.deviceWriteTimes[this.deviceWriteTimesHead];
+                this.deviceWriteTimesHead = (this.deviceWriteTimesHead + 1) % this.deviceWriteTimes.length;
                 fileOutputStream.write(ipPacketData);
+                this.latencyMetrics.record(DnsLatencyMetrics.Stage.RESPONSE_WRITE, queueTime);
             }
         } catch (IOException e) {
             throw new IOException("Failed to write to tunnel output stream.", e);
@@ -283,6 +419,7 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
         Timber.d("Read a packet from device.");
         // Read the outgoing packet from the input stream.
         int length = inputStream.read(packet);
+        long readTime = System.nanoTime();
         if (length < 0) {
             // TODO Stream closed. Is there anything else to do?
             Timber.d("Tunnel input stream closed.");
@@ -291,7 +428,7 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
         } else {
             byte[] readPacket = Arrays.copyOf(packet, length);
             vpnWatchDog.handlePacket(readPacket);
-            dnsPacketProxy.handleDnsRequest(readPacket);
+            dnsPacketProxy.handleDnsRequest(readPacket, readTime);
         }
         return length;
     }
@@ -307,15 +444,36 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
     }
 
     @Override
-    public void forwardPacket(DatagramPacket outPacket, Consumer<byte[]> callback) throws IOException {
+    public void forwardPacket(DatagramPacket outPacket, int timeout, Consumer<byte[]> callback,
+                              Runnable timeoutCallback) throws IOException {
+        sendQuery(outPacket, timeout, callback, timeoutCallback, this.encryptedUpstream != null);
+    }
+
+    @Override
+    public void forwardNetworkPacket(DatagramPacket outPacket, int timeout, Consumer<byte[]> callback,
+                                     Runnable timeoutCallback) throws IOException {
+        sendQuery(outPacket, timeout, callback, timeoutCallback, false);
+    }
+
+    private void sendQuery(DatagramPacket outPacket, int timeout, Consumer<byte[]> callback,
+                           Runnable timeoutCallback, boolean encrypted) throws IOException {
         DatagramSocket dnsSocket = null;
         try {
-            dnsSocket = new DatagramSocket();
-            // Packets to be sent to the real DNS server will need to be protected from the VPN
-            this.vpnService.protect(dnsSocket);
-            dnsSocket.send(outPacket);
+            if (encrypted && this.encryptedUpstream != null) {
+                // Send encrypted query, the response will be received on the returned socket
+                dnsSocket = this.encryptedUpstream.query(
+                        outPacket.getData(),
+                        outPacket.getOffset(),
+                        outPacket.getLength()
+                );
+            } else {
+                dnsSocket = new DatagramSocket();
+                // Packets to be sent to the real DNS server will need to be protected from the VPN
+                this.vpnService.protect(dnsSocket);
+                dnsSocket.send(outPacket);
+            }
             // Enqueue DNS query
-            this.dnsQueryQueue.addQuery(dnsSocket, callback);
+            this.dnsQueryQueue.addQuery(dnsSocket, timeout, callback, timeoutCallback);
         } catch (IOException e) {
             if (dnsSocket != null) {
                 dnsSocket.close();
@@ -330,12 +488,50 @@ public class VpnWorker implements DnsPacketProxy.EventLoop {
         }
     }
 
+    @Override
+    public void forwardTcpPacket(DatagramPacket outPacket, int timeout, Consumer<byte[]> callback,
+                                 Runnable timeoutCallback) throws IOException {
+        if (this.tcpUpstream == null) {
+            throw new IOException("No TCP DNS upstream.");
+        }
+        // Send query over TCP, the response will be received on the returned socket
+        DatagramSocket dnsSocket = this.tcpUpstream.query(outPacket);
+        this.dnsQueryQueue.addQuery(dnsSocket, timeout, callback, timeoutCallback);
+    }
+
+    @Override
+    public int getQueryTimeout() {
+        return this.dnsQueryQueue.getQueryTimeout();
+    }
+
     @Override
     public void queueDeviceWrite(IpPacket ipOutPacket) {
         byte[] rawData = ipOutPacket.getRawData();
         // TODO Check why data could be null
         if (rawData != null) {
+            queueDeviceWriteTime(System.nanoTime());
             this.deviceWrites.add(rawData);
         }
     }
+
+    /**
+     * Queue the time a packet is queued to be sent to the device.
+     *
+     * @param time The packet queuing time, from {@link System#nanoTime()}.
+     */
+    private void queueDeviceWriteTime(long time) {
+        int size = this.deviceWrites.size();
+        int capacity = this.deviceWriteTimes.length;
+        if (size == capacity) {
+            // Grow the ring, moving its head to the start
+            long[] times = new long[capacity * 2];
+            for (int i = 0; i < size; i++) {
+                times[i] = this.deviceWriteTimes[(this.deviceWriteTimesHead + i) % capacity];
+            }
+            this.deviceWriteTimes = times;
+            this.deviceWriteTimesHead = 0;
+            capacity = times.length;
+        }
+        this.deviceWriteTimes[(this.deviceWriteTimesHead + size) % capacity] = time;
+    }
 }
@@ -0,0 +1,84 @@
+package org.adaway.model.root;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the {@link TcpdumpLogReader}.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class TcpdumpLogReaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParseHost() {
+        assertEquals("example.com", parseHost("IP 10.0.0.2.41234 > 10.0.0.1.53: 1234+ A? example.com. (29)"));
+        assertEquals("ipv6.example.com",
+                parseHost("IP 10.0.0.2.41234 > 10.0.0.1.53: 42+ AAAA? ipv6.example.com. (34)"));
+        assertNull(parseHost("IP 10.0.0.2.41234 > 10.0.0.1.53: 42+ PTR? 1.0.0.10.in-addr.arpa. (40)"));
+        assertNull(parseHost("IP 10.0.0.2.41234 > 10.0.0.1.53: 42+ A? example.com"));
+        assertNull(parseHost("tcpdump: listening on any"));
+    }
+
+    @Test
+    public void testIncrementalRead() throws IOException {
+        File file = this.folder.newFile("dns_log.txt");
+        TcpdumpLogReader reader = new TcpdumpLogReader(file);
+        append(file, "tcpdump: listening on any\n1+ A? a.com. (20)\n2+ AAAA? b.com. (20)\n3+ A? a.com. (20)\n4+ A? c.");
+        assertEquals(asList("a.com", "b.com"), reader.read());
+        // Complete the partial line
+        append(file, "com. (20)\n");
+        assertEquals(asList("a.com", "b.com", "c.com"), reader.read());
+        // Truncate the log
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(0);
+        }
+        append(file, "5+ A? d.com. (20)\n");
+        assertEquals(asList("d.com"), reader.read());
+        // Clear the log
+        assertTrue(file.delete());
+        assertEquals(0, reader.read().size());
+    }
+
+    @Test
+    public void testSizeCap() throws IOException {
+        File file = this.folder.newFile("dns_log.txt");
+        TcpdumpLogReader reader = new TcpdumpLogReader(file);
+        StringBuilder builder = new StringBuilder();
+        int count = 0;
+        while (builder.length() <= TcpdumpLogReader.MAX_LOG_SIZE) {
+            builder.append(count).append("+ A? host").append(count % 1000).append(".com. (20)\n");
+            count++;
+        }
+        append(file, builder.toString());
+        assertEquals(1000, reader.read().size());
+        assertEquals(0, file.length());
+        append(file, "1+ A? new.com. (20)\n");
+        assertEquals(1001, reader.read().size());
+    }
+
+    private static String parseHost(String line) {
+        byte[] bytes = line.getBytes(US_ASCII);
+        return TcpdumpLogReader.parseHost(bytes, bytes.length);
+    }
+
+    private static void append(File file, String content) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file, true)) {
+            outputStream.write(content.getBytes(US_ASCII));
+        }
+    }
+}
@@ -1,10 +1,17 @@
 package org.adaway.model.source;
 
+import org.adaway.db.dao.HostListItemDao;
+import org.adaway.db.entity.HostListItem;
+import org.adaway.db.entity.HostsSource;
 import org.adaway.util.RegexUtils;
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 
 import static org.adaway.model.source.SourceLoader.HOSTS_PARSER_PATTERN;
@@ -168,4 +175,34 @@ public class SourceLoaderTest {
             );
         }
     }
+
+    @Test
+    public void testParseStats() {
+        AtomicInteger inserted = new AtomicInteger();
+        HostListItemDao dao = (HostListItemDao) Proxy.newProxyInstance(
+                HostListItemDao.class.getClassLoader(),
+                new Class<?>[]{HostListItemDao.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("insert")) {
+                        inserted.addAndGet(((HostListItem[]) args[0]).length);
+                    }
+                    return null;
+                }
+        );
+        HostsSource source = new HostsSource();
+        source.setId(2);
+        String content = "# Comment\n"
+                + "\n"
+                + "127.0.0.1 ads.example.com\n"
+                + "0.0.0.0 tracker.example.com # tracker\n"
+                + "127.0.0.1 localhost\n"
+                + "not a host line\n"
+                + "0.0.0.0 invalid..example.com\n";
+        SourceLoader.Stats stats = new SourceLoader(source)
+                .parse(new BufferedReader(new StringReader(content)), dao);
+        assertEquals(7, stats.getLines());
+        assertEquals(3, stats.getRejected());
+        assertEquals(2, stats.getInserted());
+        assertEquals(2, inserted.get());
+    }
 }
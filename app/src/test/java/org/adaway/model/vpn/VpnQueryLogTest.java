@@ -0,0 +1,37 @@
+package org.adaway.model.vpn;
+
+import org.adaway.db.entity.ListType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class VpnQueryLogTest {
+    @Test
+    public void testOldestRecordsAreOverwritten() {
+        VpnQueryLog log = new VpnQueryLog(3);
+        for (int i = 0; i < 5; i++) {
+            log.append(i, "host" + i + ".com", i % 2 == 0 ? ListType.BLOCKED : ListType.ALLOWED, i * 10);
+        }
+        VpnQueryLog.Snapshot snapshot = log.snapshot();
+
+        assertEquals(3, snapshot.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 2, snapshot.getTime(i));
+            assertEquals("host" + (i + 2) + ".com", snapshot.getHost(i));
+            assertEquals(i % 2 == 0 ? ListType.BLOCKED : ListType.ALLOWED, snapshot.getVerdict(i));
+            assertEquals((i + 2) * 10, snapshot.getLatency(i));
+        }
+    }
+
+    @Test
+    public void testClearRemovesRecords() {
+        VpnQueryLog log = new VpnQueryLog(3);
+        log.append(0, "host.com", ListType.ALLOWED, 0);
+        log.clear();
+        log.append(1, "other.com", ListType.BLOCKED, 0);
+        VpnQueryLog.Snapshot snapshot = log.snapshot();
+
+        assertEquals(1, snapshot.size());
+        assertEquals("other.com", snapshot.getHost(0));
+    }
+}
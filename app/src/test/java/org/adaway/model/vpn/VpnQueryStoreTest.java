@@ -0,0 +1,54 @@
+package org.adaway.model.vpn;
+
+import org.adaway.db.entity.ListType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class VpnQueryStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSearchFindsHostQueriesInRange() throws IOException {
+        VpnQueryStore store = new VpnQueryStore(folder.newFolder());
+        for (int i = 0; i < 100; i++) {
+            store.append(i * 1000L, "host" + (i % 10) + ".com", 1, ListType.ALLOWED,
+                    VpnQueryStore.SOURCE_UPSTREAM, i);
+        }
+        VpnQueryStore.Result result = store.search("host3.com", 20_000, 60_000);
+
+        assertEquals(4, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals(23_000 + i * 10_000L, result.getTime(i));
+            assertEquals(23 + i * 10, result.getLatency(i));
+        }
+        assertEquals(0, store.search("unknown.com", 0, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void testIndexIsRebuiltForUnsealedSegment() throws IOException {
+        File directory = folder.newFolder();
+        VpnQuerySegment segment = VpnQuerySegment.create(directory, 1000);
+        segment.append(1000, "ads.com", 1, ListType.BLOCKED, VpnQueryStore.SOURCE_LOCAL, 10);
+        segment.append(2000, "example.com", 28, ListType.ALLOWED, VpnQueryStore.SOURCE_CACHE, 20);
+        segment.append(3000, "ads.com", 28, ListType.BLOCKED, VpnQueryStore.SOURCE_LOCAL, 30);
+        segment.flush();
+        segment.close();
+
+        VpnQuerySegment reopened = VpnQuerySegment.open(directory, 1000);
+        VpnQueryStore.Result result = new VpnQueryStore(directory).search("ads.com", 0, Long.MAX_VALUE);
+
+        assertEquals(3000, reopened.getEndTime());
+        assertEquals(2, result.size());
+        assertEquals(1, result.getType(0));
+        assertEquals(28, result.getType(1));
+        assertEquals(ListType.BLOCKED, result.getVerdict(1));
+        assertEquals(VpnQueryStore.SOURCE_LOCAL, result.getSource(1));
+    }
+}
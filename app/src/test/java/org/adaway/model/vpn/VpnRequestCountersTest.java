@@ -0,0 +1,73 @@
+package org.adaway.model.vpn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.adaway.model.vpn.VpnRequestCounters.ALLOWED;
+import static org.adaway.model.vpn.VpnRequestCounters.BLOCKED;
+import static org.adaway.model.vpn.VpnRequestCounters.REDIRECTED;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VpnRequestCountersTest {
+    @Test
+    public void testNoCountIsLostWhenServiceIsKilled() throws InterruptedException {
+        VpnRequestCounters counters = new VpnRequestCounters(10, 20, 30);
+        int threadCount = 4;
+        int requestCount = 100_000;
+        // Persist snapshots like the periodic flush while requests are counted
+        long[] persisted = {10, 20, 30};
+        AtomicBoolean counting = new AtomicBoolean(true);
+        Thread flusher = new Thread(() -> {
+            while (counting.get()) {
+                long[] snapshot = counters.snapshot();
+                if (snapshot != null) {
+                    System.arraycopy(snapshot, 0, persisted, 0, snapshot.length);
+                }
+            }
+        });
+        flusher.start();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            int counter = i % 3;
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < requestCount; j++) {
+                    counters.increment(counter);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        counting.set(false);
+        flusher.join();
+        // Flush on stop then restart from persisted values
+        long[] snapshot = counters.snapshot();
+        if (snapshot != null) {
+            System.arraycopy(snapshot, 0, persisted, 0, snapshot.length);
+        }
+        VpnRequestCounters restarted = new VpnRequestCounters(persisted[BLOCKED], persisted[ALLOWED],
+                persisted[REDIRECTED]);
+
+        assertEquals(10 + 2 * requestCount, restarted.get(BLOCKED));
+        assertEquals(20 + requestCount, restarted.get(ALLOWED));
+        assertEquals(30 + requestCount, restarted.get(REDIRECTED));
+        assertNull(counters.snapshot());
+    }
+
+    @Test
+    public void testResetClearsCounts() {
+        VpnRequestCounters counters = new VpnRequestCounters(5, 0, 0);
+        counters.increment(BLOCKED);
+        counters.reset();
+        counters.increment(ALLOWED);
+
+        assertArrayEquals(new long[]{0, 1, 0}, counters.snapshot());
+    }
+}
@@ -0,0 +1,112 @@
+package org.adaway.model.vpn;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.adaway.model.vpn.VpnRequestCounters.ALLOWED;
+import static org.adaway.model.vpn.VpnRequestCounters.BLOCKED;
+import static org.adaway.model.vpn.VpnRequestCounters.REDIRECTED;
+import static org.adaway.model.vpn.VpnTimeSeries.Resolution.DAY;
+import static org.adaway.model.vpn.VpnTimeSeries.Resolution.HOUR;
+import static org.adaway.model.vpn.VpnTimeSeries.Resolution.MINUTE;
+import static org.junit.Assert.assertEquals;
+
+public class VpnTimeSeriesTest {
+    private static final long MINUTE_MS = 60_000L;
+    private static final long DAY_MS = 86_400_000L;
+    /**
+     * A day aligned time, far from epoch.
+     */
+    private static final long NOW = 20_000 * DAY_MS;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordIsDownsampled() {
+        VpnTimeSeries timeSeries = new VpnTimeSeries();
+        timeSeries.record(BLOCKED, NOW);
+        timeSeries.record(BLOCKED, NOW + MINUTE_MS + 1);
+        timeSeries.record(ALLOWED, NOW + MINUTE_MS + 2);
+        timeSeries.record(REDIRECTED, NOW + 2 * MINUTE_MS);
+
+        VpnTimeSeries.Range minutes = timeSeries.query(MINUTE, NOW, NOW + 2 * MINUTE_MS);
+        assertEquals(3, minutes.size());
+        assertEquals(NOW + MINUTE_MS, minutes.getTime(1));
+        assertEquals(1, minutes.getBlocked(0));
+        assertEquals(1, minutes.getBlocked(1));
+        assertEquals(1, minutes.getAllowed(1));
+        assertEquals(1, minutes.getRedirected(2));
+        VpnTimeSeries.Range hours = timeSeries.query(HOUR, NOW, NOW);
+        assertEquals(1, hours.size());
+        assertEquals(2, hours.getBlocked(0));
+        assertEquals(1, hours.getAllowed(0));
+        assertEquals(1, hours.getRedirected(0));
+    }
+
+    @Test
+    public void testRollOver() {
+        VpnTimeSeries timeSeries = new VpnTimeSeries();
+        timeSeries.record(BLOCKED, NOW);
+        timeSeries.record(BLOCKED, NOW);
+        // A day later, the minute ring rolls over the same bucket
+        timeSeries.record(ALLOWED, NOW + DAY_MS);
+
+        VpnTimeSeries.Range today = timeSeries.query(MINUTE, NOW + DAY_MS, NOW + DAY_MS);
+        assertEquals(0, today.getBlocked(0));
+        assertEquals(1, today.getAllowed(0));
+        // The rolled over period counts are no more reported
+        VpnTimeSeries.Range yesterday = timeSeries.query(MINUTE, NOW, NOW);
+        assertEquals(1, yesterday.size());
+        assertEquals(0, yesterday.getBlocked(0));
+        // Coarser resolutions keep it
+        VpnTimeSeries.Range days = timeSeries.query(DAY, NOW, NOW + DAY_MS);
+        assertEquals(2, days.size());
+        assertEquals(2, days.getBlocked(0));
+        assertEquals(1, days.getAllowed(1));
+    }
+
+    @Test
+    public void testQueryBounds() {
+        VpnTimeSeries timeSeries = new VpnTimeSeries();
+        timeSeries.record(BLOCKED, NOW);
+
+        // The range is bounded to the kept periods
+        VpnTimeSeries.Range minutes = timeSeries.query(MINUTE, 0, NOW);
+        assertEquals(24 * 60, minutes.size());
+        assertEquals(NOW - (24 * 60 - 1) * MINUTE_MS, minutes.getTime(0));
+        assertEquals(1, minutes.getBlocked(minutes.size() - 1));
+        VpnTimeSeries.Range days = timeSeries.query(DAY, 0, NOW);
+        assertEquals(365, days.size());
+        // Inverted ranges are empty
+        assertEquals(0, timeSeries.query(MINUTE, NOW, NOW - MINUTE_MS).size());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        File file = new File(this.folder.getRoot(), "time_series.bin");
+        VpnTimeSeries timeSeries = new VpnTimeSeries();
+        timeSeries.record(BLOCKED, NOW);
+        timeSeries.record(ALLOWED, NOW + MINUTE_MS);
+        timeSeries.record(REDIRECTED, NOW + DAY_MS);
+        timeSeries.save(file);
+
+        VpnTimeSeries loadedTimeSeries = new VpnTimeSeries();
+        loadedTimeSeries.load(file);
+        VpnTimeSeries.Range minutes = loadedTimeSeries.query(MINUTE, NOW + DAY_MS, NOW + DAY_MS);
+        assertEquals(1, minutes.getRedirected(0));
+        VpnTimeSeries.Range days = loadedTimeSeries.query(DAY, NOW, NOW + DAY_MS);
+        assertEquals(1, days.getBlocked(0));
+        assertEquals(1, days.getAllowed(0));
+        assertEquals(1, days.getRedirected(1));
+        // Missing and corrupted files are ignored
+        VpnTimeSeries emptyTimeSeries = new VpnTimeSeries();
+        emptyTimeSeries.load(new File(this.folder.getRoot(), "missing.bin"));
+        emptyTimeSeries.load(this.folder.newFile("empty.bin"));
+        assertEquals(0, emptyTimeSeries.query(DAY, NOW, NOW).getBlocked(0));
+    }
+}
@@ -0,0 +1,46 @@
+package org.adaway.util.metrics;
+
+import org.junit.Test;
+
+import static org.adaway.util.metrics.OpenMetricsWriter.COUNTER;
+import static org.adaway.util.metrics.OpenMetricsWriter.GAUGE;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * This class tests the {@link OpenMetricsWriter}.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class OpenMetricsWriterTest {
+    @Test
+    public void testExposition() {
+        OpenMetricsWriter writer = new OpenMetricsWriter();
+        writer.family("adaway_requests", COUNTER, "The requests.");
+        writer.sample("adaway_requests_total").label("verdict", "blocked").value(42);
+        writer.sample("adaway_requests_total").label("verdict", "allowed").label("source", "cache").value(-7);
+        writer.family("adaway_latency_seconds", GAUGE, "The latency.");
+        writer.sample("adaway_latency_seconds").seconds(1_234_567);
+        writer.sample("adaway_latency_seconds").seconds(12);
+        writer.eof();
+        assertEquals("# TYPE adaway_requests counter\n"
+                + "# HELP adaway_requests The requests.\n"
+                + "adaway_requests_total{verdict=\"blocked\"} 42\n"
+                + "adaway_requests_total{verdict=\"allowed\",source=\"cache\"} -7\n"
+                + "# TYPE adaway_latency_seconds gauge\n"
+                + "# HELP adaway_latency_seconds The latency.\n"
+                + "adaway_latency_seconds 1.234567\n"
+                + "adaway_latency_seconds 0.000012\n"
+                + "# EOF\n", writer.toString());
+    }
+
+    @Test
+    public void testLabelEscaping() {
+        OpenMetricsWriter writer = new OpenMetricsWriter();
+        writer.sample("source").label("label", "a\"b\\c\nd").value(0);
+        writer.sample("source").label("label", "liste \"française\"").value(1);
+        assertEquals("source{label=\"a\\\"b\\\\c\\nd\"} 0\n"
+                + "source{label=\"liste \\\"française\\\"\"} 1\n", writer.toString());
+        writer.reset();
+        assertEquals(0, writer.size());
+    }
+}
@@ -0,0 +1,176 @@
+package org.adaway.vpn.dns;
+
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DnsAnswerCacheTest {
+    private static final String HOST = "example.com";
+
+    @Test
+    public void testHitRewritesIdAndTtl() throws IOException {
+        DnsAnswerCache cache = new DnsAnswerCache(64 * 1024);
+        cache.put(new DnsQuestion(HOST, Type.A, DClass.IN), buildResponse(HOST, 1234, 300), 0);
+
+        byte[] answer = cache.get(new DnsQuestion(HOST, Type.A, DClass.IN), 42, 100_000);
+        assertNotNull(answer);
+        Message message = new Message(answer);
+        assertEquals(42, message.getHeader().getID());
+        Record[] records = message.getSectionArray(Section.ANSWER);
+        assertEquals(1, records.length);
+        assertEquals(200, records[0].getTTL());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpiredEntryIsMissed() throws IOException {
+        DnsAnswerCache cache = new DnsAnswerCache(64 * 1024);
+        cache.put(new DnsQuestion(HOST, Type.A, DClass.IN), buildResponse(HOST, 1234, 10), 0);
+
+        assertNull(cache.get(new DnsQuestion(HOST, Type.A, DClass.IN), 42, 10_000));
+        assertNull(cache.get(new DnsQuestion(HOST, Type.AAAA, DClass.IN), 42, 0));
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testDnssecQueriesDoNotShareAnswers() throws IOException {
+        DnsAnswerCache cache = new DnsAnswerCache(64 * 1024);
+        cache.put(new DnsQuestion(HOST, Type.A, DClass.IN), buildResponse(HOST, 1234, 300), 0);
+
+        assertNull(cache.get(new DnsQuestion(HOST, Type.A, DClass.IN, DnsQuestion.DNSSEC_OK), 42, 0));
+        assertNull(cache.get(new DnsQuestion(HOST, Type.A, DClass.IN, DnsQuestion.CHECKING_DISABLED), 42, 0));
+        assertNotNull(cache.get(new DnsQuestion(HOST, Type.A, DClass.IN, 0), 42, 0));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws IOException {
+        String host = "a." + HOST;
+        byte[] response = buildResponse(host, 1, 300);
+        // Budget for two entries only
+        DnsAnswerCache cache = new DnsAnswerCache(2 * (128 + 2 * host.length() + response.length));
+        cache.put(new DnsQuestion("a." + HOST, Type.A, DClass.IN), buildResponse("a." + HOST, 1, 300), 0);
+        cache.put(new DnsQuestion("b." + HOST, Type.A, DClass.IN), buildResponse("b." + HOST, 2, 300), 0);
+        // Touch first entry to make second one the eldest
+        assertNotNull(cache.get(new DnsQuestion("a." + HOST, Type.A, DClass.IN), 1, 0));
+        cache.put(new DnsQuestion("c." + HOST, Type.A, DClass.IN), buildResponse("c." + HOST, 3, 300), 0);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNotNull(cache.get(new DnsQuestion("a." + HOST, Type.A, DClass.IN), 1, 0));
+        assertNull(cache.get(new DnsQuestion("b." + HOST, Type.A, DClass.IN), 2, 0));
+        assertNotNull(cache.get(new DnsQuestion("c." + HOST, Type.A, DClass.IN), 3, 0));
+    }
+
+    @Test
+    public void testTruncatedResponseIsNotCached() throws IOException {
+        DnsAnswerCache cache = new DnsAnswerCache(64 * 1024);
+        Message message = new Message(buildResponse(HOST, 1234, 300));
+        message.getHeader().setFlag(Flags.TC);
+        cache.put(new DnsQuestion(HOST, Type.A, DClass.IN), message.toWire(), 0);
+        cache.put(new DnsQuestion(HOST, Type.AAAA, DClass.IN), buildResponse(HOST, 1234, 0), 0);
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testStaleEntryIsServedUntilMaxStale() throws IOException {
+        DnsAnswerCache cache = new DnsAnswerCache(64 * 1024);
+        cache.setMaxStale(3600);
+        DnsQuestion question = new DnsQuestion(HOST, Type.A, DClass.IN);
+        cache.put(question, buildResponse(HOST, 1234, 10), 0);
+
+        assertFalse(cache.isStale(question, 5_000));
+        byte[] answer = cache.get(question, 42, 60_000);
+        assertNotNull(answer);
+        assertTrue(cache.isStale(question, 60_000));
+        Record[] records = new Message(answer).getSectionArray(Section.ANSWER);
+        assertEquals(DnsAnswerCache.STALE_TTL, records[0].getTTL());
+        assertEquals(1, cache.getStaleHitCount());
+
+        assertNull(cache.get(question, 42, 3_610_000));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPopularEntryIsDueForPrefetchBeforeExpiration() throws IOException {
+        DnsAnswerCache cache = new DnsAnswerCache(64 * 1024);
+        DnsQuestion question = new DnsQuestion(HOST, Type.A, DClass.IN);
+        cache.put(question, buildResponse(HOST, 1234, 100), 0);
+
+        // Not popular enough
+        assertFalse(cache.isPrefetchDue(question, 95_000));
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(cache.get(question, 42, 1_000));
+        }
+        // Not close enough to expiration
+        assertFalse(cache.isPrefetchDue(question, 80_000));
+        assertTrue(cache.isPrefetchDue(question, 95_000));
+        // Already expired
+        assertFalse(cache.isPrefetchDue(question, 100_000));
+    }
+
+    @Test
+    public void testRaisedTtlHitsAreCounted() throws IOException {
+        DnsTtlClamp ttlClamp = new DnsTtlClamp();
+        ttlClamp.setBounds(60, 0);
+        ttlClamp.setExceptions("example.org, .Example.net.");
+        DnsAnswerCache cache = new DnsAnswerCache(64 * 1024);
+        DnsQuestion question = new DnsQuestion(HOST, Type.A, DClass.IN);
+        byte[] response = buildResponse(HOST, 1234, 10);
+        long upstreamTtl = ttlClamp.clamp(HOST, response);
+        assertEquals(10, upstreamTtl);
+        assertEquals(60, new Message(response).getSectionArray(Section.ANSWER)[0].getTTL());
+        cache.put(question, response, upstreamTtl, 0);
+
+        assertNotNull(cache.get(question, 42, 5_000));
+        assertEquals(0, cache.getRaisedTtlHitCount());
+        assertNotNull(cache.get(question, 42, 30_000));
+        assertEquals(1, cache.getRaisedTtlHitCount());
+        assertEquals(1, ttlClamp.getRaisedCount());
+
+        // Excepted domains and their subdomains are not rewritten
+        byte[] exceptedResponse = buildResponse("cdn.example.net", 1234, 10);
+        assertEquals(-1, ttlClamp.clamp("cdn.example.net", exceptedResponse));
+        assertEquals(10, new Message(exceptedResponse).getSectionArray(Section.ANSWER)[0].getTTL());
+    }
+
+    @Test
+    public void testClear() throws IOException {
+        DnsAnswerCache cache = new DnsAnswerCache(64 * 1024);
+        byte[] response = buildResponse(HOST, 1234, 300);
+        cache.put(new DnsQuestion(HOST, Type.A, DClass.IN), response, 0);
+        assertArrayEquals(response, cache.get(new DnsQuestion(HOST, Type.A, DClass.IN), 1234, 0));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getMemoryUsage());
+        assertNull(cache.get(new DnsQuestion(HOST, Type.A, DClass.IN), 1234, 0));
+    }
+
+    static byte[] buildResponse(String host, int id, long ttl) throws IOException {
+        Name name = Name.fromString(host + ".");
+        Message message = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        message.getHeader().setID(id);
+        message.getHeader().setFlag(Flags.QR);
+        message.addRecord(new ARecord(name, DClass.IN, ttl, InetAddress.getByName("192.0.2.1")), Section.ANSWER);
+        return message.toWire();
+    }
+}
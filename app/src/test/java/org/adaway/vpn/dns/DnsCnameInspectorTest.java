@@ -0,0 +1,66 @@
+package org.adaway.vpn.dns;
+
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DnsCnameInspectorTest {
+    @Test
+    public void testBlockedCnameTargetIsFound() throws IOException {
+        DnsNameHashSet blockedHosts = buildBlockedHosts("tracker.adtech.net", "other.adtech.net");
+        DnsCnameInspector inspector = new DnsCnameInspector(blockedHosts::contains);
+        byte[] response = buildResponse("metrics.site.com", "edge.site-cdn.com", "Tracker.AdTech.net");
+
+        assertEquals("tracker.adtech.net", inspector.findBlockedName(response, response.length));
+        assertEquals(1, inspector.getCloakedCount());
+    }
+
+    @Test
+    public void testAllowedChainIsNotBlocked() throws IOException {
+        DnsNameHashSet blockedHosts = buildBlockedHosts("site-cdn.com", "edge.site-cdn.co");
+        DnsCnameInspector inspector = new DnsCnameInspector(blockedHosts::contains);
+        byte[] response = buildResponse("www.site.com", "edge.site-cdn.com", "origin.site-cdn.net");
+
+        assertNull(inspector.findBlockedName(response, response.length));
+        // Each alias target is checked once, owner names pointing to them are skipped
+        assertEquals(2, inspector.getCheckedNameCount());
+        assertEquals(0, inspector.getCloakedCount());
+        // Malformed responses are ignored
+        assertNull(inspector.findBlockedName(response, response.length - 5));
+    }
+
+    private static DnsNameHashSet buildBlockedHosts(String... hosts) {
+        long[] hashes = new long[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            hashes[i] = DnsNameHashSet.hash(hosts[i]);
+        }
+        return new DnsNameHashSet(hashes, hashes.length);
+    }
+
+    private static byte[] buildResponse(String host, String... aliases) throws IOException {
+        Name name = Name.fromString(host + ".");
+        Message message = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        message.getHeader().setFlag(Flags.QR);
+        Name owner = name;
+        for (String alias : aliases) {
+            Name target = Name.fromString(alias + ".");
+            message.addRecord(new CNAMERecord(owner, DClass.IN, 300, target), Section.ANSWER);
+            owner = target;
+        }
+        message.addRecord(new ARecord(owner, DClass.IN, 300, InetAddress.getByName("192.0.2.1")), Section.ANSWER);
+        return message.toWire();
+    }
+}
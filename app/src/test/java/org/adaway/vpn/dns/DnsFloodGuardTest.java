@@ -0,0 +1,97 @@
+package org.adaway.vpn.dns;
+
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DnsFloodGuardTest {
+    private static final long NOW = 1_000_000;
+
+    @Test
+    public void testQueriesAreLimitedAboveThreshold() throws IOException {
+        // A rate of 2 queries per second limits from a decayed count of 4
+        DnsFloodGuard floodGuard = new DnsFloodGuard(2);
+        byte[] query = buildQuery("flood.example.com");
+        byte[] otherQuery = buildQuery("other.example.com");
+        for (int i = 0; i < 4; i++) {
+            assertTrue(floodGuard.tryAcquire(query, query.length, NOW));
+        }
+        assertFalse(floodGuard.tryAcquire(query, query.length, NOW));
+        assertFalse(floodGuard.tryAcquire(query, query.length, NOW));
+        // Other questions are not limited
+        assertTrue(floodGuard.tryAcquire(otherQuery, otherQuery.length, NOW));
+        assertEquals(2, floodGuard.getLimitedCount());
+        // Offenders are published on the next period
+        assertEquals(Collections.emptyMap(), floodGuard.getOffenders());
+        floodGuard.tryAcquire(otherQuery, otherQuery.length, NOW + 1_000);
+        assertEquals(Collections.singletonMap("flood.example.com", 2L), floodGuard.getOffenders());
+    }
+
+    @Test
+    public void testCountsAreHalvedEverySecond() throws IOException {
+        DnsFloodGuard floodGuard = new DnsFloodGuard(2);
+        byte[] query = buildQuery("flood.example.com");
+        for (int i = 0; i < 4; i++) {
+            floodGuard.tryAcquire(query, query.length, NOW);
+        }
+        assertFalse(floodGuard.tryAcquire(query, query.length, NOW + 999));
+        // The count of 4 is halved to 2 after a second
+        assertTrue(floodGuard.tryAcquire(query, query.length, NOW + 1_000));
+        assertTrue(floodGuard.tryAcquire(query, query.length, NOW + 1_000));
+        assertFalse(floodGuard.tryAcquire(query, query.length, NOW + 1_000));
+        // The count of 4 is halved twice to 1 after two seconds
+        for (int i = 0; i < 3; i++) {
+            assertTrue(floodGuard.tryAcquire(query, query.length, NOW + 3_000));
+        }
+        assertFalse(floodGuard.tryAcquire(query, query.length, NOW + 3_000));
+    }
+
+    @Test
+    public void testMalformedQueriesAreNotLimited() {
+        DnsFloodGuard floodGuard = new DnsFloodGuard(1);
+        byte[] query = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            assertTrue(floodGuard.tryAcquire(query, query.length, NOW));
+        }
+    }
+
+    @Test
+    public void testRefuse() throws IOException {
+        byte[] query = buildQuery("flood.example.com");
+        byte[] refused = DnsWire.refuse(query, query.length);
+        assertNotNull(refused);
+        Message response = new Message(refused);
+        assertEquals(new Message(query).getHeader().getID(), response.getHeader().getID());
+        assertTrue(response.getHeader().getFlag(Flags.QR));
+        assertTrue(response.getHeader().getFlag(Flags.RD));
+        assertEquals(Rcode.REFUSED, response.getHeader().getRcode());
+        assertEquals(Name.fromString("flood.example.com."), response.getQuestion().getName());
+        assertEquals(0, response.getSection(Section.ADDITIONAL).size());
+        // Malformed queries are not answered
+        assertNull(DnsWire.refuse(query, DnsWire.HEADER_LENGTH + 2));
+    }
+
+    private static byte[] buildQuery(String host) throws IOException {
+        Record question = Record.newRecord(Name.fromString(host + "."), Type.A, DClass.IN);
+        Message query = Message.newQuery(question);
+        // Add an EDNS record to check it is dropped from the response
+        query.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+        return query.toWire();
+    }
+}
@@ -0,0 +1,39 @@
+package org.adaway.vpn.dns;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DnsForwardingTrieTest {
+    @Test
+    public void testLongestSuffixMatches() throws UnknownHostException {
+        List<InetAddress> corpServers = servers("10.0.0.53");
+        List<InetAddress> labServers = servers("10.1.0.53");
+        List<InetAddress> reverseServers = servers("10.0.0.54");
+        DnsForwardingTrie trie = new DnsForwardingTrie();
+        trie.put("corp.example", corpServers);
+        trie.put("lab.corp.example", labServers);
+        trie.put("10.in-addr.arpa", reverseServers);
+
+        assertEquals(3, trie.size());
+        assertSame(corpServers, trie.match("corp.example"));
+        assertSame(corpServers, trie.match("intranet.corp.example"));
+        assertSame(labServers, trie.match("build.lab.corp.example"));
+        assertSame(reverseServers, trie.match("4.3.2.10.in-addr.arpa"));
+        // Labels are matched as a whole
+        assertNull(trie.match("mycorp.example"));
+        assertNull(trie.match("example"));
+        assertNull(trie.match("11.in-addr.arpa"));
+    }
+
+    private static List<InetAddress> servers(String address) throws UnknownHostException {
+        return Collections.singletonList(InetAddress.getByName(address));
+    }
+}
@@ -0,0 +1,87 @@
+package org.adaway.vpn.dns;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DnsHeavyHittersTest {
+    @Test
+    public void testTopOrdering() {
+        DnsHeavyHitters heavyHitters = new DnsHeavyHitters(4);
+        offer(heavyHitters, "c.example.com", 1);
+        offer(heavyHitters, "b.example.com", 3);
+        offer(heavyHitters, "a.example.com", 5);
+
+        assertEquals(asList("a.example.com=5", "b.example.com=3"), top(heavyHitters, 2));
+        assertEquals(asList("a.example.com=5", "b.example.com=3", "c.example.com=1"), top(heavyHitters, 10));
+        // A name counted again moves up
+        offer(heavyHitters, "c.example.com", 5);
+        assertEquals(asList("c.example.com=6", "a.example.com=5", "b.example.com=3"), top(heavyHitters, 10));
+    }
+
+    @Test
+    public void testLeastFrequentNameIsEvicted() {
+        DnsHeavyHitters heavyHitters = new DnsHeavyHitters(2);
+        offer(heavyHitters, "a.example.com", 3);
+        offer(heavyHitters, "b.example.com", 1);
+
+        // The new name takes over the lowest count of 1 as its error
+        heavyHitters.offer("c.example.com");
+        assertEquals(asList("a.example.com=3", "c.example.com=1"), top(heavyHitters, 10));
+        // The evicted name takes over the lowest count of 2 as its error
+        heavyHitters.offer("b.example.com");
+        assertEquals(asList("a.example.com=3", "b.example.com=1"), top(heavyHitters, 10));
+        // The guaranteed count only grows with the actual occurrences
+        offer(heavyHitters, "b.example.com", 3);
+        assertEquals(asList("b.example.com=4", "a.example.com=3"), top(heavyHitters, 10));
+    }
+
+    @Test
+    public void testFrequentNameIsKept() {
+        DnsHeavyHitters heavyHitters = new DnsHeavyHitters(3);
+        // A name more frequent than 1/capacity of the stream is never evicted by rare ones
+        for (int i = 0; i < 100; i++) {
+            heavyHitters.offer("frequent.example.com");
+            heavyHitters.offer("rare" + i + ".example.com");
+        }
+
+        List<DnsHeavyHitters.Entry> top = heavyHitters.top(1);
+        assertEquals("frequent.example.com", top.get(0).name);
+        assertEquals(100, top.get(0).count);
+    }
+
+    @Test
+    public void testClear() {
+        DnsHeavyHitters heavyHitters = new DnsHeavyHitters(2);
+        assertTrue(heavyHitters.isEmpty());
+        offer(heavyHitters, "a.example.com", 2);
+        assertFalse(heavyHitters.isEmpty());
+
+        heavyHitters.clear();
+        assertTrue(heavyHitters.isEmpty());
+        assertEquals(emptyList(), top(heavyHitters, 10));
+        heavyHitters.offer("b.example.com");
+        assertEquals(asList("b.example.com=1"), top(heavyHitters, 10));
+    }
+
+    private static void offer(DnsHeavyHitters heavyHitters, String name, int count) {
+        for (int i = 0; i < count; i++) {
+            heavyHitters.offer(name);
+        }
+    }
+
+    private static List<String> top(DnsHeavyHitters heavyHitters, int limit) {
+        List<String> top = new ArrayList<>();
+        for (DnsHeavyHitters.Entry entry : heavyHitters.top(limit)) {
+            top.add(entry.name + "=" + entry.count);
+        }
+        return top;
+    }
+}
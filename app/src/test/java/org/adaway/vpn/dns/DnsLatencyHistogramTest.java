@@ -0,0 +1,42 @@
+package org.adaway.vpn.dns;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DnsLatencyHistogramTest {
+    @Test
+    public void testBucketsCoverValues() {
+        for (long value = 0; value < 1_000_000; value++) {
+            int index = DnsLatencyHistogram.indexOf(value);
+            assertTrue(value <= DnsLatencyHistogram.highestValueOf(index));
+            assertTrue(index == 0 || value > DnsLatencyHistogram.highestValueOf(index - 1));
+        }
+    }
+
+    @Test
+    public void testPercentilesAreWithinPrecision() {
+        DnsLatencyHistogram histogram = new DnsLatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(50_000, histogram.getValueAtPercentile(50), 50_000 / 32D);
+        assertEquals(90_000, histogram.getValueAtPercentile(90), 90_000 / 32D);
+        assertEquals(99_000, histogram.getValueAtPercentile(99), 99_000 / 32D);
+        assertEquals(100_000, histogram.getMax());
+        assertEquals(100_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testHigherValuesAreClamped() {
+        DnsLatencyHistogram histogram = new DnsLatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-1);
+
+        assertEquals(DnsLatencyHistogram.MAX_VALUE, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+}
@@ -0,0 +1,135 @@
+package org.adaway.vpn.dns;
+
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DnsLocalServerTest {
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    @Test
+    public void testQueriesAreAnsweredOverUdpAndTcp() throws IOException {
+        try (DnsLocalServer server = new DnsLocalServer(DnsLocalServerTest::respond, 0)) {
+            server.start(LOOPBACK, 0);
+            byte[] query = buildQuery("example.com");
+
+            Message udpResponse = new Message(queryOverUdp(server.getLocalPort(), query));
+            assertTrue(udpResponse.getHeader().getFlag(Flags.QR));
+            assertEquals(new Message(query).getHeader().getID(), udpResponse.getHeader().getID());
+
+            Message tcpResponse = new Message(queryOverTcp(server.getLocalPort(), query));
+            assertTrue(tcpResponse.getHeader().getFlag(Flags.QR));
+            assertEquals(new Message(query).getHeader().getID(), tcpResponse.getHeader().getID());
+        }
+    }
+
+    @Test
+    public void testParseBindAddress() throws IOException {
+        assertNull(DnsLocalServer.parseBindAddress(DnsLocalServer.ALL_INTERFACES));
+        assertEquals(LOOPBACK, DnsLocalServer.parseBindAddress(" 127.0.0.1 "));
+        try {
+            DnsLocalServer.parseBindAddress("unknown0");
+            fail("Unknown network interface should not be parsed.");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testClientQueriesAreRateLimited() throws IOException {
+        AtomicInteger handledCount = new AtomicInteger();
+        DnsLocalServer.QueryHandler handler = (client, query, responder) -> {
+            handledCount.incrementAndGet();
+            respond(client, query, responder);
+        };
+        try (DnsLocalServer server = new DnsLocalServer(handler, 2);
+             DatagramSocket socket = new DatagramSocket(0, LOOPBACK)) {
+            server.start(LOOPBACK, 0);
+            byte[] query = buildQuery("example.com");
+            for (int i = 0; i < 5; i++) {
+                socket.send(new DatagramPacket(query, query.length, LOOPBACK, server.getLocalPort()));
+            }
+            // Only the queries within the bucket are answered
+            socket.setSoTimeout(500);
+            int responseCount = 0;
+            try {
+                while (true) {
+                    socket.receive(new DatagramPacket(new byte[512], 512));
+                    responseCount++;
+                }
+            } catch (SocketTimeoutException e) {
+                // No more response
+            }
+            assertEquals(2, responseCount);
+            assertEquals(2, handledCount.get());
+
+            List<DnsLocalServer.ClientStatistics> statistics = server.getClientStatistics();
+            assertEquals(1, statistics.size());
+            assertEquals(5, statistics.get(0).getQueryCount());
+            assertEquals(3, statistics.get(0).getRateLimitedCount());
+            assertEquals(2, statistics.get(0).getResponseCount());
+        }
+    }
+
+    private static void respond(InetAddress client, byte[] query, Consumer<byte[]> responder) {
+        try {
+            Message message = new Message(query);
+            message.getHeader().setFlag(Flags.QR);
+            responder.accept(message.toWire());
+        } catch (IOException e) {
+            fail("Failed to parse query.");
+        }
+    }
+
+    private static byte[] buildQuery(String host) throws IOException {
+        Record question = Record.newRecord(Name.fromString(host + "."), Type.A, DClass.IN);
+        return Message.newQuery(question).toWire();
+    }
+
+    private static byte[] queryOverUdp(int port, byte[] query) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, LOOPBACK)) {
+            socket.setSoTimeout(2000);
+            socket.send(new DatagramPacket(query, query.length, LOOPBACK, port));
+            DatagramPacket response = new DatagramPacket(new byte[512], 512);
+            socket.receive(response);
+            byte[] data = new byte[response.getLength()];
+            System.arraycopy(response.getData(), 0, data, 0, data.length);
+            return data;
+        }
+    }
+
+    private static byte[] queryOverTcp(int port, byte[] query) throws IOException {
+        try (Socket socket = new Socket(LOOPBACK, port)) {
+            socket.setSoTimeout(2000);
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            outputStream.writeShort(query.length);
+            outputStream.write(query);
+            outputStream.flush();
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+            byte[] response = new byte[inputStream.readUnsignedShort()];
+            inputStream.readFully(response);
+            return response;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.adaway.vpn.dns;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DnsTimingWheelTest {
+    private static final long ORIGIN = 1_000_000;
+
+    @Test
+    public void testScheduleAndExpire() {
+        DnsTimingWheel<String> wheel = new DnsTimingWheel<>(ORIGIN);
+        wheel.schedule("late", ORIGIN + 5_000);
+        wheel.schedule("early", ORIGIN + 100);
+        wheel.schedule("early2", ORIGIN + 101);
+        assertEquals(3, wheel.size());
+
+        assertEquals(emptyList(), expire(wheel, ORIGIN + 99));
+        assertEquals(asList("early"), expire(wheel, ORIGIN + 100));
+        assertEquals(asList("early2"), expire(wheel, ORIGIN + 4_999));
+        assertEquals(asList("late"), expire(wheel, ORIGIN + 5_000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCancel() {
+        DnsTimingWheel<String> wheel = new DnsTimingWheel<>(ORIGIN);
+        DnsTimingWheel.Timeout<String> first = wheel.schedule("first", ORIGIN + 100);
+        DnsTimingWheel.Timeout<String> second = wheel.schedule("second", ORIGIN + 100);
+        wheel.schedule("third", ORIGIN + 200);
+
+        wheel.cancel(second);
+        // Cancelling twice has no effect
+        wheel.cancel(second);
+        assertEquals(2, wheel.size());
+        wheel.cancel(first);
+        assertEquals(1, wheel.size());
+        assertEquals(asList("third"), expire(wheel, ORIGIN + 1_000));
+    }
+
+    @Test
+    public void testDeadlinesBeyondRevolution() {
+        DnsTimingWheel<String> wheel = new DnsTimingWheel<>(ORIGIN);
+        // A revolution is 2048 ticks of 8 ms, both deadlines share the same slot
+        long revolution = 2048 * 8;
+        wheel.schedule("near", ORIGIN + 800);
+        wheel.schedule("far", ORIGIN + 800 + revolution);
+
+        assertEquals(asList("near"), expire(wheel, ORIGIN + 800));
+        assertEquals(emptyList(), expire(wheel, ORIGIN + 800 + revolution - 1));
+        assertEquals(asList("far"), expire(wheel, ORIGIN + 800 + revolution));
+    }
+
+    @Test
+    public void testGetNextDeadline() {
+        DnsTimingWheel<String> wheel = new DnsTimingWheel<>(ORIGIN);
+        assertEquals(-1, wheel.getNextDeadline());
+
+        DnsTimingWheel.Timeout<String> first = wheel.schedule("first", ORIGIN + 300);
+        assertEquals(ORIGIN + 300, wheel.getNextDeadline());
+        wheel.schedule("second", ORIGIN + 1_003);
+        assertEquals(ORIGIN + 300, wheel.getNextDeadline());
+        wheel.schedule("third", ORIGIN + 2_000);
+        // Cancelling the next deadline looks up the following one
+        wheel.cancel(first);
+        assertEquals(ORIGIN + 1_003, wheel.getNextDeadline());
+        // Scheduling an earlier deadline while the next one is stale
+        DnsTimingWheel.Timeout<String> fourth = wheel.schedule("fourth", ORIGIN + 500);
+        assertEquals(ORIGIN + 500, wheel.getNextDeadline());
+        wheel.cancel(fourth);
+        wheel.schedule("fifth", ORIGIN + 700);
+        assertEquals(ORIGIN + 700, wheel.getNextDeadline());
+        // Expiring the next deadline looks up the following one
+        assertEquals(asList("fifth"), expire(wheel, ORIGIN + 700));
+        assertEquals(ORIGIN + 1_003, wheel.getNextDeadline());
+        assertEquals(asList("second"), expire(wheel, ORIGIN + 1_500));
+        assertEquals(ORIGIN + 2_000, wheel.getNextDeadline());
+        assertEquals(asList("third"), expire(wheel, ORIGIN + 2_000));
+        assertEquals(-1, wheel.getNextDeadline());
+    }
+
+    @Test
+    public void testGetNextDeadlineBeyondRevolution() {
+        DnsTimingWheel<String> wheel = new DnsTimingWheel<>(ORIGIN);
+        long revolution = 2048 * 8;
+        long farDeadline = ORIGIN + 2 * revolution;
+        DnsTimingWheel.Timeout<String> near = wheel.schedule("near", ORIGIN + 100);
+        wheel.schedule("far", farDeadline);
+        wheel.cancel(near);
+        // A deadline to wake up before is returned until the deadline is within a revolution
+        long nextDeadline = wheel.getNextDeadline();
+        assertTrue(nextDeadline > ORIGIN + 100 && nextDeadline < farDeadline);
+        assertEquals(emptyList(), expire(wheel, nextDeadline));
+        assertEquals(farDeadline, wheel.getNextDeadline());
+        assertEquals(asList("far"), expire(wheel, farDeadline));
+    }
+
+    private static List<String> expire(DnsTimingWheel<String> wheel, long now) {
+        List<String> expired = new ArrayList<>();
+        wheel.expire(now, expired);
+        return expired;
+    }
+}
@@ -0,0 +1,51 @@
+package org.adaway.vpn.dns;
+
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class DnsWireTest {
+    private static final byte[][] SHORT_RESPONSES = {new byte[0], new byte[]{0x12}, new byte[]{0x12, 0x34}};
+
+    @Test
+    public void testShortResponsesAreNotTruncated() {
+        for (byte[] response : SHORT_RESPONSES) {
+            assertFalse(DnsWire.isTruncated(response));
+        }
+    }
+
+    @Test
+    public void testShortResponsesIdIsSafelySet() {
+        byte[] empty = new byte[0];
+        DnsWire.setId(empty, 0xABCD);
+        assertEquals(0, empty.length);
+        byte[] oneByte = {0x12};
+        DnsWire.setId(oneByte, 0xABCD);
+        assertArrayEquals(new byte[]{0x12}, oneByte);
+        byte[] twoBytes = {0x12, 0x34};
+        DnsWire.setId(twoBytes, 0xABCD);
+        assertEquals(0xABCD, DnsWire.getId(twoBytes));
+    }
+
+    @Test
+    public void testShortResponsesAreDispatched() {
+        for (byte[] response : SHORT_RESPONSES) {
+            DnsInFlightQueries inFlightQueries = new DnsInFlightQueries();
+            DnsQuestion question = new DnsQuestion("example.com", Type.A, DClass.IN);
+            List<byte[]> responses = new ArrayList<>();
+            inFlightQueries.register(question, 1, responses::add);
+            inFlightQueries.register(question, 2, responses::add);
+
+            inFlightQueries.complete(question, response);
+            assertEquals(2, responses.size());
+            assertEquals(response.length, responses.get(1).length);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.adaway.vpn.dns;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DohUpstreamTest {
+    private MockWebServer server;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        // Stand-in for a DoH server, using HTTP/2 without TLS
+        this.server = new MockWebServer();
+        this.server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        this.server.start();
+        this.client = new OkHttpClient.Builder()
+                .protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.server.shutdown();
+    }
+
+    @Test
+    public void testQueryIsPostedAndResponseRelayedUnchanged() throws Exception {
+        byte[] query = buildQuery("example.com", 1234);
+        byte[] response = buildResponse(query);
+        this.server.enqueue(dnsResponse(response));
+
+        try (DohUpstream upstream = new DohUpstream(this.client, endpoints("/dns-query"))) {
+            DatagramSocket socket = upstream.query(query, 0, query.length);
+            assertArrayEquals(response, receive(socket));
+        }
+
+        RecordedRequest request = this.server.takeRequest(1, TimeUnit.SECONDS);
+        assertEquals("POST", request.getMethod());
+        assertEquals("/dns-query", request.getPath());
+        assertEquals("application/dns-message", request.getHeader("Content-Type"));
+        assertEquals("application/dns-message", request.getHeader("Accept"));
+        assertArrayEquals(query, request.getBody().readByteArray());
+    }
+
+    @Test
+    public void testQueriesShareConnection() throws Exception {
+        int queryCount = 8;
+        for (int i = 0; i < queryCount; i++) {
+            this.server.enqueue(dnsResponse(buildResponse(buildQuery("example.com", i))));
+        }
+
+        try (DohUpstream upstream = new DohUpstream(this.client, endpoints("/dns-query"))) {
+            DatagramSocket[] sockets = new DatagramSocket[queryCount];
+            for (int i = 0; i < queryCount; i++) {
+                byte[] query = buildQuery("host" + i + ".example.com", i);
+                sockets[i] = upstream.query(query, 0, query.length);
+            }
+            for (DatagramSocket socket : sockets) {
+                assertTrue(receive(socket).length > DnsWire.HEADER_LENGTH);
+            }
+        }
+
+        for (int i = 0; i < queryCount; i++) {
+            RecordedRequest request = this.server.takeRequest(1, TimeUnit.SECONDS);
+            assertEquals(i, request.getSequenceNumber());
+        }
+        assertEquals(queryCount, this.server.getRequestCount());
+    }
+
+    @Test
+    public void testFailedQueryIsRetriedOnNextEndpoint() throws Exception {
+        byte[] query = buildQuery("example.com", 42);
+        byte[] response = buildResponse(query);
+        this.server.enqueue(new MockResponse().setResponseCode(500));
+        this.server.enqueue(dnsResponse(response));
+
+        try (DohUpstream upstream = new DohUpstream(this.client, endpoints("/first", "/second"))) {
+            DatagramSocket socket = upstream.query(query, 0, query.length);
+            assertArrayEquals(response, receive(socket));
+        }
+
+        assertEquals("/first", this.server.takeRequest(1, TimeUnit.SECONDS).getPath());
+        assertEquals("/second", this.server.takeRequest(1, TimeUnit.SECONDS).getPath());
+    }
+
+    @Test
+    public void testParseEndpoints() {
+        List<HttpUrl> endpoints = DohUpstream.parseEndpoints(
+                "https://1.1.1.1/dns-query, http://insecure/dns-query\nnot a url  https://dns.google/dns-query");
+        assertEquals(2, endpoints.size());
+        assertEquals("1.1.1.1", endpoints.get(0).host());
+        assertEquals("dns.google", endpoints.get(1).host());
+    }
+
+    private List<HttpUrl> endpoints(String... paths) {
+        return Arrays.stream(paths)
+                .map(this.server::url)
+                .collect(Collectors.toList());
+    }
+
+    private static MockResponse dnsResponse(byte[] response) {
+        return new MockResponse()
+                .setHeader("Content-Type", "application/dns-message")
+                .setBody(new Buffer().write(response));
+    }
+
+    private static byte[] receive(DatagramSocket socket) throws IOException {
+        try {
+            socket.setSoTimeout(5_000);
+            byte[] buffer = new byte[4096];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            socket.receive(packet);
+            return Arrays.copyOf(buffer, packet.getLength());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static byte[] buildQuery(String host, int id) throws IOException {
+        Message message = Message.newQuery(Record.newRecord(Name.fromString(host + "."), Type.AAAA, DClass.IN));
+        message.getHeader().setID(id);
+        return message.toWire();
+    }
+
+    private static byte[] buildResponse(byte[] query) throws IOException {
+        Message message = new Message(query);
+        message.getHeader().setFlag(Flags.QR);
+        return message.toWire();
+    }
+}
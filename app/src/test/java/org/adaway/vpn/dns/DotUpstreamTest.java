@@ -0,0 +1,184 @@
+package org.adaway.vpn.dns;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLServerSocket;
+
+import okhttp3.Dns;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DotUpstreamTest {
+    private HandshakeCertificates clientCertificates;
+    private SSLServerSocket serverSocket;
+    private AtomicInteger connectionCount;
+
+    @Before
+    public void setUp() throws IOException {
+        // Stand-in for a DoT server, answering each batch of pipelined queries in reverse order
+        HeldCertificate certificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName("localhost")
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(certificate)
+                .build();
+        this.clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(certificate.certificate())
+                .build();
+        this.serverSocket = (SSLServerSocket) serverCertificates.sslContext().getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.connectionCount = new AtomicInteger(0);
+        Thread acceptor = new Thread(this::accept);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.serverSocket.close();
+    }
+
+    @Test
+    public void testPipelinedQueriesAreMatchedToTheirResponse() throws Exception {
+        int queryCount = 16;
+        try (DotUpstream upstream = createUpstream()) {
+            DatagramSocket[] sockets = new DatagramSocket[queryCount];
+            for (int i = 0; i < queryCount; i++) {
+                // Use the same identifier for every query to check they are remapped on the connection
+                byte[] query = buildQuery("host" + i + ".example.com", 42);
+                sockets[i] = upstream.query(query, 0, query.length);
+            }
+            for (int i = 0; i < queryCount; i++) {
+                Message response = new Message(receive(sockets[i]));
+                assertEquals(42, response.getHeader().getID());
+                assertEquals("host" + i + ".example.com.", response.getQuestion().getName().toString());
+            }
+        }
+    }
+
+    @Test
+    public void testSequentialQueriesReuseConnections() throws Exception {
+        try (DotUpstream upstream = createUpstream()) {
+            for (int i = 0; i < 8; i++) {
+                byte[] query = buildQuery("example.com", i);
+                DatagramSocket socket = upstream.query(query, 0, query.length);
+                assertEquals(i, new Message(receive(socket)).getHeader().getID());
+            }
+        }
+        // Each connection of the server pool is opened once
+        assertTrue(this.connectionCount.get() <= 2);
+    }
+
+    @Test
+    public void testParseServers() {
+        List<InetSocketAddress> servers = DotUpstream.parseServers(
+                "1.1.1.1, dns.google:8853\n[2606:4700:4700::1111]:853 2001:4860:4860::8888 bad:port");
+        assertEquals(4, servers.size());
+        assertEquals("1.1.1.1", servers.get(0).getHostString());
+        assertEquals(DotUpstream.DOT_PORT, servers.get(0).getPort());
+        assertEquals("dns.google", servers.get(1).getHostString());
+        assertEquals(8853, servers.get(1).getPort());
+        assertEquals("2606:4700:4700::1111", servers.get(2).getHostString());
+        assertEquals(853, servers.get(2).getPort());
+        assertEquals("2001:4860:4860::8888", servers.get(3).getHostString());
+        assertEquals(DotUpstream.DOT_PORT, servers.get(3).getPort());
+    }
+
+    private DotUpstream createUpstream() throws IOException {
+        return new DotUpstream(
+                Collections.singletonList(InetSocketAddress.createUnresolved("localhost", this.serverSocket.getLocalPort())),
+                SocketFactory.getDefault(),
+                this.clientCertificates.sslSocketFactory(),
+                (hostname, session) -> "localhost".equals(hostname),
+                hostname -> Collections.singletonList(InetAddress.getLoopbackAddress())
+        );
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = this.serverSocket.accept();
+                this.connectionCount.incrementAndGet();
+                Thread handler = new Thread(() -> serve(socket));
+                handler.setDaemon(true);
+                handler.start();
+            }
+        } catch (IOException e) {
+            // Server closed
+        }
+    }
+
+    private static void serve(Socket socket) {
+        try (Socket client = socket) {
+            DataInputStream input = new DataInputStream(client.getInputStream());
+            DataOutputStream output = new DataOutputStream(client.getOutputStream());
+            while (true) {
+                List<byte[]> batch = new ArrayList<>();
+                do {
+                    byte[] query = new byte[input.readUnsignedShort()];
+                    input.readFully(query);
+                    batch.add(query);
+                } while (input.available() > 0);
+                Collections.reverse(batch);
+                for (byte[] query : batch) {
+                    byte[] response = buildResponse(query);
+                    output.writeShort(response.length);
+                    output.write(response);
+                }
+                output.flush();
+            }
+        } catch (IOException e) {
+            // Connection closed
+        }
+    }
+
+    private static byte[] receive(DatagramSocket socket) throws IOException {
+        try {
+            socket.setSoTimeout(5_000);
+            byte[] buffer = new byte[4096];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            socket.receive(packet);
+            return Arrays.copyOf(buffer, packet.getLength());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static byte[] buildQuery(String host, int id) throws IOException {
+        Message message = Message.newQuery(Record.newRecord(Name.fromString(host + "."), Type.A, DClass.IN));
+        message.getHeader().setID(id);
+        return message.toWire();
+    }
+
+    private static byte[] buildResponse(byte[] query) throws IOException {
+        Message message = new Message(query);
+        message.getHeader().setFlag(Flags.QR);
+        return message.toWire();
+    }
+}